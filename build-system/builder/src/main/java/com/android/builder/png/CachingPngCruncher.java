@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.png;
+
+import static com.android.SdkConstants.DOT_9PNG;
+import static com.android.SdkConstants.DOT_PNG;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.ide.common.internal.PngCruncher;
+import com.android.ide.common.internal.PngException;
+import com.android.utils.ILogger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Implementation of {@link PngCruncher} which reuses the output of previous crunching requests.
+ *
+ * The crunched files are stored in a cache folder, keyed by the content of the input file, the
+ * identity of the underlying cruncher (typically its build tools revision) and whether the file
+ * is a 9-patch. Since the key only depends on the content of the file, the same library drawable
+ * is only crunched once for all variants and all projects sharing the cache folder, and is not
+ * crunched again after a clean build.
+ *
+ * The cache folder can be shared by several processes. Entries are written to a temporary file
+ * and renamed, so they are never seen partially written, and an entry which disappears while
+ * being read is simply crunched again. The least recently used entries are deleted when the
+ * total size of the cache goes over its limit.
+ */
+public class CachingPngCruncher implements PngCruncher {
+
+    /** Default maximum total size of the cached files. */
+    public static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+
+    private static final String DOT_TMP = ".tmp";
+
+    @NonNull private final PngCruncher mDelegate;
+    @NonNull private final File mCacheFolder;
+    @NonNull private final String mCruncherId;
+    private final long mMaxSize;
+    @NonNull private final ILogger mLogger;
+
+    // crunching requests sent to the delegate, to be stored in the cache once done.
+    @GuardedBy("this")
+    private final List<PendingEntry> mPendingEntries = Lists.newArrayList();
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    // time spent serving hits, and crunching misses.
+    private final AtomicLong mHitTime = new AtomicLong();
+    private final AtomicLong mMissTime = new AtomicLong();
+
+    /**
+     * Creates a cruncher caching the output of the given cruncher.
+     *
+     * @param delegate the cruncher to use for files which are not in the cache.
+     * @param cacheFolder the folder containing the cache.
+     * @param cruncherId a string identifying the version of the delegate, such that the output
+     *                   of different versions is not mixed up.
+     * @param logger the logger to use.
+     */
+    public CachingPngCruncher(
+            @NonNull PngCruncher delegate,
+            @NonNull File cacheFolder,
+            @NonNull String cruncherId,
+            @NonNull ILogger logger) {
+        this(delegate, cacheFolder, cruncherId, DEFAULT_MAX_SIZE, logger);
+    }
+
+    @VisibleForTesting
+    CachingPngCruncher(
+            @NonNull PngCruncher delegate,
+            @NonNull File cacheFolder,
+            @NonNull String cruncherId,
+            long maxSize,
+            @NonNull ILogger logger) {
+        mDelegate = delegate;
+        mCacheFolder = cacheFolder;
+        mCruncherId = cruncherId;
+        mMaxSize = maxSize;
+        mLogger = logger;
+    }
+
+    @Override
+    public void crunchPng(@NonNull File from, @NonNull File to) throws PngException {
+        long startTime = System.currentTimeMillis();
+
+        File entry;
+        try {
+            entry = getEntry(from);
+        } catch (IOException e) {
+            throw new PngException(e);
+        }
+
+        if (entry.isFile()) {
+            try {
+                Files.copy(entry, to);
+                // keep track of the last use for the LRU eviction.
+                //noinspection ResultOfMethodCallIgnored
+                entry.setLastModified(System.currentTimeMillis());
+
+                mHits.incrementAndGet();
+                mHitTime.addAndGet(System.currentTimeMillis() - startTime);
+                return;
+            } catch (IOException e) {
+                // the entry was probably evicted by another process, crunch the file again.
+                mLogger.verbose("Failed to read %1$s from the png cache: %2$s", entry, e);
+                //noinspection ResultOfMethodCallIgnored
+                to.delete();
+            }
+        }
+
+        mDelegate.crunchPng(from, to);
+        synchronized (this) {
+            mPendingEntries.add(new PendingEntry(entry, to));
+        }
+        mMisses.incrementAndGet();
+        mMissTime.addAndGet(System.currentTimeMillis() - startTime);
+    }
+
+    @Override
+    public void end() throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        mDelegate.end();
+        mMissTime.addAndGet(System.currentTimeMillis() - startTime);
+
+        List<PendingEntry> pendingEntries;
+        synchronized (this) {
+            pendingEntries = Lists.newArrayList(mPendingEntries);
+            mPendingEntries.clear();
+        }
+
+        // store the output of the delegate. Failures only prevent caching.
+        for (PendingEntry pendingEntry : pendingEntries) {
+            try {
+                store(pendingEntry.mOutput, pendingEntry.mEntry);
+            } catch (IOException e) {
+                mLogger.warning("Failed to store %1$s in the png cache: %2$s",
+                        pendingEntry.mOutput, e.getMessage());
+            }
+        }
+
+        if (!pendingEntries.isEmpty()) {
+            trim();
+        }
+
+        int hits = mHits.get();
+        int misses = mMisses.get();
+        if (hits + misses > 0) {
+            long saved = misses > 0 ? hits * mMissTime.get() / misses - mHitTime.get() : 0;
+            mLogger.info("PNG cache: %1$d hits, %2$d misses, about %3$d ms saved",
+                    hits, misses, Math.max(saved, 0));
+        }
+    }
+
+    /** Returns the number of files served from the cache. */
+    public int getHitCount() {
+        return mHits.get();
+    }
+
+    /** Returns the number of files which had to be crunched. */
+    public int getMissCount() {
+        return mMisses.get();
+    }
+
+    /** Returns the cache entry for the given input file. The entry may not exist. */
+    @NonNull
+    private File getEntry(@NonNull File from) throws IOException {
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putString(mCruncherId, Charsets.UTF_8);
+        hasher.putBoolean(from.getName().endsWith(DOT_9PNG));
+        hasher.putBytes(Files.toByteArray(from));
+        String key = hasher.hash().toString();
+
+        // spread the entries over several folders to keep them small.
+        return new File(new File(mCacheFolder, key.substring(0, 2)), key + DOT_PNG);
+    }
+
+    private static void store(@NonNull File output, @NonNull File entry) throws IOException {
+        if (!output.isFile() || entry.isFile()) {
+            // failed crunching, or stored by another process in the meantime.
+            return;
+        }
+
+        File folder = entry.getParentFile();
+        if (!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory()) {
+            throw new IOException("Failed to create " + folder);
+        }
+
+        // write to a temporary file first so that other processes never see a partial entry.
+        File tmpFile = File.createTempFile(entry.getName(), DOT_TMP, folder);
+        try {
+            Files.copy(output, tmpFile);
+            if (!tmpFile.renameTo(entry) && !entry.isFile()) {
+                throw new IOException("Failed to rename " + tmpFile + " to " + entry);
+            }
+        } finally {
+            if (tmpFile.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /** Deletes the least recently used entries until the cache is within its size limit. */
+    private void trim() {
+        List<File> entries = Lists.newArrayList();
+        long size = 0;
+        File[] folders = mCacheFolder.listFiles();
+        if (folders != null) {
+            for (File folder : folders) {
+                File[] files = folder.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.getName().endsWith(DOT_PNG)) {
+                            entries.add(file);
+                            size += file.length();
+                        }
+                    }
+                }
+            }
+        }
+
+        if (size <= mMaxSize) {
+            return;
+        }
+
+        // read the timestamps once, they may be changed by other processes while sorting.
+        final Map<File, Long> lastUses = Maps.newHashMapWithExpectedSize(entries.size());
+        for (File file : entries) {
+            lastUses.put(file, file.lastModified());
+        }
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                return lastUses.get(file1).compareTo(lastUses.get(file2));
+            }
+        });
+
+        for (File file : entries) {
+            if (size <= mMaxSize) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    /** A crunching request which has not been stored in the cache yet. */
+    private static final class PendingEntry {
+        @NonNull private final File mEntry;
+        @NonNull private final File mOutput;
+
+        PendingEntry(@NonNull File entry, @NonNull File output) {
+            mEntry = entry;
+            mOutput = output;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.png;
+
+import static com.android.SdkConstants.DOT_9PNG;
+
+import com.android.annotations.NonNull;
+import com.android.ide.common.internal.PngCruncher;
+import com.android.ide.common.internal.PngException;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Implementation of {@link PngCruncher} running in the current process, without aapt.
+ *
+ * 9-patches are compiled like aapt does it: the frame is removed and replaced by the npTc, npLb
+ * and npOl chunks. Images are then written with the smallest color type which can represent
+ * them exactly, and compressed with a configurable deflate level. Other images are only written
+ * if this makes them smaller.
+ *
+ * Crunching is synchronous and this class is thread-safe, so files can be crunched in parallel
+ * by calling {@link #crunchPng(File, File)} from several threads, like
+ * {@link com.android.ide.common.res2.MergedResourceWriter} does.
+ */
+public class InProcessCruncher implements PngCruncher {
+
+    /**
+     * Version of the output of this cruncher. It must be changed whenever the output changes,
+     * as it is used to identify cached output.
+     */
+    public static final String VERSION = "1";
+
+    public static final int DEFAULT_COMPRESSION_LEVEL = Deflater.BEST_COMPRESSION;
+
+    private final int mCompressionLevel;
+
+    public InProcessCruncher() {
+        this(DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    /**
+     * Creates a cruncher.
+     * @param compressionLevel the deflate level, from {@link Deflater#NO_COMPRESSION} to
+     *                         {@link Deflater#BEST_COMPRESSION}.
+     */
+    public InProcessCruncher(int compressionLevel) {
+        if (compressionLevel < Deflater.NO_COMPRESSION
+                || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        }
+        mCompressionLevel = compressionLevel;
+    }
+
+    @Override
+    public void crunchPng(@NonNull File from, @NonNull File to) throws PngException {
+        try {
+            BufferedImage image = ImageIO.read(from);
+            if (image == null) {
+                throw new PngException(from.getAbsolutePath() + ": Error: Not a valid PNG file");
+            }
+
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int[] pixels = getPixels(image);
+            boolean ninePatch = from.getName().endsWith(DOT_9PNG);
+
+            NinePatchData ninePatchData = null;
+            if (ninePatch) {
+                try {
+                    ninePatchData = new NinePatchData(pixels, width, height);
+                } catch (NinePatchData.NinePatchException e) {
+                    throw new PngException(String.format(
+                            "%1$s: Error: 9-patch image malformed. %2$s",
+                            from.getAbsolutePath(), e.getMessage()), e);
+                }
+
+                // remove the frame.
+                int[] content = new int[(width - 2) * (height - 2)];
+                for (int y = 1; y < height - 1; y++) {
+                    System.arraycopy(pixels, y * width + 1, content, (y - 1) * (width - 2),
+                            width - 2);
+                }
+                pixels = content;
+                width -= 2;
+                height -= 2;
+            }
+
+            PngWriter writer = new PngWriter(pixels, width, height);
+            if (ninePatchData != null) {
+                writer.addChunk("npOl", ninePatchData.getOutlineChunk());
+                byte[] layoutBounds = ninePatchData.getLayoutBoundsChunk();
+                if (layoutBounds != null) {
+                    writer.addChunk("npLb", layoutBounds);
+                }
+                writer.addChunk("npTc", ninePatchData.getNinePatchChunk());
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writer.write(bytes, ninePatch, mCompressionLevel);
+
+            if (!ninePatch && bytes.size() >= from.length()) {
+                // keep the original, which also keeps its color information.
+                Files.copy(from, to);
+                return;
+            }
+
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(to));
+            boolean threw = true;
+            try {
+                bytes.writeTo(out);
+                threw = false;
+            } finally {
+                Closeables.close(out, threw);
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            to.delete();
+            throw new PngException(e);
+        }
+    }
+
+    @Override
+    public void end() throws InterruptedException {
+        // nothing to do, it's all synchronous.
+    }
+
+    /**
+     * Returns the ARGB pixels of the image. 8-bit grayscale images are read directly from their
+     * raster, since converting their linear gray color space to sRGB would change their values.
+     */
+    @NonNull
+    private static int[] getPixels(@NonNull BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Raster raster = image.getRaster();
+        int bands = raster.getNumBands();
+
+        if (image.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_GRAY
+                && (bands == 1 || bands == 2)
+                && raster.getSampleModel().getSampleSize(0) == 8) {
+            int[] samples = raster.getPixels(0, 0, width, height, (int[]) null);
+            int[] pixels = new int[width * height];
+            for (int i = 0; i < pixels.length; i++) {
+                int gray = samples[i * bands];
+                int alpha = bands == 2 ? samples[i * bands + 1] : 0xFF;
+                pixels[i] = alpha << 24 | gray << 16 | gray << 8 | gray;
+            }
+            return pixels;
+        }
+
+        return image.getRGB(0, 0, width, height, null, 0, width);
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.png;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The 9-patch information read from the 1-pixel frame of a 9-patch image, and its serialized
+ * form in the npTc, npLb and npOl chunks of a compiled 9-patch.
+ *
+ * The frame is interpreted, and the chunks are encoded, exactly like aapt does it, so that the
+ * framework sees the same 9-patch whichever tool compiled it.
+ */
+class NinePatchData {
+
+    private static final int COLOR_TICK = 0xFF000000;
+    private static final int COLOR_LAYOUT_BOUNDS_TICK = 0xFFFF0000;
+    private static final int COLOR_WHITE = 0xFFFFFFFF;
+
+    private static final int TRANSPARENT_COLOR = 0x00000000;
+    private static final int NO_COLOR = 0x00000001;
+
+    /** Maximum number of regions, which are indexed on a signed byte in the npTc chunk. */
+    private static final int MAX_COLORS = 0x7F;
+
+    private enum TickType { NONE, TICK, LAYOUT_BOUNDS }
+
+    private final int[] mXDivs;
+    private final int[] mYDivs;
+    private final int mPaddingLeft;
+    private final int mPaddingRight;
+    private final int mPaddingTop;
+    private final int mPaddingBottom;
+    private final int[] mColors;
+
+    private final int mLayoutBoundsLeft;
+    private final int mLayoutBoundsTop;
+    private final int mLayoutBoundsRight;
+    private final int mLayoutBoundsBottom;
+
+    private final int mOutlineInsetsLeft;
+    private final int mOutlineInsetsTop;
+    private final int mOutlineInsetsRight;
+    private final int mOutlineInsetsBottom;
+    private final float mOutlineRadius;
+    private final int mOutlineAlpha;
+
+    /**
+     * Reads the 9-patch information from the pixels of a 9-patch image, frame included.
+     *
+     * @param pixels the ARGB pixels of the image, row by row.
+     * @param width the width of the image, including the frame.
+     * @param height the height of the image, including the frame.
+     * @throws NinePatchException if the frame is not valid.
+     */
+    NinePatchData(@NonNull int[] pixels, int width, int height) throws NinePatchException {
+        if (width < 3 || height < 3) {
+            throw new NinePatchException("Image must be at least 3x3 (1x1 without frame) pixels");
+        }
+
+        boolean transparent = alpha(pixels[0]) == 0;
+
+        // the stretchable areas, on the top and left lines.
+        int[] xDivs = getTicks(pixels, 0, 1, width, transparent, true, true, "top");
+        int[] yDivs = getTicks(pixels, 0, width, height, transparent, true, true, "left");
+
+        // the padding, on the bottom and right lines.
+        int[] horizontalPadding = getTicks(pixels, (height - 1) * width, 1, width, transparent,
+                false, false, "bottom");
+        int[] verticalPadding = getTicks(pixels, width - 1, width, height, transparent, false,
+                false, "right");
+
+        int contentWidth = width - 2;
+        int contentHeight = height - 2;
+
+        // if the padding is not specified, it is the stretchable area.
+        if (horizontalPadding.length == 0) {
+            mPaddingLeft = xDivs[0];
+            mPaddingRight = contentWidth - xDivs[1];
+        } else {
+            mPaddingLeft = horizontalPadding[0];
+            mPaddingRight = contentWidth - horizontalPadding[1];
+        }
+        if (verticalPadding.length == 0) {
+            mPaddingTop = yDivs[0];
+            mPaddingBottom = contentHeight - yDivs[1];
+        } else {
+            mPaddingTop = verticalPadding[0];
+            mPaddingBottom = contentHeight - verticalPadding[1];
+        }
+
+        // the optical bounds, in red on the bottom and right lines.
+        int bottomRow = (height - 1) * width;
+        mLayoutBoundsLeft = countLayoutBounds(pixels, bottomRow + 1, 1, width - 2, transparent);
+        mLayoutBoundsRight = countLayoutBounds(pixels, bottomRow + width - 2, -1, width - 2,
+                transparent);
+        mLayoutBoundsTop = countLayoutBounds(pixels, width + width - 1, width, height - 2,
+                transparent);
+        mLayoutBoundsBottom = countLayoutBounds(pixels, (height - 2) * width + width - 1, -width,
+                height - 2, transparent);
+
+        mXDivs = xDivs;
+        mYDivs = yDivs;
+        mColors = computeColors(pixels, width, xDivs, yDivs);
+
+        // the outline, computed from the opacity of the content.
+        int midX = width / 2;
+        int midY = height / 2;
+        int endX = width - 2;
+        int endY = height - 2;
+        if (width > 4) {
+            mOutlineInsetsLeft = findMaxOpacity(pixels, width, 1, midY, midX, -1, 1, 0);
+            mOutlineInsetsRight = findMaxOpacity(pixels, width, endX, midY, midX, -1, -1, 0);
+        } else {
+            mOutlineInsetsLeft = 0;
+            mOutlineInsetsRight = 0;
+        }
+        if (height > 4) {
+            mOutlineInsetsTop = findMaxOpacity(pixels, width, midX, 1, -1, midY, 0, 1);
+            mOutlineInsetsBottom = findMaxOpacity(pixels, width, midX, endY, -1, midY, 0, -1);
+        } else {
+            mOutlineInsetsTop = 0;
+            mOutlineInsetsBottom = 0;
+        }
+
+        int innerStartX = 1 + mOutlineInsetsLeft;
+        int innerStartY = 1 + mOutlineInsetsTop;
+        int innerEndX = endX - mOutlineInsetsRight;
+        int innerEndY = endY - mOutlineInsetsBottom;
+        int innerMidX = (innerEndX + innerStartX) / 2;
+        int innerMidY = (innerEndY + innerStartY) / 2;
+
+        // assuming the image is a round rect, compute the radius by marching diagonally from
+        // the top left corner towards the center.
+        int outlineAlpha = 0;
+        for (int x = innerStartX; x < innerEndX; x++) {
+            outlineAlpha = Math.max(outlineAlpha, alpha(pixels[innerMidY * width + x]));
+        }
+        mOutlineAlpha = outlineAlpha;
+
+        int diagonalInset = findMaxOpacity(pixels, width, innerStartX, innerStartY, innerMidX,
+                innerMidY, 1, 1);
+        // r = sqrt(2) / (sqrt(2) - 1) * inset
+        mOutlineRadius = 3.4142f * diagonalInset;
+    }
+
+    boolean hasLayoutBounds() {
+        return mLayoutBoundsLeft != 0 || mLayoutBoundsTop != 0 || mLayoutBoundsRight != 0
+                || mLayoutBoundsBottom != 0;
+    }
+
+    /**
+     * Returns the content of the npTc chunk. Offsets are written in little endian order and
+     * all the other values in big endian order, like aapt does.
+     */
+    @NonNull
+    byte[] getNinePatchChunk() {
+        int xDivsOffset = 32;
+        int yDivsOffset = xDivsOffset + mXDivs.length * 4;
+        int colorsOffset = yDivsOffset + mYDivs.length * 4;
+        ByteBuffer buffer = ByteBuffer.allocate(colorsOffset + mColors.length * 4);
+
+        buffer.put((byte) 0); // wasDeserialized
+        buffer.put((byte) mXDivs.length);
+        buffer.put((byte) mYDivs.length);
+        buffer.put((byte) mColors.length);
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(xDivsOffset);
+        buffer.putInt(yDivsOffset);
+
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(mPaddingLeft);
+        buffer.putInt(mPaddingRight);
+        buffer.putInt(mPaddingTop);
+        buffer.putInt(mPaddingBottom);
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(colorsOffset);
+
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        for (int xDiv : mXDivs) {
+            buffer.putInt(xDiv);
+        }
+        for (int yDiv : mYDivs) {
+            buffer.putInt(yDiv);
+        }
+        for (int color : mColors) {
+            buffer.putInt(color);
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * Returns the content of the npLb chunk, or null if the image has no layout bounds.
+     */
+    @Nullable
+    byte[] getLayoutBoundsChunk() {
+        if (!hasLayoutBounds()) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(mLayoutBoundsLeft);
+        buffer.putInt(mLayoutBoundsTop);
+        buffer.putInt(mLayoutBoundsRight);
+        buffer.putInt(mLayoutBoundsBottom);
+        return buffer.array();
+    }
+
+    /**
+     * Returns the content of the npOl chunk.
+     */
+    @NonNull
+    byte[] getOutlineChunk() {
+        ByteBuffer buffer = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(mOutlineInsetsLeft);
+        buffer.putInt(mOutlineInsetsTop);
+        buffer.putInt(mOutlineInsetsRight);
+        buffer.putInt(mOutlineInsetsBottom);
+        buffer.putFloat(mOutlineRadius);
+        buffer.putInt(mOutlineAlpha);
+        return buffer.array();
+    }
+
+    /**
+     * Reads the ticks of a line of the frame, ignoring the corners.
+     *
+     * @param pixels the pixels of the image.
+     * @param start the index of the first pixel of the line, corner included.
+     * @param step the distance between two pixels of the line.
+     * @param length the length of the line, corners included.
+     * @param transparent whether the frame is transparent rather than white.
+     * @param required whether the line must have ticks.
+     * @param multipleAllowed whether the line may have several groups of ticks.
+     * @param name the name of the line, for error messages.
+     * @return pairs of start (inclusive) and end (exclusive) positions of the groups of ticks,
+     *     relative to the content of the image.
+     */
+    @NonNull
+    private static int[] getTicks(@NonNull int[] pixels, int start, int step, int length,
+            boolean transparent, boolean required, boolean multipleAllowed,
+            @NonNull String name) throws NinePatchException {
+        int[] ticks = new int[length];
+        int count = 0;
+        boolean inside = false;
+        for (int i = 1; i < length - 1; i++) {
+            if (getTickType(pixels[start + i * step], transparent) == TickType.TICK) {
+                if (!inside) {
+                    if (count > 0 && !multipleAllowed) {
+                        throw new NinePatchException(String.format(
+                                "Can't have more than one marked region along %1$s edge", name));
+                    }
+                    ticks[count++] = i - 1;
+                    ticks[count++] = length - 2;
+                    inside = true;
+                }
+            } else if (inside) {
+                ticks[count - 1] = i - 1;
+                inside = false;
+            }
+        }
+
+        if (required && count == 0) {
+            throw new NinePatchException(String.format(
+                    "No marked region found along %1$s edge", name));
+        }
+
+        int[] result = new int[count];
+        System.arraycopy(ticks, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Counts the layout bounds ticks at the start of a line of the frame.
+     */
+    private static int countLayoutBounds(@NonNull int[] pixels, int start, int step, int length,
+            boolean transparent) throws NinePatchException {
+        int count = 0;
+        while (count < length
+                && getTickType(pixels[start + count * step], transparent)
+                        == TickType.LAYOUT_BOUNDS) {
+            count++;
+        }
+        return count;
+    }
+
+    @NonNull
+    private static TickType getTickType(int color, boolean transparent)
+            throws NinePatchException {
+        int alpha = alpha(color);
+
+        if (transparent) {
+            if (alpha == 0) {
+                return TickType.NONE;
+            }
+            if (color == COLOR_LAYOUT_BOUNDS_TICK) {
+                return TickType.LAYOUT_BOUNDS;
+            }
+            if (color == COLOR_TICK) {
+                return TickType.TICK;
+            }
+            if (alpha != 0xFF) {
+                throw new NinePatchException(
+                        "Frame pixels must be either solid or transparent (not intermediate alphas)");
+            }
+            throw new NinePatchException("Ticks in transparent frame must be black or red");
+        }
+
+        if (alpha != 0xFF) {
+            throw new NinePatchException("White frame must be a solid color (no alpha)");
+        }
+        if (color == COLOR_WHITE) {
+            return TickType.NONE;
+        }
+        if (color == COLOR_TICK) {
+            return TickType.TICK;
+        }
+        if (color == COLOR_LAYOUT_BOUNDS_TICK) {
+            return TickType.LAYOUT_BOUNDS;
+        }
+        throw new NinePatchException("Ticks in white frame must be black or red");
+    }
+
+    /**
+     * Computes the color of each region of the 9-patch, from left to right and top to bottom:
+     * a solid color, {@link #TRANSPARENT_COLOR} or {@link #NO_COLOR} if the region is not a
+     * single color.
+     */
+    @NonNull
+    private static int[] computeColors(@NonNull int[] pixels, int width, @NonNull int[] xDivs,
+            @NonNull int[] yDivs) throws NinePatchException {
+        int contentWidth = width - 2;
+        int contentHeight = pixels.length / width - 2;
+
+        int numCols = xDivs.length + 1;
+        if (xDivs[0] == 0) {
+            numCols--;
+        }
+        if (xDivs[xDivs.length - 1] == contentWidth) {
+            numCols--;
+        }
+        int numRows = yDivs.length + 1;
+        if (yDivs[0] == 0) {
+            numRows--;
+        }
+        if (yDivs[yDivs.length - 1] == contentHeight) {
+            numRows--;
+        }
+
+        if (numRows * numCols > MAX_COLORS) {
+            throw new NinePatchException("Too many rows and columns in 9-patch perimeter");
+        }
+
+        int[] colors = new int[numRows * numCols];
+        int colorIndex = 0;
+        int top = 0;
+        for (int j = yDivs[0] == 0 ? 1 : 0; j <= yDivs.length && top < contentHeight; j++) {
+            int bottom = j == yDivs.length ? contentHeight : yDivs[j];
+            int left = 0;
+            for (int i = xDivs[0] == 0 ? 1 : 0; i <= xDivs.length && left < contentWidth; i++) {
+                int right = i == xDivs.length ? contentWidth : xDivs[i];
+                colors[colorIndex++] = getRegionColor(pixels, width, left, top, right, bottom);
+                left = right;
+            }
+            top = bottom;
+        }
+
+        return colors;
+    }
+
+    private static int getRegionColor(@NonNull int[] pixels, int width, int left, int top,
+            int right, int bottom) {
+        if (left >= right || top >= bottom) {
+            return TRANSPARENT_COLOR;
+        }
+
+        // content coordinates, skip the frame.
+        int color = pixels[(top + 1) * width + left + 1];
+        boolean transparent = alpha(color) == 0;
+        for (int y = top; y < bottom; y++) {
+            int offset = (y + 1) * width + 1;
+            for (int x = left; x < right; x++) {
+                int pixel = pixels[offset + x];
+                if (transparent ? alpha(pixel) != 0 : pixel != color) {
+                    return NO_COLOR;
+                }
+            }
+        }
+
+        return transparent ? TRANSPARENT_COLOR : color;
+    }
+
+    /**
+     * Walks from a start point in the given direction until the first fully opaque pixel, and
+     * returns the distance to the most opaque pixel found.
+     */
+    private static int findMaxOpacity(@NonNull int[] pixels, int width, int startX, int startY,
+            int endX, int endY, int dX, int dY) {
+        int maxOpacity = 0;
+        int result = 0;
+        for (int x = startX, y = startY, inset = 0; x != endX && y != endY;
+                x += dX, y += dY, inset++) {
+            int opacity = alpha(pixels[y * width + x]);
+            if (opacity > maxOpacity) {
+                maxOpacity = opacity;
+                result = inset;
+            }
+            if (opacity == 0xFF) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static int alpha(int color) {
+        return color >>> 24;
+    }
+
+    /**
+     * Exception thrown when the frame of a 9-patch is not valid.
+     */
+    static class NinePatchException extends Exception {
+        NinePatchException(@NonNull String message) {
+            super(message);
+        }
+    }
+}
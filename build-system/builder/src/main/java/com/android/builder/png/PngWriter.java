@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.png;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an image as a compact PNG file.
+ *
+ * The color type is chosen like aapt does it: grayscale images are written as gray, images with
+ * at most 256 colors are written with a palette if it is smaller, and the alpha channel is
+ * dropped for opaque images. Each row is filtered with the filter which gives the smallest sum of
+ * absolute differences, and the data is compressed with the given deflate level.
+ */
+class PngWriter {
+
+    static final byte[] SIGNATURE = new byte[] {
+            (byte) 0x89, 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A };
+
+    private static final int COLOR_TYPE_GRAY = 0;
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_PALETTE = 3;
+    private static final int COLOR_TYPE_GRAY_ALPHA = 4;
+    private static final int COLOR_TYPE_RGB_ALPHA = 6;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private static final int MAX_PALETTE_SIZE = 256;
+
+    @NonNull private final int[] mPixels;
+    private final int mWidth;
+    private final int mHeight;
+    private final List<Chunk> mChunks = Lists.newArrayList();
+
+    /**
+     * Creates a writer for the given image.
+     *
+     * @param pixels the ARGB pixels of the image, row by row.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     */
+    PngWriter(@NonNull int[] pixels, int width, int height) {
+        mPixels = pixels;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Adds a chunk, written after the header.
+     * @param type the type of the chunk.
+     * @param data the content of the chunk.
+     */
+    void addChunk(@NonNull String type, @NonNull byte[] data) {
+        mChunks.add(new Chunk(type, data));
+    }
+
+    /**
+     * Writes the PNG file.
+     *
+     * @param out the stream to write to.
+     * @param ninePatch whether the image is a 9-patch. Like aapt, 9-patches are always written
+     *                  with an alpha channel and without a palette, so that their pixels are
+     *                  not changed before the framework decides how to decode them.
+     * @param compressionLevel the deflate level, 0 to 9.
+     */
+    void write(@NonNull OutputStream out, boolean ninePatch, int compressionLevel)
+            throws IOException {
+        boolean opaque = true;
+        boolean grayscale = true;
+        for (int pixel : mPixels) {
+            if ((pixel >>> 24) != 0xFF) {
+                opaque = false;
+            }
+            int red = (pixel >> 16) & 0xFF;
+            if (red != ((pixel >> 8) & 0xFF) || red != (pixel & 0xFF)) {
+                grayscale = false;
+            }
+            if (!opaque && !grayscale) {
+                break;
+            }
+        }
+
+        int[] palette = computePalette();
+        int pixelCount = mWidth * mHeight;
+        int bpp = opaque ? 3 : 4;
+        int colorType;
+        if (grayscale && opaque) {
+            colorType = COLOR_TYPE_GRAY;
+        } else if (grayscale) {
+            // only use a palette if it saves space over gray + alpha.
+            colorType = palette != null && pixelCount + bpp * palette.length < 2 * pixelCount
+                    ? COLOR_TYPE_PALETTE : COLOR_TYPE_GRAY_ALPHA;
+        } else if (palette != null && pixelCount + bpp * palette.length < bpp * pixelCount) {
+            colorType = COLOR_TYPE_PALETTE;
+        } else {
+            colorType = opaque ? COLOR_TYPE_RGB : COLOR_TYPE_RGB_ALPHA;
+        }
+
+        if (ninePatch && colorType != COLOR_TYPE_GRAY_ALPHA) {
+            colorType = COLOR_TYPE_RGB_ALPHA;
+        }
+
+        int bytesPerPixel;
+        switch (colorType) {
+            case COLOR_TYPE_GRAY:
+            case COLOR_TYPE_PALETTE:
+                bytesPerPixel = 1;
+                break;
+            case COLOR_TYPE_GRAY_ALPHA:
+                bytesPerPixel = 2;
+                break;
+            case COLOR_TYPE_RGB:
+                bytesPerPixel = 3;
+                break;
+            default:
+                bytesPerPixel = 4;
+                break;
+        }
+
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeInt(mWidth);
+        headerOut.writeInt(mHeight);
+        headerOut.writeByte(8); // bit depth
+        headerOut.writeByte(colorType);
+        headerOut.writeByte(0); // compression method
+        headerOut.writeByte(0); // filter method
+        headerOut.writeByte(0); // interlace method
+        writeChunk(dataOut, "IHDR", header.toByteArray());
+
+        for (Chunk chunk : mChunks) {
+            writeChunk(dataOut, chunk.mType, chunk.mData);
+        }
+
+        Map<Integer, Integer> paletteIndices = null;
+        if (colorType == COLOR_TYPE_PALETTE) {
+            assert palette != null;
+            paletteIndices = Maps.newHashMapWithExpectedSize(palette.length);
+            byte[] plte = new byte[palette.length * 3];
+            int transparentCount = 0;
+            for (int i = 0; i < palette.length; i++) {
+                int color = palette[i];
+                paletteIndices.put(color, i);
+                plte[i * 3] = (byte) (color >> 16);
+                plte[i * 3 + 1] = (byte) (color >> 8);
+                plte[i * 3 + 2] = (byte) color;
+                if ((color >>> 24) != 0xFF) {
+                    transparentCount = i + 1;
+                }
+            }
+            writeChunk(dataOut, "PLTE", plte);
+
+            if (transparentCount > 0) {
+                byte[] trns = new byte[transparentCount];
+                for (int i = 0; i < transparentCount; i++) {
+                    trns[i] = (byte) (palette[i] >>> 24);
+                }
+                writeChunk(dataOut, "tRNS", trns);
+            }
+        }
+
+        writeChunk(dataOut, "IDAT", compress(colorType, bytesPerPixel, paletteIndices,
+                compressionLevel));
+        writeChunk(dataOut, "IEND", new byte[0]);
+        dataOut.flush();
+    }
+
+    /**
+     * Returns the colors of the image if there are few enough of them for a palette. The
+     * translucent colors are first, so that the tRNS chunk is as short as possible.
+     */
+    @Nullable
+    private int[] computePalette() {
+        Map<Integer, Boolean> colors = Maps.newLinkedHashMap();
+        for (int pixel : mPixels) {
+            if (!colors.containsKey(pixel)) {
+                if (colors.size() == MAX_PALETTE_SIZE) {
+                    return null;
+                }
+                colors.put(pixel, Boolean.TRUE);
+            }
+        }
+
+        int[] palette = new int[colors.size()];
+        int index = 0;
+        for (int color : colors.keySet()) {
+            if ((color >>> 24) != 0xFF) {
+                palette[index++] = color;
+            }
+        }
+        for (int color : colors.keySet()) {
+            if ((color >>> 24) == 0xFF) {
+                palette[index++] = color;
+            }
+        }
+        return palette;
+    }
+
+    @NonNull
+    private byte[] compress(int colorType, int bytesPerPixel,
+            @Nullable Map<Integer, Integer> paletteIndices, int compressionLevel)
+            throws IOException {
+        int rowLength = mWidth * bytesPerPixel;
+        byte[] previousRow = new byte[rowLength];
+        byte[] row = new byte[rowLength];
+        byte[] filtered = new byte[rowLength];
+        byte[] bestFiltered = new byte[rowLength];
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(rowLength * mHeight / 2 + 64);
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            DeflaterOutputStream deflaterOut = new DeflaterOutputStream(bytes, deflater, 8192);
+            for (int y = 0; y < mHeight; y++) {
+                int offset = y * mWidth;
+                for (int x = 0, i = 0; x < mWidth; x++) {
+                    int pixel = mPixels[offset + x];
+                    switch (colorType) {
+                        case COLOR_TYPE_PALETTE:
+                            assert paletteIndices != null;
+                            row[i++] = (byte) paletteIndices.get(pixel).intValue();
+                            break;
+                        case COLOR_TYPE_GRAY:
+                            row[i++] = (byte) pixel;
+                            break;
+                        case COLOR_TYPE_GRAY_ALPHA:
+                            row[i++] = (byte) pixel;
+                            row[i++] = (byte) (pixel >>> 24);
+                            break;
+                        case COLOR_TYPE_RGB:
+                            row[i++] = (byte) (pixel >> 16);
+                            row[i++] = (byte) (pixel >> 8);
+                            row[i++] = (byte) pixel;
+                            break;
+                        default:
+                            row[i++] = (byte) (pixel >> 16);
+                            row[i++] = (byte) (pixel >> 8);
+                            row[i++] = (byte) pixel;
+                            row[i++] = (byte) (pixel >>> 24);
+                            break;
+                    }
+                }
+
+                if (colorType == COLOR_TYPE_PALETTE) {
+                    // filtering indices does not help.
+                    deflaterOut.write(FILTER_NONE);
+                    deflaterOut.write(row);
+                } else {
+                    // pick the filter with the smallest sum of absolute values.
+                    int bestFilter = FILTER_NONE;
+                    long bestSum = Long.MAX_VALUE;
+                    for (int filter = FILTER_NONE; filter <= FILTER_PAETH; filter++) {
+                        long sum = filter(filter, row, previousRow, bytesPerPixel, filtered);
+                        if (sum < bestSum) {
+                            bestSum = sum;
+                            bestFilter = filter;
+                            byte[] tmp = bestFiltered;
+                            bestFiltered = filtered;
+                            filtered = tmp;
+                        }
+                    }
+                    deflaterOut.write(bestFilter);
+                    deflaterOut.write(bestFiltered);
+                }
+
+                byte[] tmp = previousRow;
+                previousRow = row;
+                row = tmp;
+            }
+            deflaterOut.finish();
+        } finally {
+            deflater.end();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Filters a row and returns the sum of the absolute values of the filtered bytes, as
+     * signed bytes.
+     */
+    private static long filter(int filter, @NonNull byte[] row, @NonNull byte[] previousRow,
+            int bytesPerPixel, @NonNull byte[] out) {
+        long sum = 0;
+        for (int i = 0; i < row.length; i++) {
+            int current = row[i] & 0xFF;
+            int left = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+            int up = previousRow[i] & 0xFF;
+            int upLeft = i >= bytesPerPixel ? previousRow[i - bytesPerPixel] & 0xFF : 0;
+
+            int value;
+            switch (filter) {
+                case FILTER_SUB:
+                    value = current - left;
+                    break;
+                case FILTER_UP:
+                    value = current - up;
+                    break;
+                case FILTER_AVERAGE:
+                    value = current - ((left + up) >> 1);
+                    break;
+                case FILTER_PAETH:
+                    value = current - paeth(left, up, upLeft);
+                    break;
+                default:
+                    value = current;
+                    break;
+            }
+
+            byte b = (byte) value;
+            out[i] = b;
+            sum += Math.abs((int) b);
+        }
+        return sum;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    private static void writeChunk(@NonNull DataOutputStream out, @NonNull String type,
+            @NonNull byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes(Charsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static final class Chunk {
+        @NonNull private final String mType;
+        @NonNull private final byte[] mData;
+
+        Chunk(@NonNull String type, @NonNull byte[] data) {
+            mType = type;
+            mData = data;
+        }
+    }
+}
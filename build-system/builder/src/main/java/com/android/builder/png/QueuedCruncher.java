@@ -28,7 +28,6 @@ import com.android.utils.ILogger;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -86,7 +85,8 @@ public class QueuedCruncher implements PngCruncher {
         QueueThreadContext<AaptProcess> queueThreadContext = new QueueThreadContext<AaptProcess>() {
 
             // move this to a TLS.
-            @NonNull private final Map<String, AaptProcess> mAaptProcesses = new HashMap<String, AaptProcess>();
+            @NonNull private final Map<String, AaptProcess> mAaptProcesses =
+                    new ConcurrentHashMap<String, AaptProcess>();
 
             @Override
             public void creation(Thread t) throws IOException {
@@ -140,7 +140,7 @@ public class QueuedCruncher implements PngCruncher {
                 mAaptProcesses.clear();
             }
         };
-        mCrunchingRequests = new WorkQueue<AaptProcess>(mLogger, queueThreadContext, "png-cruncher", 5, 2);
+        mCrunchingRequests = new WorkQueue<AaptProcess>(mLogger, queueThreadContext, "png-cruncher");
     }
 
     @Override
@@ -27,6 +27,8 @@ import static com.android.SdkConstants.FN_SOURCE_PROP;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.prefs.AndroidLocation;
+import com.android.prefs.AndroidLocation.AndroidLocationException;
 import com.android.sdklib.BuildToolInfo;
 import com.android.sdklib.IAndroidTarget;
 import com.android.sdklib.SdkManager;
@@ -36,6 +38,7 @@ import com.android.utils.ILogger;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Closeables;
 
 import java.io.File;
@@ -123,6 +126,9 @@ public class DefaultSdkLoader implements SdkLoader {
                 throw new IllegalStateException("failed to parse SDK! Check console for details");
             }
 
+            // packages are loaded lazily, so the index is used for all of them.
+            mSdkManager.getLocalSdk().setIndexFile(getSdkIndexFile());
+
             File toolsFolder = new File(mSdkLocation, FD_TOOLS);
             File supportToolsFolder = new File(toolsFolder, FD_SUPPORT);
             File platformTools = new File(mSdkLocation, FD_PLATFORM_TOOLS);
@@ -133,6 +139,23 @@ public class DefaultSdkLoader implements SdkLoader {
         }
     }
 
+    /**
+     * Returns the file where the content of the SDK is indexed across builds, or null if the
+     * Android folder is not available.
+     */
+    @Nullable
+    private File getSdkIndexFile() {
+        try {
+            String key = Hashing.sha1().newHasher()
+                    .putString(mSdkLocation.getAbsolutePath(), Charsets.UTF_8)
+                    .hash().toString();
+            return new File(AndroidLocation.getFolder(),
+                    "build-cache" + File.separator + "sdk-index" + File.separator + key);
+        } catch (AndroidLocationException e) {
+            return null;
+        }
+    }
+
     @Nullable
     private FullRevision getPlatformToolsRevision(@NonNull File platformToolsFolder) {
         if (!platformToolsFolder.isDirectory()) {
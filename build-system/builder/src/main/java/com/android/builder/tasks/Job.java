@@ -22,19 +22,36 @@ import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Definition of a queued job. A job has a title, a task to execute, a latch to signal its
- * completion and a boolean result for success or failure.
+ * Definition of a queued job. A job has a title, a task to execute, a priority, a latch to
+ * signal its completion and a boolean result for success or failure.
  */
 public class Job<T> {
 
+    public static final int PRIORITY_LOW = -10;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 10;
+
     private final String mJobTitle;
     private final Task<T> mTask;
+    private final int mPriority;
     private final BooleanLatch mBooleanLatch;
     private final AtomicBoolean mResult = new AtomicBoolean(false);
 
     public Job(String jobTile, Task<T> task) {
+        this(jobTile, task, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Creates a job.
+     * @param jobTile the job title.
+     * @param task the task to execute.
+     * @param priority the job priority. Jobs with a higher priority are scheduled first, jobs
+     *                 with the same priority are scheduled in order.
+     */
+    public Job(String jobTile, Task<T> task, int priority) {
         mJobTitle = jobTile;
         mTask = task;
+        mPriority = priority;
         mBooleanLatch = new BooleanLatch();
     }
 
@@ -42,6 +59,10 @@ public class Job<T> {
         return mJobTitle;
     }
 
+    public int getPriority() {
+        return mPriority;
+    }
+
     public void runTask(JobContext<T> jobContext) throws IOException {
         mTask.run(this, jobContext);
     }
@@ -66,6 +87,7 @@ public class Job<T> {
     public String toString() {
         return Objects.toStringHelper(this)
                 .add("title", mJobTitle)
+                .add("priority", mPriority)
                 .add("latch", mBooleanLatch)
                 .add("result", mResult.get())
                 .toString();
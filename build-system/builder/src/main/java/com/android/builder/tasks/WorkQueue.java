@@ -17,140 +17,241 @@
 package com.android.builder.tasks;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.utils.ILogger;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * A work queue that accepts jobs and treat them in order.
+ * A work queue that accepts jobs and treat them in order of priority.
+ *
+ * The queue is processed by a fixed number of worker threads, started on the first
+ * {@link #push(Job)} and stopped by {@link #shutdown()}. Each worker has its own queue of
+ * pending jobs, and idle workers steal jobs from the busiest worker.
+ *
+ * The number of pending jobs is bounded: {@link #push(Job)} blocks when the queue is full,
+ * until a worker picks a job. Jobs pushed by the worker threads themselves are never blocked,
+ * as this would deadlock the queue.
  *
  * @author jedo@google.com (Jerome Dochez)
  */
-public class WorkQueue<T> implements Runnable {
+public class WorkQueue<T> {
+
+    // number of pending jobs per worker when no capacity is given.
+    private static final int DEFAULT_CAPACITY_PER_WORKER = 16;
+
+    // how long an idle worker waits for a job before looking again at the other workers.
+    private static final long IDLE_POLL_MS = 20;
 
     private final ILogger mLogger;
 
     // queue name as human would understand.
     private final String mName;
 
-    // the user throttling has already happened before so I am using a potentially
-    // infinite linked list of request.
-    private final LinkedBlockingQueue<QueueTask<T>> mPendingJobs =
-            new LinkedBlockingQueue<QueueTask<T>>();
+    private final QueueThreadContext<T> mQueueThreadContext;
 
-    // List of working threads pumping from this queue.
-    private final List<Thread> mWorkThreads = new ArrayList<Thread>();
+    private final int mWorkforce;
+    private final int mCapacity;
 
-    private final float mGrowthTriggerRation;
-    private final int mMWorkforceIncrement;
-    private final AtomicInteger mThreadId = new AtomicInteger(0);
-    private final QueueThreadContext<T> mQueueThreadContext;
+    // permits for the pending jobs, which block the producers when the queue is full.
+    private final Semaphore mCapacityPermits;
 
-    // we could base this on the number of processors this machine has, etc...
-    private static final int MAX_WORKFORCE_SIZE = 20;
+    // workers pumping from this queue, empty when the queue is shut down.
+    @SuppressWarnings("unchecked")
+    private volatile Worker[] mWorkers = new WorkQueue.Worker[0];
 
+    private volatile boolean mShuttingDown = false;
+
+    private final AtomicInteger mThreadId = new AtomicInteger(0);
+    private final AtomicLong mSequence = new AtomicLong(0);
+
+    // metrics.
+    private final AtomicInteger mPendingCount = new AtomicInteger(0);
+    private final AtomicInteger mMaxPendingCount = new AtomicInteger(0);
+    private final AtomicInteger mProcessedCount = new AtomicInteger(0);
+    private final AtomicInteger mStolenCount = new AtomicInteger(0);
+    private final AtomicLong mTotalWaitNanos = new AtomicLong(0);
+    private final AtomicLong mMaxWaitNanos = new AtomicLong(0);
 
     /**
      * Private queue structure to store queue items.
      */
-    private static class QueueTask<T> {
+    private static class QueueTask<T> implements Comparable<QueueTask<T>> {
 
-        enum ActionType { Death, Normal }
-        final ActionType actionType;
         final Job<T> job;
+        final long sequence;
+        final long enqueueTime;
+        // whether this task holds one of the capacity permits.
+        final boolean holdsPermit;
 
-        private QueueTask(ActionType actionType, Job<T> job) {
-            this.actionType = actionType;
+        private QueueTask(Job<T> job, long sequence, boolean holdsPermit) {
             this.job = job;
+            this.sequence = sequence;
+            this.enqueueTime = System.nanoTime();
+            this.holdsPermit = holdsPermit;
+        }
+
+        @Override
+        public int compareTo(@NonNull QueueTask<T> other) {
+            if (job.getPriority() != other.job.getPriority()) {
+                return job.getPriority() > other.job.getPriority() ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
         }
     }
 
+    /**
+     * Creates a new queue, with one dedicated thread per available processor.
+     *
+     * @param logger to log messages
+     * @param queueThreadContext notified of the worker threads events.
+     * @param queueName a meaningful descriptive name.
+     */
+    public WorkQueue(
+            @NonNull ILogger logger,
+            @NonNull QueueThreadContext<T> queueThreadContext,
+            @NonNull String queueName) {
+        this(logger, queueThreadContext, queueName,
+                Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors() * DEFAULT_CAPACITY_PER_WORKER);
+    }
+
     /**
      * Creates a new queue, with a number of dedicated threads to process
      * the queue's jobs.
      *
      * @param logger to log messages
+     * @param queueThreadContext notified of the worker threads events.
      * @param queueName a meaningful descriptive name.
      * @param workforce the number of dedicated threads for this queue.
-     * @param growthTriggerRatio the ratio between outstanding requests and worker threads that
-     *                           should trigger a growth in worker threads.
+     * @param capacity the maximum number of pending jobs before {@link #push(Job)} blocks.
      */
     public WorkQueue(
             @NonNull ILogger logger,
             @NonNull QueueThreadContext<T> queueThreadContext,
             @NonNull String queueName,
             int workforce,
-            int growthTriggerRatio) {
-
+            int capacity) {
+        if (workforce < 1) {
+            throw new IllegalArgumentException("Invalid workforce: " + workforce);
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
         this.mLogger = logger;
         this.mName = queueName;
-        this.mGrowthTriggerRation = growthTriggerRatio;
-        this.mMWorkforceIncrement = workforce;
         this.mQueueThreadContext = queueThreadContext;
+        this.mWorkforce = workforce;
+        this.mCapacity = capacity;
+        this.mCapacityPermits = new Semaphore(capacity);
     }
 
-    public void push(Job<T> job) throws InterruptedException {
-        _push(new QueueTask<T>(QueueTask.ActionType.Normal, job));
-        checkWorkforce();
+    /**
+     * Adds a job to the queue, blocking while the queue is full.
+     *
+     * @param job the job to schedule.
+     * @throws InterruptedException if interrupted while waiting for room in the queue.
+     */
+    public void push(@NonNull Job<T> job) throws InterruptedException {
+        Worker current = getCurrentWorker();
+        if (current != null) {
+            // queued from one of our own workers, it cannot wait for itself to make room.
+            current.add(newTask(job, false));
+            return;
+        }
+
+        mCapacityPermits.acquire();
+        boolean added = false;
+        try {
+            synchronized (this) {
+                if (mWorkers.length == 0) {
+                    startWorkforce();
+                }
+                selectWorker().add(newTask(job, true));
+                added = true;
+            }
+        } finally {
+            if (!added) {
+                mCapacityPermits.release();
+            }
+        }
     }
 
-    private void _push(QueueTask<T> task) throws InterruptedException {
-        // at this point, I am not trying to limit the number of pending jobs.
-        // eventually we would want to put some limit to the size of the pending jobs
-        // queue so it does not grow out of control.
-        mPendingJobs.put(task);
+    @NonNull
+    private QueueTask<T> newTask(@NonNull Job<T> job, boolean holdsPermit) {
+        int pending = mPendingCount.incrementAndGet();
+        updateMax(mMaxPendingCount, pending);
+        return new QueueTask<T>(job, mSequence.getAndIncrement(), holdsPermit);
     }
 
-    private synchronized void checkWorkforce() {
-        if (mWorkThreads.isEmpty()
-                || (mPendingJobs.size() / mWorkThreads.size() > mGrowthTriggerRation)) {
-            mLogger.verbose("Request to incrementing workforce from %1$d", mWorkThreads.size());
-            if (mWorkThreads.size() >= MAX_WORKFORCE_SIZE) {
-                mLogger.verbose("Already at max workforce %1$d, denied.", MAX_WORKFORCE_SIZE);
-                return;
+    /**
+     * Returns the worker which should receive a new job: preferably an idle one, then the one
+     * with the fewest pending jobs.
+     */
+    @NonNull
+    private Worker selectWorker() {
+        Worker selected = null;
+        for (Worker worker : mWorkers) {
+            if (selected == null
+                    || (selected.mBusy && !worker.mBusy)
+                    || (selected.mBusy == worker.mBusy
+                            && worker.mTasks.size() < selected.mTasks.size())) {
+                selected = worker;
             }
-            for (int i = 0; i < mMWorkforceIncrement; i++) {
-                Thread t = new Thread(this, mName + "_" + mThreadId.incrementAndGet());
-                t.setDaemon(true);
-                mWorkThreads.add(t);
-                t.start();
+        }
+        assert selected != null;
+        return selected;
+    }
+
+    @Nullable
+    private Worker getCurrentWorker() {
+        Thread thread = Thread.currentThread();
+        for (Worker worker : mWorkers) {
+            if (worker.mThread == thread) {
+                return worker;
             }
-            mLogger.verbose("thread-pool size=%1$d", mWorkThreads.size());
         }
+        return null;
     }
 
-    private synchronized void reduceWorkforce() throws InterruptedException {
-        mLogger.verbose("Decrementing workforce from " + mWorkThreads.size());
-        // push a the right number of kiss of death tasks to shutdown threads.
-        for (int i = 0; i < mMWorkforceIncrement; i++) {
-           _push(new QueueTask<T>(QueueTask.ActionType.Death, null));
+    private void startWorkforce() {
+        mShuttingDown = false;
+        @SuppressWarnings("unchecked")
+        Worker[] workers = new WorkQueue.Worker[mWorkforce];
+        for (int i = 0; i < mWorkforce; i++) {
+            workers[i] = new Worker(mName + "_" + mThreadId.incrementAndGet());
+        }
+        mWorkers = workers;
+        for (Worker worker : workers) {
+            worker.mThread.start();
         }
+        mLogger.verbose("thread-pool size=%1$d", mWorkforce);
     }
 
     /**
      * Shutdowns the working queue and wait until all pending requests have
-     * been processed. This needs to be reviewed as jobs can still be added
-     * to the queue once the shutdown process has started....
+     * been processed. Jobs pushed from other threads while the shutdown is in progress are
+     * processed by a new set of workers once it is done.
      * @throws InterruptedException if the shutdown sequence is interrupted
      */
     public synchronized void shutdown() throws InterruptedException {
-
-        // push as many death pills as necessary
-        for (Thread t : mWorkThreads) {
-            _push(new QueueTask<T>(QueueTask.ActionType.Death, null));
+        mShuttingDown = true;
+        for (Worker worker : mWorkers) {
+            worker.mThread.join();
         }
-        // we could use a latch.
-        for (Thread t : mWorkThreads) {
-            t.join();
-        }
-        mWorkThreads.clear();
+        //noinspection unchecked
+        mWorkers = new WorkQueue.Worker[0];
+        mLogger.verbose("%1$s: %2$d jobs processed, %3$d stolen, max queue depth %4$d, "
+                        + "average wait %5$d ms, max wait %6$d ms",
+                mName, getProcessedJobCount(), getStolenJobCount(), getMaxQueueDepth(),
+                getAverageWaitTime(), getMaxWaitTime());
         mQueueThreadContext.shutdown();
     }
 
@@ -170,68 +271,191 @@ public class WorkQueue<T> implements Runnable {
      * @return the size of the queue.
      */
     public int size() {
-        return mPendingJobs.size();
+        return mPendingCount.get();
     }
 
+    /**
+     * Returns the maximum number of pending jobs pushed from outside the worker threads.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
 
     /**
-     * each thread in the mWorkThreads will run this single infinite processing loop until a
-     * death action is received.
+     * Returns the largest number of jobs which were waiting to be scheduled at the same time.
      */
-    @Override
-    public void run() {
-        final String threadName = Thread.currentThread().getName();
-        // this
-        try {
-            try {
-                mLogger.verbose("Creating a new working thread %1$s", threadName);
-                mQueueThreadContext.creation(Thread.currentThread());
-            } catch (IOException e) {
-                e.printStackTrace();
+    public int getMaxQueueDepth() {
+        return mMaxPendingCount.get();
+    }
+
+    /**
+     * Returns the number of jobs scheduled so far.
+     */
+    public int getProcessedJobCount() {
+        return mProcessedCount.get();
+    }
+
+    /**
+     * Returns the number of jobs scheduled on another worker than the one they were queued on.
+     */
+    public int getStolenJobCount() {
+        return mStolenCount.get();
+    }
+
+    /**
+     * Returns the average time, in milliseconds, jobs waited in the queue before being
+     * scheduled.
+     */
+    public long getAverageWaitTime() {
+        int processed = mProcessedCount.get();
+        return processed == 0
+                ? 0 : TimeUnit.NANOSECONDS.toMillis(mTotalWaitNanos.get() / processed);
+    }
+
+    /**
+     * Returns the longest time, in milliseconds, a job waited in the queue before being
+     * scheduled.
+     */
+    public long getMaxWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(mMaxWaitNanos.get());
+    }
+
+    private static void updateMax(@NonNull AtomicInteger max, int value) {
+        int current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    private static void updateMax(@NonNull AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * A worker thread, with its own queue of pending jobs.
+     */
+    private class Worker implements Runnable {
+
+        private final PriorityBlockingQueue<QueueTask<T>> mTasks =
+                new PriorityBlockingQueue<QueueTask<T>>();
+        private final Thread mThread;
+        private volatile boolean mBusy = false;
+
+        Worker(@NonNull String threadName) {
+            mThread = new Thread(this, threadName);
+            mThread.setDaemon(true);
+        }
+
+        void add(@NonNull QueueTask<T> task) {
+            mTasks.add(task);
+        }
+
+        /**
+         * Returns the next task to run: the first one from this worker's queue or, if it is
+         * empty, the first one from the busiest worker. Returns null if there is nothing to do
+         * after waiting for a little while.
+         */
+        @Nullable
+        private QueueTask<T> next() throws InterruptedException {
+            QueueTask<T> task = mTasks.poll();
+            if (task == null) {
+                task = steal();
             }
-            while(true) {
-                final QueueTask<T> queueTask = mPendingJobs.take();
-                if (queueTask.actionType== QueueTask.ActionType.Death) {
-                    mLogger.verbose("Thread(%1$s): Death requested", threadName);
-                    // we are done.
-                    return;
-                }
-                final Job<T> job = queueTask.job;
-                if (job == null) {
-                    // this clearly should not happen.
-                    Logger.getAnonymousLogger().severe(
-                            "I got a null pending job out of the priority queue");
-                    return;
+            if (task == null) {
+                task = mTasks.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+            }
+            return task;
+        }
+
+        @Nullable
+        private QueueTask<T> steal() {
+            Worker victim = null;
+            int victimSize = 0;
+            for (Worker worker : mWorkers) {
+                int size = worker.mTasks.size();
+                if (worker != this && size > victimSize) {
+                    victim = worker;
+                    victimSize = size;
                 }
-                mLogger.verbose("Thread(%1$s): scheduling %2$s", threadName, job.getJobTitle());
+            }
+            QueueTask<T> task = victim != null ? victim.mTasks.poll() : null;
+            if (task != null) {
+                mStolenCount.incrementAndGet();
+            }
+            return task;
+        }
 
+        /**
+         * each worker thread will run this single processing loop until the queue is shut down
+         * and there are no more pending jobs.
+         */
+        @Override
+        public void run() {
+            final String threadName = mThread.getName();
+            try {
+                try {
+                    mLogger.verbose("Creating a new working thread %1$s", threadName);
+                    mQueueThreadContext.creation(mThread);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                while (true) {
+                    final QueueTask<T> queueTask = next();
+                    if (queueTask == null) {
+                        if (mShuttingDown && mPendingCount.get() == 0) {
+                            // we are done.
+                            mLogger.verbose("Thread(%1$s): Death requested", threadName);
+                            return;
+                        }
+                        continue;
+                    }
+                    mBusy = true;
+                    try {
+                        runTask(threadName, queueTask);
+                    } finally {
+                        mBusy = false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                mLogger.error(e, "Thread(%1$s): Interrupted", threadName);
+            } finally {
                 try {
-                    mQueueThreadContext.runTask(job);
-                } catch (Exception e) {
-                    Logger.getAnonymousLogger().log(Level.WARNING, "Exception while processing task ", e);
-                    job.error();
-                    return;
+                    mLogger.verbose("Thread(%1$s): destruction", threadName);
+                    mQueueThreadContext.destruction(mThread);
+                } catch (IOException e) {
+                    mLogger.error(e, "Thread(%1$s): %2$s", threadName, e.getMessage());
+                } catch (InterruptedException e) {
+                    mLogger.error(e, "Thread(%1$s): %2$s", threadName, e.getMessage());
                 }
-                // wait for the job completion.
-                job.await();
-                mLogger.verbose("Thread(%1$s): job %2$s finished", threadName, job.getJobTitle());
-                // we could potentially reduce the workforce at this point if we have little
-                // queuing comparatively to the number of worker threads but at this point, the
-                // overall process (gradle activity) is fairly short lived so skipping at this
-                // point.
-                mLogger.verbose("Thread(%1$s): queue size %2$d", threadName, mPendingJobs.size());
             }
-        } catch (InterruptedException e) {
-            mLogger.error(e, "Thread(%1$s): Interrupted", threadName);
-        } finally {
+        }
+
+        private void runTask(@NonNull String threadName, @NonNull QueueTask<T> queueTask)
+                throws InterruptedException {
+            mPendingCount.decrementAndGet();
+            if (queueTask.holdsPermit) {
+                mCapacityPermits.release();
+            }
+            long waitNanos = System.nanoTime() - queueTask.enqueueTime;
+            mTotalWaitNanos.addAndGet(waitNanos);
+            updateMax(mMaxWaitNanos, waitNanos);
+            mProcessedCount.incrementAndGet();
+
+            final Job<T> job = queueTask.job;
+            mLogger.verbose("Thread(%1$s): scheduling %2$s", threadName, job.getJobTitle());
             try {
-                mLogger.verbose("Thread(%1$s): destruction", threadName);
-                mQueueThreadContext.destruction(Thread.currentThread());
-            } catch (IOException e) {
-                mLogger.error(e, "Thread(%1$s): %2$s", threadName, e.getMessage());
-            } catch (InterruptedException e) {
-                mLogger.error(e, "Thread(%1$s): %2$s", threadName, e.getMessage());
+                mQueueThreadContext.runTask(job);
+            } catch (Exception e) {
+                Logger.getAnonymousLogger().log(Level.WARNING, "Exception while processing task ", e);
+                job.error();
+                return;
             }
+            // wait for the job completion.
+            job.await();
+            mLogger.verbose("Thread(%1$s): job %2$s finished", threadName, job.getJobTitle());
         }
     }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.png;
+
+import com.android.annotations.NonNull;
+import com.android.ide.common.internal.PngCruncher;
+import com.android.ide.common.internal.PngException;
+import com.android.utils.StdLogger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class CachingPngCruncherTest extends TestCase {
+
+    /**
+     * Fake cruncher which writes its output asynchronously, in {@link #end()}.
+     */
+    private static class FakeCruncher implements PngCruncher {
+        private final List<File[]> mRequests = Lists.newArrayList();
+        private int mCount;
+
+        @Override
+        public void crunchPng(@NonNull File from, @NonNull File to) throws PngException {
+            mRequests.add(new File[] { from, to });
+            mCount++;
+        }
+
+        @Override
+        public void end() throws InterruptedException {
+            try {
+                for (File[] request : mRequests) {
+                    Files.write("crunched " + Files.toString(request[0], Charsets.UTF_8),
+                            request[1], Charsets.UTF_8);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            mRequests.clear();
+        }
+    }
+
+    private File mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoot = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mRoot);
+        super.tearDown();
+    }
+
+    public void testReuseAcrossInstances() throws Exception {
+        File cacheFolder = new File(mRoot, "cache");
+        File icon = createFile("lib/icon.png", "icon");
+        File sameIcon = createFile("other/icon2.png", "icon");
+        File ninePatch = createFile("lib/icon.9.png", "icon");
+
+        FakeCruncher fakeCruncher = new FakeCruncher();
+        CachingPngCruncher cruncher = newCruncher(fakeCruncher, cacheFolder, "aapt-1");
+        cruncher.crunchPng(icon, new File(mRoot, "out1.png"));
+        cruncher.end();
+        assertEquals(1, fakeCruncher.mCount);
+        assertEquals(0, cruncher.getHitCount());
+        assertEquals(1, cruncher.getMissCount());
+        assertEquals("crunched icon", readFile("out1.png"));
+
+        // another variant or project: same content is not crunched again.
+        cruncher = newCruncher(fakeCruncher, cacheFolder, "aapt-1");
+        cruncher.crunchPng(sameIcon, new File(mRoot, "out2.png"));
+        // 9-patches are crunched differently
+        cruncher.crunchPng(ninePatch, new File(mRoot, "out3.9.png"));
+        cruncher.end();
+        assertEquals(2, fakeCruncher.mCount);
+        assertEquals(1, cruncher.getHitCount());
+        assertEquals(1, cruncher.getMissCount());
+        assertEquals("crunched icon", readFile("out2.png"));
+        assertEquals("crunched icon", readFile("out3.9.png"));
+
+        // a different version of the cruncher does not use the same entries.
+        cruncher = newCruncher(fakeCruncher, cacheFolder, "aapt-2");
+        cruncher.crunchPng(icon, new File(mRoot, "out4.png"));
+        cruncher.end();
+        assertEquals(3, fakeCruncher.mCount);
+        assertEquals(0, cruncher.getHitCount());
+
+        // modified content
+        Files.write("new icon", icon, Charsets.UTF_8);
+        cruncher = newCruncher(fakeCruncher, cacheFolder, "aapt-1");
+        cruncher.crunchPng(icon, new File(mRoot, "out5.png"));
+        cruncher.end();
+        assertEquals(4, fakeCruncher.mCount);
+        assertEquals("crunched new icon", readFile("out5.png"));
+    }
+
+    public void testEviction() throws Exception {
+        File cacheFolder = new File(mRoot, "cache");
+        File first = createFile("first.png", "first");
+        File second = createFile("second.png", "second");
+
+        // only room for one entry.
+        FakeCruncher fakeCruncher = new FakeCruncher();
+        CachingPngCruncher cruncher = new CachingPngCruncher(fakeCruncher, cacheFolder, "aapt",
+                20, new StdLogger(StdLogger.Level.WARNING));
+        cruncher.crunchPng(first, new File(mRoot, "out1.png"));
+        cruncher.end();
+        setLastModified(cacheFolder, System.currentTimeMillis() - 60000);
+        cruncher.crunchPng(second, new File(mRoot, "out2.png"));
+        cruncher.end();
+        assertEquals(2, cruncher.getMissCount());
+
+        cruncher.crunchPng(second, new File(mRoot, "out3.png"));
+        cruncher.crunchPng(first, new File(mRoot, "out4.png"));
+        cruncher.end();
+        assertEquals(1, cruncher.getHitCount());
+        assertEquals(3, cruncher.getMissCount());
+        assertEquals("crunched first", readFile("out4.png"));
+    }
+
+    @NonNull
+    private static CachingPngCruncher newCruncher(@NonNull PngCruncher delegate,
+            @NonNull File cacheFolder, @NonNull String cruncherId) {
+        return new CachingPngCruncher(delegate, cacheFolder, cruncherId,
+                new StdLogger(StdLogger.Level.WARNING));
+    }
+
+    @NonNull
+    private File createFile(@NonNull String path, @NonNull String content) throws IOException {
+        File file = new File(mRoot, path);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+
+    @NonNull
+    private String readFile(@NonNull String path) throws IOException {
+        return Files.toString(new File(mRoot, path), Charsets.UTF_8);
+    }
+
+    private static void setLastModified(@NonNull File file, long time) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                setLastModified(child, time);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(time);
+    }
+
+    private static void deleteRecursively(@NonNull File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
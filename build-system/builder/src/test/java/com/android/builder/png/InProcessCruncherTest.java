@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.png;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.ide.common.internal.PngException;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Tests for {@link InProcessCruncher}. The output is compared with the output of aapt.
+ */
+public class InProcessCruncherTest extends BasePngTest {
+
+    private File mOutFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mOutFile = File.createTempFile("inProcessCruncherTest", SdkConstants.DOT_PNG);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        //noinspection ResultOfMethodCallIgnored
+        mOutFile.delete();
+        super.tearDown();
+    }
+
+    public void testNinePatches() throws Exception {
+        InProcessCruncher cruncher = new InProcessCruncher();
+
+        File[] files = new File(getPngFolder(), "ninepatch").listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getPath().endsWith(SdkConstants.DOT_9PNG);
+            }
+        });
+        assertNotNull(files);
+        assertTrue(files.length > 0);
+
+        long originalSize = 0;
+        long aaptSize = 0;
+        long crunchedSize = 0;
+        long startTime = System.currentTimeMillis();
+        for (File file : files) {
+            File aaptFile = new File(file.getParentFile(), file.getName() + ".crunched.aapt");
+
+            cruncher.crunchPng(file, mOutFile);
+
+            Map<String, Chunk> aaptChunks = readChunks(aaptFile);
+            Map<String, Chunk> chunks = readChunks(mOutFile);
+            for (String type : new String[] { "IHDR", "npTc", "npLb", "npOl" }) {
+                assertEquals(file.getName() + ": " + type, aaptChunks.get(type), chunks.get(type));
+            }
+            compareImageContent(aaptFile, mOutFile, false);
+
+            originalSize += file.length();
+            aaptSize += aaptFile.length();
+            crunchedSize += mOutFile.length();
+        }
+
+        System.out.println(String.format(
+                "Crunched %1$d 9-patches in %2$d ms: %3$d bytes, aapt: %4$d bytes, original: %5$d bytes",
+                files.length, System.currentTimeMillis() - startTime, crunchedSize, aaptSize,
+                originalSize));
+    }
+
+    public void testGrayscale() throws Exception {
+        File file = getFile("grayscale.png");
+        new InProcessCruncher().crunchPng(file, mOutFile);
+
+        File aaptFile = getFile("grayscale.png.crunched");
+        assertEquals(readChunks(aaptFile).get("IHDR"), readChunks(mOutFile).get("IHDR"));
+        compareImageContent(aaptFile, mOutFile, false);
+        assertTrue(mOutFile.length() < file.length());
+    }
+
+    public void testCompressionLevels() throws Exception {
+        File file = getFile("icon.png");
+        new InProcessCruncher(0).crunchPng(file, mOutFile);
+        // not compressed, so the original is kept.
+        assertEquals(file.length(), mOutFile.length());
+
+        new InProcessCruncher().crunchPng(file, mOutFile);
+        assertTrue(mOutFile.length() < file.length());
+        compareImageContent(file, mOutFile, false);
+    }
+
+    public void testMissingPatch() throws IOException {
+        checkError(getFile("missing_patch.9.png"), "No marked region found along top edge");
+    }
+
+    private void checkError(@NonNull File file, @NonNull String message) throws IOException {
+        try {
+            new InProcessCruncher().crunchPng(file, mOutFile);
+            fail("Expected error for " + file);
+        } catch (PngException e) {
+            assertEquals(file.getAbsolutePath() + ": Error: 9-patch image malformed. " + message,
+                    e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.tasks;
+
+import com.android.annotations.NonNull;
+import com.android.utils.StdLogger;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WorkQueueTest extends TestCase {
+
+    private static class Context implements QueueThreadContext<Void> {
+        final AtomicInteger mCreated = new AtomicInteger();
+        final AtomicInteger mDestroyed = new AtomicInteger();
+
+        @Override
+        public void creation(Thread t) throws IOException {
+            mCreated.incrementAndGet();
+        }
+
+        @Override
+        public void runTask(Job<Void> job) throws Exception {
+            job.runTask(new JobContext<Void>(null));
+        }
+
+        @Override
+        public void destruction(Thread t) throws IOException, InterruptedException {
+            mDestroyed.incrementAndGet();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    private final Context mContext = new Context();
+
+    public void testAllJobsProcessed() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        WorkQueue<Void> queue = newQueue(4, 8);
+        for (int i = 0; i < 100; i++) {
+            queue.push(newJob("job" + i, Job.PRIORITY_NORMAL, new Runnable() {
+                @Override
+                public void run() {
+                    count.incrementAndGet();
+                }
+            }));
+        }
+        queue.shutdown();
+        assertEquals(100, count.get());
+        assertEquals(100, queue.getProcessedJobCount());
+        assertEquals(0, queue.size());
+        assertTrue(queue.getMaxQueueDepth() <= 8);
+        assertEquals(4, mContext.mCreated.get());
+        assertEquals(4, mContext.mDestroyed.get());
+
+        // the queue can be used again after a shutdown.
+        queue.push(newJob("again", Job.PRIORITY_NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        }));
+        queue.shutdown();
+        assertEquals(101, count.get());
+        assertEquals(8, mContext.mCreated.get());
+    }
+
+    public void testPriorities() throws Exception {
+        final List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        WorkQueue<Void> queue = newQueue(1, 10);
+        queue.push(newJob("blocker", Job.PRIORITY_NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                awaitUninterruptibly(release);
+            }
+        }));
+        started.await();
+        queue.push(newRecordingJob("low", Job.PRIORITY_LOW, order));
+        queue.push(newRecordingJob("normal1", Job.PRIORITY_NORMAL, order));
+        queue.push(newRecordingJob("high", Job.PRIORITY_HIGH, order));
+        queue.push(newRecordingJob("normal2", Job.PRIORITY_NORMAL, order));
+        release.countDown();
+        queue.shutdown();
+
+        assertEquals(Lists.newArrayList("high", "normal1", "normal2", "low"), order);
+    }
+
+    public void testBackPressure() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger count = new AtomicInteger();
+
+        final WorkQueue<Void> queue = newQueue(1, 1);
+        queue.push(newJob("blocker", Job.PRIORITY_NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                awaitUninterruptibly(release);
+            }
+        }));
+        started.await();
+        // fills the queue.
+        queue.push(newJob("pending", Job.PRIORITY_NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        }));
+
+        final CountDownLatch pushed = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queue.push(newJob("blocked", Job.PRIORITY_NORMAL, new Runnable() {
+                        @Override
+                        public void run() {
+                            count.incrementAndGet();
+                        }
+                    }));
+                    pushed.countDown();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        producer.start();
+        assertFalse(pushed.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, queue.size());
+
+        release.countDown();
+        assertTrue(pushed.await(5, TimeUnit.SECONDS));
+        producer.join();
+        queue.shutdown();
+        assertEquals(2, count.get());
+    }
+
+    public void testStealing() throws Exception {
+        final WorkQueue<Void> queue = newQueue(2, 10);
+        final CountDownLatch nestedDone = new CountDownLatch(2);
+        final AtomicInteger failures = new AtomicInteger();
+
+        // the nested jobs are queued on the worker running the parent job, which waits for
+        // them: they can only be run by the other worker.
+        queue.push(newJob("parent", Job.PRIORITY_NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 2; i++) {
+                        queue.push(newJob("nested" + i, Job.PRIORITY_NORMAL, new Runnable() {
+                            @Override
+                            public void run() {
+                                nestedDone.countDown();
+                            }
+                        }));
+                    }
+                    if (!nestedDone.await(5, TimeUnit.SECONDS)) {
+                        failures.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    failures.incrementAndGet();
+                }
+            }
+        }));
+        queue.shutdown();
+
+        assertEquals(0, failures.get());
+        assertEquals(3, queue.getProcessedJobCount());
+        // the parent job may have been stolen too.
+        assertTrue(queue.getStolenJobCount() >= 2);
+    }
+
+    @NonNull
+    private WorkQueue<Void> newQueue(int workforce, int capacity) {
+        return new WorkQueue<Void>(new StdLogger(StdLogger.Level.WARNING), mContext, "test",
+                workforce, capacity);
+    }
+
+    @NonNull
+    private static Job<Void> newJob(@NonNull String title, int priority,
+            @NonNull final Runnable runnable) {
+        return new Job<Void>(title, new Task<Void>() {
+            @Override
+            public void run(Job<Void> job, JobContext<Void> context) throws IOException {
+                runnable.run();
+                job.finished();
+            }
+        }, priority);
+    }
+
+    @NonNull
+    private static Job<Void> newRecordingJob(@NonNull final String title, int priority,
+            @NonNull final List<String> order) {
+        return newJob(title, priority, new Runnable() {
+            @Override
+            public void run() {
+                order.add(title);
+            }
+        });
+    }
+
+    private static void awaitUninterruptibly(@NonNull CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -96,6 +96,8 @@ import com.android.builder.model.SourceProvider
 import com.android.builder.testing.ConnectedDeviceProvider
 import com.android.builder.testing.api.DeviceProvider
 import com.android.builder.testing.api.TestServer
+import com.android.prefs.AndroidLocation
+import com.android.prefs.AndroidLocation.AndroidLocationException
 import com.android.sdklib.AndroidTargetHash
 import com.android.sdklib.BuildToolInfo
 import com.android.sdklib.IAndroidTarget
@@ -634,6 +636,7 @@ abstract class TaskManager {
 
         mergeResourcesTask.process9Patch = process9Patch
         mergeResourcesTask.crunchPng = extension.aaptOptions.getCruncherEnabled()
+        mergeResourcesTask.pngCacheFolder = getPngCacheFolder()
 
         conventionMapping(mergeResourcesTask).
                 map("useNewCruncher") { getExtension().aaptOptions.useNewCruncher }
@@ -658,6 +661,21 @@ abstract class TaskManager {
         return mergeResourcesTask
     }
 
+    /**
+     * Returns the folder of the png crunching cache. It is shared by all the projects of the
+     * user, and falls back to the build folder of the root project if the Android folder of
+     * the user cannot be found.
+     */
+    @NonNull
+    protected File getPngCacheFolder() {
+        try {
+            return new File(AndroidLocation.getFolder(), "build-cache${File.separator}png")
+        } catch (AndroidLocationException ignored) {
+            return project.rootProject.file(
+                    "${project.rootProject.buildDir}/${FD_INTERMEDIATES}/png-cache")
+        }
+    }
+
     public void createMergeAssetsTask(
             @NonNull BaseVariantData<? extends BaseVariantOutputData> variantData,
             @Nullable String outputLocation,
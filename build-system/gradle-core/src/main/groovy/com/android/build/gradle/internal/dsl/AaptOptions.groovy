@@ -92,7 +92,8 @@ public class AaptOptions implements com.android.builder.model.AaptOptions {
     /**
      * Whether to use the new cruncher.
      *
-     * <p>TODO: Document.
+     * <p>The new cruncher runs in the build process instead of invoking aapt, and also compiles
+     * 9-patch images.
      */
     public boolean getUseNewCruncher() {
         return useNewCruncher
@@ -16,6 +16,8 @@
 package com.android.build.gradle.tasks
 
 import com.android.build.gradle.internal.tasks.IncrementalTask
+import com.android.builder.png.CachingPngCruncher
+import com.android.builder.png.InProcessCruncher
 import com.android.ide.common.internal.PngCruncher
 import com.android.ide.common.res2.FileStatus
 import com.android.ide.common.res2.FileValidity
@@ -61,6 +63,9 @@ public class MergeResources extends IncrementalTask {
     @Input
     boolean insertSourceMarkers = true
 
+    // folder of the png crunching cache, or null to always crunch.
+    File pngCacheFolder
+
     // actual inputs
     List<ResourceSet> inputResourceSets
 
@@ -72,10 +77,21 @@ public class MergeResources extends IncrementalTask {
     }
 
     private PngCruncher getCruncher() {
+        PngCruncher cruncher
+        String cruncherId
         if (getUseNewCruncher()) {
-            logger.warn("New cruncher is not available yet. Using AaptCruncher.")
+            cruncher = new InProcessCruncher()
+            cruncherId = "java-" + InProcessCruncher.VERSION
+        } else {
+            cruncher = builder.aaptCruncher
+            cruncherId = "aapt-" + getBuildToolsVersion()
+        }
+
+        File cacheFolder = getPngCacheFolder()
+        if (cacheFolder != null) {
+            cruncher = new CachingPngCruncher(cruncher, cacheFolder, cruncherId, getILogger())
         }
-        return builder.aaptCruncher;
+        return cruncher
     }
 
     @Override
@@ -90,9 +106,9 @@ public class MergeResources extends IncrementalTask {
         ResourceMerger merger = new ResourceMerger()
 
         try {
+            // sets need to be loaded. Loading them together parses all their files in parallel.
+            ResourceSet.loadFromFiles(resourceSets, getILogger())
             for (ResourceSet resourceSet : resourceSets) {
-                // set needs to be loaded.
-                resourceSet.loadFromFiles(getILogger())
                 merger.addDataSet(resourceSet)
             }
 
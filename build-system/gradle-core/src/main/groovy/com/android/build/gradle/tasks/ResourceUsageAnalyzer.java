@@ -58,6 +58,8 @@ import com.android.tools.lint.detector.api.LintUtils;
 import com.android.utils.XmlUtils;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -79,17 +81,32 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 import java.util.jar.JarOutputStream;
@@ -97,6 +114,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -210,6 +228,12 @@ public class ResourceUsageAnalyzer {
     /** Special marker regexp which does not match a resource name */
     static final String NO_MATCH = "-nomatch-";
 
+    /**
+     * Maximum number of class files or resource files being processed by the worker threads
+     * ahead of the analyzing thread, which bounds the memory used by their content.
+     */
+    private static final int MAX_PENDING_FILES = 64;
+
     private final File mResourceClassDir;
     private final File mProguardMapping;
     private final File mClassesJar;
@@ -259,9 +283,18 @@ public class ResourceUsageAnalyzer {
     public void analyze() throws IOException, ParserConfigurationException, SAXException {
         gatherResourceValues(mResourceClassDir);
         recordMapping(mProguardMapping);
-        recordUsages(mClassesJar);
-        recordManifestUsages(mMergedManifest);
-        recordResources(mMergedResourceDir);
+
+        // The classes are visited, and the resource files read and parsed, by worker threads.
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        try {
+            recordUsages(mClassesJar, executor);
+            recordManifestUsages(mMergedManifest);
+            recordResources(mMergedResourceDir, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+
         keepPossiblyReferencedResources();
         dumpReferences();
         findUnused();
@@ -297,6 +330,10 @@ public class ResourceUsageAnalyzer {
      * unused resources. This won't touch the values XML data (resources.arsc) but
      * will remove the individual file-based resources, which is where most of
      * the data is anyway (usually in drawable bitmaps)
+     * <p>
+     * The kept entries are copied as is from the source file, without being inflated
+     * and compressed again. If the source file uses a zip format which can't be copied
+     * this way, such as zip64, the entries are read and written again instead.
      *
      * @param source the .ap_ file created by aapt
      * @param dest a new .ap_ file with unused file-based resources removed
@@ -310,6 +347,247 @@ public class ResourceUsageAnalyzer {
             }
         }
 
+        RandomAccessFile input = new RandomAccessFile(source, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            List<RawZipEntry> entries;
+            ByteBuffer end;
+            try {
+                end = readZipEndRecord(source, channel);
+                entries = readZipCentralDirectory(source, channel, end);
+            } catch (ZipException e) {
+                if (mDebug) {
+                    System.out.println("Rewriting " + source + " entry by entry: "
+                            + e.getMessage());
+                }
+                rewriteResourceZipEntries(source, dest);
+                return;
+            }
+            copyKeptZipEntries(source, channel, entries, end, dest);
+        } finally {
+            Closeables.close(input, true);
+        }
+    }
+
+    /** Size of the zip local file header, without its name and extra field */
+    private static final int ZIP_LOCAL_HEADER_SIZE = 30;
+    /** Size of the zip central directory file header, without its variable fields */
+    private static final int ZIP_CENTRAL_HEADER_SIZE = 46;
+    /** Size of the zip end of central directory record, without its comment */
+    private static final int ZIP_END_HEADER_SIZE = 22;
+    private static final int ZIP_LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int ZIP_CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP_END_HEADER_SIGNATURE = 0x06054b50;
+    private static final int ZIP_DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    /** General purpose flag set when the sizes and crc follow the data of an entry */
+    private static final int ZIP_FLAG_DATA_DESCRIPTOR = 1 << 3;
+
+    /** An entry of a zip file, as described by its central directory record */
+    private static class RawZipEntry {
+        @NonNull final String name;
+        /** The central directory record, including the name, extra field and comment */
+        @NonNull final byte[] centralRecord;
+        final int flags;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        RawZipEntry(@NonNull String name, @NonNull byte[] centralRecord, int flags,
+                long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.centralRecord = centralRecord;
+            this.flags = flags;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    /**
+     * Reads the end of central directory record of a zip file, with its comment.
+     *
+     * @throws ZipException if this is not a zip file, or if it is a zip64 file
+     */
+    @NonNull
+    private static ByteBuffer readZipEndRecord(@NonNull File file, @NonNull FileChannel channel)
+            throws IOException {
+        // The record is at the end of the file, followed by a comment of up to 64KB
+        long length = channel.size();
+        int tailLength = (int) Math.min(length, ZIP_END_HEADER_SIZE + 0xFFFF);
+        ByteBuffer tail = readFully(channel, length - tailLength, tailLength);
+        for (int i = tailLength - ZIP_END_HEADER_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == ZIP_END_HEADER_SIGNATURE) {
+                int commentLength = tail.getShort(i + 20) & 0xFFFF;
+                if (i + ZIP_END_HEADER_SIZE + commentLength != tailLength) {
+                    continue;
+                }
+                tail.position(i);
+                ByteBuffer end = tail.slice();
+                end.order(ByteOrder.LITTLE_ENDIAN);
+                if ((end.getShort(8) & 0xFFFF) == 0xFFFF
+                        || (end.getInt(12) & 0xFFFFFFFFL) == 0xFFFFFFFFL
+                        || (end.getInt(16) & 0xFFFFFFFFL) == 0xFFFFFFFFL) {
+                    throw new ZipException("Zip64 files are not supported");
+                }
+                return end;
+            }
+        }
+        throw new ZipException("Not a zip file: " + file);
+    }
+
+    /**
+     * Reads the central directory of a zip file.
+     *
+     * @throws ZipException if the central directory is invalid, or describes zip64 entries
+     */
+    @NonNull
+    private static List<RawZipEntry> readZipCentralDirectory(@NonNull File file,
+            @NonNull FileChannel channel, @NonNull ByteBuffer end) throws IOException {
+        int count = end.getShort(10) & 0xFFFF;
+        int directorySize = end.getInt(12);
+        long directoryOffset = end.getInt(16) & 0xFFFFFFFFL;
+        if (directorySize < 0 || directoryOffset + directorySize > channel.size()) {
+            throw new ZipException("Invalid central directory in " + file);
+        }
+        ByteBuffer directory = readFully(channel, directoryOffset, directorySize);
+
+        List<RawZipEntry> entries = Lists.newArrayListWithCapacity(count);
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            if (offset + ZIP_CENTRAL_HEADER_SIZE > directorySize
+                    || directory.getInt(offset) != ZIP_CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory in " + file);
+            }
+            int flags = directory.getShort(offset + 8) & 0xFFFF;
+            long compressedSize = directory.getInt(offset + 20) & 0xFFFFFFFFL;
+            long size = directory.getInt(offset + 24) & 0xFFFFFFFFL;
+            int nameLength = directory.getShort(offset + 28) & 0xFFFF;
+            int extraLength = directory.getShort(offset + 30) & 0xFFFF;
+            int commentLength = directory.getShort(offset + 32) & 0xFFFF;
+            long localHeaderOffset = directory.getInt(offset + 42) & 0xFFFFFFFFL;
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL
+                    || localHeaderOffset == 0xFFFFFFFFL) {
+                throw new ZipException("Zip64 entries are not supported");
+            }
+            int recordLength = ZIP_CENTRAL_HEADER_SIZE + nameLength + extraLength
+                    + commentLength;
+            if (offset + recordLength > directorySize) {
+                throw new ZipException("Invalid central directory in " + file);
+            }
+
+            byte[] record = new byte[recordLength];
+            directory.position(offset);
+            directory.get(record);
+            String name = new String(record, ZIP_CENTRAL_HEADER_SIZE, nameLength, UTF_8);
+            entries.add(new RawZipEntry(name, record, flags, compressedSize, size,
+                    localHeaderOffset));
+            offset += recordLength;
+        }
+        return entries;
+    }
+
+    /**
+     * Writes the kept entries of a zip file into a new zip file, by copying their local
+     * headers and compressed data, followed by their central directory records.
+     */
+    private void copyKeptZipEntries(@NonNull File source, @NonNull FileChannel channel,
+            @NonNull List<RawZipEntry> entries, @NonNull ByteBuffer end, @NonNull File dest)
+            throws IOException {
+        ByteArrayOutputStream directory = new ByteArrayOutputStream();
+        int count = 0;
+        FileOutputStream output = new FileOutputStream(dest);
+        boolean threw = true;
+        try {
+            FileChannel outputChannel = output.getChannel();
+            for (RawZipEntry entry : entries) {
+                Resource resource = getResourceByJarPath(entry.name);
+                if (resource != null && !resource.reachable) {
+                    if (isVerbose()) {
+                        System.out.println("Skipped unused resource " + entry.name + ": "
+                                + entry.size + " bytes");
+                    }
+                    continue;
+                }
+
+                // The local header, the data and the data descriptor, if any, are contiguous
+                ByteBuffer header = readFully(channel, entry.localHeaderOffset,
+                        ZIP_LOCAL_HEADER_SIZE);
+                if (header.getInt(0) != ZIP_LOCAL_HEADER_SIGNATURE) {
+                    throw new ZipException("Invalid local header for " + entry.name + " in "
+                            + source);
+                }
+                long length = ZIP_LOCAL_HEADER_SIZE + (header.getShort(26) & 0xFFFF)
+                        + (header.getShort(28) & 0xFFFF) + entry.compressedSize;
+                if ((entry.flags & ZIP_FLAG_DATA_DESCRIPTOR) != 0) {
+                    ByteBuffer descriptor = readFully(channel, entry.localHeaderOffset + length,
+                            4);
+                    length += descriptor.getInt(0) == ZIP_DATA_DESCRIPTOR_SIGNATURE ? 16 : 12;
+                }
+
+                long offset = outputChannel.position();
+                transferFully(channel, entry.localHeaderOffset, length, outputChannel);
+
+                ByteBuffer record = ByteBuffer.wrap(entry.centralRecord.clone());
+                record.order(ByteOrder.LITTLE_ENDIAN);
+                record.putInt(42, (int) offset);
+                directory.write(record.array());
+                count++;
+            }
+
+            long directoryOffset = outputChannel.position();
+            if (directoryOffset > 0xFFFFFFFFL) {
+                throw new ZipException("Zip64 files are not supported");
+            }
+            directory.writeTo(output);
+
+            ByteBuffer endRecord = ByteBuffer.allocate(end.limit());
+            endRecord.order(ByteOrder.LITTLE_ENDIAN);
+            endRecord.put(end.duplicate());
+            endRecord.putShort(8, (short) count);
+            endRecord.putShort(10, (short) count);
+            endRecord.putInt(12, directory.size());
+            endRecord.putInt(16, (int) directoryOffset);
+            output.write(endRecord.array());
+            threw = false;
+        } finally {
+            Closeables.close(output, threw);
+        }
+    }
+
+    /** Reads the given number of bytes at the given position of a channel */
+    @NonNull
+    private static ByteBuffer readFully(@NonNull FileChannel channel, long position, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("Unexpected end of zip file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Copies the given range of a channel at the current position of another channel */
+    private static void transferFully(@NonNull FileChannel source, long position, long length,
+            @NonNull FileChannel dest) throws IOException {
+        while (length > 0) {
+            long count = source.transferTo(position, length, dest);
+            if (count <= 0) {
+                throw new EOFException("Unexpected end of zip file");
+            }
+            position += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Rewrites an .ap_ file like {@link #rewriteResourceZip(File, File)}, by reading and
+     * writing each kept entry.
+     */
+    private void rewriteResourceZipEntries(@NonNull File source, @NonNull File dest)
+            throws IOException {
         JarInputStream zis = null;
         try {
             FileInputStream fis = new FileInputStream(source);
@@ -725,10 +1003,7 @@ public class ResourceUsageAnalyzer {
                     Joiner.on(",\n   ").join(roots));
         }
 
-        Map<Resource,Boolean> seen = new IdentityHashMap<Resource,Boolean>(mResources.size());
-        for (Resource root : roots) {
-            visit(root, seen);
-        }
+        visit(roots);
 
         List<Resource> unused = Lists.newArrayListWithExpectedSize(mResources.size());
         for (Resource resource : mResources) {
@@ -744,15 +1019,62 @@ public class ResourceUsageAnalyzer {
         }
     }
 
-    private static void visit(Resource root, Map<Resource, Boolean> seen) {
-        if (seen.containsKey(root)) {
-            return;
+    /**
+     * Marks all the resources reachable from the given roots as reachable. The reference
+     * graph is first flattened into arrays indexed by the position of the resources in
+     * {@link #mResources}, and then traversed iteratively, so deep reference chains do not
+     * need a deep call stack.
+     */
+    private void visit(@NonNull List<Resource> roots) {
+        int count = mResources.size();
+        Map<Resource, Integer> indices = new IdentityHashMap<Resource, Integer>(count);
+        int referenceCount = 0;
+        for (int i = 0; i < count; i++) {
+            Resource resource = mResources.get(i);
+            indices.put(resource, i);
+            if (resource.references != null) {
+                referenceCount += resource.references.size();
+            }
+        }
+
+        // references of resource i are targets[offsets[i]] to targets[offsets[i + 1] - 1]
+        int[] offsets = new int[count + 1];
+        int[] targets = new int[referenceCount];
+        int next = 0;
+        for (int i = 0; i < count; i++) {
+            offsets[i] = next;
+            List<Resource> references = mResources.get(i).references;
+            if (references != null) {
+                for (Resource referenced : references) {
+                    Integer index = indices.get(referenced);
+                    assert index != null : referenced;
+                    if (index != null) {
+                        targets[next++] = index;
+                    }
+                }
+            }
+        }
+        offsets[count] = next;
+
+        boolean[] seen = new boolean[count];
+        int[] stack = new int[count];
+        int size = 0;
+        for (Resource root : roots) {
+            int index = indices.get(root);
+            if (!seen[index]) {
+                seen[index] = true;
+                stack[size++] = index;
+            }
         }
-        seen.put(root, Boolean.TRUE);
-        root.reachable = true;
-        if (root.references != null) {
-            for (Resource referenced : root.references) {
-                visit(referenced, seen);
+        while (size > 0) {
+            int index = stack[--size];
+            mResources.get(index).reachable = true;
+            for (int i = offsets[index], end = offsets[index + 1]; i < end; i++) {
+                int target = targets[i];
+                if (!seen[target]) {
+                    seen[target] = true;
+                    stack[size++] = target;
+                }
             }
         }
     }
@@ -769,7 +1091,7 @@ public class ResourceUsageAnalyzer {
     }
 
     private void keepPossiblyReferencedResources() {
-        if ((!mFoundGetIdentifier && !mFoundWebContent) || mStrings == null) {
+        if ((!mFoundGetIdentifier && !mFoundWebContent) || mStrings.isEmpty()) {
             // No calls to android.content.res.Resources#getIdentifier; no need
             // to worry about string references to resources
             return;
@@ -799,17 +1121,23 @@ public class ResourceUsageAnalyzer {
             }
         }
 
+        // Index the resources by name, with the names sorted such that all the names
+        // starting with a given prefix can be found with a binary search, instead of
+        // matching every string against every resource.
         int shortest = Integer.MAX_VALUE;
-        Set<String> names = Sets.newHashSetWithExpectedSize(50);
+        ListMultimap<String, Resource> nameToResources = ArrayListMultimap.create();
         for (Map<String, Resource> map : mTypeToName.values()) {
-            for (String name : map.keySet()) {
-                names.add(name);
-                int length = name.length();
+            for (Resource resource : map.values()) {
+                nameToResources.put(resource.name, resource);
+                int length = resource.name.length();
                 if (length < shortest) {
                     shortest = length;
                 }
             }
         }
+        Set<String> names = nameToResources.keySet();
+        String[] sortedNames = names.toArray(new String[names.size()]);
+        Arrays.sort(sortedNames);
 
         for (String string : mStrings) {
             if (string.length() < shortest) {
@@ -841,15 +1169,12 @@ public class ResourceUsageAnalyzer {
                     }
                     int dot = string.indexOf('.', start);
                     String name = string.substring(start, dot != -1 ? dot : string.length());
-                    if (names.contains(name)) {
-                        for (Map<String, Resource> map : mTypeToName.values()) {
-                            resource = map.get(name);
-                            if (mDebug && resource != null) {
-                                System.out.println("Marking " + resource + " used because it "
-                                        + "matches string pool constant " + string);
-                            }
-                            markReachable(resource);
+                    for (Resource r : nameToResources.get(name)) {
+                        if (mDebug) {
+                            System.out.println("Marking " + r + " used because it "
+                                    + "matches string pool constant " + string);
                         }
+                        markReachable(r);
                     }
                 }
             }
@@ -884,15 +1209,14 @@ public class ResourceUsageAnalyzer {
 
                 // Check for a simple prefix match, e.g. as in
                 // getResources().getIdentifier("ic_video_codec_" + codecName, "drawable", ...)
-                for (Map<String, Resource> map : mTypeToName.values()) {
-                    for (Resource resource : map.values()) {
-                        if (resource.name.startsWith(name)) {
-                            if (mDebug) {
-                                System.out.println("Marking " + resource + " used because its "
-                                        + "prefix matches string pool constant " + string);
-                            }
-                            markReachable(resource);
+                for (int i = findFirstWithPrefix(sortedNames, name); i < sortedNames.length
+                        && sortedNames[i].startsWith(name); i++) {
+                    for (Resource resource : nameToResources.get(sortedNames[i])) {
+                        if (mDebug) {
+                            System.out.println("Marking " + resource + " used because its "
+                                    + "prefix matches string pool constant " + string);
                         }
+                        markReachable(resource);
                     }
                 }
             } else if (!haveSlash) {
@@ -901,18 +1225,24 @@ public class ResourceUsageAnalyzer {
                     //   String name = String.format("my_prefix_%1d", index);
                     //   int res = getContext().getResources().getIdentifier(name, "drawable", ...)
 
+                    // Only the names starting with the text before the first formatting
+                    // character can match
+                    String prefix = string.substring(0, string.indexOf('%'));
                     try {
                         Pattern pattern = Pattern.compile(convertFormatStringToRegexp(string));
-                        for (Map<String, Resource> map : mTypeToName.values()) {
-                            for (Resource resource : map.values()) {
-                                if (pattern.matcher(resource.name).matches()) {
-                                    if (mDebug) {
-                                        System.out.println("Marking " + resource + " used because "
-                                                + "it format-string matches string pool constant "
-                                                + string);
-                                    }
-                                    markReachable(resource);
+                        for (int i = findFirstWithPrefix(sortedNames, prefix);
+                                i < sortedNames.length && sortedNames[i].startsWith(prefix);
+                                i++) {
+                            if (!pattern.matcher(sortedNames[i]).matches()) {
+                                continue;
+                            }
+                            for (Resource resource : nameToResources.get(sortedNames[i])) {
+                                if (mDebug) {
+                                    System.out.println("Marking " + resource + " used because "
+                                            + "it format-string matches string pool constant "
+                                            + string);
                                 }
+                                markReachable(resource);
                             }
                         }
                     } catch (PatternSyntaxException ignored) {
@@ -953,9 +1283,8 @@ public class ResourceUsageAnalyzer {
             }
 
             if (names.contains(name)) {
-                for (Map<String, Resource> map : mTypeToName.values()) {
-                    Resource resource = map.get(name);
-                    if (mDebug && resource != null) {
+                for (Resource resource : nameToResources.get(name)) {
+                    if (mDebug) {
                         System.out.println("Marking " + resource + " used because it "
                                 + "matches string pool constant " + string);
                     }
@@ -978,6 +1307,16 @@ public class ResourceUsageAnalyzer {
         }
     }
 
+    /**
+     * Returns the index of the first of the given sorted names which starts with the given
+     * prefix, or the index where such a name would be inserted if there is none.
+     */
+    private static int findFirstWithPrefix(@NonNull String[] sortedNames,
+            @NonNull String prefix) {
+        int index = Arrays.binarySearch(sortedNames, prefix);
+        return index >= 0 ? index : -(index + 1);
+    }
+
     @VisibleForTesting
     static String convertFormatStringToRegexp(String formatString) {
         StringBuilder regexp = new StringBuilder();
@@ -1042,87 +1381,192 @@ public class ResourceUsageAnalyzer {
         return false;
     }
 
-    private void recordResources(File resDir)
+    private void recordResources(File resDir, ExecutorService executor)
             throws IOException, SAXException, ParserConfigurationException {
         File[] resourceFolders = resDir.listFiles();
-        if (resourceFolders != null) {
-            for (File folder : resourceFolders) {
-                ResourceFolderType folderType = ResourceFolderType.getFolderType(folder.getName());
-                if (folderType != null) {
-                    recordResources(folderType, folder);
+        if (resourceFolders == null) {
+            return;
+        }
+
+        // The files are loaded in parallel, but recorded in order on this thread: the graph
+        // and the reachability marks are not thread safe, and keep and discard attributes
+        // have to be applied in the same order as before.
+        Deque<ResourceFile> pending = new ArrayDeque<ResourceFile>();
+        for (File folder : resourceFolders) {
+            ResourceFolderType folderType = ResourceFolderType.getFolderType(folder.getName());
+            if (folderType == null) {
+                continue;
+            }
+            File[] files = folder.listFiles();
+            if (files == null) {
+                continue;
+            }
+            boolean isDefaultFolder = isDefaultFolder(folder);
+            for (File file : files) {
+                ResourceFile resourceFile = new ResourceFile(folderType, isDefaultFolder, file);
+                resourceFile.future = executor.submit(resourceFile);
+                pending.add(resourceFile);
+                if (pending.size() > MAX_PENDING_FILES) {
+                    recordResourceFile(pending.removeFirst());
                 }
             }
         }
+        while (!pending.isEmpty()) {
+            recordResourceFile(pending.removeFirst());
+        }
     }
 
-    private void recordResources(@NonNull ResourceFolderType folderType, File folder)
-            throws ParserConfigurationException, SAXException, IOException {
-        File[] files = folder.listFiles();
+    private static boolean isDefaultFolder(@NonNull File folder) {
         FolderConfiguration config = FolderConfiguration.getConfigForFolder(folder.getName());
-        boolean isDefaultFolder = false;
-        if (config != null) {
-            isDefaultFolder = true;
-            for (int i = 0, n = FolderConfiguration.getQualifierCount(); i < n; i++) {
-                ResourceQualifier qualifier = config.getQualifier(i);
-                // Densities are special: even if they're present in just (say) drawable-hdpi
-                // we'll match it on any other density
-                if (qualifier != null && !(qualifier instanceof DensityQualifier)) {
-                    isDefaultFolder = false;
-                    break;
-                }
+        if (config == null) {
+            return false;
+        }
+        for (int i = 0, n = FolderConfiguration.getQualifierCount(); i < n; i++) {
+            ResourceQualifier qualifier = config.getQualifier(i);
+            // Densities are special: even if they're present in just (say) drawable-hdpi
+            // we'll match it on any other density
+            if (qualifier != null && !(qualifier instanceof DensityQualifier)) {
+                return false;
             }
         }
+        return true;
+    }
 
-        if (files != null) {
-            for (File file : files) {
-                String path = file.getPath();
-                boolean isXml = endsWithIgnoreCase(path, DOT_XML);
-
-                Resource from = null;
-                // Record resource for the whole file
-                if (folderType != ResourceFolderType.VALUES
-                        && (isXml
-                            || endsWith(path, DOT_PNG) //also true for endsWith(name, DOT_9PNG)
-                            || endsWith(path, DOT_JPG)
-                            || endsWith(path, DOT_GIF)
-                            || endsWith(path, DOT_JPEG))) {
-                    List<ResourceType> types = FolderTypeRelationship.getRelatedResourceTypes(
-                            folderType);
-                    ResourceType type = types.get(0);
-                    assert type != ResourceType.ID : folderType;
-                    String name = file.getName();
-                    name = name.substring(0, name.indexOf('.'));
-                    Resource resource = getResource(type, name);
-                    if (resource != null) {
-                        resource.addLocation(file);
-                        if (isDefaultFolder) {
-                            resource.hasDefault = true;
-                        }
-                        from = resource;
-                    }
+    private void recordResourceFile(@NonNull ResourceFile resourceFile)
+            throws IOException, SAXException, ParserConfigurationException {
+        getResult(resourceFile.future);
+
+        ResourceFolderType folderType = resourceFile.folderType;
+        File file = resourceFile.file;
+        String path = file.getPath();
+
+        Resource from = null;
+        // Record resource for the whole file
+        if (folderType != ResourceFolderType.VALUES
+                && (resourceFile.isXml
+                    || endsWith(path, DOT_PNG) //also true for endsWith(name, DOT_9PNG)
+                    || endsWith(path, DOT_JPG)
+                    || endsWith(path, DOT_GIF)
+                    || endsWith(path, DOT_JPEG))) {
+            List<ResourceType> types = FolderTypeRelationship.getRelatedResourceTypes(
+                    folderType);
+            ResourceType type = types.get(0);
+            assert type != ResourceType.ID : folderType;
+            String name = file.getName();
+            name = name.substring(0, name.indexOf('.'));
+            Resource resource = getResource(type, name);
+            if (resource != null) {
+                resource.addLocation(file);
+                if (resourceFile.isDefaultFolder) {
+                    resource.hasDefault = true;
                 }
+                from = resource;
+            }
+        }
 
-                if (isXml) {
-                    // For value files, and drawables and colors etc also pull in resource
-                    // references inside the file
-                    recordXmlResourcesUsages(file, isDefaultFolder, from);
-                    if (folderType == ResourceFolderType.XML) {
-                        tokenizeUnknownText(Files.toString(file, UTF_8));
-                    }
-                } else if (folderType == ResourceFolderType.RAW) {
-                    // Is this an HTML, CSS or JavaScript document bundled with the app?
-                    // If so tokenize and look for resource references.
-                    if (endsWithIgnoreCase(path, ".html") || endsWithIgnoreCase(path, ".htm")) {
-                        tokenizeHtml(from, Files.toString(file, UTF_8));
-                    } else if (endsWithIgnoreCase(path, ".css")) {
-                        tokenizeCss(from, Files.toString(file, UTF_8));
-                    } else if (endsWithIgnoreCase(path, ".js")) {
-                        tokenizeJs(from, Files.toString(file, UTF_8));
-                    } else if (file.isFile() && !LintUtils.isBitmapFile(file)) {
-                        tokenizeUnknownBinary(file);
+        if (resourceFile.isXml) {
+            // For value files, and drawables and colors etc also pull in resource
+            // references inside the file
+            assert resourceFile.document != null : file;
+            recordResourceReferences(file, resourceFile.isDefaultFolder,
+                    resourceFile.document.getDocumentElement(), from);
+            if (folderType == ResourceFolderType.XML) {
+                assert resourceFile.text != null : file;
+                tokenizeUnknownText(resourceFile.text);
+            }
+        } else if (folderType == ResourceFolderType.RAW) {
+            // Is this an HTML, CSS or JavaScript document bundled with the app?
+            // If so tokenize and look for resource references.
+            if (endsWithIgnoreCase(path, ".html") || endsWithIgnoreCase(path, ".htm")) {
+                tokenizeHtml(from, resourceFile.text);
+            } else if (endsWithIgnoreCase(path, ".css")) {
+                tokenizeCss(from, resourceFile.text);
+            } else if (endsWithIgnoreCase(path, ".js")) {
+                tokenizeJs(from, resourceFile.text);
+            } else if (resourceFile.bytes != null) {
+                tokenizeUnknownBinary(resourceFile.bytes);
+            }
+        }
+    }
+
+    /**
+     * A file of the merged resources. Its content is read, and parsed for XML files, by a
+     * worker thread when the file is called, and then recorded by
+     * {@link #recordResourceFile(ResourceFile)} once its {@link #future} is done.
+     */
+    private static class ResourceFile implements Callable<Void> {
+        @NonNull final ResourceFolderType folderType;
+        final boolean isDefaultFolder;
+        @NonNull final File file;
+        final boolean isXml;
+        Future<Void> future;
+        /** The parsed content of an XML file */
+        @Nullable Document document;
+        /** The content of an XML file in res/xml, or of an HTML, CSS or JavaScript file */
+        @Nullable String text;
+        /** The content of other raw files, which are not bitmaps */
+        @Nullable byte[] bytes;
+
+        ResourceFile(@NonNull ResourceFolderType folderType, boolean isDefaultFolder,
+                @NonNull File file) {
+            this.folderType = folderType;
+            this.isDefaultFolder = isDefaultFolder;
+            this.file = file;
+            isXml = endsWithIgnoreCase(file.getPath(), DOT_XML);
+        }
+
+        @Override
+        public Void call() throws Exception {
+            String path = file.getPath();
+            if (isXml) {
+                String xml = Files.toString(file, UTF_8);
+                document = XmlUtils.parseDocument(xml, true);
+                if (folderType == ResourceFolderType.XML) {
+                    text = xml;
+                }
+            } else if (folderType == ResourceFolderType.RAW) {
+                if (endsWithIgnoreCase(path, ".html") || endsWithIgnoreCase(path, ".htm")
+                        || endsWithIgnoreCase(path, ".css") || endsWithIgnoreCase(path, ".js")) {
+                    text = Files.toString(file, UTF_8);
+                } else if (file.isFile() && !LintUtils.isBitmapFile(file)) {
+                    try {
+                        bytes = Files.toByteArray(file);
+                    } catch (IOException e) {
+                        // Ignore
                     }
                 }
             }
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the given task of a worker thread, and rethrows the exception it failed
+     * with, if any.
+     */
+    private static <T> T getResult(@NonNull Future<T> future)
+            throws IOException, SAXException, ParserConfigurationException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException exception = new InterruptedIOException();
+            exception.initCause(e);
+            throw exception;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof SAXException) {
+                throw (SAXException) cause;
+            } else if (cause instanceof ParserConfigurationException) {
+                throw (ParserConfigurationException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
         }
     }
 
@@ -1166,14 +1610,6 @@ public class ResourceUsageAnalyzer {
         recordManifestUsages(document.getDocumentElement());
     }
 
-    private void recordXmlResourcesUsages(@NonNull File file, boolean isDefaultFolder,
-            @Nullable Resource from)
-            throws IOException, ParserConfigurationException, SAXException {
-        String xml = Files.toString(file, UTF_8);
-        Document document = XmlUtils.parseDocument(xml, true);
-        recordResourceReferences(file, isDefaultFolder, document.getDocumentElement(), from);
-    }
-
     private void tokenizeHtml(@Nullable Resource from, @NonNull String  html) {
         // Look for
         //    (1) URLs of the form /android_res/drawable/foo.ext
@@ -1603,34 +2039,29 @@ public class ResourceUsageAnalyzer {
     private static byte[] sAndroidResBytes;
 
     /** Look through binary/unknown files looking for resource URLs */
-    private void tokenizeUnknownBinary(@NonNull File file) {
-        try {
-            if (sAndroidResBytes == null) {
-                sAndroidResBytes = ANDROID_RES.getBytes(SdkConstants.UTF_8);
-            }
-            byte[] bytes = Files.toByteArray(file);
-            int index = 0;
-            while (index != -1) {
-                index = indexOf(bytes, sAndroidResBytes, index);
-                if (index != -1) {
-                    index += sAndroidResBytes.length;
-
-                    // Find the end of the URL
-                    int begin = index;
-                    int end = begin;
-                    for (; end < bytes.length; end++) {
-                        byte c = bytes[end];
-                        if (c != '/' && !Character.isJavaIdentifierPart((char)c)) {
-                            // android_res/raw/my_drawable.png => @raw/my_drawable
-                            String url = "@" + new String(bytes, begin, end - begin, UTF_8);
-                            markReachable(getResourceFromUrl(url));
-                            break;
-                        }
+    private void tokenizeUnknownBinary(@NonNull byte[] bytes) {
+        if (sAndroidResBytes == null) {
+            sAndroidResBytes = ANDROID_RES.getBytes(UTF_8);
+        }
+        int index = 0;
+        while (index != -1) {
+            index = indexOf(bytes, sAndroidResBytes, index);
+            if (index != -1) {
+                index += sAndroidResBytes.length;
+
+                // Find the end of the URL
+                int begin = index;
+                int end = begin;
+                for (; end < bytes.length; end++) {
+                    byte c = bytes[end];
+                    if (c != '/' && !Character.isJavaIdentifierPart((char)c)) {
+                        // android_res/raw/my_drawable.png => @raw/my_drawable
+                        String url = "@" + new String(bytes, begin, end - begin, UTF_8);
+                        markReachable(getResourceFromUrl(url));
+                        break;
                     }
                 }
             }
-        } catch (IOException e) {
-            // Ignore
         }
     }
 
@@ -2088,9 +2519,10 @@ public class ResourceUsageAnalyzer {
         }
     }
 
-    private Set<String> mStrings;
-    private boolean mFoundGetIdentifier;
-    private boolean mFoundWebContent;
+    // These are also updated by the worker threads visiting the classes
+    private final Set<String> mStrings = Sets.newConcurrentHashSet();
+    private volatile boolean mFoundGetIdentifier;
+    private volatile boolean mFoundWebContent;
 
     private void referencedString(@NonNull String string) {
         // See if the string is at all eligible; ignore strings that aren't
@@ -2115,9 +2547,6 @@ public class ResourceUsageAnalyzer {
             return;
         }
 
-        if (mStrings == null) {
-            mStrings = Sets.newHashSetWithExpectedSize(300);
-        }
         mStrings.add(string);
 
         if (!mFoundWebContent && string.contains(ANDROID_RES)) {
@@ -2125,10 +2554,13 @@ public class ResourceUsageAnalyzer {
         }
     }
 
-    private void recordUsages(File jarFile) throws IOException {
+    private void recordUsages(final File jarFile, ExecutorService executor)
+            throws IOException, SAXException, ParserConfigurationException {
         if (!jarFile.exists()) {
             return;
         }
+        // The classes are read from the jar on this thread, and visited by the workers
+        Deque<Future<Void>> pending = new ArrayDeque<Future<Void>>();
         ZipInputStream zis = null;
         try {
             FileInputStream fis = new FileInputStream(jarFile);
@@ -2136,18 +2568,27 @@ public class ResourceUsageAnalyzer {
                 zis = new ZipInputStream(fis);
                 ZipEntry entry = zis.getNextEntry();
                 while (entry != null) {
-                    String name = entry.getName();
+                    final String name = entry.getName();
                     if (name.endsWith(DOT_CLASS) &&
                             // Skip resource type classes like R$drawable; they will
                             // reference the integer id's we're looking for, but these aren't
                             // actual usages we need to track; if somebody references the
                             // field elsewhere, we'll catch that
                             !isResourceClass(name)) {
-                        byte[] bytes = ByteStreams.toByteArray(zis);
+                        final byte[] bytes = ByteStreams.toByteArray(zis);
                         if (bytes != null) {
-                            ClassReader classReader = new ClassReader(bytes);
-                            classReader.accept(new UsageVisitor(jarFile, name),
-                                    SKIP_DEBUG | SKIP_FRAMES);
+                            pending.add(executor.submit(new Callable<Void>() {
+                                @Override
+                                public Void call() throws Exception {
+                                    ClassReader classReader = new ClassReader(bytes);
+                                    classReader.accept(new UsageVisitor(jarFile, name),
+                                            SKIP_DEBUG | SKIP_FRAMES);
+                                    return null;
+                                }
+                            }));
+                            if (pending.size() > MAX_PENDING_FILES) {
+                                getResult(pending.removeFirst());
+                            }
                         }
                     }
 
@@ -2159,6 +2600,9 @@ public class ResourceUsageAnalyzer {
         } finally {
             Closeables.close(zis, true);
         }
+        while (!pending.isEmpty()) {
+            getResult(pending.removeFirst());
+        }
     }
 
     /** Returns whether the given class path points to an aapt-generated compiled R class */
@@ -23,19 +23,30 @@ import static java.io.File.separatorChar;
 
 import com.android.annotations.NonNull;
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
 import junit.framework.TestCase;
 
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -931,6 +942,187 @@ public class ResourceUsageAnalyzerTest extends TestCase {
         assertFalse("A_BBend".matches(convertFormatStringToRegexp("foo%s_%1$send")));
     }
 
+    public void testGetIdentifierStrings() throws Exception {
+        File dir = Files.createTempDir();
+
+        File rDir = new File(dir, "app/build/source/r/release".replace('/', separatorChar));
+        createFile(rDir, "test/pkg/R.java", ""
+                + "package test.pkg;\n"
+                + "\n"
+                + "public final class R {\n"
+                + "    public static final class drawable {\n"
+                + "        public static final int ic_video_codec_h264=0x7f020000;\n"
+                + "        public static final int ic_video_codec_vp8=0x7f020001;\n"
+                + "        public static final int ic_video=0x7f020002;\n"
+                + "        public static final int my_prefix_3=0x7f020003;\n"
+                + "        public static final int my_prefix=0x7f020004;\n"
+                + "        public static final int unused=0x7f020005;\n"
+                + "    }\n"
+                + "    public static final class layout {\n"
+                + "        public static final int foo=0x7f030000;\n"
+                + "        public static final int bar=0x7f030001;\n"
+                + "    }\n"
+                + "}\n");
+        File manifest = createFile(dir, "app/build/manifests/release/AndroidManifest.xml", ""
+                + "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\" "
+                + "package=\"test.pkg\"/>\n");
+        File resources = new File(dir, "app/build/res/all/release".replace('/', separatorChar));
+        //noinspection ResultOfMethodCallIgnored
+        resources.mkdirs();
+
+        // A class looking up resources by name:
+        //     getIdentifier("ic_video_codec_" + codec, "drawable", ...)
+        //     getIdentifier(String.format("my_prefix_%1d", index), "drawable", ...)
+        //     getIdentifier("layout/foo", null, ...)
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, "test/pkg/Lookup", null,
+                "java/lang/Object", null);
+        MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC,
+                "lookup", "(Landroid/content/res/Resources;)V", null, null);
+        method.visitCode();
+        for (String name : new String[] { "ic_video_codec_", "my_prefix_%1d", "layout/foo" }) {
+            method.visitVarInsn(Opcodes.ALOAD, 0);
+            method.visitLdcInsn(name);
+            method.visitInsn(Opcodes.ACONST_NULL);
+            method.visitInsn(Opcodes.ACONST_NULL);
+            method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "android/content/res/Resources",
+                    "getIdentifier", "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)I",
+                    false);
+            method.visitInsn(Opcodes.POP);
+        }
+        method.visitInsn(Opcodes.RETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+        writer.visitEnd();
+
+        File classesJar = createFile(dir, "app/build/classes-proguard/release/classes.jar");
+        JarOutputStream jar = new JarOutputStream(new FileOutputStream(classesJar));
+        try {
+            jar.putNextEntry(new ZipEntry("test/pkg/Lookup.class"));
+            jar.write(writer.toByteArray());
+            jar.closeEntry();
+        } finally {
+            jar.close();
+        }
+
+        ResourceUsageAnalyzer analyzer = new ResourceUsageAnalyzer(rDir, classesJar,
+                manifest, null, resources);
+        analyzer.analyze();
+        checkState(analyzer);
+        assertEquals(""
+                + "@drawable/ic_video : reachable=false\n"
+                + "@drawable/ic_video_codec_h264 : reachable=true\n"
+                + "@drawable/ic_video_codec_vp8 : reachable=true\n"
+                + "@drawable/my_prefix : reachable=false\n"
+                + "@drawable/my_prefix_3 : reachable=true\n"
+                + "@drawable/unused : reachable=false\n"
+                + "@layout/bar : reachable=false\n"
+                + "@layout/foo : reachable=true\n",
+                analyzer.dumpResourceModel());
+
+        deleteDir(dir);
+    }
+
+    public void testRewriteResourceZip() throws Exception {
+        File dir = Files.createTempDir();
+
+        File rDir = new File(dir, "app/build/source/r/release".replace('/', separatorChar));
+        createFile(rDir, "test/pkg/R.java", ""
+                + "package test.pkg;\n"
+                + "\n"
+                + "public final class R {\n"
+                + "    public static final class drawable {\n"
+                + "        public static final int used=0x7f020000;\n"
+                + "        public static final int unused=0x7f020001;\n"
+                + "    }\n"
+                + "    public static final class raw {\n"
+                + "        public static final int data=0x7f030000;\n"
+                + "    }\n"
+                + "}\n");
+        File manifest = createFile(dir, "app/build/manifests/release/AndroidManifest.xml", ""
+                + "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\" "
+                + "package=\"test.pkg\">\n"
+                + "    <application android:icon=\"@drawable/used\">\n"
+                + "        <meta-data android:name=\"data\" android:resource=\"@raw/data\" />\n"
+                + "    </application>\n"
+                + "</manifest>\n");
+        File resources = new File(dir, "app/build/res/all/release".replace('/', separatorChar));
+        //noinspection ResultOfMethodCallIgnored
+        resources.mkdirs();
+        File classesJar = new File(dir, "classes.jar");
+
+        ResourceUsageAnalyzer analyzer = new ResourceUsageAnalyzer(rDir, classesJar,
+                manifest, null, resources);
+        analyzer.analyze();
+
+        // Compressed entries written with data descriptors, and stored entries
+        byte[] text = Strings.repeat("compressible content ", 500).getBytes(Charsets.UTF_8);
+        byte[] bitmap = new byte[3000];
+        new Random(42).nextBytes(bitmap);
+        File source = new File(dir, "resources.ap_");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(source));
+        try {
+            zos.setComment("comment");
+            writeZipEntry(zos, "AndroidManifest.xml", text, ZipEntry.DEFLATED);
+            writeZipEntry(zos, "res/drawable/", new byte[0], ZipEntry.STORED);
+            writeZipEntry(zos, "res/drawable/unused.png", bitmap, ZipEntry.STORED);
+            writeZipEntry(zos, "res/drawable/used.png", bitmap, ZipEntry.STORED);
+            writeZipEntry(zos, "res/raw/data.txt", text, ZipEntry.DEFLATED);
+            writeZipEntry(zos, "resources.arsc", bitmap, ZipEntry.DEFLATED);
+        } finally {
+            zos.close();
+        }
+
+        File dest = new File(dir, "resources-shrunk.ap_");
+        analyzer.rewriteResourceZip(source, dest);
+
+        assertEquals(""
+                + "AndroidManifest.xml\n"
+                + "res/drawable/\n"
+                + "res/drawable/used.png\n"
+                + "res/raw/data.txt\n"
+                + "resources.arsc\n",
+                dumpZipContents(dest));
+
+        // The kept entries are copied without being compressed again
+        ZipFile sourceZip = new ZipFile(source);
+        ZipFile destZip = new ZipFile(dest);
+        try {
+            assertEquals("comment", destZip.getComment());
+            for (ZipEntry entry : Collections.list(destZip.entries())) {
+                ZipEntry sourceEntry = sourceZip.getEntry(entry.getName());
+                assertEquals(entry.getName(), sourceEntry.getMethod(), entry.getMethod());
+                assertEquals(entry.getName(), sourceEntry.getCompressedSize(),
+                        entry.getCompressedSize());
+                assertEquals(entry.getName(), sourceEntry.getCrc(), entry.getCrc());
+                assertTrue(entry.getName(), Arrays.equals(
+                        ByteStreams.toByteArray(sourceZip.getInputStream(sourceEntry)),
+                        ByteStreams.toByteArray(destZip.getInputStream(entry))));
+            }
+        } finally {
+            sourceZip.close();
+            destZip.close();
+        }
+
+        deleteDir(dir);
+    }
+
+    private static void writeZipEntry(ZipOutputStream zos, String name, byte[] bytes,
+            int method) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            entry.setCrc(crc.getValue());
+            entry.setSize(bytes.length);
+            entry.setCompressedSize(bytes.length);
+        }
+        zos.putNextEntry(entry);
+        zos.write(bytes);
+        zos.closeEntry();
+    }
+
     /** Utility method to generate byte array literal dump (used by classesJarBytecode above) */
     @SuppressWarnings("UnusedDeclaration") // Utility for future .class/.jar additions
     public static void dumpBytes(File file) throws IOException {
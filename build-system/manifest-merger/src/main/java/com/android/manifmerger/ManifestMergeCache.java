@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.manifmerger;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.utils.ILogger;
+import com.google.common.collect.ImmutableList;
+
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of successful manifest merging results, shared by all the merger invocations of a
+ * process. Variants of a project often have exactly the same merging inputs (same main, overlay
+ * and library manifests, same placeholders and system properties), in which case only the first
+ * variant needs to perform the merge.
+ *
+ * Merged documents are mutable and callers are free to modify the returned document, so the
+ * cache holds a private copy of each result and hands out a new copy on each hit. The messages
+ * logged while merging are kept with the result and replayed to the logger of each hit.
+ *
+ * At most {@link #MAX_ENTRIES} results are kept, and they are only softly referenced so they
+ * are released when memory runs low. Use
+ * {@link com.android.manifmerger.ManifestMerger2.Invoker.Feature#NO_MERGE_CACHE} to bypass the
+ * cache.
+ */
+class ManifestMergeCache {
+
+    /**
+     * Maximum number of cached results. Each result holds a full merged DOM so only the most
+     * recently used ones are kept.
+     */
+    static final int MAX_ENTRIES = 8;
+
+    static final ManifestMergeCache INSTANCE = new ManifestMergeCache(MAX_ENTRIES);
+
+    // results by key, in least recently used order.
+    @GuardedBy("this")
+    private final Map<String, SoftReference<CachedMerge>> mEntries;
+
+    @GuardedBy("this")
+    private int mHits;
+
+    @GuardedBy("this")
+    private int mMisses;
+
+    @VisibleForTesting
+    ManifestMergeCache(final int maxEntries) {
+        mEntries = new LinkedHashMap<String, SoftReference<CachedMerge>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, SoftReference<CachedMerge>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns a copy of the merging result stored for the given key, or null if there is none.
+     * The messages logged by the original merge are replayed to the given logger.
+     * @param key the key computed from all the merging inputs.
+     * @param logger the logger of the merge requesting the result.
+     */
+    @Nullable
+    MergingReport get(@NonNull String key, @NonNull ILogger logger) {
+        CachedMerge entry;
+        synchronized (this) {
+            SoftReference<CachedMerge> reference = mEntries.get(key);
+            entry = reference != null ? reference.get() : null;
+            if (entry == null) {
+                if (reference != null) {
+                    mEntries.remove(key);
+                }
+                mMisses++;
+                return null;
+            }
+            mHits++;
+        }
+        for (Message message : entry.mMessages) {
+            message.log(logger);
+        }
+        return entry.mReport.copy();
+    }
+
+    /**
+     * Stores a copy of the given successful merging result.
+     * @param key the key computed from all the merging inputs.
+     * @param report the merging result.
+     * @param logger the logger which recorded the messages logged while merging.
+     */
+    void put(@NonNull String key, @NonNull MergingReport report,
+            @NonNull RecordingLogger logger) {
+        if (report.getResult().isSuccess() && report.getMergedDocument().isPresent()) {
+            CachedMerge entry = new CachedMerge(report.copy(), logger.getMessages());
+            synchronized (this) {
+                mEntries.put(key, new SoftReference<CachedMerge>(entry));
+            }
+        }
+    }
+
+    /**
+     * Removes all cached results.
+     */
+    synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Returns the number of merges served from the cache.
+     */
+    synchronized int getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * Returns the number of merges which had to be performed.
+     */
+    synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * A cached merging result along with the messages logged while merging.
+     */
+    private static class CachedMerge {
+        private final MergingReport mReport;
+        private final ImmutableList<Message> mMessages;
+
+        private CachedMerge(@NonNull MergingReport report,
+                @NonNull ImmutableList<Message> messages) {
+            mReport = report;
+            mMessages = messages;
+        }
+    }
+
+    /**
+     * A message logged while merging. Messages are formatted when recorded so they do not hold
+     * on to the merging state.
+     */
+    private static class Message {
+        enum Level { ERROR, WARNING, INFO, VERBOSE }
+
+        private final Level mLevel;
+        @Nullable private final Throwable mThrowable;
+        @Nullable private final String mMessage;
+
+        private Message(@NonNull Level level, @Nullable Throwable throwable,
+                @Nullable String msgFormat, Object... args) {
+            mLevel = level;
+            mThrowable = throwable;
+            mMessage = msgFormat == null || args.length == 0
+                    ? msgFormat
+                    : String.format(msgFormat, args);
+        }
+
+        private void log(@NonNull ILogger logger) {
+            switch (mLevel) {
+                case ERROR:
+                    if (mMessage == null) {
+                        logger.error(mThrowable, null);
+                    } else {
+                        logger.error(mThrowable, "%1$s", mMessage);
+                    }
+                    break;
+                case WARNING:
+                    logger.warning("%1$s", mMessage);
+                    break;
+                case INFO:
+                    logger.info("%1$s", mMessage);
+                    break;
+                case VERBOSE:
+                    logger.verbose("%1$s", mMessage);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * A logger forwarding all messages to another logger, and recording them so they can be
+     * replayed when the merging result is served from the cache.
+     */
+    static class RecordingLogger implements ILogger {
+        private final ILogger mDelegate;
+        private final ImmutableList.Builder<Message> mMessages = ImmutableList.builder();
+
+        RecordingLogger(@NonNull ILogger delegate) {
+            mDelegate = delegate;
+        }
+
+        @NonNull
+        synchronized ImmutableList<Message> getMessages() {
+            return mMessages.build();
+        }
+
+        private synchronized void record(@NonNull Message message) {
+            mMessages.add(message);
+        }
+
+        @Override
+        public void error(@Nullable Throwable t, @Nullable String msgFormat, Object... args) {
+            mDelegate.error(t, msgFormat, args);
+            record(new Message(Message.Level.ERROR, t, msgFormat, args));
+        }
+
+        @Override
+        public void warning(@NonNull String msgFormat, Object... args) {
+            mDelegate.warning(msgFormat, args);
+            record(new Message(Message.Level.WARNING, null, msgFormat, args));
+        }
+
+        @Override
+        public void info(@NonNull String msgFormat, Object... args) {
+            mDelegate.info(msgFormat, args);
+            record(new Message(Message.Level.INFO, null, msgFormat, args));
+        }
+
+        @Override
+        public void verbose(@NonNull String msgFormat, Object... args) {
+            mDelegate.verbose(msgFormat, args);
+            record(new Message(Message.Level.VERBOSE, null, msgFormat, args));
+        }
+    }
+}
@@ -29,11 +29,16 @@ import com.android.utils.Pair;
 import com.android.utils.SdkUtils;
 import com.android.utils.StdLogger;
 import com.android.utils.XmlUtils;
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Element;
@@ -45,6 +50,11 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 /**
  * merges android manifest files, idempotent.
@@ -62,6 +72,10 @@ public class ManifestMerger2 {
     private final KeyBasedValueResolver<SystemProperty> mSystemPropertyResolver;
 
     private final ILogger mLogger;
+    /** The logger used while merging, which records the messages unless caching is disabled */
+    private final ILogger mMergeLogger;
+    @Nullable
+    private final ManifestMergeCache.RecordingLogger mRecordingLogger;
     private final ImmutableList<Pair<String, File>> mLibraryFiles;
     private final ImmutableList<File> mFlavorsAndBuildTypeFiles;
     private final ImmutableList<Invoker.Feature> mOptionalFeatures;
@@ -82,6 +96,14 @@ public class ManifestMerger2 {
         this.mPlaceHolderValues = placeHolderValues;
         this.mManifestFile = mainManifestFile;
         this.mLogger = logger;
+        if (optionalFeatures.contains(Invoker.Feature.NO_MERGE_CACHE)) {
+            this.mRecordingLogger = null;
+            this.mMergeLogger = logger;
+        } else {
+            // record the messages logged while merging, to replay them on cache hits.
+            this.mRecordingLogger = new ManifestMergeCache.RecordingLogger(logger);
+            this.mMergeLogger = mRecordingLogger;
+        }
         this.mLibraryFiles = libraryFiles;
         this.mFlavorsAndBuildTypeFiles = flavorsAndBuildTypeFiles;
         this.mOptionalFeatures = optionalFeatures;
@@ -98,8 +120,87 @@ public class ManifestMerger2 {
      * files cannot be loaded).
      */
     private MergingReport merge() throws MergeFailureException {
+        MergingReport mergingReport = mRecordingLogger == null ? doMerge() : mergeWithCache();
+
+        // the report is not part of the cached merge : each merge writes its own report file,
+        // and the messages logged while doing so are neither recorded nor replayed.
+        if (mergingReport.getMergedDocument().isPresent()) {
+            reportResult(mergingReport);
+        }
+        return mergingReport;
+    }
+
+    /**
+     * Merges the manifests, or reuses the result of a previous merge with the same inputs. On
+     * a cache hit, the messages logged by the previous merge are logged again.
+     * @return the merging activity report.
+     * @throws MergeFailureException if the merging cannot be completed.
+     */
+    private MergingReport mergeWithCache() throws MergeFailureException {
+        assert mRecordingLogger != null;
+
+        // variants often share all their merging inputs, reuse the result in that case.
+        String cacheKey = computeCacheKey();
+        if (cacheKey != null) {
+            MergingReport cachedReport = ManifestMergeCache.INSTANCE.get(cacheKey, mLogger);
+            if (cachedReport != null) {
+                return cachedReport;
+            }
+        }
+
+        MergingReport mergingReport = doMerge();
+        if (cacheKey != null) {
+            ManifestMergeCache.INSTANCE.put(cacheKey, mergingReport, mRecordingLogger);
+        }
+        return mergingReport;
+    }
+
+    /**
+     * Computes a key identifying all the inputs of this merge : the contents and locations of all
+     * the manifest files, the placeholder values, the system properties and the merging options.
+     * The report file is not part of the key as it is written again on each cache hit.
+     * @return the key or null if one of the manifest files cannot be read.
+     */
+    @Nullable
+    private String computeCacheKey() {
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putString(mMergeType.name(), Charsets.UTF_8);
+        for (Invoker.Feature feature : mOptionalFeatures) {
+            hasher.putString(feature.name(), Charsets.UTF_8);
+        }
+        for (Map.Entry<String, Object> entry : mPlaceHolderValues.entrySet()) {
+            hasher.putString(entry.getKey(), Charsets.UTF_8);
+            hasher.putString(String.valueOf(entry.getValue()), Charsets.UTF_8);
+        }
+        for (SystemProperty systemProperty : SystemProperty.values()) {
+            hasher.putString(String.valueOf(mSystemPropertyResolver.getValue(systemProperty)),
+                    Charsets.UTF_8);
+        }
+        try {
+            hashFile(hasher, null, mManifestFile);
+            for (File overlay : mFlavorsAndBuildTypeFiles) {
+                hashFile(hasher, null, overlay);
+            }
+            for (Pair<String, File> library : mLibraryFiles) {
+                hashFile(hasher, library.getFirst(), library.getSecond());
+            }
+        } catch (IOException e) {
+            // let the merge report the problem.
+            return null;
+        }
+        return hasher.hash().toString();
+    }
+
+    private static void hashFile(Hasher hasher, @Nullable String name, File file)
+            throws IOException {
+        hasher.putString(String.valueOf(name), Charsets.UTF_8);
+        hasher.putString(file.getAbsolutePath(), Charsets.UTF_8);
+        hasher.putBytes(Files.asByteSource(file).hash(Hashing.sha1()).asBytes());
+    }
+
+    private MergingReport doMerge() throws MergeFailureException {
         // initiate a new merging report
-        MergingReport.Builder mergingReportBuilder = new MergingReport.Builder(mLogger);
+        MergingReport.Builder mergingReportBuilder = new MergingReport.Builder(mMergeLogger);
 
         SelectorResolver selectors = new SelectorResolver();
         // load all the libraries xml files up front to have a list of all possible node:selector
@@ -156,7 +257,7 @@ public class ManifestMerger2 {
         // merge in lower priority documents.
         Optional<XmlDocument> xmlDocumentOptional = Optional.absent();
         for (File inputFile : mFlavorsAndBuildTypeFiles) {
-            mLogger.info("Merging flavors and build manifest %s \n", inputFile.getPath());
+            mMergeLogger.info("Merging flavors and build manifest %s \n", inputFile.getPath());
             LoadedManifestInfo overlayDocument = load(
                     new ManifestInfo(null, inputFile, XmlDocument.Type.OVERLAY,
                             Optional.of(mainPackageAttribute.get().getValue())),
@@ -212,7 +313,7 @@ public class ManifestMerger2 {
             }
         }
 
-        mLogger.info("Merging main manifest %s\n", mManifestFile.getPath());
+        mMergeLogger.info("Merging main manifest %s\n", mManifestFile.getPath());
         xmlDocumentOptional =
                 merge(xmlDocumentOptional, loadedMainManifestInfo, mergingReportBuilder);
 
@@ -232,7 +333,7 @@ public class ManifestMerger2 {
             }
         }
         for (LoadedManifestInfo libraryDocument : loadedLibraryDocuments) {
-            mLogger.info("Merging library manifest " + libraryDocument.getLocation());
+            mMergeLogger.info("Merging library manifest " + libraryDocument.getLocation());
             xmlDocumentOptional = merge(
                     xmlDocumentOptional, libraryDocument, mergingReportBuilder);
             if (!xmlDocumentOptional.isPresent()) {
@@ -276,8 +377,8 @@ public class ManifestMerger2 {
 
         // only remove tools annotations if we are packaging an application.
         if (mOptionalFeatures.contains(Invoker.Feature.REMOVE_TOOLS_DECLARATIONS)) {
-            finalMergedDocument =
-                    ToolsInstructionsCleaner.cleanToolsReferences(finalMergedDocument, mLogger);
+            finalMergedDocument = ToolsInstructionsCleaner.cleanToolsReferences(
+                    finalMergedDocument, mMergeLogger);
         }
 
         if (mOptionalFeatures.contains(Invoker.Feature.EXTRACT_FQCNS)) {
@@ -288,7 +389,14 @@ public class ManifestMerger2 {
             mergingReportBuilder.setMergedDocument(finalMergedDocument);
         }
 
-        MergingReport mergingReport = mergingReportBuilder.build();
+        return mergingReportBuilder.build();
+    }
+
+    /**
+     * Logs a successful merging result and writes the merging report file if requested.
+     * @param mergingReport the merging activities report.
+     */
+    private void reportResult(MergingReport mergingReport) {
         StdLogger stdLogger = new StdLogger(StdLogger.Level.INFO);
         mergingReport.log(stdLogger);
         stdLogger.verbose(mergingReport.getMergedDocument().get().prettyPrint());
@@ -296,8 +404,6 @@ public class ManifestMerger2 {
         if (mReportFile.isPresent()) {
             writeReport(mergingReport);
         }
-
-        return mergingReport;
     }
 
     /**
@@ -478,51 +584,124 @@ public class ManifestMerger2 {
         return result;
     }
 
-    private List<LoadedManifestInfo> loadLibraries(SelectorResolver selectors,
+    private List<LoadedManifestInfo> loadLibraries(final SelectorResolver selectors,
             MergingReport.Builder mergingReportBuilder) throws MergeFailureException {
 
-        ImmutableList.Builder<LoadedManifestInfo> loadedLibraryDocuments = ImmutableList.builder();
+        // parse and pre-process the libraries in parallel, each library is independent of the
+        // others until they get merged. The results are consumed in the libraries order so the
+        // selectors, the logs and the merging order are the same as with a sequential load.
+        final ILogger logger = mergingReportBuilder.getLogger();
+        List<FutureTask<Pair<LoadedManifestInfo, MergingReport.Builder>>> tasks =
+                Lists.newArrayListWithCapacity(mLibraryFiles.size());
         for (Pair<String, File> libraryFile : mLibraryFiles) {
-            mLogger.info("Loading library manifest " + libraryFile.getSecond().getPath());
-            ManifestInfo manifestInfo = new ManifestInfo(libraryFile.getFirst(),
+            mMergeLogger.info("Loading library manifest " + libraryFile.getSecond().getPath());
+            final ManifestInfo manifestInfo = new ManifestInfo(libraryFile.getFirst(),
                     libraryFile.getSecond(),
                     XmlDocument.Type.LIBRARY, Optional.<String>absent());
-            XmlDocument libraryDocument;
+            tasks.add(new FutureTask<Pair<LoadedManifestInfo, MergingReport.Builder>>(
+                    new Callable<Pair<LoadedManifestInfo, MergingReport.Builder>>() {
+                        @Override
+                        public Pair<LoadedManifestInfo, MergingReport.Builder> call()
+                                throws Exception {
+                            return loadLibrary(manifestInfo, selectors, logger);
+                        }
+                    }));
+        }
+
+        // this thread loads libraries too, see below.
+        int threadCount = Math.min(tasks.size() - 1,
+                Runtime.getRuntime().availableProcessors() - 1);
+        ExecutorService executor = null;
+        if (threadCount > 0) {
+            executor = Executors.newFixedThreadPool(threadCount);
+            for (FutureTask<Pair<LoadedManifestInfo, MergingReport.Builder>> task : tasks) {
+                executor.execute(task);
+            }
+        }
+        try {
+            return collectLibraries(tasks, selectors);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private List<LoadedManifestInfo> collectLibraries(
+            List<FutureTask<Pair<LoadedManifestInfo, MergingReport.Builder>>> tasks,
+            SelectorResolver selectors) throws MergeFailureException {
+
+        ImmutableList.Builder<LoadedManifestInfo> loadedLibraryDocuments = ImmutableList.builder();
+        for (int i = 0; i < tasks.size(); i++) {
+            FutureTask<Pair<LoadedManifestInfo, MergingReport.Builder>> task = tasks.get(i);
+            // run the task in this thread if no pool thread picked it up yet, this is a no-op
+            // if the task is already running or done.
+            task.run();
+            Pair<LoadedManifestInfo, MergingReport.Builder> loaded;
             try {
-                libraryDocument = XmlLoader.load(selectors,
-                        mSystemPropertyResolver,
-                        manifestInfo.mName, manifestInfo.mLocation,
-                        XmlDocument.Type.LIBRARY,
-                        Optional.<String>absent()  /* mainManifestPackageName */);
-            } catch (Exception e) {
+                loaded = task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 throw new MergeFailureException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw new MergeFailureException(
+                        cause instanceof Exception ? (Exception) cause : e);
             }
+            LoadedManifestInfo libraryDocument = loaded.getFirst();
+
             // extract the package name...
-            String libraryPackage = libraryDocument.getRootNode().getXml().getAttribute("package");
+            String libraryPackage = libraryDocument.getXmlDocument().getRootNode().getXml()
+                    .getAttribute("package");
             // save it in the selector instance.
             if (!Strings.isNullOrEmpty(libraryPackage)) {
-                selectors.addSelector(libraryPackage, libraryFile.getFirst());
+                selectors.addSelector(libraryPackage, mLibraryFiles.get(i).getFirst());
             }
 
-            // perform placeholder substitution, this is useful when the library is using
-            // a placeholder in a key element, we however do not need to record these
-            // substitutions so feed it with a fake merging report.
-            MergingReport.Builder builder = new MergingReport.Builder(mergingReportBuilder.getLogger());
-            builder.getActionRecorder().recordDefaultNodeAction(libraryDocument.getRootNode());
-            performPlaceHolderSubstitution(manifestInfo, libraryDocument, builder);
+            MergingReport.Builder builder = loaded.getSecond();
             if (builder.hasErrors()) {
                 // we log the errors but continue, in case the error is of no consequence
                 // to the application consuming the library.
-                builder.build().log(mLogger);
+                builder.build().log(mMergeLogger);
             }
 
-            loadedLibraryDocuments.add(new LoadedManifestInfo(manifestInfo,
-                    Optional.fromNullable(libraryDocument.getPackageName()),
-                    libraryDocument));
+            loadedLibraryDocuments.add(libraryDocument);
         }
         return loadedLibraryDocuments.build();
     }
 
+    /**
+     * Loads a library manifest and performs its placeholder substitution. This is called
+     * concurrently for all the libraries, so it must not touch any shared mutable state.
+     * @param manifestInfo the library manifest to load.
+     * @param selectors all the libraries selectors, only consulted once all libraries are
+     *                  loaded.
+     * @param logger the logger to use for the library merging report.
+     * @return the loaded library and the report of its placeholder substitution.
+     * @throws Exception if the library manifest cannot be loaded.
+     */
+    private Pair<LoadedManifestInfo, MergingReport.Builder> loadLibrary(
+            ManifestInfo manifestInfo,
+            KeyResolver<String> selectors,
+            ILogger logger) throws Exception {
+        XmlDocument libraryDocument = XmlLoader.load(selectors,
+                mSystemPropertyResolver,
+                manifestInfo.mName, manifestInfo.mLocation,
+                XmlDocument.Type.LIBRARY,
+                Optional.<String>absent()  /* mainManifestPackageName */);
+
+        // perform placeholder substitution, this is useful when the library is using
+        // a placeholder in a key element, we however do not need to record these
+        // substitutions so feed it with a fake merging report.
+        MergingReport.Builder builder = new MergingReport.Builder(logger);
+        builder.getActionRecorder().recordDefaultNodeAction(libraryDocument.getRootNode());
+        performPlaceHolderSubstitution(manifestInfo, libraryDocument, builder);
+
+        return Pair.of(new LoadedManifestInfo(manifestInfo,
+                Optional.fromNullable(libraryDocument.getPackageName()),
+                libraryDocument), builder);
+    }
+
     /**
      * Creates a new {@link com.android.manifmerger.ManifestMerger2.Invoker} instance to invoke
      * the merging tool to merge manifest files for an application.
@@ -866,7 +1045,13 @@ public class ManifestMerger2 {
             /**
              * Perform a sweep after all merging activities to remove all tools: decorations.
              */
-            REMOVE_TOOLS_DECLARATIONS;
+            REMOVE_TOOLS_DECLARATIONS,
+
+            /**
+             * Always perform the merge, rather than reusing the result of a previous merge with
+             * the same inputs performed in the same process.
+             */
+            NO_MERGE_CACHE;
         }
 
         /**
@@ -52,6 +52,22 @@ public class MergingReport {
         mActions = actions;
     }
 
+    /**
+     * Returns a copy of this report with its own copy of the merged document, so that the copy
+     * can be modified without affecting this report. Records and actions are immutable and
+     * shared.
+     */
+    MergingReport copy() {
+        return new MergingReport(
+                mMergedDocument.isPresent()
+                        ? Optional.of(mMergedDocument.get().copy())
+                        : mMergedDocument,
+                mResult,
+                mRecords,
+                mIntermediaryStages,
+                mActions);
+    }
+
     /**
      * dumps all logging records to a logger.
      */
@@ -153,6 +153,22 @@ public class XmlDocument {
                 mMainManifestPackageName);
     }
 
+    /**
+     * Returns a deep copy of this document. The copy does not carry the original source positions
+     * of its nodes, which are only needed while merging.
+     * @return a new {@link com.android.manifmerger.XmlDocument} backed by a new DOM document.
+     */
+    XmlDocument copy() {
+        Document document = (Document) mRootElement.getOwnerDocument().cloneNode(true);
+        return new XmlDocument(mPositionXmlParser,
+                mSourceLocation,
+                mSelectors,
+                mSystemPropertyResolver,
+                document.getDocumentElement(),
+                mType,
+                mMainManifestPackageName);
+    }
+
     /**
      * Returns a {@link com.android.manifmerger.KeyResolver} capable of resolving all selectors
      * types
@@ -28,9 +28,12 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
+import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Table;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Element;
@@ -68,6 +71,10 @@ public class XmlElement extends OrphanXmlElement {
     private final Map<NodeName, AttributeOperationType> mAttributesOperationTypes;
     // list of mergeable children elements.
     private final ImmutableList<XmlElement> mMergeableChildren;
+    // first mergeable child of each type, lazily computed.
+    @Nullable private Map<ManifestModel.NodeTypes, XmlElement> mFirstChildByType;
+    // first mergeable child of each type and key, lazily computed.
+    @Nullable private Table<ManifestModel.NodeTypes, String, XmlElement> mChildByTypeAndKey;
     // optional selector declared on this xml element.
     @Nullable private final Selector mSelector;
     // optional list of libraries that we should ignore the minSdk version
@@ -326,13 +333,37 @@ public class XmlElement extends OrphanXmlElement {
             ManifestModel.NodeTypes type,
             @Nullable String keyValue) {
 
+        if (mFirstChildByType == null) {
+            indexMergeableChildren();
+        }
+        return Optional.fromNullable(keyValue == null
+                ? mFirstChildByType.get(type)
+                : mChildByTypeAndKey.get(type, keyValue));
+    }
+
+    /**
+     * Indexes the mergeable children by type and key, such that looking up the higher priority
+     * counterpart of each lower priority child does not require a scan of all the children. Like
+     * the list of mergeable children, the index reflects the children present when this element
+     * was created; the first child wins when several children share the same type and key.
+     */
+    private void indexMergeableChildren() {
+        Map<ManifestModel.NodeTypes, XmlElement> firstChildByType =
+                Maps.newEnumMap(ManifestModel.NodeTypes.class);
+        Table<ManifestModel.NodeTypes, String, XmlElement> childByTypeAndKey =
+                HashBasedTable.create();
         for (XmlElement xmlElement : mMergeableChildren) {
-            if (xmlElement.isA(type) &&
-                    (keyValue == null || keyValue.equals(xmlElement.getKey()))) {
-                return Optional.of(xmlElement);
+            ManifestModel.NodeTypes type = xmlElement.getType();
+            if (!firstChildByType.containsKey(type)) {
+                firstChildByType.put(type, xmlElement);
+            }
+            String key = xmlElement.getKey();
+            if (key != null && !childByTypeAndKey.contains(type, key)) {
+                childByTypeAndKey.put(type, key, xmlElement);
             }
         }
-        return Optional.absent();
+        mFirstChildByType = firstChildByType;
+        mChildByTypeAndKey = childByTypeAndKey;
     }
 
     /**
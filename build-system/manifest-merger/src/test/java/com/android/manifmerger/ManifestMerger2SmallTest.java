@@ -18,9 +18,12 @@ package com.android.manifmerger;
 
 import com.android.SdkConstants;
 import com.android.sdklib.mock.MockLog;
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 
 import junit.framework.TestCase;
 
@@ -32,6 +35,7 @@ import org.xml.sax.SAXException;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -463,6 +467,159 @@ public class ManifestMerger2SmallTest extends TestCase {
                         .getNodeValue());
     }
 
+    public void testMergeCache()
+            throws ParserConfigurationException, SAXException, IOException,
+            ManifestMerger2.MergeFailureException {
+        String xml = ""
+                + "<manifest\n"
+                + "    package=\"com.foo.example\""
+                + "    xmlns:t=\"http://schemas.android.com/apk/res/android\">\n"
+                + "    <activity t:name=\"activityOne\" t:label=\"${label}\"/>\n"
+                + "</manifest>";
+        String libraryXml = ""
+                + "<manifest\n"
+                + "    package=\"com.foo.library\""
+                + "    xmlns:t=\"http://schemas.android.com/apk/res/android\">\n"
+                + "    <activity t:name=\"com.foo.library.activityTwo\"/>\n"
+                + "</manifest>";
+
+        File inputFile = inputAsFile("testMergeCache", xml);
+        File libraryFile = inputAsFile("testMergeCache", libraryXml);
+        try {
+            MockLog mockLog = new MockLog();
+            int hits = ManifestMergeCache.INSTANCE.getHitCount();
+            MergingReport first = ManifestMerger2
+                    .newMerger(inputFile, mockLog, ManifestMerger2.MergeType.APPLICATION)
+                    .addLibraryManifest(libraryFile)
+                    .setPlaceHolderValue("label", "foo")
+                    .merge();
+            assertTrue(first.getResult().isSuccess());
+            assertEquals(hits, ManifestMergeCache.INSTANCE.getHitCount());
+            String merged = first.getMergedDocument().get().prettyPrint();
+
+            // modifying the returned document should not affect later merges.
+            first.getMergedDocument().get().getXml().getDocumentElement()
+                    .setAttribute("package", "com.foo.other");
+
+            List<String> firstMessages = Lists.newArrayList(mockLog.getMessages());
+            assertFalse(firstMessages.isEmpty());
+
+            MockLog secondLog = new MockLog();
+            MergingReport second = ManifestMerger2
+                    .newMerger(inputFile, secondLog, ManifestMerger2.MergeType.APPLICATION)
+                    .addLibraryManifest(libraryFile)
+                    .setPlaceHolderValue("label", "foo")
+                    .merge();
+            assertEquals(hits + 1, ManifestMergeCache.INSTANCE.getHitCount());
+            assertEquals(first.getResult(), second.getResult());
+            assertEquals(merged, second.getMergedDocument().get().prettyPrint());
+            assertSame(first.getActions(), second.getActions());
+            // the messages logged by the original merge are replayed, and nothing else.
+            assertEquals(firstMessages, secondLog.getMessages());
+
+            // the cache can be bypassed.
+            MergingReport uncached = ManifestMerger2
+                    .newMerger(inputFile, mockLog, ManifestMerger2.MergeType.APPLICATION)
+                    .addLibraryManifest(libraryFile)
+                    .setPlaceHolderValue("label", "foo")
+                    .withFeatures(ManifestMerger2.Invoker.Feature.NO_MERGE_CACHE)
+                    .merge();
+            assertEquals(hits + 1, ManifestMergeCache.INSTANCE.getHitCount());
+            assertEquals(merged, uncached.getMergedDocument().get().prettyPrint());
+
+            // different placeholder values are a different merge.
+            MergingReport third = ManifestMerger2
+                    .newMerger(inputFile, mockLog, ManifestMerger2.MergeType.APPLICATION)
+                    .addLibraryManifest(libraryFile)
+                    .setPlaceHolderValue("label", "bar")
+                    .merge();
+            assertEquals(hits + 1, ManifestMergeCache.INSTANCE.getHitCount());
+            assertEquals("bar", third.getMergedDocument().get().getXml()
+                    .getElementsByTagName("activity").item(0).getAttributes()
+                    .getNamedItemNS("http://schemas.android.com/apk/res/android", "label")
+                    .getNodeValue());
+        } finally {
+            assertTrue(inputFile.delete());
+            assertTrue(libraryFile.delete());
+        }
+    }
+
+    public void testMergeCacheReportFile()
+            throws IOException, ManifestMerger2.MergeFailureException {
+        String xml = ""
+                + "<manifest\n"
+                + "    package=\"com.foo.example\""
+                + "    xmlns:t=\"http://schemas.android.com/apk/res/android\">\n"
+                + "    <activity t:name=\"activityOne\" t:label=\"${label}\"/>\n"
+                + "</manifest>";
+
+        File inputFile = inputAsFile("testMergeCacheReportFile", xml);
+        File reportDir = Files.createTempDir();
+        // a report file which cannot be created, as its parent would be inside a file.
+        File blocker = new File(reportDir, "blocker");
+        assertTrue(blocker.createNewFile());
+        try {
+            // a merge which does not use the cache, and the same merge from the cache.
+            MockLog freshLog = new MockLog();
+            File freshReport = new File(reportDir, "fresh.txt");
+            MergingReport fresh = ManifestMerger2
+                    .newMerger(inputFile, freshLog, ManifestMerger2.MergeType.APPLICATION)
+                    .setPlaceHolderValue("label", "report")
+                    .setMergeReportFile(freshReport)
+                    .withFeatures(ManifestMerger2.Invoker.Feature.NO_MERGE_CACHE)
+                    .merge();
+            assertTrue(fresh.getResult().isSuccess());
+            assertTrue(freshReport.isFile());
+
+            ManifestMerger2
+                    .newMerger(inputFile, new MockLog(), ManifestMerger2.MergeType.APPLICATION)
+                    .setPlaceHolderValue("label", "report")
+                    .setMergeReportFile(new File(blocker, "sub/first.txt"))
+                    .merge();
+
+            int hits = ManifestMergeCache.INSTANCE.getHitCount();
+            MockLog cachedLog = new MockLog();
+            File cachedReport = new File(reportDir, "cached.txt");
+            ManifestMerger2
+                    .newMerger(inputFile, cachedLog, ManifestMerger2.MergeType.APPLICATION)
+                    .setPlaceHolderValue("label", "report")
+                    .setMergeReportFile(cachedReport)
+                    .merge();
+            assertEquals(hits + 1, ManifestMergeCache.INSTANCE.getHitCount());
+            // the report file is written, and the warning about the report file of the
+            // original merge is not replayed.
+            assertTrue(cachedReport.isFile());
+            assertEquals(Files.toString(freshReport, Charsets.UTF_8),
+                    Files.toString(cachedReport, Charsets.UTF_8));
+            assertEquals(freshLog.getMessages(), cachedLog.getMessages());
+
+            // the report file warnings are logged for the cache hit's own report file.
+            File failedReport = new File(blocker, "sub/second.txt");
+            MockLog failedLog = new MockLog();
+            ManifestMerger2
+                    .newMerger(inputFile, failedLog, ManifestMerger2.MergeType.APPLICATION)
+                    .setPlaceHolderValue("label", "report")
+                    .setMergeReportFile(failedReport)
+                    .merge();
+            assertEquals(hits + 2, ManifestMergeCache.INSTANCE.getHitCount());
+            List<String> failedMessages = failedLog.getMessages();
+            assertEquals(freshLog.getMessages().size() + 1, failedMessages.size());
+            String warning = failedMessages.get(failedMessages.size() - 1);
+            assertTrue(warning, warning.contains(failedReport.getAbsolutePath()));
+            assertFalse(failedMessages.toString(),
+                    failedMessages.toString().contains("first.txt"));
+        } finally {
+            assertTrue(inputFile.delete());
+            File[] files = reportDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    assertTrue(file.delete());
+                }
+            }
+            assertTrue(reportDir.delete());
+        }
+    }
+
     /**
      * Utility method to save a {@link String} XML into a file.
      */
@@ -589,6 +589,67 @@ public class XmlElementTest extends TestCase {
         assertTrue(activityTwo.isPresent());
     }
 
+    /**
+     * test merging of documents with many components, a quarter of which are declared in both.
+     */
+    public void testMerge_ManyComponents()
+            throws ParserConfigurationException, SAXException, IOException {
+        int count = 10000;
+        StringBuilder reference = new StringBuilder();
+        StringBuilder other = new StringBuilder();
+        for (StringBuilder sb : ImmutableList.of(reference, other)) {
+            sb.append(""
+                    + "<manifest\n"
+                    + "    xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                    + "    package=\"com.example.lib3\">\n"
+                    + "    <application android:label=\"@string/app_name\">\n");
+        }
+        for (int i = 0; i < count; i++) {
+            StringBuilder sb = i < count / 2 ? reference : other;
+            String type = i % 3 == 0 ? "activity" : i % 3 == 1 ? "service" : "receiver";
+            sb.append("        <").append(type).append(" android:name=\"Component")
+                    .append(i).append("\"/>\n");
+            if (i >= count / 4 && i < count / 2) {
+                // also declared in the lower priority document.
+                other.append("        <").append(type).append(" android:name=\"Component")
+                        .append(i).append("\" android:exported=\"false\"/>\n");
+            }
+        }
+        for (StringBuilder sb : ImmutableList.of(reference, other)) {
+            sb.append(""
+                    + "    </application>\n"
+                    + "</manifest>");
+        }
+
+        XmlDocument refDocument = TestUtils.xmlDocumentFromString(
+                new TestUtils.TestSourceLocation(getClass(), "testMerge_ManyComponents()"),
+                reference.toString());
+        XmlDocument otherDocument = TestUtils.xmlDocumentFromString(
+                new TestUtils.TestSourceLocation(getClass(), "testMerge_ManyComponents()"),
+                other.toString());
+
+        MergingReport.Builder mergingReportBuilder = new MergingReport.Builder(
+                new StdLogger(StdLogger.Level.INFO));
+        Optional<XmlDocument> result = refDocument.merge(otherDocument, mergingReportBuilder);
+        assertTrue(result.isPresent());
+
+        Optional<XmlElement> application = result.get().getRootNode().getNodeByTypeAndKey(
+                ManifestModel.NodeTypes.APPLICATION, null);
+        assertTrue(application.isPresent());
+        assertEquals(count, application.get().getMergeableElements().size());
+        for (int i = 0; i < count; i += 997) {
+            ManifestModel.NodeTypes type = i % 3 == 0 ? ManifestModel.NodeTypes.ACTIVITY
+                    : i % 3 == 1 ? ManifestModel.NodeTypes.SERVICE
+                            : ManifestModel.NodeTypes.RECEIVER;
+            Optional<XmlElement> component = application.get().getNodeByTypeAndKey(type,
+                    "com.example.lib3.Component" + i);
+            assertTrue(component.isPresent());
+            assertEquals(i >= count / 4 && i < count / 2,
+                    component.get().getXml().hasAttributeNS(SdkConstants.ANDROID_URI,
+                            "exported"));
+        }
+    }
+
     /**
      * test merging of same element with no attribute collision.
      */
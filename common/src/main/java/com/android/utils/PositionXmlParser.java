@@ -42,6 +42,7 @@ import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -61,6 +62,8 @@ public class PositionXmlParser {
     private static final String UTF_16LE = "UTF_16LE";           //$NON-NLS-1$
     private static final String CONTENT_KEY = "contents";        //$NON-NLS-1$
     private static final String POS_KEY = "offsets";             //$NON-NLS-1$
+    private static final String LINES_KEY = "lines";             //$NON-NLS-1$
+    private static final String ATTR_RANGE_KEY = "range";        //$NON-NLS-1$
     private static final String NAMESPACE_PREFIX_FEATURE =
             "http://xml.org/sax/features/namespace-prefixes";    //$NON-NLS-1$
     private static final String NAMESPACE_FEATURE =
@@ -335,64 +338,25 @@ public class PositionXmlParser {
     @Nullable
     public Position getPosition(@NonNull Node node, int start, int end) {
         // Look up the position information stored while parsing for the given node.
-        // Note however that we only store position information for elements (because
-        // there is no SAX callback for individual attributes).
-        // Therefore, this method special cases this:
-        //  -- First, it looks at the owner element and uses its position
-        //     information as a first approximation.
-        //  -- Second, it uses that, as well as the original XML text, to search
-        //     within the node range for an exact text match on the attribute name
-        //     and if found uses that as the exact node offsets instead.
+        // Note however that we only store full position information for elements;
+        // for attributes we record the offset range of the name=value text within
+        // the element open tag, and compute the line and column numbers on demand
+        // from the line offset table of the document.
         if (node instanceof Attr) {
             Attr attr = (Attr) node;
             Position pos = (Position) attr.getOwnerElement().getUserData(POS_KEY);
             if (pos != null) {
-                int startOffset = pos.getOffset();
-                int endOffset = pos.getEnd().getOffset();
-                if (start != -1) {
-                    startOffset += start;
-                    if (end != -1) {
-                        endOffset = start + end;
-                    }
-                }
-
-                // Find attribute in the text
-                String contents = (String) node.getOwnerDocument().getUserData(CONTENT_KEY);
-                if (contents == null) {
-                    return null;
-                }
-
-                // Locate the name=value attribute in the source text
-                // Fast string check first for the common occurrence
-                String name = attr.getName();
-                Pattern pattern = Pattern.compile(attr.getPrefix() != null
-                    ? String.format("(%1$s\\s*=\\s*[\"'].*?[\"'])", name) //$NON-NLS-1$
-                    : String.format("[^:](%1$s\\s*=\\s*[\"'].*?[\"'])", name));//$NON-NLS-1$
-                Matcher matcher = pattern.matcher(contents);
-                if (matcher.find(startOffset) && matcher.start(1) <= endOffset) {
-                    int index = matcher.start(1);
-                    // Adjust the line and column to this new offset
-                    int line = pos.getLine();
-                    int column = pos.getColumn();
-                    for (int offset = pos.getOffset(); offset < index; offset++) {
-                        char t = contents.charAt(offset);
-                        if (t == '\n') {
-                            line++;
-                            column = 0;
-                        } else {
-                            column++;
-                        }
-                    }
-
-                    Position attributePosition = createPosition(line, column, index);
-                    // Also set end range for retrieval in getLocation
-                    attributePosition.setEnd(createPosition(line, column + matcher.end(1) - index,
-                            matcher.end(1)));
-                    return attributePosition;
-                } else {
-                    // No regexp match either: just fall back to element position
+                int[] range = (int[]) attr.getUserData(ATTR_RANGE_KEY);
+                int[] lines = (int[]) node.getOwnerDocument().getUserData(LINES_KEY);
+                if (range == null || lines == null) {
+                    // Attribute not found in the source: fall back to element position
                     return pos;
                 }
+
+                Position attributePosition = createPosition(lines, range[0]);
+                // Also set end range for retrieval in getLocation
+                attributePosition.setEnd(createPosition(lines, range[1]));
+                return attributePosition;
             }
         } else if (node instanceof Text) {
             // Position of parent element, if any
@@ -492,6 +456,40 @@ public class PositionXmlParser {
         return (Position) node.getUserData(POS_KEY);
     }
 
+    /**
+     * Creates a position for the given offset, computing the line and column
+     * numbers from the given line start offsets
+     */
+    @NonNull
+    private Position createPosition(@NonNull int[] lines, int offset) {
+        int line = Arrays.binarySearch(lines, offset);
+        if (line < 0) {
+            // Not at the start of a line: use the line starting before it
+            line = -line - 2;
+        }
+        return createPosition(line, offset - lines[line], offset);
+    }
+
+    /**
+     * Returns the offsets of the beginning of each line in the given text. Lines
+     * are terminated by \n, \r\n or a lone \r, like in the XML parser.
+     */
+    @NonNull
+    private static int[] computeLineOffsets(@NonNull String xml) {
+        int[] lines = new int[32];
+        int count = 1;
+        for (int i = 0, n = xml.length(); i < n; i++) {
+            char c = xml.charAt(i);
+            if (c == '\n' || c == '\r' && (i == n - 1 || xml.charAt(i + 1) != '\n')) {
+                if (count == lines.length) {
+                    lines = Arrays.copyOf(lines, count * 2);
+                }
+                lines[count++] = i + 1;
+            }
+        }
+        return Arrays.copyOf(lines, count);
+    }
+
     /**
      * SAX parser handler which incrementally builds up a DOM document as we go
      * along, and updates position information along the way. Position
@@ -517,6 +515,7 @@ public class PositionXmlParser {
             DocumentBuilder docBuilder = factory.newDocumentBuilder();
             mDocument = docBuilder.newDocument();
             mDocument.setUserData(CONTENT_KEY, xml, null);
+            mDocument.setUserData(LINES_KEY, computeLineOffsets(xml), null);
         }
 
         /** Returns the document parsed by the handler */
@@ -560,7 +559,11 @@ public class PositionXmlParser {
                 // the beginning since pos.offset will typically point to the first character
                 // AFTER the element open tag, which could be a closing tag or a child open
                 // tag
-                element.setUserData(POS_KEY, findOpeningTag(pos), null);
+                Position start = findOpeningTag(pos);
+                element.setUserData(POS_KEY, start, null);
+                if (attributes.getLength() > 0) {
+                    recordAttributeRanges(element, start.getOffset(), pos.getOffset());
+                }
                 mStack.add(element);
             } catch (Exception t) {
                 throw new SAXException(t);
@@ -609,6 +612,71 @@ public class PositionXmlParser {
             }
         }
 
+        /**
+         * Scans the open tag of the given element, and records the offset range of
+         * each name=value attribute on the corresponding attribute node with the
+         * {@link #ATTR_RANGE_KEY} key.
+         *
+         * @param element the element whose attributes should be located
+         * @param start the offset of the {@code <} beginning the open tag
+         * @param end the offset just past the end of the open tag
+         */
+        private void recordAttributeRanges(Element element, int start, int end) {
+            String xml = mXml;
+            end = Math.min(end, xml.length());
+            if (start < 0 || start >= end || xml.charAt(start) != '<') {
+                return;
+            }
+
+            // Skip the tag name
+            int offset = start + 1;
+            while (offset < end && !isNameEnd(xml.charAt(offset))) {
+                offset++;
+            }
+
+            while (offset < end) {
+                char c = xml.charAt(offset);
+                if (Character.isWhitespace(c)) {
+                    offset++;
+                    continue;
+                } else if (c == '/' || c == '>') {
+                    return;
+                }
+
+                int nameStart = offset;
+                while (offset < end && !isNameEnd(xml.charAt(offset))
+                        && xml.charAt(offset) != '=') {
+                    offset++;
+                }
+                String name = xml.substring(nameStart, offset);
+                while (offset < end && xml.charAt(offset) != '=') {
+                    offset++;
+                }
+                // Skip to the opening quote
+                while (offset < end && xml.charAt(offset) != '"'
+                        && xml.charAt(offset) != '\'') {
+                    offset++;
+                }
+                if (offset == end) {
+                    return;
+                }
+                int valueEnd = xml.indexOf(xml.charAt(offset), offset + 1);
+                if (valueEnd == -1 || valueEnd >= end) {
+                    return;
+                }
+                offset = valueEnd + 1;
+
+                Attr attr = element.getAttributeNode(name);
+                if (attr != null) {
+                    attr.setUserData(ATTR_RANGE_KEY, new int[] { nameStart, offset }, null);
+                }
+            }
+        }
+
+        private boolean isNameEnd(char c) {
+            return Character.isWhitespace(c) || c == '/' || c == '>';
+        }
+
         /**
          * Find opening tags from the current position.
          * < cannot appear in attribute values or anywhere else within
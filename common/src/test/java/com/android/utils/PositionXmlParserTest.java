@@ -494,6 +494,46 @@ public class PositionXmlParserTest extends TestCase {
     }
 
 
+    public void testAttributePositions() throws Exception {
+        String xml = ""
+                + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                + "<resources>\r\n"
+                + "  <string name='a/b>c' translatable=\"false\">Text</string>\r\n"
+                + "  <item\n"
+                + "      type=\"id\"\tname =\n"
+                + "\"foo\" />\n"
+                + "</resources>\n";
+        PositionXmlParser parser = new PositionXmlParser();
+        Document document = parser.parse(xml);
+        assertNotNull(document);
+
+        Element string = (Element) document.getElementsByTagName("string").item(0);
+        Position start = parser.getPosition(string.getAttributeNode("translatable"));
+        assertNotNull(start);
+        assertEquals(2, start.getLine());
+        assertEquals(23, start.getColumn());
+        assertEquals("translatable=\"false\"",
+                xml.substring(start.getOffset(), start.getEnd().getOffset()));
+        start = parser.getPosition(string.getAttributeNode("name"));
+        assertNotNull(start);
+        assertEquals("name='a/b>c'",
+                xml.substring(start.getOffset(), start.getEnd().getOffset()));
+
+        Element item = (Element) document.getElementsByTagName("item").item(0);
+        start = parser.getPosition(item.getAttributeNode("type"));
+        assertNotNull(start);
+        assertEquals(4, start.getLine());
+        assertEquals(6, start.getColumn());
+        start = parser.getPosition(item.getAttributeNode("name"));
+        assertNotNull(start);
+        Position end = start.getEnd();
+        assertEquals(4, start.getLine());
+        assertEquals(16, start.getColumn());
+        assertEquals(5, end.getLine());
+        assertEquals(5, end.getColumn());
+        assertEquals("name =\n\"foo\"", xml.substring(start.getOffset(), end.getOffset()));
+    }
+
     public void testTagNamespace() throws Exception {
 
         final String NAMESPACE_URL = "http://example.org/path";
@@ -21,6 +21,7 @@ import Twofish.Twofish_Algorithm;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
@@ -29,12 +30,23 @@ import java.nio.channels.FileLock;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class EncryptedBlockFile extends RandomAccessFile {
 
     private final class EncryptedBlockFileChannel extends FileChannel {
         final FileChannel mFC;
+        /** Buffer of the sectors being read or written, reused to avoid allocations. */
+        final byte[] mBuffer = new byte[BATCH_SECTORS * BYTES_PER_SECTOR];
+        final ByteBuffer mByteBuffer = ByteBuffer.wrap(mBuffer);
         
         protected EncryptedBlockFileChannel(FileChannel wrappedFC) {
             super();
@@ -79,70 +91,28 @@ public class EncryptedBlockFile extends RandomAccessFile {
         }
 
         @Override
-        public int read(ByteBuffer dest, long position) throws IOException {
-            boolean isMisaligned;
-            boolean isPartial;
-            boolean doubleBuffer;
-
+        public synchronized int read(ByteBuffer dest, long position) throws IOException {
             int toRead = dest.remaining();
-            int targetRead = toRead;
-            int numSectors = toRead / BYTES_PER_SECTOR;
             if ((position + toRead) > length())
                 throw new IOException(
                         "reading past end of device");
 
-            int alignmentOff;
-            int firstSector = (int) position / BYTES_PER_SECTOR;
-            if ( 0 != (alignmentOff = (int)(position % BYTES_PER_SECTOR ))) {
-                toRead += alignmentOff;
-                numSectors = toRead/BYTES_PER_SECTOR;
-                isMisaligned = true;
-                doubleBuffer = true;
-                System.out.println("Alignment off reading from sector: " + firstSector);
-            } else {
-                isMisaligned = false;
-                doubleBuffer = false;
-                alignmentOff = 0;
-            }
-            
-            int partialReadSize;
-            if ( 0 != (partialReadSize = (int)(toRead % BYTES_PER_SECTOR ))) {
-                isPartial = true;
-                doubleBuffer = true;
-                numSectors = toRead/BYTES_PER_SECTOR + 1;
-                System.out.println("Partial read from sector: " + firstSector);
-            } else {
-                isPartial = false;
-            }
-
-            ByteBuffer tempDest;
-            if ( doubleBuffer ) {
-                tempDest = ByteBuffer.allocate(BYTES_PER_SECTOR);
-            } else {
-                tempDest = null;
-            }
-            int lastSector = firstSector + numSectors;
-            if ( isMisaligned ) {
-                // first sector is misaligned. Read and decrypt into temp dest
-                readDecryptedSector(firstSector++, tempDest);
-                tempDest.position(alignmentOff);
-                // special case -- small sector;
-                if ( firstSector == lastSector && isPartial ) {
-                    tempDest.limit(partialReadSize);
-                }
-                dest.put(tempDest);
-            }
-            for ( int i = firstSector; i < lastSector; i++ ) {
-                if ( firstSector+1 == lastSector && isPartial ) {
-                    readDecryptedSector(i, tempDest);
-                    tempDest.rewind();
-                    tempDest.limit(partialReadSize);
-                    dest.put(tempDest);
-                } else {
-                    readDecryptedSector(i, dest);
-                }
+            // misaligned and partial sectors are decrypted in the buffer and only the
+            // requested part is copied.
+            long sector = position / BYTES_PER_SECTOR;
+            int offset = (int) (position % BYTES_PER_SECTOR);
+            int remaining = toRead;
+            while (remaining > 0) {
+                int numSectors = Math.min(BATCH_SECTORS,
+                        (offset + remaining + BYTES_PER_SECTOR - 1) / BYTES_PER_SECTOR);
+                readDecryptedSectors(sector, numSectors);
+                int count = Math.min(remaining, numSectors * BYTES_PER_SECTOR - offset);
+                dest.put(mBuffer, offset, count);
+                remaining -= count;
+                sector += numSectors;
+                offset = 0;
             }
-            return targetRead;
+            return toRead;
         }
 
         @Override
@@ -190,48 +160,30 @@ public class EncryptedBlockFile extends RandomAccessFile {
         }
 
         @Override
-        public int write(ByteBuffer src, long position) throws IOException {
+        public synchronized int write(ByteBuffer src, long position) throws IOException {
             int toWrite = src.remaining();
-            int targetWrite = toWrite;
-            int firstSector = (int) position / BYTES_PER_SECTOR;
-            int numSectors = toWrite / BYTES_PER_SECTOR;
-
-            boolean fixAccess = false;
-            long readOffset;
-            if ( 0 != position % BYTES_PER_SECTOR ) {
-                long alignmentOff = (position % BYTES_PER_SECTOR);
-                readOffset = position - alignmentOff;            
-                toWrite += alignmentOff;
-                numSectors = toWrite/BYTES_PER_SECTOR;
-                fixAccess = true;
-                System.out.println("Alignment off writing to sector: " + firstSector);
-            } else {
-                readOffset = position;
-            }
-            
-            if ( 0 != toWrite % BYTES_PER_SECTOR ) {
-                numSectors = toWrite/BYTES_PER_SECTOR + 1;
-                fixAccess = true;
-                System.out.println("Partial Sector [" + toWrite % BYTES_PER_SECTOR + "] writing to sector: " + firstSector);
-            }
-
-            if ( fixAccess ) {
-                ByteBuffer dest = ByteBuffer.allocate(numSectors * BYTES_PER_SECTOR);
-                read(dest, readOffset);
-                int bufOffset = (int)(position - readOffset);
-                dest.position(bufOffset);
-                dest.put(src);
-                
-                src = dest;
-                src.rewind();
-            }
-                    
-            int lastSector = firstSector + numSectors;
-            
-            for ( int i = firstSector; i < lastSector; i++ ) {
-                writeEncryptedSector(i, src);
+            long sector = position / BYTES_PER_SECTOR;
+            int offset = (int) (position % BYTES_PER_SECTOR);
+            int remaining = toWrite;
+            while (remaining > 0) {
+                int numSectors = Math.min(BATCH_SECTORS,
+                        (offset + remaining + BYTES_PER_SECTOR - 1) / BYTES_PER_SECTOR);
+                int count = Math.min(remaining, numSectors * BYTES_PER_SECTOR - offset);
+                // misaligned or partial sectors: keep the rest of their content.
+                if (offset != 0) {
+                    loadSector(sector, 0);
+                }
+                if ((offset + count) % BYTES_PER_SECTOR != 0
+                        && (numSectors > 1 || offset == 0)) {
+                    loadSector(sector, numSectors - 1);
+                }
+                src.get(mBuffer, offset, count);
+                writeEncryptedSectors(sector, numSectors);
+                remaining -= count;
+                sector += numSectors;
+                offset = 0;
             }
-            return targetWrite;
+            return toWrite;
         }
 
         @Override
@@ -246,95 +198,173 @@ public class EncryptedBlockFile extends RandomAccessFile {
         }
 
         /**
-         * plain: the initial vector is the 32-bit little-endian version of the
-         * sector number, padded with zeros if necessary.
+         * Reads and decrypts sectors into {@link #mBuffer}.
          */
-        private void cryptIVPlainGen(int sector, byte[] out) {
-          Arrays.fill(out, (byte)0);
-          out[0] = (byte)(sector & 0xff);
-          out[1] = (byte)(sector >> 8 & 0xff);
-          out[2] = (byte)(sector >> 16 & 0xff);
-          out[3] = (byte)(sector >>> 24);
+        private void readDecryptedSectors(long firstSector, int numSectors) throws IOException {
+            readSectors(firstSector, 0, numSectors);
+            cryptSectors(false, firstSector, numSectors);
         }
-        
-        private void readDecryptedSector(int sector, ByteBuffer dest) throws IOException {
-            ByteBuffer temp = ByteBuffer.allocate(BYTES_PER_SECTOR);
-            int toRead = BYTES_PER_SECTOR;
-            int devOffset = BYTES_PER_SECTOR*sector;
-            
-            // number of chained twofish blocks
-            int blockSize = Twofish_Algorithm.blockSize();
-            byte[] bufLast = new byte[blockSize];
-            int numBlocks = toRead / blockSize;
-            
-            // read unencrypted sector
-            while (toRead > 0) {
-                final int read = mFC.read(temp, devOffset);
+
+        /**
+         * Reads and decrypts one sector of a batch into its place in {@link #mBuffer}, or
+         * clears it if it is past the end of the file.
+         */
+        private void loadSector(long firstSector, int index) throws IOException {
+            int start = index * BYTES_PER_SECTOR;
+            if ((firstSector + index + 1) * BYTES_PER_SECTOR <= length()) {
+                readSectors(firstSector, index, index + 1);
+                cryptSectors(false, firstSector, index, index + 1);
+            } else {
+                Arrays.fill(mBuffer, start, start + BYTES_PER_SECTOR, (byte) 0);
+            }
+        }
+
+        /**
+         * Reads the encrypted sectors of a batch from start to end into {@link #mBuffer}.
+         */
+        private void readSectors(long firstSector, int start, int end) throws IOException {
+            long devOffset = firstSector * BYTES_PER_SECTOR;
+            mByteBuffer.clear();
+            mByteBuffer.position(start * BYTES_PER_SECTOR);
+            mByteBuffer.limit(end * BYTES_PER_SECTOR);
+            while (mByteBuffer.hasRemaining()) {
+                final int read = mFC.read(mByteBuffer, devOffset + mByteBuffer.position());
                 if (read < 0)
                     throw new IOException();
-                toRead -= read;
-                devOffset += read;
             }
-            temp.rewind();
+        }
 
-            // set initialization vector
-            cryptIVPlainGen(sector, bufLast);
-            
-            byte[] buf = new byte[blockSize];
-            for (int i = 0; i < numBlocks; i++) {
-                temp.get(buf);
-                // decrypt with chained blocks --- xor with the previous encrypted block
-                byte[] decryptBuf = Twofish_Algorithm.blockDecrypt(buf, 0, mKey);
-                for (int j = 0; j < blockSize; j++) {
-                    decryptBuf[j] ^= bufLast[j];
-                }
-                System.arraycopy(buf, 0, bufLast, 0, blockSize);
-                dest.put(decryptBuf);
+        /**
+         * Encrypts the sectors in {@link #mBuffer} and writes them.
+         */
+        private void writeEncryptedSectors(long firstSector, int numSectors) throws IOException {
+            cryptSectors(true, firstSector, numSectors);
+            long devOffset = firstSector * BYTES_PER_SECTOR;
+            mByteBuffer.clear();
+            mByteBuffer.limit(numSectors * BYTES_PER_SECTOR);
+            while (mByteBuffer.hasRemaining()) {
+                final int written = mFC.write(mByteBuffer, devOffset + mByteBuffer.position());
+                if (written < 0)
+                    throw new IOException();
             }
         }
-        
-        private void writeEncryptedSector(int sector, ByteBuffer src) throws IOException {
-            byte[] sectorBuf = new byte[BYTES_PER_SECTOR];
-            int toRead = BYTES_PER_SECTOR;
-            int devOffset = BYTES_PER_SECTOR*sector;
-            
-            // number of chained twofish blocks
-            int blockSize = Twofish_Algorithm.blockSize();
-            byte[] bufLast = new byte[blockSize];
-            int numBlocks = toRead / blockSize;
 
-            // fetch unencrypted sector
-            src.get(sectorBuf);
-            
-            // set initialization vector
-            cryptIVPlainGen(sector, bufLast);
-            
-            int pos = 0;
-            byte[] buf = new byte[blockSize];
-            for (int i = 0; i < numBlocks; i++) {
-                System.arraycopy(sectorBuf, pos, buf, 0, blockSize);
-                // encrypt with chained blocks --- xor with the previous encrypted block
-                for (int j = 0; j < blockSize; j++) {
-                    buf[j] ^= bufLast[j];
+        /**
+         * Encrypts or decrypts sectors in place in {@link #mBuffer}. Since the initial vector
+         * of each sector only depends on its number, large batches are split between several
+         * threads.
+         */
+        private void cryptSectors(final boolean encrypt, final long firstSector,
+                int numSectors) throws IOException {
+            ExecutorService executor = getExecutor();
+            if (executor == null || numSectors < PARALLEL_MIN_SECTORS) {
+                cryptSectors(encrypt, firstSector, 0, numSectors);
+                return;
+            }
+
+            int numTasks = Math.min(THREAD_COUNT, numSectors / (PARALLEL_MIN_SECTORS / 2));
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numTasks);
+            for (int i = 0; i < numTasks; i++) {
+                final int start = numSectors * i / numTasks;
+                final int end = numSectors * (i + 1) / numTasks;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        cryptSectors(encrypt, firstSector, start, end);
+                        return null;
+                    }
+                });
+            }
+            try {
+                for (Future<Void> future : executor.invokeAll(tasks)) {
+                    future.get();
                 }
-                byte[] encryptBuf = Twofish_Algorithm.blockEncrypt(buf, 0, mKey);
-                bufLast = encryptBuf;
-                int toWrite = blockSize;
-                ByteBuffer encryptBuffer = ByteBuffer.wrap(encryptBuf);
-                while (toWrite > 0) {
-                    final int written = mFC.write(encryptBuffer, devOffset);
-                    if (written < 0)
-                        throw new IOException();
-                    toWrite -= written;
-                    devOffset += written;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        /**
+         * Encrypts or decrypts the sectors of {@link #mBuffer} from start to end.
+         */
+        private void cryptSectors(boolean encrypt, long firstSector, int start, int end) {
+            for (int i = start; i < end; i++) {
+                int sector = (int) (firstSector + i);
+                if (encrypt) {
+                    encryptSector(mBuffer, i * BYTES_PER_SECTOR, sector, mKey);
+                } else {
+                    decryptSector(mBuffer, i * BYTES_PER_SECTOR, sector, mKey);
                 }
-                pos += blockSize;
             }
         }
-                
-        
     }
-    
+
+    /**
+     * Encrypts a sector in place, with chained twofish blocks. Each block is xored with the
+     * previous encrypted block before being encrypted. The first block is xored with the
+     * initial vector.
+     */
+    private static void encryptSector(byte[] buf, int offset, int sector, Object key) {
+        int blockSize = Twofish_Algorithm.blockSize();
+        int end = offset + BYTES_PER_SECTOR;
+        xorIV(buf, offset, sector);
+        Twofish_Algorithm.blockEncrypt(buf, offset, buf, offset, key);
+        for (int pos = offset + blockSize; pos < end; pos += blockSize) {
+            for (int j = 0; j < blockSize; j++) {
+                buf[pos + j] ^= buf[pos - blockSize + j];
+            }
+            Twofish_Algorithm.blockEncrypt(buf, pos, buf, pos, key);
+        }
+    }
+
+    /**
+     * Decrypts a sector in place. The blocks are decrypted from the last one, so that the
+     * previous encrypted block is still available to be xored with the decrypted block.
+     */
+    private static void decryptSector(byte[] buf, int offset, int sector, Object key) {
+        int blockSize = Twofish_Algorithm.blockSize();
+        for (int pos = offset + BYTES_PER_SECTOR - blockSize; pos > offset; pos -= blockSize) {
+            Twofish_Algorithm.blockDecrypt(buf, pos, buf, pos, key);
+            for (int j = 0; j < blockSize; j++) {
+                buf[pos + j] ^= buf[pos - blockSize + j];
+            }
+        }
+        Twofish_Algorithm.blockDecrypt(buf, offset, buf, offset, key);
+        xorIV(buf, offset, sector);
+    }
+
+    /**
+     * plain: the initial vector is the 32-bit little-endian version of the
+     * sector number, padded with zeros if necessary.
+     */
+    private static void xorIV(byte[] buf, int offset, int sector) {
+        buf[offset] ^= (byte)(sector & 0xff);
+        buf[offset + 1] ^= (byte)(sector >> 8 & 0xff);
+        buf[offset + 2] ^= (byte)(sector >> 16 & 0xff);
+        buf[offset + 3] ^= (byte)(sector >>> 24);
+    }
+
+    /**
+     * Returns the executor used to process sectors in parallel, or null if there is a single
+     * processor.
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null && THREAD_COUNT > 1) {
+            sExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "EncryptedBlockFile");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
     public EncryptedBlockFileChannel getEncryptedFileChannel() {
         return mEBFC;
     }
@@ -345,18 +375,19 @@ public class EncryptedBlockFile extends RandomAccessFile {
      */
     @Override
     public void setLength(long newLength) throws IOException {
-        int numsectors = (int)newLength/BYTES_PER_SECTOR;
         if ( newLength % BYTES_PER_SECTOR != 0 ) {
             throw new IOException("Invalid file size!");
         }
         super.setLength(newLength);
         // write encrypted empty sectors into the block storage
-        byte[] byteBuf = new byte[BYTES_PER_SECTOR];
-        ByteBuffer buf = ByteBuffer.wrap(byteBuf);
-        for ( int i = 0; i < numsectors; i++ ) {
-            buf.rewind();
-            mEBFC.write(buf);
-        }        
+        ByteBuffer buf = ByteBuffer.allocate(BATCH_SECTORS * BYTES_PER_SECTOR);
+        long position = 0;
+        while (position < newLength) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), newLength - position));
+            position += mEBFC.write(buf, position);
+        }
+        mEBFC.position(position);
     }
 
     /**
@@ -364,6 +395,16 @@ public class EncryptedBlockFile extends RandomAccessFile {
      */
     public final static int BYTES_PER_SECTOR = 512;
 
+    /** The maximum number of sectors read or written at once. */
+    private final static int BATCH_SECTORS = 512;
+
+    /** The minimum number of sectors for which encryption is split between threads. */
+    private final static int PARALLEL_MIN_SECTORS = 64;
+
+    private final static int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService sExecutor;
+
     private final Object mKey;
     private final EncryptedBlockFileChannel mEBFC;
 
@@ -35,6 +35,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
@@ -42,8 +43,17 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class Main {
 
@@ -85,16 +95,195 @@ public class Main {
     static byte[] sFishKey;
 
     private interface FileProcessor {
-        void processFile(File f);
+        void processFile(InputEntry f);
 
-        void processDirectory(File f);
+        void processDirectory(InputEntry f);
 
 		/**
 		 * @param dir
 		 */
-		void endDirectory(File dir);
+		void endDirectory(InputEntry dir);
     }
 
+    /**
+     * A file or directory of the input directory. The input is scanned once, and the same
+     * entries are used to compute the size of the filesystem and to build it, so the files
+     * are always processed in the same order.
+     */
+    static class InputEntry {
+        final File mFile;
+        /** The length of a file, 0 for a directory. */
+        final long mLength;
+        /** The children of a directory, null for a file. */
+        final InputEntry[] mChildren;
+
+        InputEntry(File file, long length, InputEntry[] children) {
+            mFile = file;
+            mLength = length;
+            mChildren = children;
+        }
+    }
+
+    /**
+     * Reads the content of the input files with several threads, ahead of the thread
+     * writing them into the filesystem. Contents are returned in the order of the files
+     * given to the constructor, which is the order in which they are written, so the
+     * filesystem is identical to one built by reading the files sequentially.
+     * <p/>
+     * Consecutive files are read together into one of at most {@link #MAX_BUFFERS} direct
+     * buffers of {@link #BUFFER_SIZE} bytes, which are reused once their files are written.
+     * Files larger than a buffer are not read ahead and must be streamed by the writer.
+     */
+    static class FileContentReader {
+        static final int BUFFER_SIZE = 8 * 1024 * 1024;
+        static final int MAX_BUFFERS = 8;
+
+        /** Consecutive files read into the same buffer, or a single large file. */
+        private static class Batch {
+            final int mFirst;
+            final int mCount;
+            /** The buffer holding the contents of the files, null for a large file. */
+            final ByteBuffer mBuffer;
+            /** The read of the files, returning the length of each one. */
+            Future<int[]> mRead;
+
+            Batch(int first, int count, ByteBuffer buffer) {
+                mFirst = first;
+                mCount = count;
+                mBuffer = buffer;
+            }
+        }
+
+        private final ExecutorService mExecutor;
+        private final List<InputEntry> mFiles;
+        private final LinkedList<Batch> mBatches = new LinkedList<Batch>();
+        private final LinkedList<ByteBuffer> mFreeBuffers = new LinkedList<ByteBuffer>();
+        private int mAllocatedBuffers;
+        private int mNextRead;
+        /** The batch of the last returned content, and the position in that batch. */
+        private Batch mCurrent;
+        private int[] mCurrentLengths;
+        private int mCurrentIndex;
+        private int mCurrentOffset;
+
+        FileContentReader(List<InputEntry> files, int numThreads) {
+            mFiles = files;
+            mExecutor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "jobb reader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        /**
+         * Returns the content of the next file, or null if it is too large to be read ahead.
+         * The content is only valid until the next call.
+         */
+        ByteBuffer next() throws IOException {
+            if (mCurrent != null && mCurrentIndex == mCurrent.mCount) {
+                // all the files of the batch are written, its buffer can be reused.
+                if (mCurrent.mBuffer != null) {
+                    mFreeBuffers.add(mCurrent.mBuffer);
+                }
+                mCurrent = null;
+            }
+            if (mCurrent == null) {
+                startReads();
+                mCurrent = mBatches.removeFirst();
+                mCurrentLengths = mCurrent.mRead != null ? waitFor(mCurrent.mRead) : null;
+                mCurrentIndex = 0;
+                mCurrentOffset = 0;
+            }
+            if (mCurrent.mBuffer == null) {
+                mCurrentIndex++;
+                return null;
+            }
+            int length = mCurrentLengths[mCurrentIndex++];
+            ByteBuffer content = mCurrent.mBuffer.duplicate();
+            content.limit(mCurrentOffset + length);
+            content.position(mCurrentOffset);
+            mCurrentOffset += length;
+            return content.slice();
+        }
+
+        void shutdown() {
+            mExecutor.shutdownNow();
+        }
+
+        private void startReads() {
+            while (mNextRead < mFiles.size()) {
+                if (mFiles.get(mNextRead).mLength > BUFFER_SIZE) {
+                    mBatches.add(new Batch(mNextRead++, 1, null));
+                    continue;
+                }
+                ByteBuffer buffer = mFreeBuffers.poll();
+                if (buffer == null) {
+                    if (mAllocatedBuffers == MAX_BUFFERS) {
+                        break;
+                    }
+                    buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                    mAllocatedBuffers++;
+                }
+                int first = mNextRead;
+                long size = 0;
+                while (mNextRead < mFiles.size()
+                        && size + mFiles.get(mNextRead).mLength <= BUFFER_SIZE) {
+                    size += mFiles.get(mNextRead++).mLength;
+                }
+                final Batch batch = new Batch(first, mNextRead - first, buffer);
+                batch.mRead = mExecutor.submit(new Callable<int[]>() {
+                    @Override
+                    public int[] call() throws IOException {
+                        return readFiles(batch);
+                    }
+                });
+                mBatches.add(batch);
+            }
+        }
+
+        private int[] readFiles(Batch batch) throws IOException {
+            int[] lengths = new int[batch.mCount];
+            ByteBuffer buf = batch.mBuffer;
+            buf.clear();
+            for (int i = 0; i < batch.mCount; i++) {
+                InputEntry entry = mFiles.get(batch.mFirst + i);
+                int start = buf.position();
+                buf.limit(start + (int) entry.mLength);
+                FileInputStream fis = new FileInputStream(entry.mFile);
+                try {
+                    FileChannel channel = fis.getChannel();
+                    while (buf.hasRemaining() && channel.read(buf) >= 0) {
+                        // keep reading.
+                    }
+                } finally {
+                    fis.close();
+                }
+                lengths[i] = buf.position() - start;
+            }
+            return lengths;
+        }
+
+        private static int[] waitFor(Future<int[]> read) throws IOException {
+            try {
+                return read.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /** The size of the writes into the filesystem files. */
+    private static final int WRITE_BUFFER_SIZE = 1024 * 512;
+
     static ByteBuffer sTempBuf = ByteBuffer.allocate(1024*1024);
     
     static public void dumpDirectory(FsDirectory dir, int tabStop, File curDirectory) throws IOException {
@@ -374,9 +563,11 @@ public class Main {
                 System.out.println("Scanning directory: " + sDirectory);
             }
             final File f = new File(sDirectory);
+            // scan the input once, to compute the size of the filesystem and to build it.
+            final InputEntry input = scanFiles(f);
             
-            long fileSize = getTotalFileSize(f, 0);
-            fileSize = getTotalFileSize(f, BLOCK_SIZE*SuperFloppyFormatter.clusterSizeFromSize(fileSize, BLOCK_SIZE));
+            long fileSize = getTotalFileSize(input, 0);
+            fileSize = getTotalFileSize(input, BLOCK_SIZE*SuperFloppyFormatter.clusterSizeFromSize(fileSize, BLOCK_SIZE));
             if (sVerboseMode) {
                 System.out.println("Total Files: " + fileSize);
             }
@@ -413,12 +604,20 @@ public class Main {
                 // fat type set based on device size by SuperFloppyFormatter
                 final FatFileSystem fs = SuperFloppyFormatter.get(fd).format();
                 final String rootPath = f.getAbsolutePath();
+                // read the files ahead, in the order they are added.
+                final List<InputEntry> files = new ArrayList<InputEntry>();
+                collectFiles(input, files);
+                final FileContentReader reader = new FileContentReader(files,
+                        Math.max(2, Runtime.getRuntime().availableProcessors()));
+                final ByteBuffer writeBuf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
                 // add the files into the filesystem
-                processAllFiles(f, new FileProcessor() {
+                try {
+                processAllFiles(input, new FileProcessor() {
                     Stack<FatLfnDirectory> mCurDir = new Stack<FatLfnDirectory>();
 
                     @Override
-                    public void processDirectory(File curFile) {
+                    public void processDirectory(InputEntry inputEntry) {
+                        File curFile = inputEntry.mFile;
                         String directory = curFile.getAbsolutePath().substring(rootPath.length());
                         if (sVerboseMode) {
                             System.out.println("Processing Directory: " + directory + " at cluster " + fs.getFat().getLastFreeCluster());
@@ -463,14 +662,15 @@ public class Main {
                     }
 
                     @Override
-                    public void processFile(File curFile) {
+                    public void processFile(InputEntry inputEntry) {
+                        File curFile = inputEntry.mFile;
                         FatLfnDirectoryEntry entry;
                         FatLfnDirectory curDir = mCurDir.peek();
                         try {
                             if (sVerboseMode) {
                                 System.out.println("Adding file: "
                                         + curFile.getAbsolutePath().substring(rootPath.length())
-                                        + " with length " + curFile.length() + " at cluster " + fs.getFat().getLastFreeCluster());
+                                        + " with length " + inputEntry.mLength + " at cluster " + fs.getFat().getLastFreeCluster());
                             }
                             entry = curDir.addFile(curFile.getName());
                         } catch (IOException e) {
@@ -481,8 +681,24 @@ public class Main {
                         ReadableByteChannel channel = null;
                         try {
                             FatFile f = entry.getFile();
+                            ByteBuffer content = reader.next();
+                            if (content != null) {
+                                // write it like it is read below, so the result is the same.
+                                long offset = 0;
+                                while (content.hasRemaining()) {
+                                    ByteBuffer buf = content.duplicate();
+                                    buf.limit(Math.min(content.limit(),
+                                            content.position() + WRITE_BUFFER_SIZE));
+                                    int numWrite = buf.remaining();
+                                    f.write(offset, buf);
+                                    content.position(content.position() + numWrite);
+                                    offset += numWrite;
+                                }
+                                f.flush();
+                                return;
+                            }
                             channel = new FileInputStream(curFile).getChannel();
-                            ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 512);
+                            ByteBuffer buf = writeBuf;
                             int numRead = 0;
                             long offset = 0;
                             while (true) {
@@ -511,11 +727,14 @@ public class Main {
                     }
 
 					@Override
-					public void endDirectory(File dir) {
+					public void endDirectory(InputEntry dir) {
 						mCurDir.pop();
 					}
 					
                 });
+                } finally {
+                    reader.shutdown();
+                }
                 fs.flush();
                 fs.close();
                 Fat fat = fs.getFat();
@@ -539,17 +758,22 @@ public class Main {
     }
 
     public static long getTotalFileSize(File dir, final int clusterSize) {
+        return getTotalFileSize(scanFiles(dir), clusterSize);
+    }
+
+    static long getTotalFileSize(InputEntry dir, final int clusterSize) {
         final long[] mSize = new long[3];
         final boolean calculateSlop = clusterSize > 0;
         processAllFiles(dir, new FileProcessor() {
             Stack<int[]> mDirLen = new Stack<int[]>();
             
             @Override
-            public void processFile(File f) {
+            public void processFile(InputEntry entry) {
+                File f = entry.mFile;
                 if (sVerboseMode) {
                     System.out.println("Adding size for file: " + f.getAbsolutePath());
                 }
-                long length = f.length();
+                long length = entry.mLength;
                 if ( calculateSlop && length > 0 ) {
                     int[] dirLen = mDirLen.peek();
                 	long realLength = ((clusterSize-1)+length) / clusterSize*clusterSize;
@@ -564,7 +788,8 @@ public class Main {
             }
 
             @Override
-            public void processDirectory(File f) {
+            public void processDirectory(InputEntry entry) {
+                File f = entry.mFile;
             	if ( calculateSlop ) {
             		int[] dirLen = new int[1];
                     dirLen[0] += f.getName().length()/13+4;
@@ -573,7 +798,7 @@ public class Main {
             }
 
 			@Override
-			public void endDirectory(File dir) {
+			public void endDirectory(InputEntry dir) {
             	if ( calculateSlop ) {
             		int[] dirLen = mDirLen.pop();
             		long lastDirLen = dirLen[0] * 32;
@@ -591,13 +816,37 @@ public class Main {
         return mSize[0];
     }
 
-    // Process all files and directories under dir
-    public static void processAllFiles(File dir, FileProcessor fp) {
+    // Scan all files and directories under dir
+    static InputEntry scanFiles(File dir) {
         if (dir.isDirectory()) {
-            fp.processDirectory(dir);
             String[] children = dir.list();
+            InputEntry[] entries = new InputEntry[children.length];
             for (int i = 0; i < children.length; i++) {
-                processAllFiles(new File(dir, children[i]), fp);
+                entries[i] = scanFiles(new File(dir, children[i]));
+            }
+            return new InputEntry(dir, 0, entries);
+        } else {
+            return new InputEntry(dir, dir.length(), null);
+        }
+    }
+
+    // Collect the files under dir, in the order they are processed
+    static void collectFiles(InputEntry dir, List<InputEntry> files) {
+        if (dir.mChildren != null) {
+            for (InputEntry child : dir.mChildren) {
+                collectFiles(child, files);
+            }
+        } else {
+            files.add(dir);
+        }
+    }
+
+    // Process all files and directories under dir
+    static void processAllFiles(InputEntry dir, FileProcessor fp) {
+        if (dir.mChildren != null) {
+            fp.processDirectory(dir);
+            for (InputEntry child : dir.mChildren) {
+                processAllFiles(child, fp);
             }
             fp.endDirectory(dir);
         } else {
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.jobb;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the current jobb builds the same OBB image as another version of jobb, for
+ * instance the sequential builder preceding the parallel one. It is run manually:
+ * <pre>
+ * java -cp &lt;jobb and fat32lib classes&gt; com.android.jobb.BuilderComparison \
+ *     &lt;classpath of the other jobb and fat32lib&gt; [&lt;number of files&gt;]
+ * </pre>
+ * A tree of files of varied sizes (5000 by default, some of them larger than the read
+ * ahead buffers) is generated, and both versions build an image from it. fat32lib stamps
+ * the directory entries with the current time, so the images may only differ in the date
+ * and time fields of directory entries, and in the volume ID of the boot sectors. The
+ * images are not encrypted, since encryption would spread these differences to whole
+ * sectors.
+ */
+public class BuilderComparison {
+    private static final int SECTOR_SIZE = 512;
+    private static final int DIR_ENTRY_SIZE = 32;
+    private static final int LFN_ATTRIBUTES = 0x0f;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: BuilderComparison <other jobb classpath> [<files>]");
+            System.exit(2);
+        }
+        String otherClassPath = args[0];
+        int fileCount = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+        boolean same;
+        File root = createTempDir();
+        try {
+            File input = new File(root, "input");
+            generateTree(input, fileCount, new Random(fileCount));
+
+            File expected = new File(root, "other.obb");
+            File actual = new File(root, "current.obb");
+            build(otherClassPath, input, expected);
+            build(System.getProperty("java.class.path"), input, actual);
+            same = compare(expected, actual);
+        } finally {
+            delete(root);
+        }
+        System.out.println(same ? "The images are identical" : "The images differ");
+        System.exit(same ? 0 : 1);
+    }
+
+    /**
+     * Generates a tree of files in nested directories. The sizes cover empty files, sizes
+     * around a sector and files larger than the read ahead buffers.
+     */
+    private static void generateTree(File dir, int fileCount, Random random)
+            throws IOException {
+        int[] sizes = new int[] { 0, 1, 511, 512, 513, 4000, 70000, 600000 };
+        int[] largeSizes = new int[] {
+                Main.FileContentReader.BUFFER_SIZE,
+                Main.FileContentReader.BUFFER_SIZE + 1,
+                12 * 1024 * 1024 };
+        for (int i = 0; i < fileCount; i++) {
+            File parent = new File(dir, String.format("dir%02d/sub%d", i / 100, i % 7));
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Unable to create " + parent);
+            }
+            int size = random.nextInt(100) < 97
+                    ? sizes[random.nextInt(sizes.length)]
+                    : largeSizes[random.nextInt(largeSizes.length)];
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            FileOutputStream fos = new FileOutputStream(
+                    new File(parent, String.format("file%04d.bin", i)));
+            try {
+                fos.write(content);
+            } finally {
+                fos.close();
+            }
+        }
+    }
+
+    private static void build(String classPath, File input, File output)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(classPath);
+        command.add(Main.class.getName());
+        command.add("-d");
+        command.add(input.getPath());
+        command.add("-o");
+        command.add(output.getPath());
+        command.add("-pn");
+        command.add("com.example.obb");
+        command.add("-pv");
+        command.add("1");
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        InputStream in = process.getInputStream();
+        byte[] buf = new byte[4096];
+        while (in.read(buf) >= 0) {
+            // discard the output.
+        }
+        if (process.waitFor() != 0 || !output.isFile()) {
+            throw new IOException("Unable to build " + output + " with " + classPath);
+        }
+    }
+
+    /**
+     * Compares the images and prints the differences which are not expected between two
+     * builds of the same input.
+     */
+    private static boolean compare(File expected, File actual) throws IOException {
+        if (expected.length() != actual.length()) {
+            System.out.println("Lengths differ: " + expected.length() + " / "
+                    + actual.length());
+            return false;
+        }
+        InputStream expectedIn = new BufferedInputStream(new FileInputStream(expected));
+        InputStream actualIn = new BufferedInputStream(new FileInputStream(actual));
+        try {
+            byte[] expectedEntry = new byte[DIR_ENTRY_SIZE];
+            byte[] actualEntry = new byte[DIR_ENTRY_SIZE];
+            int differences = 0;
+            for (long offset = 0; offset < expected.length(); offset += DIR_ENTRY_SIZE) {
+                int length = (int) Math.min(DIR_ENTRY_SIZE, expected.length() - offset);
+                readFully(expectedIn, expectedEntry, length);
+                readFully(actualIn, actualEntry, length);
+                for (int i = 0; i < length; i++) {
+                    if (expectedEntry[i] != actualEntry[i]
+                            && !isExpectedDifference(offset, expectedEntry, actualEntry, i)
+                            && differences++ < 10) {
+                        System.out.println(String.format("Byte %1$d differs: %2$02x / %3$02x",
+                                offset + i, expectedEntry[i], actualEntry[i]));
+                    }
+                }
+            }
+            return differences == 0;
+        } finally {
+            expectedIn.close();
+            actualIn.close();
+        }
+    }
+
+    /**
+     * Returns whether the byte at the given index of two 32 byte records of the images is
+     * a time stamp of a directory entry, or part of the volume ID of a boot sector.
+     */
+    private static boolean isExpectedDifference(long offset, byte[] expected, byte[] actual,
+            int index) {
+        long position = offset + index;
+        long sectorPosition = position % SECTOR_SIZE;
+        if (position < SECTOR_SIZE || position / SECTOR_SIZE == 6) {
+            // FAT12/16 and FAT32 volume IDs; the FAT32 backup boot sector is sector 6.
+            if ((sectorPosition >= 0x27 && sectorPosition < 0x2b)
+                    || (sectorPosition >= 0x43 && sectorPosition < 0x47)) {
+                return true;
+            }
+        }
+        // a short directory entry: same name and attributes, differing in dates and times.
+        for (int i = 0; i <= 11; i++) {
+            if (expected[i] != actual[i]) {
+                return false;
+            }
+        }
+        if (expected[11] == LFN_ATTRIBUTES) {
+            return false;
+        }
+        return (index >= 13 && index <= 19) || (index >= 22 && index <= 25);
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = in.read(buf, read, length - read);
+            if (count < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            read += count;
+        }
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("jobb", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        return dir;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
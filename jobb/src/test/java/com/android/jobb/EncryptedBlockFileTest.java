@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.jobb;
+
+import static com.android.jobb.EncryptedBlockFile.BYTES_PER_SECTOR;
+
+import Twofish.Twofish_Algorithm;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+public class EncryptedBlockFileTest extends TestCase {
+    private static final int SECTORS = 2000;
+
+    private final byte[] mKey = new byte[32];
+    private final Random mRandom = new Random(42);
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRandom.nextBytes(mKey);
+        mFile = File.createTempFile("encrypted", ".obb");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Tests sectors written in batches, split between threads, are encrypted like the
+     * sectors written one by one.
+     */
+    public void testWrite() throws Exception {
+        byte[] plain = new byte[SECTORS * BYTES_PER_SECTOR];
+        EncryptedBlockFile file = new EncryptedBlockFile(mKey, mFile, "rw");
+        try {
+            file.setLength(plain.length);
+            FileChannel channel = file.getEncryptedFileChannel();
+
+            // a large aligned write, then misaligned writes within and across sectors.
+            write(channel, plain, 0, plain.length);
+            write(channel, plain, 1000, 10);
+            write(channel, plain, 3 * BYTES_PER_SECTOR + 7, 700 * BYTES_PER_SECTOR);
+            write(channel, plain, 1500 * BYTES_PER_SECTOR, BYTES_PER_SECTOR - 1);
+            write(channel, plain, plain.length - 300, 300);
+        } finally {
+            file.close();
+        }
+
+        assertTrue(Arrays.equals(encrypt(plain), readFile()));
+    }
+
+    /** Tests written sectors are decrypted back. */
+    public void testRead() throws Exception {
+        byte[] plain = new byte[SECTORS * BYTES_PER_SECTOR];
+        EncryptedBlockFile file = new EncryptedBlockFile(mKey, mFile, "rw");
+        try {
+            file.setLength(plain.length);
+            FileChannel channel = file.getEncryptedFileChannel();
+            write(channel, plain, 0, plain.length);
+
+            ByteBuffer buf = ByteBuffer.allocate(plain.length);
+            channel.read(buf, 0);
+            assertTrue(Arrays.equals(plain, buf.array()));
+
+            buf = ByteBuffer.allocate(600 * BYTES_PER_SECTOR);
+            channel.read(buf, 11);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(plain, 11, 11 + buf.capacity()),
+                    buf.array()));
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Tests a write crossing the end of the file keeps the content of the sectors before
+     * the end, and fills the new sectors with zeros.
+     */
+    public void testWritePastEnd() throws Exception {
+        int length = 10 * BYTES_PER_SECTOR;
+        byte[] plain = new byte[length + 3 * BYTES_PER_SECTOR];
+        EncryptedBlockFile file = new EncryptedBlockFile(mKey, mFile, "rw");
+        try {
+            file.setLength(length);
+            FileChannel channel = file.getEncryptedFileChannel();
+            write(channel, plain, 0, length);
+            write(channel, plain, length - 100, 2 * BYTES_PER_SECTOR);
+            write(channel, plain, length + 2 * BYTES_PER_SECTOR + 10, 20);
+        } finally {
+            file.close();
+        }
+
+        assertTrue(Arrays.equals(encrypt(plain), readFile()));
+    }
+
+    /** Writes random bytes at the given position, and records them in plain. */
+    private void write(FileChannel channel, byte[] plain, int position, int length)
+            throws Exception {
+        byte[] data = new byte[length];
+        mRandom.nextBytes(data);
+        System.arraycopy(data, 0, plain, position, length);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        assertEquals(length, channel.write(buf, position));
+        assertFalse(buf.hasRemaining());
+    }
+
+    private byte[] readFile() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] content = new byte[(int) raf.length()];
+            raf.readFully(content);
+            return content;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Encrypts each sector like EncryptedBlockFile originally did: block by block, with the
+     * allocating Twofish API, chaining each block with the previous encrypted one.
+     */
+    private byte[] encrypt(byte[] plain) throws Exception {
+        Object key = Twofish_Algorithm.makeKey(mKey);
+        int blockSize = Twofish_Algorithm.blockSize();
+        byte[] encrypted = new byte[plain.length];
+        for (int sector = 0; sector < plain.length / BYTES_PER_SECTOR; sector++) {
+            byte[] last = new byte[blockSize];
+            last[0] = (byte) (sector & 0xff);
+            last[1] = (byte) (sector >> 8 & 0xff);
+            last[2] = (byte) (sector >> 16 & 0xff);
+            last[3] = (byte) (sector >>> 24);
+            for (int pos = sector * BYTES_PER_SECTOR; pos < (sector + 1) * BYTES_PER_SECTOR;
+                    pos += blockSize) {
+                byte[] block = new byte[blockSize];
+                for (int j = 0; j < blockSize; j++) {
+                    block[j] = (byte) (plain[pos + j] ^ last[j]);
+                }
+                last = Twofish_Algorithm.blockEncrypt(block, 0, key);
+                System.arraycopy(last, 0, encrypted, pos, blockSize);
+            }
+        }
+        return encrypted;
+    }
+}
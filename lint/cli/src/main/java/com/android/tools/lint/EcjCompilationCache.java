@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.tools.lint.client.api.LintClient;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import org.eclipse.jdt.internal.compiler.ast.CompilationUnitDeclaration;
+import org.eclipse.jdt.internal.compiler.batch.FileSystem;
+import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+
+import java.nio.CharBuffer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of ECJ compilation results shared by all the {@link EcjParser} instances
+ * of a lint client.
+ * <p>
+ * In a multi-module lint run, library projects are analyzed once for each project
+ * which depends on them, and each analysis compiles the library sources again. This
+ * cache keys compilations by the contents of the source files and the class path,
+ * such that identical compilations are only performed once. Name environments are
+ * shared between all compilations with the same class path, such that the class
+ * path jars are only opened and indexed once.
+ * <p>
+ * The cache is bounded by the total size of the cached sources; the least recently
+ * used compilations which are not in use are evicted first.
+ */
+class EcjCompilationCache {
+    /**
+     * Default maximum total number of source characters of the cached
+     * compilations. The parsed and resolved ASTs take up many times the
+     * size of the sources.
+     */
+    static final long DEFAULT_MAX_SOURCE_SIZE = 4 * 1024 * 1024;
+
+    private final long mMaxSourceSize;
+
+    /** Compilations by key, in least recently used order */
+    @GuardedBy("this")
+    private final LinkedHashMap<String, Compilation> mCompilations =
+            new LinkedHashMap<String, Compilation>(16, 0.75f, true);
+
+    /** Name environments by class path */
+    @GuardedBy("this")
+    private final Map<List<String>, Environment> mEnvironments = Maps.newHashMap();
+
+    @GuardedBy("this")
+    private long mSourceSize;
+    @GuardedBy("this")
+    private int mHits;
+    @GuardedBy("this")
+    private int mMisses;
+
+    EcjCompilationCache() {
+        this(DEFAULT_MAX_SOURCE_SIZE);
+    }
+
+    @VisibleForTesting
+    EcjCompilationCache(long maxSourceSize) {
+        mMaxSourceSize = maxSourceSize;
+    }
+
+    /** The result of compiling a set of sources */
+    static class Compilation {
+        @NonNull private final Environment mEnvironment;
+        @NonNull private final Map<String, CompilationUnitDeclaration> mUnits;
+        private final long mSourceSize;
+        private boolean mCached;
+        private int mUsers;
+
+        private Compilation(@NonNull Environment environment,
+                @NonNull Map<String, CompilationUnitDeclaration> units, long sourceSize) {
+            mEnvironment = environment;
+            mUnits = units;
+            mSourceSize = sourceSize;
+        }
+
+        /**
+         * Returns the parsed compilation unit for the source file with the given path,
+         * if any
+         */
+        @Nullable
+        CompilationUnitDeclaration getUnit(@NonNull String path) {
+            return mUnits.get(path);
+        }
+
+        /** Returns the paths of the compiled source files */
+        @NonNull
+        Set<String> getPaths() {
+            return Collections.unmodifiableSet(mUnits.keySet());
+        }
+    }
+
+    /** A name environment for a given class path, and the number of compilations using it */
+    private static class Environment {
+        @NonNull private final List<String> mClassPath;
+        @NonNull private final CachingNameEnvironment mNameEnvironment;
+        private int mUsers;
+
+        private Environment(@NonNull List<String> classPath) {
+            mClassPath = classPath;
+            mNameEnvironment = new CachingNameEnvironment(new FileSystem(
+                    classPath.toArray(new String[classPath.size()]), new String[0],
+                    EcjParser.createCompilerOptions().defaultEncoding));
+        }
+    }
+
+    /**
+     * Returns the compilation result for the given sources and class path, compiling
+     * the sources if they are not already in the cache. Each call must be balanced
+     * by a call to {@link #release(Compilation)} once the caller no longer needs the
+     * compilation units or their bindings.
+     *
+     * @param sourceUnits the sources to compile
+     * @param classPath the class path to compile against
+     * @param client the client to report compiler crashes to
+     * @return the compilation result
+     */
+    @NonNull
+    synchronized Compilation acquire(
+            @NonNull List<ICompilationUnit> sourceUnits,
+            @NonNull List<String> classPath,
+            @NonNull LintClient client) {
+        String key = computeKey(sourceUnits, classPath);
+        Compilation compilation = mCompilations.get(key);
+        if (compilation != null) {
+            mHits++;
+            compilation.mUsers++;
+            return compilation;
+        }
+        mMisses++;
+
+        Environment environment = mEnvironments.get(classPath);
+        if (environment == null) {
+            List<String> copy = Collections.unmodifiableList(Lists.newArrayList(classPath));
+            environment = new Environment(copy);
+            mEnvironments.put(copy, environment);
+        }
+        environment.mUsers++;
+
+        Map<ICompilationUnit, CompilationUnitDeclaration> outputMap =
+                Maps.newHashMapWithExpectedSize(sourceUnits.size());
+        boolean success = EcjParser.compile(EcjParser.createCompilerOptions(), sourceUnits,
+                environment.mNameEnvironment, outputMap, client);
+
+        Map<String, CompilationUnitDeclaration> units =
+                Maps.newHashMapWithExpectedSize(outputMap.size());
+        long sourceSize = 0;
+        for (Map.Entry<ICompilationUnit, CompilationUnitDeclaration> entry
+                : outputMap.entrySet()) {
+            ICompilationUnit unit = entry.getKey();
+            units.put(new String(unit.getFileName()), entry.getValue());
+            sourceSize += unit.getContents().length;
+        }
+
+        compilation = new Compilation(environment, units, sourceSize);
+        compilation.mUsers = 1;
+        if (success) {
+            // Partial results from a crashed compilation are used once, but not cached
+            compilation.mCached = true;
+            mCompilations.put(key, compilation);
+            mSourceSize += sourceSize;
+            trim();
+        }
+
+        return compilation;
+    }
+
+    /**
+     * Releases a compilation previously returned by {@link #acquire}
+     *
+     * @param compilation the compilation to release
+     */
+    synchronized void release(@NonNull Compilation compilation) {
+        assert compilation.mUsers > 0;
+        compilation.mUsers--;
+        if (compilation.mUsers == 0) {
+            if (!compilation.mCached) {
+                releaseEnvironment(compilation.mEnvironment);
+            } else {
+                trim();
+            }
+        }
+    }
+
+    /** Removes all unused compilations and name environments from the cache */
+    synchronized void clear() {
+        Iterator<Compilation> iterator = mCompilations.values().iterator();
+        while (iterator.hasNext()) {
+            Compilation compilation = iterator.next();
+            if (compilation.mUsers == 0) {
+                iterator.remove();
+                evicted(compilation);
+            }
+        }
+    }
+
+    /** Returns the number of compilations which were served from the cache */
+    synchronized int getHitCount() {
+        return mHits;
+    }
+
+    /** Returns the number of compilations which had to be performed */
+    synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /** Evicts the least recently used compilations until the cache is within its bounds */
+    @GuardedBy("this")
+    private void trim() {
+        Iterator<Compilation> iterator = mCompilations.values().iterator();
+        while (mSourceSize > mMaxSourceSize && iterator.hasNext()) {
+            Compilation compilation = iterator.next();
+            if (compilation.mUsers == 0) {
+                iterator.remove();
+                evicted(compilation);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void evicted(@NonNull Compilation compilation) {
+        assert compilation.mCached;
+        compilation.mCached = false;
+        mSourceSize -= compilation.mSourceSize;
+        releaseEnvironment(compilation.mEnvironment);
+    }
+
+    @GuardedBy("this")
+    private void releaseEnvironment(@NonNull Environment environment) {
+        environment.mUsers--;
+        if (environment.mUsers == 0) {
+            mEnvironments.remove(environment.mClassPath);
+            environment.mNameEnvironment.cleanup();
+        }
+    }
+
+    /** Computes a key for the given sources and class path */
+    @NonNull
+    private static String computeKey(
+            @NonNull List<ICompilationUnit> sourceUnits,
+            @NonNull List<String> classPath) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (String path : classPath) {
+            hasher.putString(path, Charsets.UTF_8);
+            hasher.putChar('\n');
+        }
+        // The compiler output does not depend on the order of the sources
+        List<ICompilationUnit> sorted = Lists.newArrayList(sourceUnits);
+        Collections.sort(sorted, new Comparator<ICompilationUnit>() {
+            @Override
+            public int compare(ICompilationUnit unit1, ICompilationUnit unit2) {
+                return new String(unit1.getFileName()).compareTo(
+                        new String(unit2.getFileName()));
+            }
+        });
+        for (ICompilationUnit unit : sorted) {
+            hasher.putString(new String(unit.getFileName()), Charsets.UTF_8);
+            hasher.putChar('\n');
+            char[] contents = unit.getContents();
+            hasher.putInt(contents.length);
+            hasher.putUnencodedChars(CharBuffer.wrap(contents));
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Name environment which remembers which packages exist and which types are
+     * missing. The compiler probes for many names which do not exist (for example
+     * when resolving simple names against each on-demand import), and these
+     * answers can be shared by all compilations against the same class path.
+     */
+    @VisibleForTesting
+    static class CachingNameEnvironment implements INameEnvironment {
+        private final INameEnvironment mDelegate;
+        private final Map<String, Boolean> mPackages = Maps.newHashMap();
+        private final Set<String> mMissingTypes = Sets.newHashSet();
+
+        CachingNameEnvironment(@NonNull INameEnvironment delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public NameEnvironmentAnswer findType(char[][] compoundTypeName) {
+            String name = getName(compoundTypeName, null);
+            if (mMissingTypes.contains(name)) {
+                return null;
+            }
+            NameEnvironmentAnswer answer = mDelegate.findType(compoundTypeName);
+            if (answer == null) {
+                mMissingTypes.add(name);
+            }
+            return answer;
+        }
+
+        @Override
+        public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName) {
+            String name = getName(packageName, typeName);
+            if (mMissingTypes.contains(name)) {
+                return null;
+            }
+            NameEnvironmentAnswer answer = mDelegate.findType(typeName, packageName);
+            if (answer == null) {
+                mMissingTypes.add(name);
+            }
+            return answer;
+        }
+
+        @Override
+        public boolean isPackage(char[][] parentPackageName, char[] packageName) {
+            String name = getName(parentPackageName, packageName);
+            Boolean isPackage = mPackages.get(name);
+            if (isPackage == null) {
+                isPackage = mDelegate.isPackage(parentPackageName, packageName);
+                mPackages.put(name, isPackage);
+            }
+            return isPackage;
+        }
+
+        @Override
+        public void cleanup() {
+            mDelegate.cleanup();
+        }
+
+        @NonNull
+        private static String getName(@Nullable char[][] prefix, @Nullable char[] name) {
+            StringBuilder sb = new StringBuilder();
+            if (prefix != null) {
+                for (char[] segment : prefix) {
+                    if (sb.length() > 0) {
+                        sb.append('/');
+                    }
+                    sb.append(segment);
+                }
+            }
+            if (name != null) {
+                if (sb.length() > 0) {
+                    sb.append('/');
+                }
+                sb.append(name);
+            }
+            return sb.toString();
+        }
+    }
+}
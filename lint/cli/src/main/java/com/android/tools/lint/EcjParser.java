@@ -31,7 +31,6 @@ import com.android.tools.lint.detector.api.Project;
 import com.android.tools.lint.detector.api.Scope;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import org.eclipse.jdt.core.compiler.CategorizedProblem;
@@ -126,14 +125,14 @@ public class EcjParser extends JavaParser {
 
     private final LintClient mClient;
     private final Project mProject;
-    private Map<File, ICompilationUnit> mSourceUnits;
-    private Map<ICompilationUnit, CompilationUnitDeclaration> mCompiled;
+    private final EcjCompilationCache mCache;
+    private EcjCompilationCache.Compilation mCompilation;
     private Parser mParser;
-    private INameEnvironment mEnvironment;
 
     public EcjParser(@NonNull LintCliClient client, @Nullable Project project) {
         mClient = client;
         mProject = project;
+        mCache = client.getCompilationCache();
         mParser = getParser();
     }
 
@@ -207,7 +206,6 @@ public class EcjParser extends JavaParser {
         }
 
         List<ICompilationUnit> sources = Lists.newArrayListWithExpectedSize(contexts.size());
-        mSourceUnits = Maps.newHashMapWithExpectedSize(sources.size());
         for (JavaContext context : contexts) {
             String contents = context.getContents();
             if (contents == null) {
@@ -217,19 +215,25 @@ public class EcjParser extends JavaParser {
             CompilationUnit unit = new CompilationUnit(contents.toCharArray(), file.getPath(),
                     UTF_8);
             sources.add(unit);
-            mSourceUnits.put(file, unit);
         }
         List<String> classPath = computeClassPath(contexts);
-        mCompiled = Maps.newHashMapWithExpectedSize(mSourceUnits.size());
+        if (mCompilation != null) {
+            mCache.release(mCompilation);
+            mCompilation = null;
+        }
         try {
-            mEnvironment = parse(createCompilerOptions(), sources, classPath, mCompiled, mClient);
+            // Compiled units are shared with other projects compiling the same
+            // sources against the same class path, such as library projects
+            // analyzed on behalf of several projects
+            mCompilation = mCache.acquire(sources, classPath, mClient);
         } catch (Throwable t) {
             mClient.log(t, "ECJ compiler crashed");
         }
 
-        if (DEBUG_DUMP_PARSE_ERRORS) {
-            for (CompilationUnitDeclaration unit : mCompiled.values()) {
-                // so maybe I don't need my map!!
+        if (DEBUG_DUMP_PARSE_ERRORS && mCompilation != null) {
+            for (String path : mCompilation.getPaths()) {
+                CompilationUnitDeclaration unit = mCompilation.getUnit(path);
+                assert unit != null;
                 CategorizedProblem[] problems = unit.compilationResult()
                         .getAllProblems();
                 if (problems != null) {
@@ -257,6 +261,25 @@ public class EcjParser extends JavaParser {
         INameEnvironment environment = new FileSystem(
                 classPath.toArray(new String[classPath.size()]), new String[0],
                 options.defaultEncoding);
+        if (!compile(options, sourceUnits, environment, outputMap, client)) {
+            environment.cleanup();
+            return null;
+        }
+
+        return environment;
+    }
+
+    /**
+     * Parse the given source units against the given name environment and store it
+     * into the given output map. Returns false if the compiler crashed, in which case
+     * the output map may be incomplete.
+     */
+    static boolean compile(
+            CompilerOptions options,
+            @NonNull List<ICompilationUnit> sourceUnits,
+            @NonNull INameEnvironment environment,
+            @NonNull Map<ICompilationUnit, CompilationUnitDeclaration> outputMap,
+            @Nullable LintClient client) {
         IErrorHandlingPolicy policy = DefaultErrorHandlingPolicies.proceedWithAllProblems();
         IProblemFactory problemFactory = new DefaultProblemFactory(Locale.getDefault());
         ICompilerRequestor requestor = new ICompilerRequestor() {
@@ -273,21 +296,18 @@ public class EcjParser extends JavaParser {
         try {
             compiler.compile(sourceUnits.toArray(new ICompilationUnit[sourceUnits.size()]));
         } catch (OutOfMemoryError e) {
-            environment.cleanup();
-
             // Since we're running out of memory, if it's all still held we could potentially
             // fail attempting to log the failure. Actively get rid of the large ECJ data
             // structure references first so minimize the chance of that
             //noinspection UnusedAssignment
             compiler = null;
             //noinspection UnusedAssignment
-            environment = null;
-            //noinspection UnusedAssignment
             requestor = null;
             //noinspection UnusedAssignment
             problemFactory = null;
             //noinspection UnusedAssignment
             policy = null;
+            outputMap.clear();
 
             String msg = "Ran out of memory analyzing .java sources with ECJ: Some lint checks "
                     + "may not be accurate (missing type information from the compiler)";
@@ -299,6 +319,7 @@ public class EcjParser extends JavaParser {
             } else {
                 System.out.println(msg);
             }
+            return false;
         } catch (Throwable t) {
             if (client != null) {
                 CompilationUnitDeclaration currentUnit = compiler.getCurrentUnit();
@@ -311,14 +332,10 @@ public class EcjParser extends JavaParser {
             } else {
                 t.printStackTrace();
             }
-
-            if (environment != null) {
-                environment.cleanup();
-                environment = null;
-            }
+            return false;
         }
 
-        return environment;
+        return true;
     }
 
     @NonNull
@@ -429,20 +446,15 @@ public class EcjParser extends JavaParser {
     private CompilationUnitDeclaration getParsedUnit(
             @NonNull JavaContext context,
             @NonNull String code) {
-        ICompilationUnit sourceUnit = null;
-        if (mSourceUnits != null && mCompiled != null) {
-            sourceUnit = mSourceUnits.get(context.file);
-            if (sourceUnit != null) {
-                CompilationUnitDeclaration unit = mCompiled.get(sourceUnit);
-                if (unit != null) {
-                    return unit;
-                }
+        if (mCompilation != null) {
+            CompilationUnitDeclaration unit = mCompilation.getUnit(context.file.getPath());
+            if (unit != null) {
+                return unit;
             }
         }
 
-        if (sourceUnit == null) {
-            sourceUnit = new CompilationUnit(code.toCharArray(), context.file.getName(), UTF_8);
-        }
+        ICompilationUnit sourceUnit = new CompilationUnit(code.toCharArray(),
+                context.file.getName(), UTF_8);
         try {
             CompilationResult compilationResult = new CompilationResult(sourceUnit, 0, 0, 0);
             return getParser().parse(sourceUnit, compilationResult);
@@ -473,20 +485,15 @@ public class EcjParser extends JavaParser {
     @Override
     public void dispose(@NonNull JavaContext context,
             @NonNull Node compilationUnit) {
-        if (mSourceUnits != null && mCompiled != null) {
-            ICompilationUnit sourceUnit = mSourceUnits.get(context.file);
-            if (sourceUnit != null) {
-                mSourceUnits.remove(context.file);
-                mCompiled.remove(sourceUnit);
-            }
-        }
+        // The compiled units are owned by the compilation cache, which releases
+        // them when they are no longer in use; see dispose()
     }
 
     @Override
     public void dispose() {
-        if (mEnvironment != null) {
-            mEnvironment.cleanup();
-            mEnvironment = null;
+        if (mCompilation != null) {
+            mCache.release(mCompilation);
+            mCompilation = null;
         }
     }
 
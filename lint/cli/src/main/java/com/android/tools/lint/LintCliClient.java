@@ -88,6 +88,7 @@ public class LintCliClient extends LintClient {
     protected final LintCliFlags mFlags;
     private Configuration mConfiguration;
     private boolean mValidatedIds;
+    private final EcjCompilationCache mCompilationCache = new EcjCompilationCache();
 
     /** Creates a CLI driver */
     public LintCliClient() {
@@ -127,7 +128,12 @@ public class LintCliClient extends LintClient {
             }
         });
 
-        mDriver.analyze(createLintRequest(files));
+        try {
+            mDriver.analyze(createLintRequest(files));
+        } finally {
+            // Close the class path jars held by the cached compilations
+            mCompilationCache.clear();
+        }
 
         Collections.sort(mWarnings);
 
@@ -156,7 +162,7 @@ public class LintCliClient extends LintClient {
     /** Creates a lint request */
     @NonNull
     protected LintRequest createLintRequest(@NonNull List<File> files) {
-        return new LintRequest(this, files);
+        return new LintRequest(this, files).setCachingResults(mFlags.isCacheResults());
     }
 
     @Override
@@ -208,6 +214,12 @@ public class LintCliClient extends LintClient {
         return new EcjParser(this, project);
     }
 
+    /** Returns the cache of ECJ compilations shared by the Java parsers of this client */
+    @NonNull
+    EcjCompilationCache getCompilationCache() {
+        return mCompilationCache;
+    }
+
     @Override
     public void report(
             @NonNull Context context,
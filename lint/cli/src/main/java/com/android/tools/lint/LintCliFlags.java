@@ -60,6 +60,7 @@ public class LintCliFlags {
 
     private File mDefaultConfiguration;
     private boolean mShowAll;
+    private boolean mCacheResults;
 
     public static final int ERRNO_SUCCESS = 0;
     public static final int ERRNO_ERRORS = 1;
@@ -180,6 +181,22 @@ public class LintCliFlags {
         mQuiet = quiet;
     }
 
+    /**
+     * Returns whether lint should cache the results of single file checks between runs,
+     * such that only files which have changed need to be checked again
+     */
+    public boolean isCacheResults() {
+        return mCacheResults;
+    }
+
+    /**
+     * Sets whether lint should cache the results of single file checks between runs,
+     * such that only files which have changed need to be checked again
+     */
+    public void setCacheResults(boolean cacheResults) {
+        mCacheResults = cacheResults;
+    }
+
     /** Returns whether lint should check all warnings, including those off by default */
     public boolean isCheckAllWarnings() {
         return mWarnAll;
@@ -87,6 +87,7 @@ public class Main {
     private static final String ARG_URL        = "--url";          //$NON-NLS-1$
     private static final String ARG_VERSION    = "--version";      //$NON-NLS-1$
     private static final String ARG_EXIT_CODE  = "--exitcode";     //$NON-NLS-1$
+    private static final String ARG_CACHE      = "--cache";        //$NON-NLS-1$
     private static final String ARG_CLASSES    = "--classpath";    //$NON-NLS-1$
     private static final String ARG_SOURCES    = "--sources";      //$NON-NLS-1$
     private static final String ARG_RESOURCES  = "--resources";    //$NON-NLS-1$
@@ -278,6 +279,8 @@ public class Main {
                 mFlags.setShowSourceLines(false);
             } else if (arg.equals(ARG_EXIT_CODE)) {
                 mFlags.setSetExitCode(true);
+            } else if (arg.equals(ARG_CACHE)) {
+                mFlags.setCacheResults(true);
             } else if (arg.equals(ARG_VERSION)) {
                 printVersion(client);
                 System.exit(ERRNO_SUCCESS);
@@ -977,6 +980,8 @@ public class Main {
             ARG_CONFIG + " <filename>", "Use the given configuration file to " +
                     "determine whether issues are enabled or disabled. If a project contains " +
                     "a lint.xml file, then this config file will be used as a fallback.",
+            ARG_CACHE, "Cache the results of single file checks between runs, and only " +
+                    "check files which have changed since the previous run.",
 
 
             "", "\nOutput Options:",
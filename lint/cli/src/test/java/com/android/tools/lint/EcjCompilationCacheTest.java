@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import static com.android.SdkConstants.UTF_8;
+
+import org.eclipse.jdt.internal.compiler.batch.CompilationUnit;
+import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+
+@SuppressWarnings("javadoc")
+public class EcjCompilationCacheTest extends TestCase {
+    private static List<ICompilationUnit> createSources(String source) {
+        ICompilationUnit unit = new CompilationUnit(source.toCharArray(),
+                "src/test/pkg/Test.java", UTF_8);
+        return Collections.singletonList(unit);
+    }
+
+    public void testSharedCompilation() {
+        EcjCompilationCache cache = new EcjCompilationCache();
+        LintCliClient client = new LintCliClient();
+        List<String> classPath = Collections.emptyList();
+
+        EcjCompilationCache.Compilation first = cache.acquire(
+                createSources("package test.pkg; public class Test { }"), classPath, client);
+        assertNotNull(first.getUnit("src/test/pkg/Test.java"));
+        cache.release(first);
+
+        // Same contents, new source unit instances: served from the cache
+        EcjCompilationCache.Compilation second = cache.acquire(
+                createSources("package test.pkg; public class Test { }"), classPath, client);
+        assertSame(first, second);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        cache.release(second);
+
+        // Different contents
+        EcjCompilationCache.Compilation third = cache.acquire(
+                createSources("package test.pkg; public class Test { int x; }"), classPath,
+                client);
+        assertNotSame(first, third);
+        assertEquals(2, cache.getMissCount());
+        cache.release(third);
+        cache.clear();
+    }
+
+    public void testEviction() {
+        // Cache too small to hold any compilation once released
+        EcjCompilationCache cache = new EcjCompilationCache(0);
+        LintCliClient client = new LintCliClient();
+        List<String> classPath = Collections.emptyList();
+        String source = "package test.pkg; public class Test { }";
+
+        EcjCompilationCache.Compilation first = cache.acquire(createSources(source),
+                classPath, client);
+        // Still in use, so it is not evicted
+        EcjCompilationCache.Compilation second = cache.acquire(createSources(source),
+                classPath, client);
+        assertSame(first, second);
+        cache.release(first);
+        cache.release(second);
+
+        EcjCompilationCache.Compilation third = cache.acquire(createSources(source),
+                classPath, client);
+        assertNotSame(first, third);
+        assertEquals(2, cache.getMissCount());
+        cache.release(third);
+    }
+}
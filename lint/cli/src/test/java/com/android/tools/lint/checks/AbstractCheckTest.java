@@ -364,6 +364,7 @@ public abstract class AbstractCheckTest extends SdkTestCase {
             mDriver = new LintDriver(new CustomIssueRegistry(), this);
             configureDriver(mDriver);
             LintRequest request = new LintRequest(this, files);
+            request.setCachingResults(mFlags.isCacheResults());
             if (mIncrementalCheck != null) {
                 assertEquals(1, files.size());
                 File projectDir = files.get(0);
@@ -17,6 +17,11 @@
 package com.android.tools.lint.checks;
 
 import com.android.tools.lint.detector.api.Detector;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
 
 @SuppressWarnings("SpellCheckingInspection")
 public class SecureRandomGeneratorDetectorTest extends AbstractCheckTest {
@@ -43,6 +48,39 @@ public class SecureRandomGeneratorDetectorTest extends AbstractCheckTest {
             ));
     }
 
+    public void testCachedResults() throws Exception {
+        // The detector reports from afterCheckProject, so it must not be skipped
+        // for unchanged files when lint caches its results
+        final File cacheDir = Files.createTempDir();
+        try {
+            String expected = ""
+                    + "src/test/pkg/PrngCalls.java:13: Warning: Potentially insecure random "
+                    + "numbers on Android 4.3 and older. Read "
+                    + "https://android-developers.blogspot.com/2013/08/some-securerandom-thoughts.html"
+                    + " for more info. [TrulyRandom]\n"
+                    + "        KeyGenerator generator = KeyGenerator.getInstance(\"AES\", \"BC\");\n"
+                    + "                                              ~~~~~~~~~~~\n"
+                    + "0 errors, 1 warnings\n";
+            List<File> files = Collections.singletonList(getProjectDir(null,
+                    "bytecode/.classpath=>.classpath",
+                    "bytecode/AndroidManifest.xml=>AndroidManifest.xml",
+                    "bytecode/PrngCalls.java.txt=>src/test/pkg/PrngCalls.java",
+                    "bytecode/PrngCalls.class.data=>bin/classes/test/pkg/PrngCalls.class"));
+            for (int i = 0; i < 2; i++) {
+                TestLintClient client = new TestLintClient() {
+                    @Override
+                    public File getCacheDir(boolean create) {
+                        return cacheDir;
+                    }
+                };
+                client.getFlags().setCacheResults(true);
+                assertEquals(expected, checkLint(client, files));
+            }
+        } finally {
+            deleteFile(cacheDir);
+        }
+    }
+
     public void testWithWorkaround() throws Exception {
         assertEquals(
             "No warnings.",
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.V1_6;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.objectweb.asm.ClassWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+@SuppressWarnings("javadoc")
+public class ClassJarTest extends TestCase {
+    private static byte[] createClass(String name, String superName) {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(V1_6, ACC_PUBLIC, name, null, superName, null);
+        writer.visitField(ACC_PUBLIC, "mField", "J", null, 42L).visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    public void testReadJar() throws Exception {
+        byte[] foo = createClass("test/pkg/Foo", "java/lang/Object");
+        byte[] bar = createClass("test/pkg/Foo$Bar", "test/pkg/Foo");
+
+        File dir = Files.createTempDir();
+        File jarFile = new File(dir, "classes.jar");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jarFile));
+        try {
+            zos.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            zos.write("Manifest-Version: 1.0\n".getBytes("UTF-8"));
+            zos.closeEntry();
+
+            zos.putNextEntry(new ZipEntry("test/pkg/Foo.class"));
+            zos.write(foo);
+            zos.closeEntry();
+
+            ZipEntry stored = new ZipEntry("test/pkg/Foo$Bar.class");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(bar.length);
+            CRC32 crc = new CRC32();
+            crc.update(bar);
+            stored.setCrc(crc.getValue());
+            zos.putNextEntry(stored);
+            zos.write(bar);
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+
+        ClassJar jar = ClassJar.open(jarFile);
+        List<ClassJar.Entry> entries = jar.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("test/pkg/Foo.class", entries.get(0).name);
+        assertEquals("test/pkg/Foo$Bar.class", entries.get(1).name);
+        assertTrue(Arrays.equals(foo, jar.read(entries.get(0))));
+        assertTrue(Arrays.equals(bar, jar.read(entries.get(1))));
+
+        InputStream stream = jar.openStream(entries.get(0));
+        try {
+            assertTrue(Arrays.equals(foo, ByteStreams.toByteArray(stream)));
+        } finally {
+            stream.close();
+        }
+
+        String[] names = ClassEntry.readClassHeader(jar.openStream(entries.get(1)));
+        assertEquals("test/pkg/Foo$Bar", names[0]);
+        assertEquals("test/pkg/Foo", names[1]);
+
+        //noinspection ResultOfMethodCallIgnored
+        jarFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    public void testReadClassHeader() throws Exception {
+        String[] names = ClassEntry.readClassHeader(new ByteArrayInputStream(
+                createClass("test/pkg/Foo", "java/lang/Object")));
+        assertEquals("test/pkg/Foo", names[0]);
+        assertEquals("java/lang/Object", names[1]);
+
+        names = ClassEntry.readClassHeader(new ByteArrayInputStream(
+                createClass("java/lang/Object", null)));
+        assertEquals("java/lang/Object", names[0]);
+        assertNull(names[1]);
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.tools.lint.checks.ButtonDetector;
+import com.android.tools.lint.checks.HardcodedValuesDetector;
+import com.android.tools.lint.checks.SecureRandomGeneratorDetector;
+import com.android.tools.lint.checks.WakelockDetector;
+import com.android.tools.lint.detector.api.Context;
+import com.android.tools.lint.detector.api.DefaultPosition;
+import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Scope;
+import com.android.tools.lint.detector.api.Severity;
+import com.android.tools.lint.detector.api.TextFormat;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+@SuppressWarnings("javadoc")
+public class LintResultCacheTest extends TestCase {
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mDir);
+        super.tearDown();
+    }
+
+    private static LintResultCache createCache(File cacheFile, String key) {
+        Set<Issue> issues = Collections.singleton(IssueRegistry.LINT_ERROR);
+        Set<Class<? extends Detector>> detectors = Collections.emptySet();
+        LintResultCache cache = new LintResultCache(cacheFile, key, issues, detectors);
+        cache.load();
+        return cache;
+    }
+
+    public void testRoundTrip() throws Exception {
+        File source = new File(mDir, "layout.xml");
+        Files.write("<LinearLayout/>", source, Charsets.UTF_8);
+        File cacheFile = new File(mDir, "cache" + File.separator + "results");
+
+        LintResultCache cache = createCache(cacheFile, "env");
+        assertNull(cache.lookup(source, "res"));
+        cache.beginFile(source, "res");
+        Location location = Location.create(source, new DefaultPosition(0, 1, 1),
+                new DefaultPosition(0, 13, 13));
+        Location secondary = Location.create(source);
+        secondary.setMessage("Secondary");
+        location.setSecondary(secondary);
+        cache.record(IssueRegistry.LINT_ERROR, Severity.ERROR, location, "Message",
+                TextFormat.RAW);
+        // Not a cached issue: ignored
+        cache.record(IssueRegistry.PARSER_ERROR, Severity.ERROR, location, "Ignored",
+                TextFormat.RAW);
+        cache.endFile();
+        cache.save();
+        assertTrue(cacheFile.exists());
+
+        cache = createCache(cacheFile, "env");
+        List<LintResultCache.CachedReport> reports = cache.lookup(source, "res");
+        assertNotNull(reports);
+        assertEquals(1, reports.size());
+        LintResultCache.CachedReport report = reports.get(0);
+        assertEquals(IssueRegistry.LINT_ERROR.getId(), report.issue);
+        assertEquals(Severity.ERROR, report.severity);
+        assertEquals("Message", report.message);
+        assertEquals(TextFormat.RAW, report.format);
+        assertNotNull(report.location);
+        assertEquals(source, report.location.getFile());
+        assertEquals(1, report.location.getStart().getOffset());
+        assertEquals(13, report.location.getEnd().getColumn());
+        assertNotNull(report.location.getSecondary());
+        assertEquals("Secondary", report.location.getSecondary().getMessage());
+        assertNull(report.location.getSecondary().getStart());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    public void testLongMessage() throws Exception {
+        File source = new File(mDir, "strings.xml");
+        Files.write("<resources/>", source, Charsets.UTF_8);
+        File cacheFile = new File(mDir, "results");
+
+        // Longer than the 64K bytes DataOutputStream.writeUTF can write
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 70000) {
+            sb.append("Long message \u00e9 ");
+        }
+        String message = sb.toString();
+
+        LintResultCache cache = createCache(cacheFile, "env");
+        cache.beginFile(source, "res");
+        cache.record(IssueRegistry.LINT_ERROR, Severity.WARNING, Location.create(source),
+                message, TextFormat.RAW);
+        cache.endFile();
+        cache.save();
+
+        cache = createCache(cacheFile, "env");
+        List<LintResultCache.CachedReport> reports = cache.lookup(source, "res");
+        assertNotNull(reports);
+        assertEquals(1, reports.size());
+        assertEquals(message, reports.get(0).message);
+    }
+
+    public void testInvalidation() throws Exception {
+        File source = new File(mDir, "Test.java");
+        Files.write("class Test {}", source, Charsets.UTF_8);
+        File cacheFile = new File(mDir, "results");
+
+        LintResultCache cache = createCache(cacheFile, "env");
+        cache.beginFile(source, "key1");
+        cache.endFile();
+        cache.save();
+
+        // Different dependency key
+        cache = createCache(cacheFile, "env");
+        assertTrue(cache.isCached(source, "key1"));
+        assertFalse(cache.isCached(source, "key2"));
+
+        // Different environment
+        cache = createCache(cacheFile, "env2");
+        assertFalse(cache.isCached(source, "key1"));
+
+        // Different contents
+        Files.write("class Test { }", source, Charsets.UTF_8);
+        cache = createCache(cacheFile, "env");
+        assertFalse(cache.isCached(source, "key1"));
+    }
+
+    public void testFileLocal() {
+        assertTrue(LintResultCache.isFileLocal(Scope.RESOURCE_FILE_SCOPE));
+        assertTrue(LintResultCache.isFileLocal(Scope.JAVA_FILE_SCOPE));
+        assertTrue(LintResultCache.isFileLocal(Scope.CLASS_FILE_SCOPE));
+        assertFalse(LintResultCache.isFileLocal(Scope.ALL_RESOURCES_SCOPE));
+        assertFalse(LintResultCache.isFileLocal(EnumSet.of(Scope.ALL_CLASS_FILES)));
+        assertFalse(LintResultCache.isFileLocal(EnumSet.of(Scope.JAVA_FILE, Scope.CLASS_FILE)));
+        assertFalse(LintResultCache.isFileLocal(Scope.MANIFEST_SCOPE));
+    }
+
+    public void testFileLocalDetectors() {
+        assertTrue(LintResultCache.isFileLocal(HardcodedValuesDetector.class));
+        assertTrue(LintResultCache.isFileLocal(LocalDetector.class));
+        // Reports from afterCheckProject
+        assertFalse(LintResultCache.isFileLocal(SecureRandomGeneratorDetector.class));
+        assertFalse(LintResultCache.isFileLocal(ProjectDetector.class));
+        assertFalse(LintResultCache.isFileLocal(ProjectSubclassDetector.class));
+        // Requests another pass
+        assertFalse(LintResultCache.isFileLocal(WakelockDetector.class));
+        assertFalse(LintResultCache.isFileLocal(ButtonDetector.class));
+        assertFalse(LintResultCache.isFileLocal(RepeatingDetector.class));
+    }
+
+    public static class LocalDetector extends Detector {
+        @Override
+        public void afterCheckFile(Context context) {
+        }
+    }
+
+    public static class ProjectDetector extends Detector {
+        @Override
+        public void afterCheckProject(Context context) {
+        }
+    }
+
+    public static class ProjectSubclassDetector extends ProjectDetector {
+    }
+
+    public static class RepeatingDetector extends Detector {
+        @Override
+        public void beforeCheckFile(final Context context) {
+            new Runnable() {
+                @Override
+                public void run() {
+                    context.requestRepeat(RepeatingDetector.this, null);
+                }
+            }.run();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
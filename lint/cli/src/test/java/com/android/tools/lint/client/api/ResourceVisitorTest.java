@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.annotations.NonNull;
+import com.android.tools.lint.LintCliXmlParser;
+import com.android.tools.lint.checks.AbstractCheckTest;
+import com.android.tools.lint.detector.api.Category;
+import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.Implementation;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.LayoutDetector;
+import com.android.tools.lint.detector.api.Scope;
+import com.android.tools.lint.detector.api.Severity;
+import com.android.tools.lint.detector.api.XmlContext;
+import com.google.common.collect.Lists;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+@SuppressWarnings("javadoc")
+public class ResourceVisitorTest extends AbstractCheckTest {
+    private Detector mDetector;
+    private final List<String> mParsedLayouts = Lists.newArrayList();
+
+    public void testElementScan() throws Exception {
+        mDetector = new ButtonDetector();
+        String output = lintProject(
+                "res/layout/accessibility.xml",
+                "res/layout/case.xml");
+        assertTrue(output, output.contains("accessibility.xml:3: Warning: Found Button"));
+        assertFalse(output, output.contains("case.xml"));
+
+        // case.xml has no Button, so it is never parsed into a DOM
+        assertEquals(Collections.singletonList("accessibility.xml"), mParsedLayouts);
+    }
+
+    public void testAttributeScan() throws Exception {
+        mDetector = new ImportanceDetector();
+        String output = lintProject(
+                "res/layout/accessibility.xml",
+                "res/layout/case.xml");
+        assertTrue(output, output.contains(
+                "accessibility.xml:5: Warning: Found importantForAccessibility"));
+        assertFalse(output, output.contains("case.xml"));
+
+        assertEquals(Collections.singletonList("accessibility.xml"), mParsedLayouts);
+    }
+
+    @Override
+    protected Detector getDetector() {
+        return mDetector;
+    }
+
+    @Override
+    protected List<Issue> getIssues() {
+        return Collections.singletonList(mDetector instanceof ButtonDetector
+                ? ButtonDetector.ISSUE : ImportanceDetector.ISSUE);
+    }
+
+    @Override
+    protected TestLintClient createClient() {
+        return new TestLintClient() {
+            @Override
+            public XmlParser getXmlParser() {
+                return new LintCliXmlParser() {
+                    @Override
+                    public Document parseXml(@NonNull XmlContext context) {
+                        if (context.file.getParentFile().getName().equals("layout")) {
+                            mParsedLayouts.add(context.file.getName());
+                        }
+                        return super.parseXml(context);
+                    }
+                };
+            }
+        };
+    }
+
+    public static class ButtonDetector extends LayoutDetector {
+        public static final Issue ISSUE = Issue.create(
+                "TestButton", //$NON-NLS-1$
+                "Test element scan",
+                "Reports every `Button`",
+                Category.CORRECTNESS,
+                1,
+                Severity.WARNING,
+                new Implementation(ButtonDetector.class, Scope.RESOURCE_FILE_SCOPE));
+
+        @Override
+        public Collection<String> getApplicableElements() {
+            return Collections.singletonList("Button");
+        }
+
+        @Override
+        public void visitElement(@NonNull XmlContext context, @NonNull Element element) {
+            context.report(ISSUE, element, context.getLocation(element), "Found Button");
+        }
+    }
+
+    public static class ImportanceDetector extends LayoutDetector {
+        public static final Issue ISSUE = Issue.create(
+                "TestImportance", //$NON-NLS-1$
+                "Test attribute scan",
+                "Reports every `importantForAccessibility` attribute",
+                Category.CORRECTNESS,
+                1,
+                Severity.WARNING,
+                new Implementation(ImportanceDetector.class, Scope.RESOURCE_FILE_SCOPE));
+
+        @Override
+        public Collection<String> getApplicableAttributes() {
+            return Collections.singletonList("importantForAccessibility");
+        }
+
+        @Override
+        public void visitAttribute(@NonNull XmlContext context, @NonNull Attr attribute) {
+            context.report(ISSUE, attribute, context.getLocation(attribute),
+                    "Found importantForAccessibility");
+        }
+    }
+}
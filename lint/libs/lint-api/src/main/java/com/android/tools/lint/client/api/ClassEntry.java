@@ -18,7 +18,6 @@ package com.android.tools.lint.client.api;
 
 import static com.android.SdkConstants.DOT_CLASS;
 import static com.android.SdkConstants.DOT_JAR;
-import static org.objectweb.asm.Opcodes.ASM5;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
@@ -27,12 +26,14 @@ import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
 
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
-
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -40,13 +41,30 @@ import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
-/** A class, present either as a .class file on disk, or inside a .jar file. */
+/**
+ * A class, present either as a .class file on disk, or inside a .jar file.
+ * <p>
+ * The contents of class files on disk are not kept in memory; they are read on
+ * demand via {@link #getBytes(LintClient)}. Classes inside jar files are located
+ * using the jar's central directory, and are likewise read from the jar on demand.
+ */
 @VisibleForTesting
 class ClassEntry implements Comparable<ClassEntry> {
     public final File file;
     public final File jarFile;
     public final File binDir;
-    public final byte[] bytes;
+
+    /** The class file contents, if already in memory */
+    @Nullable private final byte[] mBytes;
+    /** The jar containing this class, if it is read through {@link ClassJar} */
+    @Nullable private final ClassJar mJar;
+    @Nullable private final ClassJar.Entry mJarEntry;
+    /** The CRC-32 of the class contents, if known from the jar file, or -1 */
+    private final long mCrc;
+
+    private boolean mHeaderRead;
+    private String mName;
+    private String mSuperName;
 
     @VisibleForTesting
     ClassEntry(
@@ -54,11 +72,199 @@ class ClassEntry implements Comparable<ClassEntry> {
             @Nullable File jarFile,
             @NonNull File binDir,
             @NonNull byte[] bytes) {
+        this(file, jarFile, binDir, bytes, null, null, -1);
+    }
+
+    /** Creates a new class entry for a .class file which is read from disk on demand */
+    ClassEntry(@NonNull File file, @NonNull File binDir) {
+        this(file, null, binDir, null, null, null, -1);
+    }
+
+    private ClassEntry(
+            @NonNull File file,
+            @Nullable File jarFile,
+            @NonNull File binDir,
+            @Nullable byte[] bytes,
+            @Nullable ClassJar jar,
+            @Nullable ClassJar.Entry jarEntry,
+            long crc) {
         super();
         this.file = file;
         this.jarFile = jarFile;
         this.binDir = binDir;
-        this.bytes = bytes;
+        mBytes = bytes;
+        mJar = jar;
+        mJarEntry = jarEntry;
+        mCrc = crc;
+    }
+
+    /**
+     * Returns the contents of the class file. The contents are not retained by this
+     * entry, so callers should avoid calling this repeatedly.
+     *
+     * @param client the client to use to read files
+     * @return the class file contents
+     * @throws IOException if the class cannot be read
+     */
+    @NonNull
+    public byte[] getBytes(@NonNull LintClient client) throws IOException {
+        if (mBytes != null) {
+            return mBytes;
+        } else if (mJar != null) {
+            assert mJarEntry != null;
+            return mJar.read(mJarEntry);
+        } else {
+            return client.readBytes(file);
+        }
+    }
+
+    /**
+     * Returns the CRC-32 checksum of the class contents as recorded in the jar
+     * file, or -1 if this class is not inside a jar file
+     */
+    public long getCrc() {
+        return mCrc;
+    }
+
+    /**
+     * Returns the internal name of this class (such as {@code java/lang/String}),
+     * or null if the class file could not be read
+     *
+     * @param client the client to report errors to and to use to read files
+     * @return the class name, or null
+     */
+    @Nullable
+    public String getName(@NonNull LintClient client) {
+        readHeader(client);
+        return mName;
+    }
+
+    /**
+     * Returns the internal name of the super class of this class, or null if the
+     * class has no super class (java.lang.Object) or could not be read
+     *
+     * @param client the client to report errors to and to use to read files
+     * @return the super class name, or null
+     */
+    @Nullable
+    public String getSuperName(@NonNull LintClient client) {
+        readHeader(client);
+        return mSuperName;
+    }
+
+    private void readHeader(@NonNull LintClient client) {
+        if (mHeaderRead) {
+            return;
+        }
+        mHeaderRead = true;
+
+        InputStream stream = null;
+        try {
+            if (mJar != null) {
+                assert mJarEntry != null;
+                stream = mJar.openStream(mJarEntry);
+            } else {
+                stream = new ByteArrayInputStream(getBytes(client));
+            }
+            String[] names = readClassHeader(stream);
+            mName = names[0];
+            mSuperName = names[1];
+        } catch (Throwable t) {
+            client.log(null, "Error processing %1$s: broken class file?", path());
+        } finally {
+            try {
+                Closeables.close(stream, true);
+            } catch (IOException e) {
+                // cannot happen
+            }
+        }
+    }
+
+    /**
+     * Reads the class name and super class name from the beginning of a class file,
+     * skipping through the constant pool without reading any of the fields,
+     * methods or attributes that follow it
+     *
+     * @param stream the class file stream
+     * @return an array holding the class name and the super class name (which
+     *     may be null)
+     * @throws IOException if the class file cannot be read or is invalid
+     */
+    @NonNull
+    static String[] readClassHeader(@NonNull InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1024));
+        if (in.readInt() != 0xCAFEBABE) {
+            throw new IOException("Not a class file");
+        }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+
+        int count = in.readUnsignedShort();
+        String[] strings = new String[count];
+        int[] classes = new int[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: // CONSTANT_Utf8
+                    strings[i] = in.readUTF();
+                    break;
+                case 7: // CONSTANT_Class
+                    classes[i] = in.readUnsignedShort();
+                    break;
+                case 8:  // CONSTANT_String
+                case 16: // CONSTANT_MethodType
+                case 19: // CONSTANT_Module
+                case 20: // CONSTANT_Package
+                    skip(in, 2);
+                    break;
+                case 15: // CONSTANT_MethodHandle
+                    skip(in, 3);
+                    break;
+                case 3:  // CONSTANT_Integer
+                case 4:  // CONSTANT_Float
+                case 9:  // CONSTANT_Fieldref
+                case 10: // CONSTANT_Methodref
+                case 11: // CONSTANT_InterfaceMethodref
+                case 12: // CONSTANT_NameAndType
+                case 17: // CONSTANT_Dynamic
+                case 18: // CONSTANT_InvokeDynamic
+                    skip(in, 4);
+                    break;
+                case 5: // CONSTANT_Long
+                case 6: // CONSTANT_Double
+                    skip(in, 8);
+                    i++; // Takes up two constant pool slots
+                    break;
+                default:
+                    throw new IOException("Unexpected constant pool tag " + tag);
+            }
+        }
+
+        in.readUnsignedShort(); // access flags
+        int thisClass = in.readUnsignedShort();
+        int superClass = in.readUnsignedShort();
+        String name = getClassName(strings, classes, thisClass);
+        if (name == null) {
+            throw new IOException("Invalid class name reference");
+        }
+        String superName = superClass != 0 ? getClassName(strings, classes, superClass) : null;
+        return new String[] { name, superName };
+    }
+
+    @Nullable
+    private static String getClassName(@NonNull String[] strings, @NonNull int[] classes,
+            int index) {
+        if (index <= 0 || index >= classes.length) {
+            return null;
+        }
+        int nameIndex = classes[index];
+        return nameIndex > 0 && nameIndex < strings.length ? strings[nameIndex] : null;
+    }
+
+    private static void skip(@NonNull DataInputStream in, int bytes) throws IOException {
+        if (in.skipBytes(bytes) != bytes) {
+            throw new EOFException();
+        }
     }
 
     @NonNull
@@ -151,17 +357,11 @@ class ClassEntry implements Comparable<ClassEntry> {
             for (File file : classFiles) {
                 String path = file.getPath();
                 if (file.isFile() && path.endsWith(DOT_CLASS)) {
-                    try {
-                        byte[] bytes = client.readBytes(file);
-                        for (File dir : classFolders) {
-                            if (path.startsWith(dir.getPath())) {
-                                entries.add(new ClassEntry(file, null /* jarFile*/, dir,
-                                        bytes));
-                                break;
-                            }
+                    for (File dir : classFolders) {
+                        if (path.startsWith(dir.getPath())) {
+                            entries.add(new ClassEntry(file, dir));
+                            break;
                         }
-                    } catch (IOException e) {
-                        client.log(e, null);
                     }
                 }
             }
@@ -188,40 +388,18 @@ class ClassEntry implements Comparable<ClassEntry> {
                 if (!jarFile.exists()) {
                     continue;
                 }
-                ZipInputStream zis = null;
+                ClassJar jar;
                 try {
-                    FileInputStream fis = new FileInputStream(jarFile);
-                    try {
-                        zis = new ZipInputStream(fis);
-                        ZipEntry entry = zis.getNextEntry();
-                        while (entry != null) {
-                            String name = entry.getName();
-                            if (name.endsWith(DOT_CLASS)) {
-                                try {
-                                    byte[] bytes = ByteStreams.toByteArray(zis);
-                                    if (bytes != null) {
-                                        File file = new File(entry.getName());
-                                        entries.add(new ClassEntry(file, jarFile, jarFile, bytes));
-                                    }
-                                } catch (Exception e) {
-                                    client.log(e, null);
-                                    continue;
-                                }
-                            }
-
-                            entry = zis.getNextEntry();
-                        }
-                    } finally {
-                        Closeables.close(fis, true);
-                    }
+                    jar = ClassJar.open(jarFile);
                 } catch (IOException e) {
-                    client.log(e, "Could not read jar file contents from %1$s", jarFile);
-                } finally {
-                    try {
-                        Closeables.close(zis, true);
-                    } catch (IOException e) {
-                        // cannot happen
-                    }
+                    // Not a plain zip file (e.g. zip64); read it as a stream instead
+                    addJarEntries(client, entries, jarFile);
+                    continue;
+                }
+                for (ClassJar.Entry entry : jar.getEntries()) {
+                    File file = new File(entry.name);
+                    entries.add(new ClassEntry(file, jarFile, jarFile, null, jar, entry,
+                            entry.crc & 0xFFFFFFFFL));
                 }
             } else if (classPathEntry.isDirectory()) {
                 //noinspection UnnecessaryLocalVariable
@@ -230,12 +408,7 @@ class ClassEntry implements Comparable<ClassEntry> {
                 addClassFiles(binDir, classFiles);
 
                 for (File file : classFiles) {
-                    try {
-                        byte[] bytes = client.readBytes(file);
-                        entries.add(new ClassEntry(file, null /* jarFile*/, binDir, bytes));
-                    } catch (IOException e) {
-                        client.log(e, null);
-                    }
+                    entries.add(new ClassEntry(file, binDir));
                 }
             } else {
                 client.log(null, "Ignoring class path entry %1$s", classPathEntry);
@@ -243,6 +416,52 @@ class ClassEntry implements Comparable<ClassEntry> {
         }
     }
 
+    /**
+     * Adds all the class files in the given jar file, reading the contents into
+     * memory. This is used for jar files which {@link ClassJar} cannot read.
+     */
+    private static void addJarEntries(
+            @NonNull LintClient client,
+            @NonNull List<ClassEntry> entries,
+            @NonNull File jarFile) {
+        ZipInputStream zis = null;
+        try {
+            FileInputStream fis = new FileInputStream(jarFile);
+            try {
+                zis = new ZipInputStream(fis);
+                ZipEntry entry = zis.getNextEntry();
+                while (entry != null) {
+                    String name = entry.getName();
+                    if (name.endsWith(DOT_CLASS)) {
+                        try {
+                            byte[] bytes = ByteStreams.toByteArray(zis);
+                            if (bytes != null) {
+                                File file = new File(entry.getName());
+                                entries.add(new ClassEntry(file, jarFile, jarFile, bytes,
+                                        null, null, entry.getCrc()));
+                            }
+                        } catch (Exception e) {
+                            client.log(e, null);
+                            continue;
+                        }
+                    }
+
+                    entry = zis.getNextEntry();
+                }
+            } finally {
+                Closeables.close(fis, true);
+            }
+        } catch (IOException e) {
+            client.log(e, "Could not read jar file contents from %1$s", jarFile);
+        } finally {
+            try {
+                Closeables.close(zis, true);
+            } catch (IOException e) {
+                // cannot happen
+            }
+        }
+    }
+
     /** Adds in all the .class files found recursively in the given directory */
     private static void addClassFiles(@NonNull File dir, @NonNull List<File> classFiles) {
         // Process the resource folder
@@ -274,9 +493,8 @@ class ClassEntry implements Comparable<ClassEntry> {
             @NonNull List<ClassEntry> classEntries) {
         int size = libraryEntries.size() + classEntries.size();
         Map<String, String> map = Maps.newHashMapWithExpectedSize(size);
-        SuperclassVisitor visitor = new SuperclassVisitor(map);
-        addSuperClasses(client, visitor, libraryEntries);
-        addSuperClasses(client, visitor, classEntries);
+        addSuperClasses(client, map, libraryEntries);
+        addSuperClasses(client, map, classEntries);
         return map;
     }
 
@@ -292,43 +510,21 @@ class ClassEntry implements Comparable<ClassEntry> {
             @NonNull LintClient client,
             @NonNull List<ClassEntry> entries) {
         Map<String, String> map = Maps.newHashMapWithExpectedSize(entries.size());
-        SuperclassVisitor visitor = new SuperclassVisitor(map);
-        addSuperClasses(client, visitor, entries);
+        addSuperClasses(client, map, entries);
         return map;
     }
 
     /** Adds in all the super classes found for the given class entries into the given map */
     private static void addSuperClasses(
             @NonNull LintClient client,
-            @NonNull SuperclassVisitor visitor,
+            @NonNull Map<String, String> map,
             @NonNull List<ClassEntry> entries) {
         for (ClassEntry entry : entries) {
-            try {
-                ClassReader reader = new ClassReader(entry.bytes);
-                int flags = ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG
-                        | ClassReader.SKIP_FRAMES;
-                reader.accept(visitor, flags);
-            } catch (Throwable t) {
-                client.log(null, "Error processing %1$s: broken class file?", entry.path());
-            }
-        }
-    }
-
-    /** Visitor skimming classes and initializing a map of super classes */
-    private static class SuperclassVisitor extends ClassVisitor {
-        private final Map<String, String> mMap;
-
-        public SuperclassVisitor(Map<String, String> map) {
-            super(ASM5);
-            mMap = map;
-        }
-
-        @Override
-        public void visit(int version, int access, String name, String signature, String superName,
-                String[] interfaces) {
+            String name = entry.getName(client);
+            String superName = entry.getSuperName(client);
             // Record super class in the map (but don't waste space on java.lang.Object)
-            if (superName != null && !"java/lang/Object".equals(superName)) {
-                mMap.put(name, superName);
+            if (name != null && superName != null && !"java/lang/Object".equals(superName)) {
+                map.put(name, superName);
             }
         }
     }
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import static com.android.SdkConstants.DOT_CLASS;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A read-only view of the class files in a jar file. Opening the jar reads only
+ * its central directory; the contents of individual class files are read from
+ * disk and inflated on demand. The file is not kept open (or mapped) between
+ * reads, so it can be modified or deleted while lint runs, and concurrent reads
+ * do not share any state.
+ * <p>
+ * Only the plain zip format is supported (no zip64 extensions, and no archives
+ * larger than 2GB); {@link #open(File)} throws a {@link ZipException} for those,
+ * and callers are expected to fall back to a regular stream based reader.
+ */
+class ClassJar {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_HEADER_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    @NonNull
+    private final File mFile;
+    @NonNull
+    private final List<Entry> mEntries;
+
+    /** The location of a single class file within the jar */
+    static class Entry {
+        @NonNull public final String name;
+        public final int method;
+        public final int crc;
+        public final int compressedSize;
+        public final int size;
+        public final int localHeaderOffset;
+
+        Entry(@NonNull String name, int method, int crc, int compressedSize, int size,
+                int localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private ClassJar(@NonNull File file, @NonNull List<Entry> entries) {
+        mFile = file;
+        mEntries = entries;
+    }
+
+    /**
+     * Reads the central directory of the given jar file
+     *
+     * @param file the jar file
+     * @return the corresponding jar
+     * @throws IOException if the file cannot be read, or if it uses a zip
+     *     format not supported by this reader
+     */
+    @NonNull
+    static ClassJar open(@NonNull File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new ZipException("Jar file too large: " + file);
+            }
+            return new ClassJar(file, readCentralDirectory(file, raf, (int) length));
+        } catch (EOFException e) {
+            throw new ZipException("Truncated zip file: " + file);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @NonNull
+    private static ByteBuffer readFully(@NonNull RandomAccessFile raf, int offset, int length)
+            throws IOException {
+        byte[] bytes = new byte[length];
+        raf.seek(offset);
+        raf.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    @NonNull
+    private static List<Entry> readCentralDirectory(@NonNull File file,
+            @NonNull RandomAccessFile raf, int length) throws IOException {
+        // Locate the end of central directory record, which is followed by
+        // a variable length comment
+        int tailLength = Math.min(length, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = readFully(raf, length - tailLength, tailLength);
+        int end = -1;
+        for (int i = tailLength - END_HEADER_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_HEADER_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new ZipException("Not a zip file: " + file);
+        }
+
+        int count = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+            throw new ZipException("Zip64 archives are not supported: " + file);
+        }
+        if (directoryOffset + directorySize > length) {
+            throw new ZipException("Invalid central directory in " + file);
+        }
+
+        ByteBuffer buffer = readFully(raf, (int) directoryOffset, (int) directorySize);
+        int limit = buffer.limit();
+        List<Entry> entries = new ArrayList<Entry>(count);
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            if (offset + CENTRAL_HEADER_SIZE > limit
+                    || buffer.getInt(offset) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory in " + file);
+            }
+            int method = buffer.getShort(offset + 10) & 0xFFFF;
+            int crc = buffer.getInt(offset + 16);
+            int compressedSize = buffer.getInt(offset + 20);
+            int size = buffer.getInt(offset + 24);
+            int nameLength = buffer.getShort(offset + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(offset + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(offset + 32) & 0xFFFF;
+            int localHeaderOffset = buffer.getInt(offset + 42);
+            if (offset + CENTRAL_HEADER_SIZE + nameLength > limit) {
+                throw new ZipException("Invalid central directory in " + file);
+            }
+
+            String name = readName(buffer, offset + CENTRAL_HEADER_SIZE, nameLength);
+            if (name.endsWith(DOT_CLASS)) {
+                if (compressedSize < 0 || size < 0 || localHeaderOffset < 0) {
+                    throw new ZipException("Zip64 archives are not supported: " + file);
+                }
+                entries.add(new Entry(name, method, crc, compressedSize, size,
+                        localHeaderOffset));
+            }
+
+            offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return entries;
+    }
+
+    @NonNull
+    private static String readName(@NonNull ByteBuffer buffer, int offset, int length) {
+        return new String(buffer.array(), offset, length, Charsets.UTF_8);
+    }
+
+    /** Returns the jar file */
+    @NonNull
+    File getFile() {
+        return mFile;
+    }
+
+    /** Returns the class file entries in this jar, in central directory order */
+    @NonNull
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    /**
+     * Reads the (possibly compressed) data of the given entry from disk
+     *
+     * @param entry the entry to look up
+     * @param padding the number of zero bytes to append after the data
+     * @return the data of the entry, followed by {@code padding} zero bytes
+     * @throws IOException if the local header is invalid or the data cannot be read
+     */
+    @NonNull
+    private byte[] readData(@NonNull Entry entry, int padding) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            int header = entry.localHeaderOffset;
+            ByteBuffer buffer = readFully(raf, header, LOCAL_HEADER_SIZE);
+            if (buffer.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid local header for " + entry.name + " in "
+                        + mFile);
+            }
+            int nameLength = buffer.getShort(26) & 0xFFFF;
+            int extraLength = buffer.getShort(28) & 0xFFFF;
+            long start = (long) header + LOCAL_HEADER_SIZE + nameLength + extraLength;
+            int length = entry.method == METHOD_STORED ? entry.size : entry.compressedSize;
+            byte[] data = new byte[length + padding];
+            raf.seek(start);
+            raf.readFully(data, 0, length);
+            return data;
+        } catch (EOFException e) {
+            throw new ZipException("Truncated entry " + entry.name + " in " + mFile);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the full contents of the given entry
+     *
+     * @param entry the entry to read
+     * @return the uncompressed contents
+     * @throws IOException if the entry cannot be read
+     */
+    @NonNull
+    byte[] read(@NonNull Entry entry) throws IOException {
+        if (entry.method == METHOD_STORED) {
+            return readData(entry, 0);
+        } else if (entry.method != METHOD_DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method
+                    + " for " + entry.name + " in " + mFile);
+        }
+
+        // The "nowrap" inflater needs an extra dummy byte after the input
+        byte[] input = readData(entry, 1);
+        byte[] bytes = new byte[entry.size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            int offset = 0;
+            while (offset < bytes.length) {
+                int n = inflater.inflate(bytes, offset, bytes.length - offset);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                offset += n;
+            }
+            if (offset != bytes.length) {
+                throw new ZipException("Truncated entry " + entry.name + " in " + mFile);
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupt entry " + entry.name + " in " + mFile + ": "
+                    + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return bytes;
+    }
+
+    /**
+     * Opens a stream for the contents of the given entry, inflating on demand. This
+     * is useful when only the beginning of the entry is needed.
+     *
+     * @param entry the entry to read
+     * @return a stream which must be closed by the caller
+     * @throws IOException if the entry cannot be read
+     */
+    @NonNull
+    InputStream openStream(@NonNull Entry entry) throws IOException {
+        if (entry.method == METHOD_STORED) {
+            return new ByteArrayInputStream(readData(entry, 0));
+        } else if (entry.method != METHOD_DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method
+                    + " for " + entry.name + " in " + mFile);
+        }
+        // Include the dummy byte required by the nowrap inflater
+        InputStream stream = new ByteArrayInputStream(readData(entry, 1));
+        final Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(stream, inflater) {
+            private boolean mClosed;
+
+            @Override
+            public void close() throws IOException {
+                if (!mClosed) {
+                    mClosed = true;
+                    inflater.end();
+                    super.close();
+                }
+            }
+        };
+    }
+}
@@ -602,8 +602,12 @@ public class DefaultConfiguration extends Configuration {
         writeConfig();
     }
 
-    @VisibleForTesting
     File getConfigFile() {
         return mConfigFile;
     }
+
+    @Nullable
+    Configuration getParent() {
+        return mParent;
+    }
 }
\ No newline at end of file
@@ -20,6 +20,7 @@ import static com.android.SdkConstants.ANDROID_PKG;
 import static com.android.SdkConstants.R_CLASS;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.lint.client.api.JavaParser.ResolvedClass;
 import com.android.tools.lint.client.api.JavaParser.ResolvedMethod;
 import com.android.tools.lint.client.api.JavaParser.ResolvedNode;
@@ -31,6 +32,8 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -136,17 +139,132 @@ public class JavaVisitor {
     /** Default size of lists holding detectors of the same type for a given node type */
     private static final int SAME_TYPE_COUNT = 8;
 
-    private final Map<String, List<VisitingDetector>> mMethodDetectors =
-            Maps.newHashMapWithExpectedSize(40);
-    private final Map<String, List<VisitingDetector>> mConstructorDetectors =
-            Maps.newHashMapWithExpectedSize(12);
+    /**
+     * The AST node types which detectors can register for, used to index the
+     * node type dispatch table
+     */
+    private enum NodeType {
+        ALTERNATE_CONSTRUCTOR_INVOCATION(AlternateConstructorInvocation.class),
+        ANNOTATION(Annotation.class),
+        ANNOTATION_DECLARATION(AnnotationDeclaration.class),
+        ANNOTATION_ELEMENT(AnnotationElement.class),
+        ANNOTATION_METHOD_DECLARATION(AnnotationMethodDeclaration.class),
+        ANNOTATION_VALUE_ARRAY(AnnotationValueArray.class),
+        ARRAY_ACCESS(ArrayAccess.class),
+        ARRAY_CREATION(ArrayCreation.class),
+        ARRAY_DIMENSION(ArrayDimension.class),
+        ARRAY_INITIALIZER(ArrayInitializer.class),
+        ASSERT(Assert.class),
+        BINARY_EXPRESSION(BinaryExpression.class),
+        BLOCK(Block.class),
+        BOOLEAN_LITERAL(BooleanLiteral.class),
+        BREAK(Break.class),
+        CASE(Case.class),
+        CAST(Cast.class),
+        CATCH(Catch.class),
+        CHAR_LITERAL(CharLiteral.class),
+        CLASS_DECLARATION(ClassDeclaration.class),
+        CLASS_LITERAL(ClassLiteral.class),
+        COMMENT(Comment.class),
+        COMPILATION_UNIT(CompilationUnit.class),
+        CONSTRUCTOR_DECLARATION(ConstructorDeclaration.class),
+        CONSTRUCTOR_INVOCATION(ConstructorInvocation.class),
+        CONTINUE(Continue.class),
+        DEFAULT(Default.class),
+        DO_WHILE(DoWhile.class),
+        EMPTY_DECLARATION(EmptyDeclaration.class),
+        EMPTY_STATEMENT(EmptyStatement.class),
+        ENUM_CONSTANT(EnumConstant.class),
+        ENUM_DECLARATION(EnumDeclaration.class),
+        ENUM_TYPE_BODY(EnumTypeBody.class),
+        EXPRESSION_STATEMENT(ExpressionStatement.class),
+        FLOATING_POINT_LITERAL(FloatingPointLiteral.class),
+        FOR(For.class),
+        FOR_EACH(ForEach.class),
+        IDENTIFIER(Identifier.class),
+        IF(If.class),
+        IMPORT_DECLARATION(ImportDeclaration.class),
+        INLINE_IF_EXPRESSION(InlineIfExpression.class),
+        INSTANCE_INITIALIZER(InstanceInitializer.class),
+        INSTANCE_OF(InstanceOf.class),
+        INTEGRAL_LITERAL(IntegralLiteral.class),
+        INTERFACE_DECLARATION(InterfaceDeclaration.class),
+        KEYWORD_MODIFIER(KeywordModifier.class),
+        LABELLED_STATEMENT(LabelledStatement.class),
+        METHOD_DECLARATION(MethodDeclaration.class),
+        METHOD_INVOCATION(MethodInvocation.class),
+        MODIFIERS(Modifiers.class),
+        NORMAL_TYPE_BODY(NormalTypeBody.class),
+        NULL_LITERAL(NullLiteral.class),
+        PACKAGE_DECLARATION(PackageDeclaration.class),
+        PARSE_ARTEFACT(Node.class),
+        RETURN(Return.class),
+        SELECT(Select.class),
+        STATIC_INITIALIZER(StaticInitializer.class),
+        STRING_LITERAL(StringLiteral.class),
+        SUPER(Super.class),
+        SUPER_CONSTRUCTOR_INVOCATION(SuperConstructorInvocation.class),
+        SWITCH(Switch.class),
+        SYNCHRONIZED(Synchronized.class),
+        THIS(This.class),
+        THROW(Throw.class),
+        TRY(Try.class),
+        TYPE_REFERENCE(TypeReference.class),
+        TYPE_REFERENCE_PART(TypeReferencePart.class),
+        TYPE_VARIABLE(TypeVariable.class),
+        UNARY_EXPRESSION(UnaryExpression.class),
+        VARIABLE_DECLARATION(VariableDeclaration.class),
+        VARIABLE_DEFINITION(VariableDefinition.class),
+        VARIABLE_DEFINITION_ENTRY(VariableDefinitionEntry.class),
+        VARIABLE_REFERENCE(VariableReference.class),
+        WHILE(While.class);
+
+        private final Class<? extends Node> mNodeClass;
+
+        NodeType(@NonNull Class<? extends Node> nodeClass) {
+            mNodeClass = nodeClass;
+        }
+    }
+
+    /** Map from node class to node type */
+    private static final Map<Class<? extends Node>, NodeType> NODE_TYPES;
+    static {
+        NODE_TYPES = Maps.newHashMapWithExpectedSize(NodeType.values().length);
+        for (NodeType type : NodeType.values()) {
+            NODE_TYPES.put(type.mNodeClass, type);
+        }
+    }
+
+    /**
+     * Node types whose subtrees can only contain the given node types. When no
+     * detector is registered for any of those types, the dispatcher doesn't
+     * descend into these subtrees at all.
+     */
+    private static final Map<NodeType, EnumSet<NodeType>> LEAF_SUBTREES =
+            new EnumMap<NodeType, EnumSet<NodeType>>(NodeType.class);
+    static {
+        LEAF_SUBTREES.put(NodeType.IMPORT_DECLARATION, EnumSet.of(NodeType.IDENTIFIER));
+        LEAF_SUBTREES.put(NodeType.TYPE_REFERENCE, EnumSet.of(NodeType.TYPE_REFERENCE,
+                NodeType.TYPE_REFERENCE_PART, NodeType.IDENTIFIER));
+        LEAF_SUBTREES.put(NodeType.TYPE_VARIABLE, EnumSet.of(NodeType.TYPE_REFERENCE,
+                NodeType.TYPE_REFERENCE_PART, NodeType.IDENTIFIER));
+    }
+
+    private final Map<String, VisitingDetector[]> mMethodDetectors;
+    private final Map<String, VisitingDetector[]> mConstructorDetectors;
     private Set<String> mConstructorSimpleNames;
     private final List<VisitingDetector> mResourceFieldDetectors =
             new ArrayList<VisitingDetector>();
     private final List<VisitingDetector> mAllDetectors;
     private final List<VisitingDetector> mFullTreeDetectors;
-    private final Map<Class<? extends Node>, List<VisitingDetector>> mNodeTypeDetectors =
-            new HashMap<Class<? extends Node>, List<VisitingDetector>>(16);
+    /** Detectors registered for each node type, indexed by {@link NodeType#ordinal()} */
+    private final VisitingDetector[][] mNodeTypeTable =
+            new VisitingDetector[NodeType.values().length][];
+    /** Whether to skip the children of each node type, indexed by {@link NodeType#ordinal()} */
+    private final boolean[] mSkipChildren = new boolean[NodeType.values().length];
+    /** Detectors whose visitors are notified when the dispatcher leaves a node */
+    private final VisitingDetector[] mEndVisitDetectors;
+    private final boolean mHasNodeTypeDetectors;
     private final JavaParser mParser;
     private final Map<String, List<VisitingDetector>> mSuperClassDetectors =
             new HashMap<String, List<VisitingDetector>>();
@@ -155,6 +273,14 @@ public class JavaVisitor {
         mParser = parser;
         mAllDetectors = new ArrayList<VisitingDetector>(detectors.size());
         mFullTreeDetectors = new ArrayList<VisitingDetector>(detectors.size());
+        Map<NodeType, List<VisitingDetector>> nodeTypeDetectors =
+                new EnumMap<NodeType, List<VisitingDetector>>(NodeType.class);
+        Map<String, List<VisitingDetector>> methodDetectors =
+                Maps.newHashMapWithExpectedSize(40);
+        Map<String, List<VisitingDetector>> constructorDetectors =
+                Maps.newHashMapWithExpectedSize(12);
+        List<VisitingDetector> endVisitDetectors =
+                new ArrayList<VisitingDetector>(detectors.size());
 
         for (Detector detector : detectors) {
             VisitingDetector v = new VisitingDetector(detector, (JavaScanner) detector);
@@ -175,11 +301,16 @@ public class JavaVisitor {
 
             List<Class<? extends Node>> nodeTypes = detector.getApplicableNodeTypes();
             if (nodeTypes != null) {
-                for (Class<? extends Node> type : nodeTypes) {
-                    List<VisitingDetector> list = mNodeTypeDetectors.get(type);
+                for (Class<? extends Node> nodeClass : nodeTypes) {
+                    NodeType type = NODE_TYPES.get(nodeClass);
+                    if (type == null) {
+                        // Not a concrete node type: never dispatched
+                        continue;
+                    }
+                    List<VisitingDetector> list = nodeTypeDetectors.get(type);
                     if (list == null) {
                         list = new ArrayList<VisitingDetector>(SAME_TYPE_COUNT);
-                        mNodeTypeDetectors.put(type, list);
+                        nodeTypeDetectors.put(type, list);
                     }
                     list.add(v);
                 }
@@ -192,10 +323,10 @@ public class JavaVisitor {
                 assert names != XmlScanner.ALL;
 
                 for (String name : names) {
-                    List<VisitingDetector> list = mMethodDetectors.get(name);
+                    List<VisitingDetector> list = methodDetectors.get(name);
                     if (list == null) {
                         list = new ArrayList<VisitingDetector>(SAME_TYPE_COUNT);
-                        mMethodDetectors.put(name, list);
+                        methodDetectors.put(name, list);
                     }
                     list.add(v);
                 }
@@ -210,10 +341,10 @@ public class JavaVisitor {
                     mConstructorSimpleNames = Sets.newHashSet();
                 }
                 for (String type : types) {
-                    List<VisitingDetector> list = mConstructorDetectors.get(type);
+                    List<VisitingDetector> list = constructorDetectors.get(type);
                     if (list == null) {
                         list = new ArrayList<VisitingDetector>(SAME_TYPE_COUNT);
-                        mConstructorDetectors.put(type, list);
+                        constructorDetectors.put(type, list);
                         mConstructorSimpleNames.add(type.substring(type.lastIndexOf('.')+1));
                     }
                     list.add(v);
@@ -222,12 +353,59 @@ public class JavaVisitor {
 
             if (detector.appliesToResourceRefs()) {
                 mResourceFieldDetectors.add(v);
+                endVisitDetectors.add(v);
             } else if ((names == null || names.isEmpty())
                     && (nodeTypes == null || nodeTypes.isEmpty())
                     && (types == null || types.isEmpty())) {
                 mFullTreeDetectors.add(v);
+            } else {
+                endVisitDetectors.add(v);
             }
         }
+
+        // Compile the registrations into dispatch tables
+        for (Map.Entry<NodeType, List<VisitingDetector>> entry : nodeTypeDetectors.entrySet()) {
+            List<VisitingDetector> list = entry.getValue();
+            mNodeTypeTable[entry.getKey().ordinal()] =
+                    list.toArray(new VisitingDetector[list.size()]);
+        }
+        mHasNodeTypeDetectors = !nodeTypeDetectors.isEmpty();
+        for (Map.Entry<NodeType, EnumSet<NodeType>> entry : LEAF_SUBTREES.entrySet()) {
+            boolean skip = true;
+            for (NodeType type : entry.getValue()) {
+                if (nodeTypeDetectors.containsKey(type)) {
+                    skip = false;
+                    break;
+                }
+            }
+            mSkipChildren[entry.getKey().ordinal()] = skip;
+        }
+        mMethodDetectors = toArrays(methodDetectors);
+        mConstructorDetectors = toArrays(constructorDetectors);
+        mEndVisitDetectors = endVisitDetectors.toArray(
+                new VisitingDetector[endVisitDetectors.size()]);
+    }
+
+    @NonNull
+    private static Map<String, VisitingDetector[]> toArrays(
+            @NonNull Map<String, List<VisitingDetector>> map) {
+        Map<String, VisitingDetector[]> result = Maps.newHashMapWithExpectedSize(map.size());
+        for (Map.Entry<String, List<VisitingDetector>> entry : map.entrySet()) {
+            List<VisitingDetector> list = entry.getValue();
+            result.put(entry.getKey(), list.toArray(new VisitingDetector[list.size()]));
+        }
+        return result;
+    }
+
+    /** Returns the detectors registered for the given node type, or null */
+    @Nullable
+    private VisitingDetector[] getDetectors(@NonNull NodeType type) {
+        return mNodeTypeTable[type.ordinal()];
+    }
+
+    /** Returns true if the dispatcher can skip the children of the given node type */
+    private boolean isSkippingChildren(@NonNull NodeType type) {
+        return mSkipChildren[type.ordinal()];
     }
 
     void visitFile(@NonNull JavaContext context) {
@@ -261,7 +439,7 @@ public class JavaVisitor {
                     !mConstructorDetectors.isEmpty()) {
                 AstVisitor visitor = new DelegatingJavaVisitor(context);
                 compilationUnit.accept(visitor);
-            } else if (!mNodeTypeDetectors.isEmpty()) {
+            } else if (mHasNodeTypeDetectors) {
                 AstVisitor visitor = new DispatchVisitor();
                 compilationUnit.accept(visitor);
             }
@@ -408,17 +586,16 @@ public class JavaVisitor {
     private class DispatchVisitor extends ForwardingAstVisitor {
         @Override
         public void endVisit(Node node) {
-            for (VisitingDetector v : mAllDetectors) {
+            for (VisitingDetector v : mEndVisitDetectors) {
                 v.getVisitor().endVisit(node);
             }
         }
 
         @Override
         public boolean visitAlternateConstructorInvocation(AlternateConstructorInvocation node) {
-            List<VisitingDetector> list =
-                    mNodeTypeDetectors.get(AlternateConstructorInvocation.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.ALTERNATE_CONSTRUCTOR_INVOCATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitAlternateConstructorInvocation(node);
                 }
             }
@@ -427,9 +604,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitAnnotation(Annotation node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Annotation.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.ANNOTATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitAnnotation(node);
                 }
             }
@@ -438,9 +615,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitAnnotationDeclaration(AnnotationDeclaration node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(AnnotationDeclaration.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.ANNOTATION_DECLARATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitAnnotationDeclaration(node);
                 }
             }
@@ -449,9 +626,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitAnnotationElement(AnnotationElement node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(AnnotationElement.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.ANNOTATION_ELEMENT);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitAnnotationElement(node);
                 }
             }
@@ -460,10 +637,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitAnnotationMethodDeclaration(AnnotationMethodDeclaration node) {
-            List<VisitingDetector> list =
-                    mNodeTypeDetectors.get(AnnotationMethodDeclaration.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.ANNOTATION_METHOD_DECLARATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitAnnotationMethodDeclaration(node);
                 }
             }
@@ -472,9 +648,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitAnnotationValueArray(AnnotationValueArray node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(AnnotationValueArray.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.ANNOTATION_VALUE_ARRAY);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitAnnotationValueArray(node);
                 }
             }
@@ -483,9 +659,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitArrayAccess(ArrayAccess node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(ArrayAccess.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.ARRAY_ACCESS);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitArrayAccess(node);
                 }
             }
@@ -494,9 +670,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitArrayCreation(ArrayCreation node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(ArrayCreation.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.ARRAY_CREATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitArrayCreation(node);
                 }
             }
@@ -505,9 +681,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitArrayDimension(ArrayDimension node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(ArrayDimension.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.ARRAY_DIMENSION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitArrayDimension(node);
                 }
             }
@@ -516,9 +692,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitArrayInitializer(ArrayInitializer node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(ArrayInitializer.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.ARRAY_INITIALIZER);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitArrayInitializer(node);
                 }
             }
@@ -527,9 +703,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitAssert(Assert node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Assert.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.ASSERT);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitAssert(node);
                 }
             }
@@ -538,9 +714,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitBinaryExpression(BinaryExpression node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(BinaryExpression.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.BINARY_EXPRESSION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitBinaryExpression(node);
                 }
             }
@@ -549,9 +725,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitBlock(Block node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Block.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.BLOCK);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitBlock(node);
                 }
             }
@@ -560,9 +736,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitBooleanLiteral(BooleanLiteral node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(BooleanLiteral.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.BOOLEAN_LITERAL);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitBooleanLiteral(node);
                 }
             }
@@ -571,9 +747,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitBreak(Break node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Break.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.BREAK);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitBreak(node);
                 }
             }
@@ -582,9 +758,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitCase(Case node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Case.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.CASE);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitCase(node);
                 }
             }
@@ -593,9 +769,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitCast(Cast node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Cast.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.CAST);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitCast(node);
                 }
             }
@@ -604,9 +780,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitCatch(Catch node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Catch.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.CATCH);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitCatch(node);
                 }
             }
@@ -615,9 +791,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitCharLiteral(CharLiteral node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(CharLiteral.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.CHAR_LITERAL);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitCharLiteral(node);
                 }
             }
@@ -626,9 +802,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitClassDeclaration(ClassDeclaration node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(ClassDeclaration.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.CLASS_DECLARATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitClassDeclaration(node);
                 }
             }
@@ -637,9 +813,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitClassLiteral(ClassLiteral node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(ClassLiteral.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.CLASS_LITERAL);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitClassLiteral(node);
                 }
             }
@@ -648,9 +824,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitComment(Comment node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Comment.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.COMMENT);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitComment(node);
                 }
             }
@@ -659,9 +835,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitCompilationUnit(CompilationUnit node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(CompilationUnit.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.COMPILATION_UNIT);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitCompilationUnit(node);
                 }
             }
@@ -670,9 +846,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitConstructorDeclaration(ConstructorDeclaration node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(ConstructorDeclaration.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.CONSTRUCTOR_DECLARATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitConstructorDeclaration(node);
                 }
             }
@@ -681,9 +857,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitConstructorInvocation(ConstructorInvocation node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(ConstructorInvocation.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.CONSTRUCTOR_INVOCATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitConstructorInvocation(node);
                 }
             }
@@ -692,9 +868,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitContinue(Continue node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Continue.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.CONTINUE);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitContinue(node);
                 }
             }
@@ -703,9 +879,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitDefault(Default node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Default.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.DEFAULT);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitDefault(node);
                 }
             }
@@ -714,9 +890,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitDoWhile(DoWhile node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(DoWhile.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.DO_WHILE);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitDoWhile(node);
                 }
             }
@@ -725,9 +901,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitEmptyDeclaration(EmptyDeclaration node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(EmptyDeclaration.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.EMPTY_DECLARATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitEmptyDeclaration(node);
                 }
             }
@@ -736,9 +912,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitEmptyStatement(EmptyStatement node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(EmptyStatement.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.EMPTY_STATEMENT);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitEmptyStatement(node);
                 }
             }
@@ -747,9 +923,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitEnumConstant(EnumConstant node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(EnumConstant.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.ENUM_CONSTANT);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitEnumConstant(node);
                 }
             }
@@ -758,9 +934,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitEnumDeclaration(EnumDeclaration node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(EnumDeclaration.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.ENUM_DECLARATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitEnumDeclaration(node);
                 }
             }
@@ -769,9 +945,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitEnumTypeBody(EnumTypeBody node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(EnumTypeBody.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.ENUM_TYPE_BODY);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitEnumTypeBody(node);
                 }
             }
@@ -780,9 +956,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitExpressionStatement(ExpressionStatement node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(ExpressionStatement.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.EXPRESSION_STATEMENT);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitExpressionStatement(node);
                 }
             }
@@ -791,9 +967,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitFloatingPointLiteral(FloatingPointLiteral node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(FloatingPointLiteral.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.FLOATING_POINT_LITERAL);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitFloatingPointLiteral(node);
                 }
             }
@@ -802,9 +978,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitFor(For node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(For.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.FOR);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitFor(node);
                 }
             }
@@ -813,9 +989,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitForEach(ForEach node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(ForEach.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.FOR_EACH);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitForEach(node);
                 }
             }
@@ -824,9 +1000,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitIdentifier(Identifier node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Identifier.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.IDENTIFIER);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitIdentifier(node);
                 }
             }
@@ -835,9 +1011,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitIf(If node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(If.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.IF);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitIf(node);
                 }
             }
@@ -846,20 +1022,20 @@ public class JavaVisitor {
 
         @Override
         public boolean visitImportDeclaration(ImportDeclaration node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(ImportDeclaration.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.IMPORT_DECLARATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitImportDeclaration(node);
                 }
             }
-            return false;
+            return isSkippingChildren(NodeType.IMPORT_DECLARATION);
         }
 
         @Override
         public boolean visitInlineIfExpression(InlineIfExpression node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(InlineIfExpression.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.INLINE_IF_EXPRESSION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitInlineIfExpression(node);
                 }
             }
@@ -868,9 +1044,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitInstanceInitializer(InstanceInitializer node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(InstanceInitializer.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.INSTANCE_INITIALIZER);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitInstanceInitializer(node);
                 }
             }
@@ -879,9 +1055,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitInstanceOf(InstanceOf node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(InstanceOf.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.INSTANCE_OF);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitInstanceOf(node);
                 }
             }
@@ -890,9 +1066,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitIntegralLiteral(IntegralLiteral node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(IntegralLiteral.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.INTEGRAL_LITERAL);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitIntegralLiteral(node);
                 }
             }
@@ -901,9 +1077,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitInterfaceDeclaration(InterfaceDeclaration node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(InterfaceDeclaration.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.INTERFACE_DECLARATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitInterfaceDeclaration(node);
                 }
             }
@@ -912,9 +1088,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitKeywordModifier(KeywordModifier node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(KeywordModifier.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.KEYWORD_MODIFIER);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitKeywordModifier(node);
                 }
             }
@@ -923,9 +1099,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitLabelledStatement(LabelledStatement node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(LabelledStatement.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.LABELLED_STATEMENT);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitLabelledStatement(node);
                 }
             }
@@ -934,9 +1110,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitMethodDeclaration(MethodDeclaration node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(MethodDeclaration.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.METHOD_DECLARATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitMethodDeclaration(node);
                 }
             }
@@ -945,9 +1121,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitMethodInvocation(MethodInvocation node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(MethodInvocation.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.METHOD_INVOCATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitMethodInvocation(node);
                 }
             }
@@ -956,9 +1132,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitModifiers(Modifiers node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Modifiers.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.MODIFIERS);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitModifiers(node);
                 }
             }
@@ -967,9 +1143,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitNormalTypeBody(NormalTypeBody node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(NormalTypeBody.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.NORMAL_TYPE_BODY);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitNormalTypeBody(node);
                 }
             }
@@ -978,9 +1154,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitNullLiteral(NullLiteral node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(NullLiteral.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.NULL_LITERAL);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitNullLiteral(node);
                 }
             }
@@ -989,9 +1165,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitPackageDeclaration(PackageDeclaration node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(PackageDeclaration.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.PACKAGE_DECLARATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitPackageDeclaration(node);
                 }
             }
@@ -1000,9 +1176,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitParseArtefact(Node node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Node.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.PARSE_ARTEFACT);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitParseArtefact(node);
                 }
             }
@@ -1011,9 +1187,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitReturn(Return node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Return.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.RETURN);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitReturn(node);
                 }
             }
@@ -1022,9 +1198,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitSelect(Select node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Select.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.SELECT);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitSelect(node);
                 }
             }
@@ -1033,9 +1209,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitStaticInitializer(StaticInitializer node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(StaticInitializer.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.STATIC_INITIALIZER);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitStaticInitializer(node);
                 }
             }
@@ -1044,9 +1220,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitStringLiteral(StringLiteral node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(StringLiteral.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.STRING_LITERAL);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitStringLiteral(node);
                 }
             }
@@ -1055,9 +1231,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitSuper(Super node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Super.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.SUPER);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitSuper(node);
                 }
             }
@@ -1066,9 +1242,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitSuperConstructorInvocation(SuperConstructorInvocation node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(SuperConstructorInvocation.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.SUPER_CONSTRUCTOR_INVOCATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitSuperConstructorInvocation(node);
                 }
             }
@@ -1077,9 +1253,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitSwitch(Switch node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Switch.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.SWITCH);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitSwitch(node);
                 }
             }
@@ -1088,9 +1264,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitSynchronized(Synchronized node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Synchronized.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.SYNCHRONIZED);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitSynchronized(node);
                 }
             }
@@ -1099,9 +1275,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitThis(This node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(This.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.THIS);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitThis(node);
                 }
             }
@@ -1110,9 +1286,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitThrow(Throw node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Throw.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.THROW);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitThrow(node);
                 }
             }
@@ -1121,9 +1297,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitTry(Try node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(Try.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.TRY);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitTry(node);
                 }
             }
@@ -1132,20 +1308,20 @@ public class JavaVisitor {
 
         @Override
         public boolean visitTypeReference(TypeReference node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(TypeReference.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.TYPE_REFERENCE);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitTypeReference(node);
                 }
             }
-            return false;
+            return isSkippingChildren(NodeType.TYPE_REFERENCE);
         }
 
         @Override
         public boolean visitTypeReferencePart(TypeReferencePart node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(TypeReferencePart.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.TYPE_REFERENCE_PART);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitTypeReferencePart(node);
                 }
             }
@@ -1154,20 +1330,20 @@ public class JavaVisitor {
 
         @Override
         public boolean visitTypeVariable(TypeVariable node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(TypeVariable.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.TYPE_VARIABLE);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitTypeVariable(node);
                 }
             }
-            return false;
+            return isSkippingChildren(NodeType.TYPE_VARIABLE);
         }
 
         @Override
         public boolean visitUnaryExpression(UnaryExpression node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(UnaryExpression.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.UNARY_EXPRESSION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitUnaryExpression(node);
                 }
             }
@@ -1176,9 +1352,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitVariableDeclaration(VariableDeclaration node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(VariableDeclaration.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.VARIABLE_DECLARATION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitVariableDeclaration(node);
                 }
             }
@@ -1187,9 +1363,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitVariableDefinition(VariableDefinition node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(VariableDefinition.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.VARIABLE_DEFINITION);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitVariableDefinition(node);
                 }
             }
@@ -1198,9 +1374,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitVariableDefinitionEntry(VariableDefinitionEntry node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(VariableDefinitionEntry.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.VARIABLE_DEFINITION_ENTRY);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitVariableDefinitionEntry(node);
                 }
             }
@@ -1209,9 +1385,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitVariableReference(VariableReference node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(VariableReference.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.VARIABLE_REFERENCE);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitVariableReference(node);
                 }
             }
@@ -1220,9 +1396,9 @@ public class JavaVisitor {
 
         @Override
         public boolean visitWhile(While node) {
-            List<VisitingDetector> list = mNodeTypeDetectors.get(While.class);
-            if (list != null) {
-                for (VisitingDetector v : list) {
+            VisitingDetector[] detectors = getDetectors(NodeType.WHILE);
+            if (detectors != null) {
+                for (VisitingDetector v : detectors) {
                     v.getVisitor().visitWhile(node);
                 }
             }
@@ -1230,8 +1406,6 @@ public class JavaVisitor {
         }
     }
 
-    /** Performs common AST searches for method calls and R-type-field references.
-     * Note that this is a specialized form of the {@link DispatchVisitor}. */
     private class DelegatingJavaVisitor extends DispatchVisitor {
         private final JavaContext mContext;
         private final boolean mVisitResources;
@@ -1308,9 +1482,9 @@ public class JavaVisitor {
         public boolean visitMethodInvocation(MethodInvocation node) {
             if (mVisitMethods) {
                 String methodName = node.astName().astValue();
-                List<VisitingDetector> list = mMethodDetectors.get(methodName);
-                if (list != null) {
-                    for (VisitingDetector v : list) {
+                VisitingDetector[] detectors = mMethodDetectors.get(methodName);
+                if (detectors != null) {
+                    for (VisitingDetector v : detectors) {
                         v.getJavaScanner().visitMethod(mContext, v.getVisitor(), node);
                     }
                 }
@@ -1332,9 +1506,10 @@ public class JavaVisitor {
                             if (resolved instanceof ResolvedMethod) {
                                 ResolvedMethod method = (ResolvedMethod) resolved;
                                 String type = method.getContainingClass().getSignature();
-                                List<VisitingDetector> list = mConstructorDetectors.get(type);
-                                if (list != null) {
-                                    for (VisitingDetector v : list) {
+                                VisitingDetector[] detectors =
+                                        mConstructorDetectors.get(type);
+                                if (detectors != null) {
+                                    for (VisitingDetector v : detectors) {
                                         v.getJavaScanner().visitConstructor(mContext,
                                                 v.getVisitor(), node, method);
                                     }
@@ -25,6 +25,7 @@ import static com.android.SdkConstants.DOT_JAVA;
 import static com.android.SdkConstants.FD_GRADLE_WRAPPER;
 import static com.android.SdkConstants.FN_GRADLE_WRAPPER_PROPERTIES;
 import static com.android.SdkConstants.FN_LOCAL_PROPERTIES;
+import static com.android.SdkConstants.FN_PROJECT_PROPERTIES;
 import static com.android.SdkConstants.RES_FOLDER;
 import static com.android.SdkConstants.SUPPRESS_ALL;
 import static com.android.SdkConstants.SUPPRESS_LINT;
@@ -34,6 +35,7 @@ import static java.io.File.separator;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.builder.model.Variant;
 import com.android.ide.common.res2.AbstractResourceRepository;
 import com.android.ide.common.res2.ResourceItem;
 import com.android.resources.ResourceFolderType;
@@ -55,6 +57,7 @@ import com.android.tools.lint.detector.api.Severity;
 import com.android.tools.lint.detector.api.TextFormat;
 import com.android.tools.lint.detector.api.XmlContext;
 import com.google.common.annotations.Beta;
+import com.google.common.base.Charsets;
 import com.google.common.base.Objects;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ArrayListMultimap;
@@ -62,6 +65,8 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Opcodes;
@@ -147,6 +152,7 @@ public class LintDriver {
     private boolean mAbbreviating = true;
     private boolean mParserErrors;
     private Map<Object,Object> mProperties;
+    private LintResultCache mResultCache;
 
     /**
      * Creates a new {@link LintDriver}
@@ -430,14 +436,22 @@ public class LintDriver {
                 continue;
             }
 
+            mResultCache = createResultCache(project);
             checkProject(project, main);
             if (mCanceled) {
+                mResultCache = null;
                 break;
             }
+            saveResultCache();
 
             runExtraPhases(project, main);
+
+            // The jar indices are only shared within a project
+            mJarClasses = null;
         }
 
+        mJarClasses = null;
+
         fireEvent(mCanceled ? EventType.CANCELED : EventType.COMPLETED, null);
     }
 
@@ -469,6 +483,161 @@ public class LintDriver {
         }
     }
 
+    /**
+     * Creates a result cache for the given project, if the request asked for results to
+     * be cached, and the project is not already checking just a subset of its files
+     */
+    @Nullable
+    private LintResultCache createResultCache(@NonNull Project project) {
+        if (!mRequest.isCachingResults() || project.getSubset() != null) {
+            return null;
+        }
+
+        // A detector is file local if all its enabled issues are file local, and it
+        // does not carry state across files
+        Configuration configuration = project.getConfiguration();
+        Map<Class<? extends Detector>, Boolean> localDetectors = Maps.newHashMap();
+        List<Issue> enabled = Lists.newArrayList();
+        Hasher hasher = Hashing.sha1().newHasher();
+
+        // The variant, scope and enabled issues select the cache file, such that
+        // checking another configuration does not discard the results of this one
+        Hasher configurationHasher = Hashing.sha1().newHasher();
+        Variant variant = project.getCurrentVariant();
+        if (variant != null) {
+            configurationHasher.putString(variant.getName(), Charsets.UTF_8);
+        }
+        for (Scope scope : mScope) {
+            configurationHasher.putString(scope.name(), Charsets.UTF_8);
+        }
+        Set<File> codeSources = Sets.newHashSet();
+        for (Issue issue : mRegistry.getIssues()) {
+            Severity severity = configuration.getSeverity(issue);
+            hasher.putString(issue.getId(), Charsets.UTF_8);
+            hasher.putString(severity.name(), Charsets.UTF_8);
+            if (severity == Severity.IGNORE) {
+                continue;
+            }
+            enabled.add(issue);
+            configurationHasher.putString(issue.getId(), Charsets.UTF_8);
+            Class<? extends Detector> detectorClass = mClient.replaceDetector(
+                    issue.getImplementation().getDetectorClass());
+            Boolean previous = localDetectors.get(detectorClass);
+            if (previous == null) {
+                previous = LintResultCache.isFileLocal(detectorClass);
+            }
+            boolean local = LintResultCache.isFileLocal(issue.getImplementation().getScope());
+            localDetectors.put(detectorClass, local && previous);
+
+            // Include the detector binaries in the key, such that updating lint
+            // invalidates the cache
+            try {
+                File source = new File(detectorClass.getProtectionDomain().getCodeSource()
+                        .getLocation().toURI());
+                codeSources.add(source);
+            } catch (Throwable ignore) {
+                // No code source available; rely on the issue id's and severities
+            }
+        }
+
+        Set<Class<? extends Detector>> local = Sets.newHashSet();
+        for (Map.Entry<Class<? extends Detector>, Boolean> entry : localDetectors.entrySet()) {
+            if (entry.getValue()) {
+                local.add(entry.getKey());
+            }
+        }
+        if (local.isEmpty()) {
+            return null;
+        }
+        Set<Issue> localIssues = Sets.newHashSet();
+        for (Issue issue : enabled) {
+            if (local.contains(mClient.replaceDetector(
+                    issue.getImplementation().getDetectorClass()))) {
+                localIssues.add(issue);
+            }
+        }
+
+        for (File source : codeSources) {
+            hasher.putString(source.getPath(), Charsets.UTF_8);
+            hasher.putLong(source.length());
+            hasher.putLong(source.lastModified());
+        }
+        List<Project> projects = Lists.newArrayList(project);
+        projects.addAll(project.getAllLibraries());
+        for (Project p : projects) {
+            for (File file : p.getManifestFiles()) {
+                LintResultCache.hashFile(hasher, file);
+            }
+            for (File file : p.getGradleBuildScripts()) {
+                LintResultCache.hashFile(hasher, file);
+            }
+            LintResultCache.hashFile(hasher, new File(p.getDir(), FN_PROJECT_PROPERTIES));
+            IAndroidTarget target = mClient.getCompileTarget(p);
+            if (target != null) {
+                hasher.putString(target.hashString(), Charsets.UTF_8);
+            }
+
+            // The cached results are filtered by the configuration, so include the
+            // lint.xml files; other configurations cannot be keyed
+            Configuration c = p.getConfiguration();
+            while (c != null) {
+                if (!(c instanceof DefaultConfiguration)) {
+                    return null;
+                }
+                DefaultConfiguration defaultConfiguration = (DefaultConfiguration) c;
+                LintResultCache.hashFile(hasher, defaultConfiguration.getConfigFile());
+                c = defaultConfiguration.getParent();
+            }
+        }
+
+        return LintResultCache.create(mClient, project.getDir(),
+                configurationHasher.hash().toString(), hasher.hash().toString(),
+                localIssues, local);
+    }
+
+    private void saveResultCache() {
+        if (mResultCache != null) {
+            try {
+                mResultCache.save();
+            } catch (IOException e) {
+                mClient.log(e, "Could not write lint result cache");
+            }
+            mResultCache = null;
+        }
+    }
+
+    /** Reports the given cached warnings again */
+    private void replay(@NonNull Context context,
+            @NonNull List<LintResultCache.CachedReport> reports) {
+        for (LintResultCache.CachedReport report : reports) {
+            Issue issue = mRegistry.getIssue(report.issue);
+            if (issue != null) {
+                mClient.report(context, issue, report.severity, report.location,
+                        report.message, report.format);
+            }
+        }
+    }
+
+    /**
+     * Replays the cached results for all the given contexts, provided they are all
+     * cached. Used for files that are checked against each other, such as Java
+     * sources, where all the files need to be processed together.
+     */
+    private boolean replayAll(@NonNull List<? extends Context> contexts, @NonNull String key) {
+        assert mResultCache != null;
+        for (Context context : contexts) {
+            if (!mResultCache.isCached(context.file, key)) {
+                return false;
+            }
+        }
+        for (Context context : contexts) {
+            List<LintResultCache.CachedReport> reports = mResultCache.lookup(context.file, key);
+            assert reports != null;
+            replay(context, reports);
+        }
+        return true;
+    }
+
     private void runExtraPhases(@NonNull Project project, @NonNull Project main) {
         // Did any detectors request another phase?
         if (mRepeatingDetectors != null) {
@@ -601,6 +770,8 @@ public class LintDriver {
         // Ensure that the current visitor is recomputed
         mCurrentFolderType = null;
         mCurrentVisitor = null;
+        mUncachedFolderType = null;
+        mUncachedVisitor = null;
 
         Configuration configuration = project.getConfiguration();
         mScopeDetectors = new EnumMap<Scope, List<Detector>>(Scope.class);
@@ -1210,6 +1381,9 @@ public class LintDriver {
 
     /** Check the classes in this project (and if applicable, in any library projects */
     private void checkClasses(Project project, Project main) {
+        // Class lookups are relative to the current project
+        mClassNodes = null;
+
         List<File> files = project.getSubset();
         if (files != null) {
             checkIndividualClassFiles(project, main, files);
@@ -1220,8 +1394,7 @@ public class LintDriver {
         // the parent chains (such that for example for a virtual dispatch, we can
         // also check the super classes).
 
-        List<File> libraries = project.getJavaLibraries();
-        List<ClassEntry> libraryEntries = ClassEntry.fromClassPath(mClient, libraries, true);
+        List<ClassEntry> libraryEntries = getLibraryClasses(project.getJavaLibraries());
 
         List<File> classFolders = project.getJavaClassFolders();
         List<ClassEntry> classEntries;
@@ -1247,10 +1420,58 @@ public class LintDriver {
             return;
         }
 
-        runClassDetectors(Scope.CLASS_FILE, classEntries, project, main);
+        if (mResultCache != null && mScope.contains(Scope.CLASS_FILE)
+                && !classEntries.isEmpty()) {
+            runCachedClassDetectors(classEntries, libraryEntries, project, main);
+        } else {
+            runClassDetectors(Scope.CLASS_FILE, classEntries, project, main);
+        }
         runClassDetectors(Scope.ALL_CLASS_FILES, classEntries, project, main);
     }
 
+    /**
+     * Runs the {@link Scope#CLASS_FILE} detectors, replaying the results from the
+     * result cache if none of the classes have changed, and otherwise recording them
+     */
+    private void runCachedClassDetectors(
+            @NonNull List<ClassEntry> classEntries,
+            @NonNull List<ClassEntry> libraryEntries,
+            @NonNull Project project,
+            @NonNull Project main) {
+        List<Detector> classDetectors = mScopeDetectors.get(Scope.CLASS_FILE);
+        if (classDetectors == null || classDetectors.isEmpty()) {
+            return;
+        }
+        assert mResultCache != null;
+
+        // Class checks look up super classes and outer classes, so the results
+        // are only valid as long as none of the classes have changed
+        List<Context> contexts = Lists.newArrayListWithExpectedSize(classEntries.size());
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (List<ClassEntry> list : Arrays.asList(libraryEntries, classEntries)) {
+            for (ClassEntry entry : list) {
+                hasher.putString(entry.path(), Charsets.UTF_8);
+                if (entry.jarFile == null) {
+                    String hash = mResultCache.getHash(entry.file);
+                    hasher.putString(hash != null ? hash : "", Charsets.UTF_8);
+                    contexts.add(new Context(this, project, main, entry.file));
+                } else {
+                    // Use the checksum from the jar's directory rather than
+                    // inflating the class
+                    hasher.putLong(entry.getCrc());
+                }
+            }
+        }
+        String cacheKey = hasher.hash().toString();
+
+        if (replayAll(contexts, cacheKey)) {
+            classDetectors = mResultCache.getUncachedDetectors(classDetectors);
+            cacheKey = null;
+        }
+        runClassDetectors(Scope.CLASS_FILE, classDetectors, classEntries, project, main,
+                cacheKey);
+    }
+
     private void checkIndividualClassFiles(
             @NonNull Project project,
             @Nullable Project main,
@@ -1285,90 +1506,115 @@ public class LintDriver {
     private void runClassDetectors(Scope scope, List<ClassEntry> entries,
             Project project, Project main) {
         if (mScope.contains(scope)) {
-            List<Detector> classDetectors = mScopeDetectors.get(scope);
-            if (classDetectors != null && !classDetectors.isEmpty() && !entries.isEmpty()) {
-                AsmVisitor visitor = new AsmVisitor(mClient, classDetectors);
-
-                String sourceContents = null;
-                String sourceName = "";
-                mOuterClasses = new ArrayDeque<ClassNode>();
-                ClassEntry prev = null;
-                for (ClassEntry entry : entries) {
-                    if (prev != null && prev.compareTo(entry) == 0) {
-                        // Duplicate entries for some reason: ignore
-                        continue;
-                    }
-                    prev = entry;
+            runClassDetectors(scope, mScopeDetectors.get(scope), entries, project, main, null);
+        }
+    }
 
-                    ClassReader reader;
-                    ClassNode classNode;
-                    try {
-                        reader = new ClassReader(entry.bytes);
-                        classNode = new ClassNode();
-                        reader.accept(classNode, 0 /* flags */);
-                    } catch (Throwable t) {
-                        mClient.log(null, "Error processing %1$s: broken class file?",
-                                entry.path());
-                        continue;
-                    }
+    /**
+     * Runs the given class detectors on the given class entries. If a cache key is
+     * provided, the results are recorded in the result cache.
+     */
+    private void runClassDetectors(Scope scope, @Nullable List<Detector> classDetectors,
+            List<ClassEntry> entries, Project project, Project main, @Nullable String cacheKey) {
+        if (classDetectors == null || classDetectors.isEmpty() || entries.isEmpty()) {
+            return;
+        }
 
-                    ClassNode peek;
-                    while ((peek = mOuterClasses.peek()) != null) {
-                        if (classNode.name.startsWith(peek.name)) {
-                            break;
-                        } else {
-                            mOuterClasses.pop();
-                        }
-                    }
-                    mOuterClasses.push(classNode);
+        AsmVisitor visitor = new AsmVisitor(mClient, classDetectors);
 
-                    if (isSuppressed(null, classNode)) {
-                        // Class was annotated with suppress all -- no need to look any further
-                        continue;
-                    }
+        String sourceContents = null;
+        String sourceName = "";
+        mOuterClasses = new ArrayDeque<ClassNode>();
+        ClassEntry prev = null;
+        for (ClassEntry entry : entries) {
+            if (prev != null && prev.compareTo(entry) == 0) {
+                // Duplicate entries for some reason: ignore
+                continue;
+            }
+            prev = entry;
 
-                    if (sourceContents != null) {
-                        // Attempt to reuse the source buffer if initialized
-                        // This means making sure that the source files
-                        //    foo/bar/MyClass and foo/bar/MyClass$Bar
-                        //    and foo/bar/MyClass$3 and foo/bar/MyClass$3$1 have the same prefix.
-                        String newName = classNode.name;
-                        int newRootLength = newName.indexOf('$');
-                        if (newRootLength == -1) {
-                            newRootLength = newName.length();
-                        }
-                        int oldRootLength = sourceName.indexOf('$');
-                        if (oldRootLength == -1) {
-                            oldRootLength = sourceName.length();
-                        }
-                        if (newRootLength != oldRootLength ||
-                                !sourceName.regionMatches(0, newName, 0, newRootLength)) {
-                            sourceContents = null;
-                        }
-                    }
+            if (cacheKey != null) {
+                // Record even if the class is skipped below, such that the
+                // next run knows that no results were reported for it
+                mResultCache.endFile();
+                if (entry.jarFile == null) {
+                    mResultCache.beginFile(entry.file, cacheKey);
+                }
+            }
 
-                    ClassContext context = new ClassContext(this, project, main,
-                            entry.file, entry.jarFile, entry.binDir, entry.bytes,
-                            classNode, scope == Scope.JAVA_LIBRARIES /*fromLibrary*/,
-                            sourceContents);
+            byte[] bytes;
+            ClassReader reader;
+            ClassNode classNode;
+            try {
+                bytes = entry.getBytes(mClient);
+                reader = new ClassReader(bytes);
+                classNode = new ClassNode();
+                reader.accept(classNode, 0 /* flags */);
+            } catch (Throwable t) {
+                mClient.log(null, "Error processing %1$s: broken class file?",
+                        entry.path());
+                continue;
+            }
 
-                    try {
-                        visitor.runClassDetectors(context);
-                    } catch (Exception e) {
-                        mClient.log(e, null);
-                    }
+            ClassNode peek;
+            while ((peek = mOuterClasses.peek()) != null) {
+                if (classNode.name.startsWith(peek.name)) {
+                    break;
+                } else {
+                    mOuterClasses.pop();
+                }
+            }
+            mOuterClasses.push(classNode);
 
-                    if (mCanceled) {
-                        return;
-                    }
+            if (isSuppressed(null, classNode)) {
+                // Class was annotated with suppress all -- no need to look any further
+                continue;
+            }
 
-                    sourceContents = context.getSourceContents(false/*read*/);
-                    sourceName = classNode.name;
+            if (sourceContents != null) {
+                // Attempt to reuse the source buffer if initialized
+                // This means making sure that the source files
+                //    foo/bar/MyClass and foo/bar/MyClass$Bar
+                //    and foo/bar/MyClass$3 and foo/bar/MyClass$3$1 have the same prefix.
+                String newName = classNode.name;
+                int newRootLength = newName.indexOf('$');
+                if (newRootLength == -1) {
+                    newRootLength = newName.length();
                 }
+                int oldRootLength = sourceName.indexOf('$');
+                if (oldRootLength == -1) {
+                    oldRootLength = sourceName.length();
+                }
+                if (newRootLength != oldRootLength ||
+                        !sourceName.regionMatches(0, newName, 0, newRootLength)) {
+                    sourceContents = null;
+                }
+            }
 
-                mOuterClasses = null;
+            ClassContext context = new ClassContext(this, project, main,
+                    entry.file, entry.jarFile, entry.binDir, bytes,
+                    classNode, scope == Scope.JAVA_LIBRARIES /*fromLibrary*/,
+                    sourceContents);
+
+            try {
+                visitor.runClassDetectors(context);
+            } catch (Exception e) {
+                mClient.log(e, null);
             }
+
+            if (cacheKey != null) {
+                mResultCache.endFile();
+            }
+
+            if (mCanceled) {
+                return;
+            }
+
+            sourceContents = context.getSourceContents(false/*read*/);
+            sourceName = classNode.name;
         }
+
+        mOuterClasses = null;
     }
 
     /** Returns the outer class node of the given class node
@@ -1392,8 +1638,22 @@ public class LintDriver {
         return null;
     }
 
+    /** Maximum number of class nodes kept by {@link #findClass(ClassContext, String, int)} */
+    private static final int MAX_CACHED_CLASS_NODES = 100;
+
     /**
-     * Returns the {@link ClassNode} corresponding to the given type, if possible, or null
+     * Recently looked up class nodes, keyed by class name and reader flags, in
+     * least recently used order. Populated by
+     * {@link #findClass(ClassContext, String, int)} and cleared for each project.
+     */
+    private Map<String, ClassNode> mClassNodes;
+
+    /** Index of the classes in library jar files, from relative class file path to entry */
+    private Map<File, Map<String, ClassEntry>> mJarClasses;
+
+    /**
+     * Returns the {@link ClassNode} corresponding to the given type, if possible, or null.
+     * The returned node may be shared with other callers, so it must not be modified.
      *
      * @param type the fully qualified type, using JVM signatures (/ and $, not . as path
      *             separators)
@@ -1404,24 +1664,34 @@ public class LintDriver {
      */
     @Nullable
     public ClassNode findClass(@NonNull ClassContext context, @NonNull String type, int flags) {
-        String relative = type.replace('/', File.separatorChar) + DOT_CLASS;
-        File classFile = findClassFile(context.getProject(), relative);
-        if (classFile != null) {
-            if (classFile.getPath().endsWith(DOT_JAR)) {
-                // TODO: Handle .jar files
-                return null;
+        String key = type + ':' + flags;
+        if (mClassNodes == null) {
+            mClassNodes = new LinkedHashMap<String, ClassNode>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ClassNode> eldest) {
+                    return size() > MAX_CACHED_CLASS_NODES;
+                }
+            };
+        } else {
+            ClassNode classNode = mClassNodes.get(key);
+            if (classNode != null) {
+                return classNode;
             }
+        }
 
+        String relative = type.replace('/', File.separatorChar) + DOT_CLASS;
+        ClassEntry entry = findClassEntry(context.getProject(), relative);
+        if (entry != null) {
             try {
-                byte[] bytes = mClient.readBytes(classFile);
-                ClassReader reader = new ClassReader(bytes);
+                ClassReader reader = new ClassReader(entry.getBytes(mClient));
                 ClassNode classNode = new ClassNode();
                 reader.accept(classNode, flags);
+                mClassNodes.put(key, classNode);
 
                 return classNode;
             } catch (Throwable t) {
                 mClient.log(null, "Error processing %1$s: broken class file?",
-                        classFile.getPath());
+                        entry.path());
             }
         }
 
@@ -1429,36 +1699,80 @@ public class LintDriver {
     }
 
     @Nullable
-    private File findClassFile(@NonNull Project project, String relativePath) {
+    private ClassEntry findClassEntry(@NonNull Project project, String relativePath) {
         for (File root : mClient.getJavaClassFolders(project)) {
             File path = new File(root, relativePath);
             if (path.exists()) {
-                return path;
+                return new ClassEntry(path, root);
             }
         }
         // Search in the libraries
         for (File root : mClient.getJavaLibraries(project)) {
-            // TODO: Handle .jar files!
-            //if (root.getPath().endsWith(DOT_JAR)) {
-            //}
+            if (root.getPath().endsWith(DOT_JAR)) {
+                ClassEntry entry = getJarClasses(root).get(relativePath);
+                if (entry != null) {
+                    return entry;
+                }
+                continue;
+            }
 
             File path = new File(root, relativePath);
             if (path.exists()) {
-                return path;
+                return new ClassEntry(path, root);
             }
         }
 
         // Search dependent projects
         for (Project library : project.getDirectLibraries()) {
-            File path = findClassFile(library, relativePath);
-            if (path != null) {
-                return path;
+            ClassEntry entry = findClassEntry(library, relativePath);
+            if (entry != null) {
+                return entry;
             }
         }
 
         return null;
     }
 
+    /**
+     * Returns the classes in the given library class path, sorted. Jar files are
+     * read through the same index as {@link #findClass}, so each jar is only
+     * opened once per project.
+     */
+    @NonNull
+    private List<ClassEntry> getLibraryClasses(@NonNull List<File> libraries) {
+        List<ClassEntry> entries = Lists.newArrayList();
+        List<File> folders = Lists.newArrayList();
+        for (File library : libraries) {
+            if (library.getPath().endsWith(DOT_JAR)) {
+                entries.addAll(getJarClasses(library).values());
+            } else {
+                folders.add(library);
+            }
+        }
+        entries.addAll(ClassEntry.fromClassPath(mClient, folders, false));
+        Collections.sort(entries);
+        return entries;
+    }
+
+    /** Returns the classes in the given jar file, keyed by their relative paths */
+    @NonNull
+    private Map<String, ClassEntry> getJarClasses(@NonNull File jarFile) {
+        if (mJarClasses == null) {
+            mJarClasses = Maps.newHashMap();
+        }
+        Map<String, ClassEntry> classes = mJarClasses.get(jarFile);
+        if (classes == null) {
+            List<ClassEntry> entries = ClassEntry.fromClassPath(mClient,
+                    Collections.singletonList(jarFile), false);
+            classes = Maps.newHashMapWithExpectedSize(entries.size());
+            for (ClassEntry entry : entries) {
+                classes.put(entry.file.getPath(), entry);
+            }
+            mJarClasses.put(jarFile, classes);
+        }
+        return classes;
+    }
+
     private void checkJava(
             @NonNull Project project,
             @Nullable Project main,
@@ -1478,17 +1792,37 @@ public class LintDriver {
             gatherJavaFiles(folder, sources);
         }
         if (!sources.isEmpty()) {
-            JavaVisitor visitor = new JavaVisitor(javaParser, checks);
             List<JavaContext> contexts = Lists.newArrayListWithExpectedSize(sources.size());
             for (File file : sources) {
                 JavaContext context = new JavaContext(this, project, main, file, javaParser);
                 contexts.add(context);
             }
 
+            // Sources are type resolved against each other, so cached results can
+            // only be used if none of the sources (or libraries) have changed
+            String cacheKey = null;
+            if (mResultCache != null) {
+                cacheKey = computeJavaCacheKey(project, sources);
+                if (replayAll(contexts, cacheKey)) {
+                    checks = mResultCache.getUncachedDetectors(checks);
+                    if (checks.isEmpty()) {
+                        return;
+                    }
+                    cacheKey = null;
+                }
+            }
+
+            JavaVisitor visitor = new JavaVisitor(javaParser, checks);
             visitor.prepare(contexts);
             for (JavaContext context : contexts) {
                 fireEvent(EventType.SCANNING_FILE, context);
-                visitor.visitFile(context);
+                if (cacheKey != null) {
+                    mResultCache.beginFile(context.file, cacheKey);
+                    visitor.visitFile(context);
+                    mResultCache.endFile();
+                } else {
+                    visitor.visitFile(context);
+                }
                 if (mCanceled) {
                     return;
                 }
@@ -1497,6 +1831,29 @@ public class LintDriver {
         }
     }
 
+    /**
+     * Computes the result cache dependency key for the Java sources of a project:
+     * the sources of the project and its library projects, and its jar dependencies
+     */
+    @NonNull
+    private String computeJavaCacheKey(@NonNull Project project, @NonNull List<File> sources) {
+        assert mResultCache != null;
+        List<File> files = new ArrayList<File>(sources);
+        for (Project library : project.getAllLibraries()) {
+            for (File folder : library.getJavaSourceFolders()) {
+                gatherJavaFiles(folder, files);
+            }
+        }
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putString(mResultCache.computeKey(files), Charsets.UTF_8);
+        for (File jar : project.getJavaLibraries()) {
+            hasher.putString(jar.getPath(), Charsets.UTF_8);
+            hasher.putLong(jar.length());
+            hasher.putLong(jar.lastModified());
+        }
+        return hasher.hash().toString();
+    }
+
     private void checkIndividualJavaFiles(
             @NonNull Project project,
             @Nullable Project main,
@@ -1556,6 +1913,9 @@ public class LintDriver {
     private List<ResourceXmlDetector> mCurrentXmlDetectors;
     private List<Detector> mCurrentBinaryDetectors;
     private ResourceVisitor mCurrentVisitor;
+    /** Folder type and visitor used for resource files whose results are cached */
+    private ResourceFolderType mUncachedFolderType;
+    private ResourceVisitor mUncachedVisitor;
 
     @Nullable
     private ResourceVisitor getVisitor(
@@ -1682,7 +2042,11 @@ public class LintDriver {
                     XmlContext context = new XmlContext(this, project, main, file, type,
                             visitor.getParser());
                     fireEvent(EventType.SCANNING_FILE, context);
-                    visitor.visitFile(context, file);
+                    if (mResultCache != null && !mClient.supportsProjectResources()) {
+                        visitCachedResource(context, visitor, xmlChecks);
+                    } else {
+                        visitor.visitFile(context, file);
+                    }
                 } else if (binaryChecks != null && LintUtils.isBitmapFile(file)) {
                     ResourceContext context = new ResourceContext(this, project, main, file, type);
                     fireEvent(EventType.SCANNING_FILE, context);
@@ -1695,6 +2059,45 @@ public class LintDriver {
         }
     }
 
+    /**
+     * Visits the given resource file, or if its results are cached, replays them
+     * and only runs the detectors that are not cached on the file
+     */
+    private void visitCachedResource(
+            @NonNull XmlContext context,
+            @NonNull ResourceVisitor visitor,
+            @NonNull List<ResourceXmlDetector> xmlChecks) {
+        assert mResultCache != null;
+        File file = context.file;
+        // Single file resource checks only depend on the file itself (and the project
+        // metadata, which is part of the cache's environment key)
+        String key = mResultCache.computeKey(Collections.singletonList(file));
+        List<LintResultCache.CachedReport> reports = mResultCache.lookup(file, key);
+        if (reports != null) {
+            replay(context, reports);
+            ResourceFolderType type = context.getResourceFolderType();
+            assert type != null;
+            if (type != mUncachedFolderType) {
+                mUncachedFolderType = type;
+                List<ResourceXmlDetector> uncached = Lists.newArrayList();
+                for (ResourceXmlDetector check : mResultCache.getUncachedDetectors(xmlChecks)) {
+                    if (check.appliesTo(type)) {
+                        uncached.add(check);
+                    }
+                }
+                mUncachedVisitor = uncached.isEmpty() ? null
+                        : new ResourceVisitor(visitor.getParser(), uncached, null);
+            }
+            if (mUncachedVisitor != null) {
+                mUncachedVisitor.visitFile(context, file);
+            }
+        } else {
+            mResultCache.beginFile(file, key);
+            visitor.visitFile(context, file);
+            mResultCache.endFile();
+        }
+    }
+
     /** Checks individual resources */
     private void checkIndividualResources(
             @NonNull Project project,
@@ -1829,6 +2232,10 @@ public class LintDriver {
                 return;
             }
 
+            if (mResultCache != null) {
+                mResultCache.record(issue, severity, location, message, format);
+            }
+
             mDelegate.report(context, issue, severity, location, message, format);
         }
 
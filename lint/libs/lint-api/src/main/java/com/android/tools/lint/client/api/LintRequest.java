@@ -50,6 +50,8 @@ public class LintRequest {
     @Nullable
     protected Collection<Project> mProjects;
 
+    protected boolean mCachingResults;
+
     /**
      * Creates a new {@linkplain LintRequest}, to be passed to a {@link LintDriver}
      *
@@ -135,6 +137,31 @@ public class LintRequest {
         return this;
     }
 
+    /**
+     * Returns whether lint should cache the results of single file checks under
+     * {@link LintClient#getCacheDir(boolean)}, and reuse the cached results for
+     * files that have not changed since the previous run
+     *
+     * @return true if lint should cache results between runs
+     */
+    public boolean isCachingResults() {
+        return mCachingResults;
+    }
+
+    /**
+     * Sets whether lint should cache the results of single file checks under
+     * {@link LintClient#getCacheDir(boolean)}, and reuse the cached results for
+     * files that have not changed since the previous run
+     *
+     * @param cachingResults true to cache results between runs
+     * @return this, for constructor chaining
+     */
+    @NonNull
+    public LintRequest setCachingResults(boolean cachingResults) {
+        mCachingResults = cachingResults;
+        return this;
+    }
+
     /**
      * Gets the projects for the lint requests. This is optional; if not provided lint will search
      * the {@link #getFiles()} directories and look for projects via {@link
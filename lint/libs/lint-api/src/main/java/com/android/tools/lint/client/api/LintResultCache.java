@@ -0,0 +1,664 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.tools.lint.detector.api.Context;
+import com.android.tools.lint.detector.api.DefaultPosition;
+import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Position;
+import com.android.tools.lint.detector.api.Scope;
+import com.android.tools.lint.detector.api.Severity;
+import com.android.tools.lint.detector.api.TextFormat;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent cache of the warnings reported for individual files, used by
+ * {@link LintDriver} when a {@link LintRequest} is marked as incremental.
+ * <p>
+ * Only warnings from "file local" detectors are cached: detectors whose enabled
+ * issues all have exactly one of the single file scopes {@link Scope#RESOURCE_FILE},
+ * {@link Scope#JAVA_FILE} or {@link Scope#CLASS_FILE}, and which do not carry
+ * state across files: they do not implement the project level callbacks (such as
+ * {@link Detector#afterCheckProject(Context)}) and never request another pass with
+ * {@link LintDriver#requestRepeat}. Their results for a file can therefore only
+ * depend on the file itself. When a file has not changed since the
+ * previous run, its warnings are replayed and the file local detectors are not
+ * run on it; detectors that look at a wider scope (such as
+ * {@link Scope#ALL_RESOURCE_FILES} or {@link Scope#ALL_CLASS_FILES}) are still
+ * run on every file.
+ * <p>
+ * The whole cache is invalidated when the environment key changes; this key
+ * covers the set of issues and their configured severities, the lint binaries
+ * and the project metadata files (manifests, build scripts). In addition each
+ * entry records a dependency key: Java sources are type-resolved against each
+ * other and class files are checked against their super classes, so for those
+ * files the key is computed from all the files in the project, and any change
+ * invalidates all the entries computed with the old key.
+ * <p>
+ * Warnings are recorded after they are filtered by the {@link Configuration}, so
+ * the {@code lint.xml} files are part of the environment key, and replayed warnings
+ * are never ones which were suppressed or ignored when they were recorded.
+ * <p>
+ * <b>NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.</b>
+ */
+class LintResultCache {
+    /** Name of the folder within {@link LintClient#getCacheDir(boolean)} */
+    private static final String FD_CACHE = "lint-results"; //$NON-NLS-1$
+    /** Increment whenever the format of the cache file changes */
+    private static final int FORMAT_VERSION = 2;
+    /**
+     * The {@link Detector} callbacks run once per project; detectors implementing them
+     * typically report warnings computed from several files
+     */
+    private static final String[] PROJECT_CALLBACKS = new String[] {
+            "beforeCheckProject",        //$NON-NLS-1$
+            "afterCheckProject",         //$NON-NLS-1$
+            "beforeCheckLibraryProject", //$NON-NLS-1$
+            "afterCheckLibraryProject"   //$NON-NLS-1$
+    };
+    /** The name of the methods used by detectors to request another pass */
+    private static final String REQUEST_REPEAT = "requestRepeat"; //$NON-NLS-1$
+
+    private final File mFile;
+    private final String mEnvironmentKey;
+    private final Set<Issue> mLocalIssues;
+    private final Set<Class<? extends Detector>> mLocalDetectors;
+    private final Map<String, Entry> mStored = Maps.newHashMap();
+    private final Map<String, Entry> mCurrent = Maps.newLinkedHashMap();
+    private final Map<File, String> mHashes = Maps.newHashMap();
+
+    private Entry mRecording;
+    private int mHits;
+    private int mMisses;
+
+    /** A file's content hash along with the warnings reported for it */
+    private static class Entry {
+        public final String hash;
+        public final String key;
+        public final List<CachedReport> reports;
+
+        Entry(@NonNull String hash, @NonNull String key, @NonNull List<CachedReport> reports) {
+            this.hash = hash;
+            this.key = key;
+            this.reports = reports;
+        }
+    }
+
+    /** A single warning, as reported through {@link LintClient#report} */
+    static class CachedReport {
+        @NonNull public final String issue;
+        @NonNull public final Severity severity;
+        @Nullable public final Location location;
+        @NonNull public final String message;
+        @NonNull public final TextFormat format;
+
+        CachedReport(
+                @NonNull String issue,
+                @NonNull Severity severity,
+                @Nullable Location location,
+                @NonNull String message,
+                @NonNull TextFormat format) {
+            this.issue = issue;
+            this.severity = severity;
+            this.location = location;
+            this.message = message;
+            this.format = format;
+        }
+    }
+
+    @VisibleForTesting
+    LintResultCache(
+            @NonNull File file,
+            @NonNull String environmentKey,
+            @NonNull Set<Issue> localIssues,
+            @NonNull Set<Class<? extends Detector>> localDetectors) {
+        mFile = file;
+        mEnvironmentKey = environmentKey;
+        mLocalIssues = localIssues;
+        mLocalDetectors = localDetectors;
+    }
+
+    /**
+     * Creates a result cache for the given project, and loads any previously stored results
+     *
+     * @param client the client to look up the cache directory from
+     * @param project the (root) project directory being checked
+     * @param configurationKey the key identifying the configuration the project is
+     *                         checked with, such as the variant and the enabled issues.
+     *                         Each configuration has its own cache file, so checking
+     *                         different configurations does not discard the results
+     *                         cached for the others
+     * @param environmentKey the key identifying everything other than the individual files
+     *                       which affects the lint results
+     * @param localIssues the set of issues whose results are cached
+     * @param localDetectors the detectors reporting the cached issues
+     * @return a new cache, or null if no cache directory is available
+     */
+    @Nullable
+    static LintResultCache create(
+            @NonNull LintClient client,
+            @NonNull File project,
+            @NonNull String configurationKey,
+            @NonNull String environmentKey,
+            @NonNull Set<Issue> localIssues,
+            @NonNull Set<Class<? extends Detector>> localDetectors) {
+        File cacheDir = client.getCacheDir(true);
+        if (cacheDir == null) {
+            return null;
+        }
+        String name = Hashing.sha1().newHasher()
+                .putString(project.getAbsolutePath(), Charsets.UTF_8)
+                .putByte((byte) 0)
+                .putString(configurationKey, Charsets.UTF_8)
+                .hash().toString();
+        File file = new File(new File(cacheDir, FD_CACHE), name);
+        LintResultCache cache = new LintResultCache(file, environmentKey, localIssues,
+                localDetectors);
+        cache.load();
+        return cache;
+    }
+
+    /**
+     * Returns true if all the results of the given detector are stored in the cache,
+     * such that it does not need to be run on files with cached results
+     *
+     * @param detector the detector to check
+     * @return true if the detector is file local
+     */
+    boolean isCached(@NonNull Detector detector) {
+        return mLocalDetectors.contains(detector.getClass());
+    }
+
+    /**
+     * Returns the subset of the given detectors which are not cached, and
+     * therefore must be run even on files with cached results
+     *
+     * @param detectors the full list of detectors
+     * @return the uncached detectors, possibly empty
+     */
+    @NonNull
+    <T extends Detector> List<T> getUncachedDetectors(@NonNull List<T> detectors) {
+        List<T> uncached = Lists.newArrayListWithExpectedSize(detectors.size());
+        for (T detector : detectors) {
+            if (!isCached(detector)) {
+                uncached.add(detector);
+            }
+        }
+        return uncached;
+    }
+
+    /**
+     * Returns true if the given issue implementation only looks at a single file
+     * at a time, such that results for it can be cached per file
+     *
+     * @param scope the scope of the issue implementation
+     * @return true if the scope is a single file scope
+     */
+    static boolean isFileLocal(@NonNull EnumSet<Scope> scope) {
+        return scope.size() == 1 && (scope.contains(Scope.RESOURCE_FILE)
+                || scope.contains(Scope.JAVA_FILE)
+                || scope.contains(Scope.CLASS_FILE));
+    }
+
+    /**
+     * Returns true if the given detector only reports warnings about the file being
+     * checked, based on that file alone. Detectors implementing the project level
+     * callbacks or requesting another pass (from the detector class or from one of its
+     * nested classes, such as visitors) usually collect state across files and report
+     * it later, so their warnings cannot be replayed per file.
+     *
+     * @param detectorClass the detector class to check
+     * @return true if the detector does not carry state across files
+     */
+    static boolean isFileLocal(@NonNull Class<? extends Detector> detectorClass) {
+        for (Class<?> cls = detectorClass; cls != null && cls != Detector.class;
+                cls = cls.getSuperclass()) {
+            for (String callback : PROJECT_CALLBACKS) {
+                try {
+                    cls.getDeclaredMethod(callback, Context.class);
+                    return false;
+                } catch (NoSuchMethodException ignore) {
+                    // Not overridden here
+                }
+            }
+            if (callsRequestRepeat(cls)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the given class, or one of its nested classes, calls a
+     * {@code requestRepeat} method. Also returns true if the bytecode cannot be read.
+     */
+    private static boolean callsRequestRepeat(@NonNull Class<?> cls) {
+        ClassLoader loader = cls.getClassLoader();
+        if (loader == null) {
+            return true;
+        }
+        final String internalName = cls.getName().replace('.', '/');
+        final List<String> pending = Lists.newArrayList(internalName);
+        final Set<String> visited = Sets.newHashSet();
+        final boolean[] found = new boolean[1];
+        while (!pending.isEmpty() && !found[0]) {
+            String name = pending.remove(pending.size() - 1);
+            if (!visited.add(name)) {
+                continue;
+            }
+            InputStream stream = loader.getResourceAsStream(name + ".class"); //$NON-NLS-1$
+            if (stream == null) {
+                return true;
+            }
+            try {
+                new ClassReader(stream).accept(new ClassVisitor(Opcodes.ASM5) {
+                    @Override
+                    public void visitInnerClass(String name, String outerName,
+                            String innerName, int access) {
+                        if (name.startsWith(internalName + '$')) {
+                            pending.add(name);
+                        }
+                    }
+
+                    @Override
+                    public MethodVisitor visitMethod(int access, String name, String desc,
+                            String signature, String[] exceptions) {
+                        return new MethodVisitor(Opcodes.ASM5) {
+                            @Override
+                            public void visitMethodInsn(int opcode, String owner, String name,
+                                    String desc, boolean itf) {
+                                if (name.equals(REQUEST_REPEAT)) {
+                                    found[0] = true;
+                                }
+                            }
+                        };
+                    }
+                }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            } catch (IOException e) {
+                return true;
+            } finally {
+                try {
+                    Closeables.close(stream, true /* swallowIOException */);
+                } catch (IOException e) {
+                    // cannot happen
+                }
+            }
+        }
+        return found[0];
+    }
+
+    /**
+     * Computes (and remembers) the content hash of the given file
+     *
+     * @param file the file to hash
+     * @return the hash, or null if the file could not be read
+     */
+    @Nullable
+    String getHash(@NonNull File file) {
+        String hash = mHashes.get(file);
+        if (hash == null) {
+            try {
+                hash = Files.hash(file, Hashing.sha1()).toString();
+            } catch (IOException ignore) {
+                return null;
+            }
+            mHashes.put(file, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Computes a combined dependency key for a set of files
+     *
+     * @param files the files to compute a key for
+     * @return the key
+     */
+    @NonNull
+    String computeKey(@NonNull List<File> files) {
+        List<File> sorted = Lists.newArrayList(files);
+        Collections.sort(sorted);
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (File file : sorted) {
+            hasher.putString(file.getPath(), Charsets.UTF_8);
+            String hash = getHash(file);
+            hasher.putString(hash != null ? hash : "", Charsets.UTF_8);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Returns true if there are valid cached results for the given file
+     *
+     * @param file the file to look up
+     * @param key the dependency key the results must have been computed with
+     * @return true if {@link #lookup(File, String)} will succeed
+     */
+    boolean isCached(@NonNull File file, @NonNull String key) {
+        Entry entry = mStored.get(file.getPath());
+        if (entry != null && key.equals(entry.key)) {
+            String hash = getHash(file);
+            return hash != null && hash.equals(entry.hash);
+        }
+        return false;
+    }
+
+    /**
+     * Looks up previously cached results for the given file. If found, the results
+     * are kept for the next {@link #save()}, and returned such that they can be
+     * reported again. If not, the caller is expected to check the file, surrounded
+     * by calls to {@link #beginFile(File, String)} and {@link #endFile()}.
+     *
+     * @param file the file to look up
+     * @param key the dependency key the results must have been computed with
+     * @return the cached reports, or null if there are no valid results for this file
+     */
+    @Nullable
+    List<CachedReport> lookup(@NonNull File file, @NonNull String key) {
+        if (isCached(file, key)) {
+            String path = file.getPath();
+            Entry entry = mStored.get(path);
+            mCurrent.put(path, entry);
+            mHits++;
+            return entry.reports;
+        }
+
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Starts recording the warnings for the given file
+     *
+     * @param file the file about to be checked
+     * @param key the dependency key of the results
+     */
+    void beginFile(@NonNull File file, @NonNull String key) {
+        assert mRecording == null;
+        String hash = getHash(file);
+        if (hash != null) {
+            mRecording = new Entry(hash, key, Lists.<CachedReport>newArrayList());
+            mCurrent.put(file.getPath(), mRecording);
+        }
+    }
+
+    /** Stops recording warnings for the current file */
+    void endFile() {
+        mRecording = null;
+    }
+
+    /**
+     * Records a warning, if a file is currently being recorded and the
+     * warning is for a cached issue
+     */
+    void record(
+            @NonNull Issue issue,
+            @NonNull Severity severity,
+            @Nullable Location location,
+            @NonNull String message,
+            @NonNull TextFormat format) {
+        if (mRecording != null && mLocalIssues.contains(issue)) {
+            mRecording.reports.add(new CachedReport(issue.getId(), severity, location, message,
+                    format));
+        }
+    }
+
+    /** Returns the number of files whose results were replayed from the cache */
+    int getHitCount() {
+        return mHits;
+    }
+
+    /** Returns the number of files which had to be checked */
+    int getMissCount() {
+        return mMisses;
+    }
+
+    @VisibleForTesting
+    void load() {
+        if (!mFile.isFile()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FORMAT_VERSION || !mEnvironmentKey.equals(readString(in))) {
+                return;
+            }
+            int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                String path = readString(in);
+                String hash = readString(in);
+                String key = readString(in);
+                int reportCount = in.readInt();
+                List<CachedReport> reports = Lists.newArrayListWithExpectedSize(reportCount);
+                for (int j = 0; j < reportCount; j++) {
+                    String issue = readString(in);
+                    Severity severity = Severity.valueOf(readString(in));
+                    String message = readString(in);
+                    TextFormat format = TextFormat.valueOf(readString(in));
+                    Location location = readLocation(in);
+                    reports.add(new CachedReport(issue, severity, location, message, format));
+                }
+                mStored.put(path, new Entry(hash, key, reports));
+            }
+        } catch (Exception e) {
+            // Corrupt or truncated cache: just start over
+            mStored.clear();
+        } finally {
+            try {
+                Closeables.close(in, true /* swallowIOException */);
+            } catch (IOException e) {
+                // cannot happen
+            }
+        }
+    }
+
+    /**
+     * Writes out the entries recorded or replayed during this run. Entries for
+     * files that were not visited (for example because they have been deleted)
+     * are dropped.
+     *
+     * @throws IOException if the cache cannot be written
+     */
+    void save() throws IOException {
+        File parent = mFile.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            return;
+        }
+
+        // Write to a file of our own, then rename it, such that concurrent runs never
+        // write to the same file and never see a partially written cache
+        File temp = File.createTempFile(mFile.getName(), ".new", parent); //$NON-NLS-1$
+        boolean renamed = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            boolean threw = true;
+            try {
+                out.writeInt(FORMAT_VERSION);
+                writeString(out, mEnvironmentKey);
+                out.writeInt(mCurrent.size());
+                for (Map.Entry<String, Entry> mapEntry : mCurrent.entrySet()) {
+                    Entry entry = mapEntry.getValue();
+                    writeString(out, mapEntry.getKey());
+                    writeString(out, entry.hash);
+                    writeString(out, entry.key);
+                    out.writeInt(entry.reports.size());
+                    for (CachedReport report : entry.reports) {
+                        writeString(out, report.issue);
+                        writeString(out, report.severity.name());
+                        writeString(out, report.message);
+                        writeString(out, report.format.name());
+                        writeLocation(out, report.location);
+                    }
+                }
+                threw = false;
+            } finally {
+                Closeables.close(out, threw);
+            }
+
+            // renameTo does not replace an existing file on all platforms
+            renamed = temp.renameTo(mFile) || mFile.delete() && temp.renameTo(mFile);
+        } finally {
+            if (!renamed) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        }
+    }
+
+    private static void writeLocation(@NonNull DataOutputStream out, @Nullable Location location)
+            throws IOException {
+        // Primary location followed by the chain of secondary locations
+        int count = 0;
+        for (Location l = location; l != null; l = l.getSecondary()) {
+            count++;
+        }
+        out.writeInt(count);
+        for (Location l = location; l != null; l = l.getSecondary()) {
+            writeString(out, l.getFile().getPath());
+            writePosition(out, l.getStart());
+            writePosition(out, l.getEnd());
+            String message = l.getMessage();
+            out.writeBoolean(message != null);
+            if (message != null) {
+                writeString(out, message);
+            }
+        }
+    }
+
+    @Nullable
+    private static Location readLocation(@NonNull DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Location first = null;
+        Location last = null;
+        for (int i = 0; i < count; i++) {
+            File file = new File(readString(in));
+            Position start = readPosition(in);
+            Position end = readPosition(in);
+            Location location = start != null
+                    ? Location.create(file, start, end) : Location.create(file);
+            if (in.readBoolean()) {
+                location.setMessage(readString(in));
+            }
+            if (first == null) {
+                first = location;
+            } else {
+                last.setSecondary(location);
+            }
+            last = location;
+        }
+        return first;
+    }
+
+    /**
+     * Writes a string as its length followed by its UTF-8 bytes. Unlike
+     * {@link DataOutputStream#writeUTF(String)}, this is not limited to 64K bytes, which
+     * long messages can exceed.
+     */
+    private static void writeString(@NonNull DataOutputStream out, @NonNull String string)
+            throws IOException {
+        byte[] bytes = string.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NonNull
+    private static String readString(@NonNull DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            // Corrupt or truncated cache
+            throw new IOException();
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static void writePosition(@NonNull DataOutputStream out, @Nullable Position position)
+            throws IOException {
+        out.writeBoolean(position != null);
+        if (position != null) {
+            out.writeInt(position.getLine());
+            out.writeInt(position.getColumn());
+            out.writeInt(position.getOffset());
+        }
+    }
+
+    @Nullable
+    private static Position readPosition(@NonNull DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            int line = in.readInt();
+            int column = in.readInt();
+            int offset = in.readInt();
+            return new DefaultPosition(line, column, offset);
+        }
+        return null;
+    }
+
+    /**
+     * Adds the path and (if it exists) the contents of the given file to a key
+     *
+     * @param hasher the hasher computing the key
+     * @param file the file to include
+     */
+    static void hashFile(@NonNull Hasher hasher, @NonNull File file) {
+        hasher.putString(file.getPath(), Charsets.UTF_8);
+        if (file.isFile()) {
+            try {
+                HashCode hash = Files.hash(file, Hashing.sha1());
+                hasher.putBytes(hash.asBytes());
+            } catch (IOException ignore) {
+                // Treat unreadable files as absent
+            }
+        }
+    }
+}
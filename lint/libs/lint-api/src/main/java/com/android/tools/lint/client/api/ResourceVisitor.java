@@ -18,6 +18,7 @@ package com.android.tools.lint.client.api;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.tools.lint.detector.api.Context;
 import com.android.tools.lint.detector.api.Detector;
 import com.android.tools.lint.detector.api.Detector.XmlScanner;
 import com.android.tools.lint.detector.api.LintUtils;
@@ -32,6 +33,7 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import java.io.File;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -39,6 +41,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.RandomAccess;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 /**
  * Specialized visitor for running detectors on resources: typically XML documents,
  * but also binary resources.
@@ -56,6 +63,13 @@ import java.util.RandomAccess;
  * It also notifies all the detectors before and after the document is processed
  * such that they can do pre- and post-processing.
  * <p>
+ * When all the detectors only look at specific element and attribute names,
+ * a file is first scanned with a streaming parser, and the full position
+ * tracking DOM is only built if the file contains at least one of those names.
+ * A streaming scan of a whole file costs roughly a sixth of the DOM parse, so
+ * the scan is stopped for the rest of the folder if it rarely allows a file
+ * to be skipped.
+ * <p>
  * <b>NOTE: This is not a public or final API; if you rely on this be prepared
  * to adjust your code for the next tools release.</b>
  */
@@ -75,6 +89,19 @@ class ResourceVisitor {
     private final List<? extends Detector> mBinaryDetectors;
     private final XmlParser mParser;
 
+    /** The number of files to scan before deciding whether scanning pays off */
+    private static final int SCAN_SAMPLE_SIZE = 20;
+
+    /**
+     * Whether files are scanned before building a DOM. This is not possible if some
+     * detector looks at whole documents, at all elements or attributes, or at each
+     * checked file, and is stopped when the scan rarely allows a file to be skipped.
+     */
+    private boolean mScanFiles;
+    private XMLInputFactory mScanFactory;
+    private int mScannedFiles;
+    private int mSkippedFiles;
+
     // Really want this:
     //<T extends List<Detector> & Detector.XmlScanner> XmlVisitor(IDomParser parser,
     //    T xmlDetectors) {
@@ -125,6 +152,33 @@ class ResourceVisitor {
                 mDocumentDetectors.add(xmlDetector);
             }
         }
+
+        boolean checkAllFiles = !mDocumentDetectors.isEmpty()
+                || !mAllElementDetectors.isEmpty() || !mAllAttributeDetectors.isEmpty();
+        for (Detector detector : xmlDetectors) {
+            if (checkAllFiles) {
+                break;
+            }
+            checkAllFiles = overridesFileHooks(detector);
+        }
+        mScanFiles = !checkAllFiles;
+    }
+
+    /**
+     * Returns true if the given detector overrides {@link Detector#beforeCheckFile}
+     * or {@link Detector#afterCheckFile}, in which case it must be notified for every
+     * file, whether or not the file contains any of its applicable elements
+     */
+    private static boolean overridesFileHooks(@NonNull Detector detector) {
+        try {
+            Class<? extends Detector> clz = detector.getClass();
+            return clz.getMethod("beforeCheckFile", Context.class).getDeclaringClass()
+                    != Detector.class
+                    || clz.getMethod("afterCheckFile", Context.class).getDeclaringClass()
+                    != Detector.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
     }
 
     void visitFile(@NonNull XmlContext context, @NonNull File file) {
@@ -132,6 +186,9 @@ class ResourceVisitor {
 
         try {
             if (context.document == null) {
+                if (mScanFiles && canSkip(context)) {
+                    return;
+                }
                 context.document = mParser.parseXml(context);
                 if (context.document == null) {
                     // No need to log this; the parser should be reporting
@@ -169,6 +226,93 @@ class ResourceVisitor {
         }
     }
 
+    /**
+     * Returns true if the given file does not need to be visited, and stops
+     * scanning files when that is rarely the case: every file which is not
+     * skipped is parsed twice.
+     */
+    private boolean canSkip(@NonNull XmlContext context) {
+        boolean relevant = isRelevant(context);
+        mScannedFiles++;
+        if (!relevant) {
+            mSkippedFiles++;
+        }
+        if (mScannedFiles == SCAN_SAMPLE_SIZE && mSkippedFiles * 4 < mScannedFiles) {
+            mScanFiles = false;
+        }
+        return !relevant;
+    }
+
+    /**
+     * Scans the given file with a streaming parser, and returns true if it contains
+     * any element or attribute which a detector is interested in. This is much cheaper
+     * than building a DOM with position information for files which none of the
+     * detectors would look at. Files which cannot be scanned are considered relevant,
+     * such that the regular parser gets a chance to report errors.
+     */
+    private boolean isRelevant(@NonNull XmlContext context) {
+        if (mElementToCheck.isEmpty() && mAttributeToCheck.isEmpty()) {
+            return false;
+        }
+        String contents = context.getContents();
+        if (contents == null) {
+            return true;
+        }
+
+        XMLStreamReader reader = null;
+        try {
+            if (mScanFactory == null) {
+                mScanFactory = XMLInputFactory.newInstance();
+                mScanFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+                mScanFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+                mScanFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            }
+            reader = mScanFactory.createXMLStreamReader(new StringReader(contents));
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String prefix = reader.getPrefix();
+                String tag = reader.getLocalName();
+                if (prefix != null && !prefix.isEmpty()) {
+                    tag = prefix + ':' + tag;
+                }
+                if (mElementToCheck.containsKey(tag)) {
+                    return true;
+                }
+                if (!mAttributeToCheck.isEmpty()) {
+                    for (int i = 0, n = reader.getAttributeCount(); i < n; i++) {
+                        if (mAttributeToCheck.containsKey(reader.getAttributeLocalName(i))) {
+                            return true;
+                        }
+                    }
+                    // The DOM also exposes namespace declarations as attributes
+                    for (int i = 0, n = reader.getNamespaceCount(); i < n; i++) {
+                        String name = reader.getNamespacePrefix(i);
+                        if (mAttributeToCheck.containsKey(name == null || name.isEmpty()
+                                ? "xmlns" : name)) { //$NON-NLS-1$
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        } catch (XMLStreamException e) {
+            return true;
+        } catch (RuntimeException e) {
+            // Including factory configuration errors
+            return true;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
     private void visitElement(@NonNull XmlContext context, @NonNull Element element) {
         List<Detector.XmlScanner> elementChecks = mElementToCheck.get(element.getTagName());
         if (elementChecks != null) {
@@ -30,6 +30,7 @@ import com.android.tools.lint.detector.api.Location.SearchDirection;
 import com.android.tools.lint.detector.api.Location.SearchHints;
 import com.google.common.annotations.Beta;
 import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
 
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
@@ -38,9 +39,13 @@ import org.objectweb.asm.tree.FieldNode;
 import org.objectweb.asm.tree.LineNumberNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Interpreter;
+import org.objectweb.asm.tree.analysis.Value;
 
 import java.io.File;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A {@link Context} used when checking .class files.
@@ -66,6 +71,8 @@ public class ClassContext extends Context {
     /** Whether this class is part of a library (rather than corresponding to one of the
      * source files in this project */
     private final boolean mFromLibrary;
+    /** Flow analyses of the methods of this class, by method and interpreter class */
+    private Map<MethodNode, Map<Class<?>, FlowAnalysis<?>>> mFlowAnalyses;
 
     /**
      * Construct a new {@link ClassContext}
@@ -127,6 +134,39 @@ public class ClassContext extends Context {
         return mClassNode;
     }
 
+    /**
+     * Returns the flow analysis of the given method of this class with the given interpreter.
+     * The analysis is computed the first time it is requested, and shared by all the
+     * detectors requesting it for this method with an interpreter of the same class, so
+     * interpreters must not have any state affecting the values they compute.
+     *
+     * @param method a method of this class
+     * @param interpreter the interpreter computing the values of the frames
+     * @return the flow analysis of the method
+     * @throws AnalyzerException if the underlying bytecode library is unable to
+     *             analyze the method bytecode
+     */
+    @NonNull
+    public <V extends Value> FlowAnalysis<V> getFlowAnalysis(
+            @NonNull MethodNode method,
+            @NonNull Interpreter<V> interpreter) throws AnalyzerException {
+        if (mFlowAnalyses == null) {
+            mFlowAnalyses = Maps.newIdentityHashMap();
+        }
+        Map<Class<?>, FlowAnalysis<?>> analyses = mFlowAnalyses.get(method);
+        if (analyses == null) {
+            analyses = Maps.newHashMapWithExpectedSize(2);
+            mFlowAnalyses.put(method, analyses);
+        }
+        FlowAnalysis<?> analysis = analyses.get(interpreter.getClass());
+        if (analysis == null) {
+            analysis = FlowAnalysis.analyze(mClassNode.name, method, interpreter);
+            analyses.put(interpreter.getClass(), analysis);
+        }
+        //noinspection unchecked
+        return (FlowAnalysis<V>) analysis;
+    }
+
     /**
      * Returns the jar file, if any. If this is null, the .class file is a real file
      * on disk, otherwise it represents a relative path within the jar file.
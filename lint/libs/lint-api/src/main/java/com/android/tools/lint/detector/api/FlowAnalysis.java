@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.detector.api;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.annotations.Beta;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.Interpreter;
+import org.objectweb.asm.tree.analysis.Value;
+
+import java.util.Arrays;
+
+/**
+ * The result of running an ASM {@link Analyzer} on a method: the frames computed with an
+ * {@link Interpreter}, and the control flow edges reported by the analyzer, in the order in
+ * which they were reported.
+ * <p/>
+ * Edges are stored as instruction indices rather than as instructions, so a control flow graph
+ * can be rebuilt from them without running the analysis again. Use
+ * {@link ClassContext#getFlowAnalysis(MethodNode, Interpreter)} to share the analysis of a
+ * method between detectors.
+ * <p/>
+ * <b>NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.</b>
+ */
+@Beta
+public class FlowAnalysis<V extends Value> {
+    /**
+     * A normal control flow edge, from an instruction to one of its successors. The target
+     * is an instruction index.
+     */
+    public static final int EDGE_NORMAL = 0;
+    /**
+     * An exceptional control flow edge, from an instruction to an exception handler. The
+     * target is the instruction index of the handler.
+     */
+    public static final int EDGE_EXCEPTION = 1;
+    /**
+     * An exceptional control flow edge, from an instruction to the try catch block covering
+     * it. The target is the index of the block in {@link MethodNode#tryCatchBlocks}. It is
+     * always followed by the corresponding {@link #EDGE_EXCEPTION} edge.
+     */
+    public static final int EDGE_TRY_CATCH = 2;
+
+    /** Number of ints used per edge in {@link #mEdges}: kind, source and target */
+    private static final int EDGE_SIZE = 3;
+
+    private final MethodNode mMethod;
+    private final Frame<V>[] mFrames;
+    private final int[] mEdges;
+    private final int mEdgeCount;
+
+    private FlowAnalysis(@NonNull MethodNode method, @NonNull Frame<V>[] frames,
+            @NonNull int[] edges, int edgeCount) {
+        mMethod = method;
+        mFrames = frames;
+        mEdges = edges;
+        mEdgeCount = edgeCount;
+    }
+
+    /**
+     * Analyzes the given method. This always runs the analysis; prefer
+     * {@link ClassContext#getFlowAnalysis(MethodNode, Interpreter)} from detectors.
+     *
+     * @param owner the internal name of the class containing the method
+     * @param method the method to be analyzed
+     * @param interpreter the interpreter computing the values of the frames
+     * @return the analysis of the method
+     * @throws AnalyzerException if the underlying bytecode library is unable to
+     *             analyze the method bytecode
+     */
+    @NonNull
+    public static <V extends Value> FlowAnalysis<V> analyze(
+            @NonNull String owner,
+            @NonNull MethodNode method,
+            @NonNull Interpreter<V> interpreter) throws AnalyzerException {
+        RecordingAnalyzer<V> analyzer = new RecordingAnalyzer<V>(interpreter, method);
+        Frame<V>[] frames = analyzer.analyze(owner, method);
+        return new FlowAnalysis<V>(method, frames, analyzer.mEdges, analyzer.mEdgeCount);
+    }
+
+    /**
+     * Returns the frames computed for the instructions of the method, by instruction index.
+     * The frames of unreachable instructions are null. The returned array is shared and
+     * must not be modified.
+     *
+     * @return the frames of the method
+     */
+    @NonNull
+    public Frame<V>[] getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * Returns the frame computed for the given instruction of the method
+     *
+     * @param instruction an instruction of the analyzed method
+     * @return the frame before the instruction is executed, or null if the instruction is
+     *         unreachable
+     */
+    @Nullable
+    public Frame<V> getFrame(@NonNull AbstractInsnNode instruction) {
+        return mFrames[mMethod.instructions.indexOf(instruction)];
+    }
+
+    /**
+     * Returns the number of control flow edges reported by the analyzer. The same edge may
+     * be reported several times.
+     *
+     * @return the number of edges
+     */
+    public int getEdgeCount() {
+        return mEdgeCount;
+    }
+
+    /**
+     * Returns the kind of the given edge
+     *
+     * @param edge the index of the edge, from 0 to {@link #getEdgeCount()} (exclusive)
+     * @return {@link #EDGE_NORMAL}, {@link #EDGE_EXCEPTION} or {@link #EDGE_TRY_CATCH}
+     */
+    public int getEdgeKind(int edge) {
+        return mEdges[edge * EDGE_SIZE];
+    }
+
+    /**
+     * Returns the instruction index of the source of the given edge
+     *
+     * @param edge the index of the edge, from 0 to {@link #getEdgeCount()} (exclusive)
+     * @return the index of the instruction the edge starts from
+     */
+    public int getEdgeSource(int edge) {
+        return mEdges[edge * EDGE_SIZE + 1];
+    }
+
+    /**
+     * Returns the target of the given edge, whose meaning depends on
+     * {@link #getEdgeKind(int)}
+     *
+     * @param edge the index of the edge, from 0 to {@link #getEdgeCount()} (exclusive)
+     * @return an instruction index, or a try catch block index for
+     *         {@link #EDGE_TRY_CATCH} edges
+     */
+    public int getEdgeTarget(int edge) {
+        return mEdges[edge * EDGE_SIZE + 2];
+    }
+
+    /** An {@link Analyzer} recording the control flow edges it reports */
+    private static class RecordingAnalyzer<V extends Value> extends Analyzer<V> {
+        private final MethodNode mMethod;
+        private int[] mEdges;
+        private int mEdgeCount;
+
+        RecordingAnalyzer(@NonNull Interpreter<V> interpreter, @NonNull MethodNode method) {
+            super(interpreter);
+            mMethod = method;
+            mEdges = new int[EDGE_SIZE * Math.max(method.instructions.size(), 1)];
+        }
+
+        private void addEdge(int kind, int source, int target) {
+            int offset = mEdgeCount * EDGE_SIZE;
+            if (offset == mEdges.length) {
+                mEdges = Arrays.copyOf(mEdges, 2 * mEdges.length);
+            }
+            mEdges[offset] = kind;
+            mEdges[offset + 1] = source;
+            mEdges[offset + 2] = target;
+            mEdgeCount++;
+        }
+
+        @Override
+        protected void newControlFlowEdge(int insn, int successor) {
+            addEdge(EDGE_NORMAL, insn, successor);
+        }
+
+        @Override
+        protected boolean newControlFlowExceptionEdge(int insn, TryCatchBlockNode tcb) {
+            addEdge(EDGE_TRY_CATCH, insn, mMethod.tryCatchBlocks.indexOf(tcb));
+            return super.newControlFlowExceptionEdge(insn, tcb);
+        }
+
+        @Override
+        protected boolean newControlFlowExceptionEdge(int insn, int successor) {
+            addEdge(EDGE_EXCEPTION, insn, successor);
+            return super.newControlFlowExceptionEdge(insn, successor);
+        }
+    }
+}
@@ -18,6 +18,8 @@ package com.android.tools.lint.checks;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.tools.lint.detector.api.ClassContext;
+import com.android.tools.lint.detector.api.FlowAnalysis;
 import com.google.common.collect.Maps;
 
 import org.objectweb.asm.tree.AbstractInsnNode;
@@ -29,7 +31,6 @@ import org.objectweb.asm.tree.LineNumberNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.TryCatchBlockNode;
-import org.objectweb.asm.tree.analysis.Analyzer;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.tree.analysis.BasicInterpreter;
 
@@ -49,8 +50,10 @@ import java.util.Map;
  * method call throwing a runtime exception.
  */
 public class ControlFlowGraph {
-    /** Map from instructions to nodes */
-    private Map<AbstractInsnNode, Node> mNodeMap;
+    /** The instructions of the method */
+    private InsnList mInstructions;
+    /** Nodes of the instructions, by instruction index */
+    private Node[] mNodes;
 
     /**
      * Creates a new {@link ControlFlowGraph} and populates it with the flow
@@ -73,40 +76,62 @@ public class ControlFlowGraph {
             @Nullable ControlFlowGraph initial,
             @NonNull ClassNode classNode,
             @NonNull MethodNode method) throws AnalyzerException {
-        final ControlFlowGraph graph = initial != null ? initial : new ControlFlowGraph();
-        final InsnList instructions = method.instructions;
-        graph.mNodeMap = Maps.newHashMapWithExpectedSize(instructions.size());
-
-        // Create a flow control graph using ASM5's analyzer. According to the ASM 4 guide
-        // (download.forge.objectweb.org/asm/asm4-guide.pdf) there are faster ways to construct
-        // it, but those require a lot more code.
-        Analyzer analyzer = new Analyzer(new BasicInterpreter()) {
-            @Override
-            protected void newControlFlowEdge(int insn, int successor) {
-                // Update the information as of whether the this object has been
-                // initialized at the given instruction.
-                AbstractInsnNode from = instructions.get(insn);
-                AbstractInsnNode to = instructions.get(successor);
-                graph.add(from, to);
-            }
+        return create(initial, method,
+                FlowAnalysis.analyze(classNode.name, method, new BasicInterpreter()));
+    }
 
-            @Override
-            protected boolean newControlFlowExceptionEdge(int insn, TryCatchBlockNode tcb) {
-                AbstractInsnNode from = instructions.get(insn);
-                graph.exception(from, tcb);
-                return super.newControlFlowExceptionEdge(insn, tcb);
-            }
+    /**
+     * Like {@link #create(ControlFlowGraph, ClassNode, MethodNode)}, but reuses the
+     * analysis of the method cached by the class context, so the method is only
+     * analyzed once even if several graphs are created for it.
+     *
+     * @param initial usually null, but can point to an existing instance of a
+     *            {@link ControlFlowGraph} in which that graph is reused (but
+     *            populated with new edges)
+     * @param context the context of the class containing the method to be analyzed
+     * @param method the method to be analyzed
+     * @return a {@link ControlFlowGraph} with nodes for the control flow in the
+     *         given method
+     * @throws AnalyzerException if the underlying bytecode library is unable to
+     *             analyze the method bytecode
+     */
+    @NonNull
+    public static ControlFlowGraph create(
+            @Nullable ControlFlowGraph initial,
+            @NonNull ClassContext context,
+            @NonNull MethodNode method) throws AnalyzerException {
+        return create(initial, method, context.getFlowAnalysis(method, new BasicInterpreter()));
+    }
 
-            @Override
-            protected boolean newControlFlowExceptionEdge(int insn, int successor) {
-                AbstractInsnNode from = instructions.get(insn);
-                AbstractInsnNode to = instructions.get(successor);
-                graph.exception(from, to);
-                return super.newControlFlowExceptionEdge(insn, successor);
+    @NonNull
+    private static ControlFlowGraph create(
+            @Nullable ControlFlowGraph initial,
+            @NonNull MethodNode method,
+            @NonNull FlowAnalysis<?> analysis) {
+        ControlFlowGraph graph = initial != null ? initial : new ControlFlowGraph();
+        InsnList instructions = method.instructions;
+        graph.mInstructions = instructions;
+        graph.mNodes = new Node[instructions.size()];
+
+        // Replay the edges in the order in which ASM's analyzer reported them, so the
+        // graph is the same as if it was populated during the analysis.
+        List<TryCatchBlockNode> tryCatchBlocks = method.tryCatchBlocks;
+        for (int i = 0, n = analysis.getEdgeCount(); i < n; i++) {
+            AbstractInsnNode from = instructions.get(analysis.getEdgeSource(i));
+            int target = analysis.getEdgeTarget(i);
+            switch (analysis.getEdgeKind(i)) {
+                case FlowAnalysis.EDGE_NORMAL:
+                    graph.add(from, instructions.get(target));
+                    break;
+                case FlowAnalysis.EDGE_EXCEPTION:
+                    graph.exception(from, instructions.get(target));
+                    break;
+                case FlowAnalysis.EDGE_TRY_CATCH:
+                    graph.exception(from, tryCatchBlocks.get(target));
+                    break;
             }
-        };
+        }
 
-        analyzer.analyze(classNode.name, method);
         return graph;
     }
 
@@ -260,10 +285,11 @@ public class ControlFlowGraph {
      */
     @NonNull
     public Node getNode(@NonNull AbstractInsnNode instruction) {
-        Node node = mNodeMap.get(instruction);
+        int index = mInstructions.indexOf(instruction);
+        Node node = mNodes[index];
         if (node == null) {
             node = new Node(instruction);
-            mNodeMap.put(instruction, node);
+            mNodes[index] = node;
         }
 
         return node;
@@ -280,26 +306,15 @@ public class ControlFlowGraph {
     public String toString(@Nullable Node start) {
         StringBuilder sb = new StringBuilder(400);
 
-        AbstractInsnNode curr;
-        if (start != null) {
-            curr = start.instruction;
-        } else {
-            if (mNodeMap.isEmpty()) {
-                return "<empty>";
-            } else {
-                curr = mNodeMap.keySet().iterator().next();
-                while (curr.getPrevious() != null) {
-                    curr = curr.getPrevious();
-                }
-            }
-        }
-
-        while (curr != null) {
-            Node node = mNodeMap.get(curr);
+        int index = start != null ? mInstructions.indexOf(start.instruction) : 0;
+        for (; index < mNodes.length; index++) {
+            Node node = mNodes[index];
             if (node != null) {
                 sb.append(node.toString(true));
             }
-            curr = curr.getNext();
+        }
+        if (start == null && sb.length() == 0) {
+            return "<empty>";
         }
 
         return sb.toString();
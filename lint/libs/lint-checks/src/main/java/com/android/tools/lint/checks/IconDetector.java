@@ -70,6 +70,8 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 
 import org.w3c.dom.Element;
 
@@ -545,157 +547,102 @@ public class IconDetector extends ResourceXmlDetector implements Detector.JavaSc
                 }
             }
 
-            // Map from file to actual byte contents of the file.
-            // We store this in a map such that for repeated files, such as noSize files
-            // which can appear in multiple buckets, we only need to read them once
-            Map<File, byte[]> fileContents = new HashMap<File, byte[]>();
+            // Map from file to the hash of the contents of the file (or null if it
+            // could not be read). We store this in a map such that for repeated files,
+            // such as noSize files which can appear in multiple buckets, we only need to
+            // read them once, and only the hashes are kept in memory.
+            Map<File, HashCode> fileHashes = new HashMap<File, HashCode>();
 
             // Now we're ready for the final check where we actually check the
             // bits. We have to partition the files into buckets of files that
-            // are identical.
+            // are identical, which are the files with the same hash.
             for (Set<File> set : sets) {
                 if (set.size() < 2) {
                     continue;
                 }
 
-                // Read all files in this set and store in map
+                Multimap<HashCode, File> sameContents = ArrayListMultimap.create();
                 for (File file : set) {
-                    byte[] bits = fileContents.get(file);
-                    if (bits == null) {
+                    HashCode hash = fileHashes.get(file);
+                    if (hash == null && !fileHashes.containsKey(file)) {
                         try {
-                            bits = context.getClient().readBytes(file);
-                            fileContents.put(file, bits);
+                            byte[] bits = context.getClient().readBytes(file);
+                            hash = Hashing.sha1().hashBytes(bits);
                         } catch (IOException e) {
                             context.log(e, null);
                         }
+                        fileHashes.put(file, hash);
                     }
-                }
-
-                // Map where the key file is known to be equal to the value file.
-                // After we check individual files for equality this will be used
-                // to look for transitive equality.
-                Map<File, File> equal = new HashMap<File, File>();
-
-                // Now go and compare all the files. This isn't an efficient algorithm
-                // but the number of candidates should be very small
-
-                List<File> files = new ArrayList<File>(set);
-                Collections.sort(files);
-                for (int i = 0; i < files.size() - 1; i++) {
-                    for (int j = i + 1; j < files.size(); j++) {
-                        File file1 = files.get(i);
-                        File file2 = files.get(j);
-                        byte[] contents1 = fileContents.get(file1);
-                        byte[] contents2 = fileContents.get(file2);
-                        if (contents1 == null || contents2 == null) {
-                            // File couldn't be read: ignore
-                            continue;
-                        }
-                        if (contents1.length != contents2.length) {
-                            // Sizes differ: not identical.
-                            // This shouldn't happen since we've already partitioned based
-                            // on File.length(), but just make sure here since the file
-                            // system could have lied, or cached a value that has changed
-                            // if the file was just overwritten
-                            continue;
-                        }
-                        boolean same = true;
-                        for (int k = 0; k < contents1.length; k++) {
-                            if (contents1[k] != contents2[k]) {
-                                same = false;
-                                break;
-                            }
-                        }
-                        if (same) {
-                            equal.put(file1, file2);
-                        }
+                    if (hash != null) {
+                        sameContents.put(hash, file);
                     }
                 }
 
-                if (!equal.isEmpty()) {
-                    Map<File, Set<File>> partitions = new HashMap<File, Set<File>>();
-                    List<Set<File>> sameSets = new ArrayList<Set<File>>();
-                    for (Map.Entry<File, File> entry : equal.entrySet()) {
-                        File file1 = entry.getKey();
-                        File file2 = entry.getValue();
-                        Set<File> set1 = partitions.get(file1);
-                        Set<File> set2 = partitions.get(file2);
-                        if (set1 != null) {
-                            set1.add(file2);
-                        } else if (set2 != null) {
-                            set2.add(file1);
-                        } else {
-                            set = new HashSet<File>();
-                            sameSets.add(set);
-                            set.add(file1);
-                            set.add(file2);
-                            partitions.put(file1, set);
-                            partitions.put(file2, set);
-                        }
-                    }
-
-                    // We've computed the partitions of equal files. Now sort them
-                    // for stable output.
-                    List<List<File>> lists = new ArrayList<List<File>>();
-                    for (Set<File> same : sameSets) {
-                        assert !same.isEmpty();
-                        ArrayList<File> sorted = new ArrayList<File>(same);
+                // We've computed the partitions of equal files. Now sort them
+                // for stable output.
+                List<List<File>> lists = new ArrayList<List<File>>();
+                for (Collection<File> same : sameContents.asMap().values()) {
+                    if (same.size() > 1) {
+                        List<File> sorted = new ArrayList<File>(same);
                         Collections.sort(sorted);
                         lists.add(sorted);
                     }
-                    // Sort overall partitions by the first item in each list
-                    Collections.sort(lists, new Comparator<List<File>>() {
-                        @Override
-                        public int compare(List<File> list1, List<File> list2) {
-                            return list1.get(0).compareTo(list2.get(0));
-                        }
-                    });
-
-                    for (List<File> sameFiles : lists) {
-                        Location location = null;
-                        boolean sameNames = true;
-                        String lastName = null;
-                        for (File file : sameFiles) {
-                             if (lastName != null && !lastName.equals(file.getName())) {
-                                sameNames = false;
-                            }
-                            lastName = file.getName();
-                            // Chain locations together
-                            Location linkedLocation = location;
-                            location = Location.create(file);
-                            location.setSecondary(linkedLocation);
-                        }
-
-                        if (sameNames) {
-                            StringBuilder sb = new StringBuilder(sameFiles.size() * 16);
-                            for (File file : sameFiles) {
-                                if (sb.length() > 0) {
-                                    sb.append(", "); //$NON-NLS-1$
-                                }
-                                sb.append(file.getParentFile().getName());
-                            }
-                            String message = String.format(
-                                "The `%1$s` icon has identical contents in the following configuration folders: %2$s",
-                                        lastName, sb.toString());
-                                context.report(DUPLICATES_CONFIGURATIONS, location, message);
-                        } else {
-                            StringBuilder sb = new StringBuilder(sameFiles.size() * 16);
-                            for (File file : sameFiles) {
-                                if (sb.length() > 0) {
-                                    sb.append(", "); //$NON-NLS-1$
-                                }
-                                sb.append(file.getName());
-                            }
-                            String message = String.format(
-                                "The following unrelated icon files have identical contents: %1$s",
-                                        sb.toString());
-                                context.report(DUPLICATES_NAMES, location, message);
-                        }
+                }
+                // Sort overall partitions by the first item in each list
+                Collections.sort(lists, new Comparator<List<File>>() {
+                    @Override
+                    public int compare(List<File> list1, List<File> list2) {
+                        return list1.get(0).compareTo(list2.get(0));
                     }
+                });
+
+                for (List<File> sameFiles : lists) {
+                    reportDuplicates(context, sameFiles);
                 }
             }
         }
+    }
 
+    private static void reportDuplicates(Context context, List<File> sameFiles) {
+        Location location = null;
+        boolean sameNames = true;
+        String lastName = null;
+        for (File file : sameFiles) {
+             if (lastName != null && !lastName.equals(file.getName())) {
+                sameNames = false;
+            }
+            lastName = file.getName();
+            // Chain locations together
+            Location linkedLocation = location;
+            location = Location.create(file);
+            location.setSecondary(linkedLocation);
+        }
+
+        if (sameNames) {
+            StringBuilder sb = new StringBuilder(sameFiles.size() * 16);
+            for (File file : sameFiles) {
+                if (sb.length() > 0) {
+                    sb.append(", "); //$NON-NLS-1$
+                }
+                sb.append(file.getParentFile().getName());
+            }
+            String message = String.format(
+                "The `%1$s` icon has identical contents in the following configuration folders: %2$s",
+                        lastName, sb.toString());
+                context.report(DUPLICATES_CONFIGURATIONS, location, message);
+        } else {
+            StringBuilder sb = new StringBuilder(sameFiles.size() * 16);
+            for (File file : sameFiles) {
+                if (sb.length() > 0) {
+                    sb.append(", "); //$NON-NLS-1$
+                }
+                sb.append(file.getName());
+            }
+            String message = String.format(
+                "The following unrelated icon files have identical contents: %1$s",
+                        sb.toString());
+                context.report(DUPLICATES_NAMES, location, message);
+        }
     }
 
     // This method checks the given map from resource file to pixel dimensions for each
@@ -34,11 +34,9 @@ import com.android.tools.lint.detector.api.Speed;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.LdcInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
-import org.objectweb.asm.tree.analysis.Analyzer;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.tree.analysis.Frame;
 import org.objectweb.asm.tree.analysis.SourceInterpreter;
@@ -120,7 +118,7 @@ public class LocaleDetector extends Detector implements ClassScanner {
                 return;
             }
             // Find the formatting string
-            Analyzer analyzer = new Analyzer(new SourceInterpreter() {
+            SourceInterpreter interpreter = new SourceInterpreter() {
                 @Override
                 public SourceValue newOperation(AbstractInsnNode insn) {
                     if (insn.getOpcode() == Opcodes.LDC) {
@@ -131,15 +129,14 @@ public class LocaleDetector extends Detector implements ClassScanner {
                     }
                     return super.newOperation(insn);
                 }
-            });
+            };
             try {
-                Frame[] frames = analyzer.analyze(classNode.name, method);
-                InsnList instructions = method.instructions;
-                Frame frame = frames[instructions.indexOf(call)];
-                if (frame.getStackSize() == 0) {
+                Frame<SourceValue> frame =
+                        context.getFlowAnalysis(method, interpreter).getFrame(call);
+                if (frame == null || frame.getStackSize() == 0) {
                     return;
                 }
-                SourceValue stackValue = (SourceValue) frame.getStack(0);
+                SourceValue stackValue = frame.getStack(0);
                 if (stackValue instanceof StringValue) {
                     String format = ((StringValue) stackValue).getString();
                     if (format != null && StringFormatDetector.isLocaleSpecific(format)) {
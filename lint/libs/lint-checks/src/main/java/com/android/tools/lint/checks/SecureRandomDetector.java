@@ -32,10 +32,8 @@ import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
-import org.objectweb.asm.tree.analysis.Analyzer;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.tree.analysis.BasicInterpreter;
 import org.objectweb.asm.tree.analysis.BasicValue;
@@ -104,7 +102,7 @@ public class SecureRandomDetector extends Detector implements ClassScanner {
 
             // Track allocations such that we know whether the type of the call
             // is on a SecureRandom rather than a Random
-            Analyzer analyzer = new Analyzer(new BasicInterpreter() {
+            BasicInterpreter interpreter = new BasicInterpreter() {
                 @Override
                 public BasicValue newValue(Type type) {
                     if (type != null && type.getDescriptor().equals(VM_SECURE_RANDOM)) {
@@ -112,16 +110,18 @@ public class SecureRandomDetector extends Detector implements ClassScanner {
                     }
                     return super.newValue(type);
                 }
-            });
+            };
             try {
-                Frame[] frames = analyzer.analyze(classNode.name, method);
-                InsnList instructions = method.instructions;
-                Frame frame = frames[instructions.indexOf(call)];
+                Frame<BasicValue> frame =
+                        context.getFlowAnalysis(method, interpreter).getFrame(call);
+                if (frame == null) {
+                    return;
+                }
                 int stackSlot = frame.getStackSize();
                 for (Type type : Type.getArgumentTypes(desc)) {
                     stackSlot -= type.getSize();
                 }
-                BasicValue stackValue = (BasicValue) frame.getStack(stackSlot);
+                BasicValue stackValue = frame.getStack(stackSlot);
                 Type type = stackValue.getType();
                 if (type != null && type.getDescriptor().equals(VM_SECURE_RANDOM)) {
                     checkValidSetSeed(context, call);
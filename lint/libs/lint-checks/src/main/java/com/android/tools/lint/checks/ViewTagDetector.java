@@ -33,10 +33,8 @@ import com.android.tools.lint.detector.api.Speed;
 
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
-import org.objectweb.asm.tree.analysis.Analyzer;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.tree.analysis.BasicInterpreter;
 import org.objectweb.asm.tree.analysis.BasicValue;
@@ -100,7 +98,7 @@ public class ViewTagDetector extends Detector implements ClassScanner {
         String desc = call.desc;
         if (owner.equals("android/view/View")                 //$NON-NLS-1$
                 && desc.equals("(ILjava/lang/Object;)V")) {   //$NON-NLS-1$
-            Analyzer analyzer = new Analyzer(new BasicInterpreter() {
+            BasicInterpreter interpreter = new BasicInterpreter() {
                 @Override
                 public BasicValue newValue(Type type) {
                     if (type == null) {
@@ -111,15 +109,14 @@ public class ViewTagDetector extends Detector implements ClassScanner {
                         return new BasicValue(type);
                     }
                 }
-            });
+            };
             try {
-                Frame[] frames = analyzer.analyze(classNode.name, method);
-                InsnList instructions = method.instructions;
-                Frame frame = frames[instructions.indexOf(call)];
-                if (frame.getStackSize() < 3) {
+                Frame<BasicValue> frame =
+                        context.getFlowAnalysis(method, interpreter).getFrame(call);
+                if (frame == null || frame.getStackSize() < 3) {
                     return;
                 }
-                BasicValue stackValue = (BasicValue) frame.getStack(2);
+                BasicValue stackValue = frame.getStack(2);
                 Type type = stackValue.getType();
                 if (type == null) {
                     return;
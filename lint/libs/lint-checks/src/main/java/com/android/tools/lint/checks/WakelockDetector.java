@@ -214,7 +214,7 @@ public class WakelockDetector extends Detector implements ClassScanner {
 
         try {
             MyGraph graph = new MyGraph();
-            ControlFlowGraph.create(graph, classNode, method);
+            ControlFlowGraph.create(graph, context, method);
 
             if (DEBUG) {
                 // Requires util package
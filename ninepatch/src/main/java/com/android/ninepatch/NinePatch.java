@@ -17,11 +17,15 @@
 package com.android.ninepatch;
 
 import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 
 /**
@@ -40,9 +44,23 @@ import java.util.Locale;
 public class NinePatch {
     public static final String EXTENSION_9PATCH = ".9.png";
 
+    /** Maximum number of renderings kept by {@link #render(int, int)}, for all 9-patches. */
+    private static final int RENDER_CACHE_SIZE = 32;
+    /** Maximum number of pixels of all the renderings kept by {@link #render(int, int)}. */
+    private static final long RENDER_CACHE_PIXELS = 1 << 20;
+
+    /** Renderings used recently by all the 9-patches, least recently used first. */
+    private static final LinkedHashMap<RenderKey, BufferedImage> sRenderCache =
+            new LinkedHashMap<RenderKey, BufferedImage>(RENDER_CACHE_SIZE, 0.75f, true);
+    /** Number of pixels of all the renderings in {@link #sRenderCache}. */
+    private static long sRenderCachePixels;
+
     private BufferedImage mImage;
     private NinePatchChunk mChunk;
 
+    /** The premultiplied ARGB pixels of {@link #mImage}, read on the first rendering. */
+    private int[] mPixels;
+
     public BufferedImage getImage() {
         return mImage;
     }
@@ -174,7 +192,71 @@ public class NinePatch {
      * @param scaledHeight
      */
     public void draw(Graphics2D graphics2D, int x, int y, int scaledWidth, int scaledHeight) {
-        mChunk.draw(mImage, graphics2D, x, y, scaledWidth, scaledHeight, 0 , 0);
+        if ((graphics2D.getTransform().getType() & ~AffineTransform.TYPE_TRANSLATION) == 0
+                && scaledWidth >= mImage.getWidth() && scaledHeight >= mImage.getHeight()) {
+            // drawn at its actual size, so the cached rendering can be used as is.
+            if (scaledWidth > 1 && scaledHeight > 1) {
+                graphics2D.drawImage(render(scaledWidth, scaledHeight), x, y, null);
+            }
+        } else {
+            mChunk.draw(mImage, graphics2D, x, y, scaledWidth, scaledHeight, 0 , 0);
+        }
+    }
+
+    /**
+     * Returns the 9-patch stretched to the given size.
+     *
+     * The renderings used recently are cached, so the returned image is shared and must not be
+     * modified.
+     *
+     * @param scaledWidth the width of the rendering.
+     * @param scaledHeight the height of the rendering.
+     * @return a {@link BufferedImage#TYPE_INT_ARGB_PRE} image of the given size.
+     */
+    public BufferedImage render(int scaledWidth, int scaledHeight) {
+        RenderKey key = new RenderKey(this, scaledWidth, scaledHeight);
+        synchronized (sRenderCache) {
+            BufferedImage rendering = sRenderCache.get(key);
+            if (rendering != null) {
+                return rendering;
+            }
+        }
+
+        BufferedImage rendering = new BufferedImage(scaledWidth, scaledHeight,
+                BufferedImage.TYPE_INT_ARGB_PRE);
+        if (scaledWidth < mImage.getWidth() || scaledHeight < mImage.getHeight()) {
+            // shrunk below its natural size: the fixed areas are scaled down as well.
+            Graphics2D graphics = rendering.createGraphics();
+            mChunk.draw(mImage, graphics, 0, 0, scaledWidth, scaledHeight, 0, 0);
+            graphics.dispose();
+        } else {
+            int[] pixels = mChunk.render(getPixels(), mImage.getWidth(), scaledWidth,
+                    scaledHeight);
+            int[] data = ((DataBufferInt) rendering.getRaster().getDataBuffer()).getData();
+            System.arraycopy(pixels, 0, data, 0, pixels.length);
+        }
+
+        synchronized (sRenderCache) {
+            if (sRenderCache.put(key, rendering) == null) {
+                sRenderCachePixels += (long) scaledWidth * scaledHeight;
+            }
+            Iterator<BufferedImage> iterator = sRenderCache.values().iterator();
+            while (sRenderCache.size() > 1 && (sRenderCache.size() > RENDER_CACHE_SIZE
+                    || sRenderCachePixels > RENDER_CACHE_PIXELS)) {
+                BufferedImage eldest = iterator.next();
+                sRenderCachePixels -= (long) eldest.getWidth() * eldest.getHeight();
+                iterator.remove();
+            }
+        }
+
+        return rendering;
+    }
+
+    private synchronized int[] getPixels() {
+        if (mPixels == null) {
+            mPixels = getPremultipliedPixels(mImage);
+        }
+        return mPixels;
     }
 
     private NinePatch(BufferedImage image) {
@@ -218,8 +300,54 @@ public class NinePatch {
         return buffer;
     }
 
+    private static int[] getPremultipliedPixels(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+            int alpha = pixel >>> 24;
+            if (alpha == 0) {
+                pixels[i] = 0;
+            } else if (alpha != 0xFF) {
+                int red = (((pixel >> 16) & 0xFF) * alpha + 127) / 0xFF;
+                int green = (((pixel >> 8) & 0xFF) * alpha + 127) / 0xFF;
+                int blue = ((pixel & 0xFF) * alpha + 127) / 0xFF;
+                pixels[i] = alpha << 24 | red << 16 | green << 8 | blue;
+            }
+        }
+        return pixels;
+    }
+
     private BufferedImage extractBitmapContent(BufferedImage image) {
         return image.getSubimage(1, 1, image.getWidth() - 2, image.getHeight() - 2);
     }
 
+    /** Key of {@link #sRenderCache}: a 9-patch and the size it is rendered at. */
+    private static final class RenderKey {
+        private final NinePatch mNinePatch;
+        private final int mWidth;
+        private final int mHeight;
+
+        RenderKey(NinePatch ninePatch, int width, int height) {
+            mNinePatch = ninePatch;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RenderKey)) {
+                return false;
+            }
+            RenderKey other = (RenderKey) o;
+            return mNinePatch == other.mNinePatch && mWidth == other.mWidth
+                    && mHeight == other.mHeight;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(mNinePatch) * 31 + mWidth) * 31 + mHeight;
+        }
+    }
 }
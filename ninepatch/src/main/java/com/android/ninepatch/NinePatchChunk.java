@@ -22,7 +22,9 @@ import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The chunk information for a nine patch.
@@ -43,6 +45,9 @@ public class NinePatchChunk implements Serializable {
 
     private static final int[] sPaddingRect = new int[4];
 
+    /** Maximum number of sizes whose patch layout is kept. */
+    private static final int LAYOUT_CACHE_SIZE = 16;
+
     private boolean mVerticalStartWithPatch;
     private boolean mHorizontalStartWithPatch;
 
@@ -54,6 +59,9 @@ public class NinePatchChunk implements Serializable {
     private Pair<Integer> mHorizontalPadding;
     private Pair<Integer> mVerticalPadding;
 
+    /** Layouts of the patches for the sizes drawn recently, by size. */
+    private transient Map<Long, Layout> mLayouts;
+
 
     /**
      * Data computed during drawing.
@@ -65,6 +73,34 @@ public class NinePatchChunk implements Serializable {
         private float mVerticalPatchesSum;
     }
 
+    /**
+     * The layout of the patches for a given size: where each area of the image is drawn.
+     */
+    private static final class Layout {
+        /**
+         * The areas to draw, in order, 8 ints per area: destination x, y, width, height, and
+         * source x, y, width, height.
+         */
+        private final int[] mAreas;
+        private int mAreaCount;
+
+        Layout(int maxAreas) {
+            mAreas = new int[maxAreas * 8];
+        }
+
+        void addArea(int x, int y, int width, int height, Rectangle source) {
+            int i = mAreaCount++ * 8;
+            mAreas[i] = x;
+            mAreas[i + 1] = y;
+            mAreas[i + 2] = width;
+            mAreas[i + 3] = height;
+            mAreas[i + 4] = source.x;
+            mAreas[i + 5] = source.y;
+            mAreas[i + 6] = source.width;
+            mAreas[i + 7] = source.height;
+        }
+    }
+
     /**
      * Computes and returns the 9-patch chunks.
      * @param image the image containing both the content and the control outer line.
@@ -125,86 +161,257 @@ public class NinePatchChunk implements Serializable {
             }
 
             g.translate(x, y);
-            x = y = 0;
-
-            DrawingData data = computePatches(scaledWidth, scaledHeight);
-
-            int fixedIndex = 0;
-            int horizontalIndex = 0;
-            int verticalIndex = 0;
-            int patchIndex = 0;
-
-            boolean hStretch;
-            boolean vStretch;
-
-            float vWeightSum = 1.0f;
-            float vRemainder = data.mRemainderVertical;
-
-            vStretch = mVerticalStartWithPatch;
-            while (y < scaledHeight - 1) {
-                hStretch = mHorizontalStartWithPatch;
-
-                int height = 0;
-                float vExtra = 0.0f;
-
-                float hWeightSum = 1.0f;
-                float hRemainder = data.mRemainderHorizontal;
-
-                while (x < scaledWidth - 1) {
-                    Rectangle r;
-                    if (!vStretch) {
-                        if (hStretch) {
-                            r = mHorizontalPatches.get(horizontalIndex++);
-                            float extra = r.width / data.mHorizontalPatchesSum;
-                            int width = (int) (extra * hRemainder / hWeightSum);
-                            hWeightSum -= extra;
-                            hRemainder -= width;
-                            g.drawImage(image, x, y, x + width, y + r.height, r.x, r.y,
-                                    r.x + r.width, r.y + r.height, null);
-                            x += width;
-                        } else {
-                            r = mFixed.get(fixedIndex++);
-                            g.drawImage(image, x, y, x + r.width, y + r.height, r.x, r.y,
-                                    r.x + r.width, r.y + r.height, null);
-                            x += r.width;
-                        }
-                        height = r.height;
-                    } else {
-                        if (hStretch) {
-                            r = mPatches.get(patchIndex++);
-                            vExtra = r.height / data.mVerticalPatchesSum;
-                            height = (int) (vExtra * vRemainder / vWeightSum);
-                            float extra = r.width / data.mHorizontalPatchesSum;
-                            int width = (int) (extra * hRemainder / hWeightSum);
-                            hWeightSum -= extra;
-                            hRemainder -= width;
-                            g.drawImage(image, x, y, x + width, y + height, r.x, r.y,
-                                    r.x + r.width, r.y + r.height, null);
-                            x += width;
-                        } else {
-                            r = mVerticalPatches.get(verticalIndex++);
-                            vExtra = r.height / data.mVerticalPatchesSum;
-                            height = (int) (vExtra * vRemainder / vWeightSum);
-                            g.drawImage(image, x, y, x + r.width, y + height, r.x, r.y,
-                                    r.x + r.width, r.y + r.height, null);
-                            x += r.width;
-                        }
 
-                    }
-                    hStretch = !hStretch;
+            Layout layout = getLayout(scaledWidth, scaledHeight);
+            int[] areas = layout.mAreas;
+            for (int i = 0; i < layout.mAreaCount * 8; i += 8) {
+                int dx = areas[i];
+                int dy = areas[i + 1];
+                int sx = areas[i + 4];
+                int sy = areas[i + 5];
+                g.drawImage(image, dx, dy, dx + areas[i + 2], dy + areas[i + 3], sx, sy,
+                        sx + areas[i + 6], sy + areas[i + 7], null);
+            }
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * Renders the content of a nine patch stretched to the given size.
+     *
+     * This works directly on the pixels, with a bilinear interpolation of the stretched areas,
+     * and without going through AWT drawing.
+     *
+     * @param pixels the premultiplied ARGB pixels of the content of the nine patch, without the
+     *           control outer line.
+     * @param width the width of the content.
+     * @param scaledWidth the width to render.
+     * @param scaledHeight the height to render.
+     * @return the premultiplied ARGB pixels of the rendering, row by row.
+     */
+    int[] render(int[] pixels, int width, int scaledWidth, int scaledHeight) {
+        int[] result = new int[scaledWidth * scaledHeight];
+        if (scaledWidth <= 1 || scaledHeight <= 1) {
+            return result;
+        }
+
+        if (mPatches.size() == 0) {
+            renderArea(pixels, width, 0, 0, width, pixels.length / width, result, scaledWidth,
+                    scaledHeight, 0, 0, scaledWidth, scaledHeight);
+            return result;
+        }
+
+        Layout layout = getLayout(scaledWidth, scaledHeight);
+        int[] areas = layout.mAreas;
+        for (int i = 0; i < layout.mAreaCount * 8; i += 8) {
+            renderArea(pixels, width, areas[i + 4], areas[i + 5], areas[i + 6], areas[i + 7],
+                    result, scaledWidth, scaledHeight, areas[i], areas[i + 1], areas[i + 2],
+                    areas[i + 3]);
+        }
+        return result;
+    }
+
+    /**
+     * Renders an area of the source pixels stretched to an area of the result.
+     */
+    private static void renderArea(int[] pixels, int width, int sourceX, int sourceY,
+            int sourceWidth, int sourceHeight, int[] result, int scaledWidth, int scaledHeight,
+            int x, int y, int areaWidth, int areaHeight) {
+        if (sourceWidth <= 0 || sourceHeight <= 0 || areaWidth <= 0 || areaHeight <= 0) {
+            return;
+        }
+
+        // clip the area to the result.
+        int startX = Math.max(x, 0);
+        int endX = Math.min(x + areaWidth, scaledWidth);
+        int startY = Math.max(y, 0);
+        int endY = Math.min(y + areaHeight, scaledHeight);
+        if (startX >= endX || startY >= endY) {
+            return;
+        }
+
+        int[] columns = map(areaWidth, sourceWidth);
+        int[] rows = map(areaHeight, sourceHeight);
+        int length = endX - startX;
+        int previousRow = -1;
+        for (int dy = startY; dy < endY; dy++) {
+            int j = (dy - y) * 3;
+            int row = (sourceY + rows[j]) * width + sourceX;
+            int row2 = (sourceY + rows[j + 1]) * width + sourceX;
+            int wy = rows[j + 2];
+            int offset = dy * scaledWidth;
+
+            if (wy == 0 && previousRow >= 0 && rows[previousRow + 2] == 0
+                    && rows[previousRow] == rows[j]) {
+                // same source row as the previous one, typical of vertical stretching.
+                System.arraycopy(result, offset - scaledWidth + startX, result, offset + startX,
+                        length);
+                previousRow = j;
+                continue;
+            }
+            previousRow = j;
+
+            for (int dx = startX; dx < endX; dx++) {
+                int i = (dx - x) * 3;
+                int sx = columns[i];
+                int sx2 = columns[i + 1];
+                int wx = columns[i + 2];
+
+                int pixel = pixels[row + sx];
+                if (wx != 0) {
+                    pixel = interpolate(pixel, pixels[row + sx2], wx);
                 }
-                x = 0;
-                y += height;
-                if (vStretch) {
-                    vWeightSum -= vExtra;
-                    vRemainder -= height;
+                if (wy != 0) {
+                    int pixel2 = pixels[row2 + sx];
+                    if (wx != 0) {
+                        pixel2 = interpolate(pixel2, pixels[row2 + sx2], wx);
+                    }
+                    pixel = interpolate(pixel, pixel2, wy);
                 }
-                vStretch = !vStretch;
+                result[offset + dx] = pixel;
             }
+        }
+    }
 
-        } finally {
-            g.dispose();
+    /**
+     * Maps each pixel of a stretched line to the source pixels it is interpolated from, by
+     * sampling the source at the centers of the stretched pixels.
+     *
+     * @return 3 ints per stretched pixel: first source pixel, second source pixel, and weight of
+     *           the second one from 0 to 256.
+     */
+    private static int[] map(int length, int sourceLength) {
+        int[] mapping = new int[length * 3];
+        for (int i = 0; i < length; i++) {
+            int index = i * 3;
+            if (length == sourceLength) {
+                mapping[index] = mapping[index + 1] = i;
+                continue;
+            }
+            float position = (i + 0.5f) * sourceLength / length - 0.5f;
+            position = Math.max(0, Math.min(position, sourceLength - 1));
+            int first = (int) position;
+            mapping[index] = first;
+            mapping[index + 1] = Math.min(first + 1, sourceLength - 1);
+            mapping[index + 2] = Math.round((position - first) * 256);
         }
+        return mapping;
+    }
+
+    /**
+     * Interpolates two premultiplied ARGB pixels.
+     * @param weight the weight of the second pixel, from 0 to 256.
+     */
+    private static int interpolate(int pixel1, int pixel2, int weight) {
+        int weight1 = 256 - weight;
+        int rb = ((pixel1 & 0xFF00FF) * weight1 + (pixel2 & 0xFF00FF) * weight) >>> 8;
+        int ag = ((pixel1 >>> 8) & 0xFF00FF) * weight1 + ((pixel2 >>> 8) & 0xFF00FF) * weight;
+        return (ag & 0xFF00FF00) | (rb & 0xFF00FF);
+    }
+
+    /**
+     * Returns the layout of the patches for the given size, computing it if it is not one of the
+     * sizes drawn recently.
+     */
+    private synchronized Layout getLayout(int scaledWidth, int scaledHeight) {
+        if (mLayouts == null) {
+            mLayouts = new LinkedHashMap<Long, Layout>(LAYOUT_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Layout> eldest) {
+                    return size() > LAYOUT_CACHE_SIZE;
+                }
+            };
+        }
+
+        Long key = ((long) scaledWidth << 32) | (scaledHeight & 0xFFFFFFFFL);
+        Layout layout = mLayouts.get(key);
+        if (layout == null) {
+            layout = computeLayout(scaledWidth, scaledHeight);
+            mLayouts.put(key, layout);
+        }
+        return layout;
+    }
+
+    /**
+     * Computes where each area of the image is drawn for the given size.
+     */
+    private Layout computeLayout(int scaledWidth, int scaledHeight) {
+        int maxAreas = mFixed.size() + mPatches.size() + mHorizontalPatches.size()
+                + mVerticalPatches.size();
+        Layout layout = new Layout(maxAreas);
+
+        int x = 0;
+        int y = 0;
+
+        DrawingData data = computePatches(scaledWidth, scaledHeight);
+
+        int fixedIndex = 0;
+        int horizontalIndex = 0;
+        int verticalIndex = 0;
+        int patchIndex = 0;
+
+        boolean hStretch;
+        boolean vStretch;
+
+        float vWeightSum = 1.0f;
+        float vRemainder = data.mRemainderVertical;
+
+        vStretch = mVerticalStartWithPatch;
+        while (y < scaledHeight - 1) {
+            hStretch = mHorizontalStartWithPatch;
+
+            int height = 0;
+            float vExtra = 0.0f;
+
+            float hWeightSum = 1.0f;
+            float hRemainder = data.mRemainderHorizontal;
+
+            while (x < scaledWidth - 1) {
+                Rectangle r;
+                int width;
+                if (!vStretch) {
+                    if (hStretch) {
+                        r = mHorizontalPatches.get(horizontalIndex++);
+                        float extra = r.width / data.mHorizontalPatchesSum;
+                        width = (int) (extra * hRemainder / hWeightSum);
+                        hWeightSum -= extra;
+                        hRemainder -= width;
+                    } else {
+                        r = mFixed.get(fixedIndex++);
+                        width = r.width;
+                    }
+                    height = r.height;
+                } else {
+                    if (hStretch) {
+                        r = mPatches.get(patchIndex++);
+                        vExtra = r.height / data.mVerticalPatchesSum;
+                        height = (int) (vExtra * vRemainder / vWeightSum);
+                        float extra = r.width / data.mHorizontalPatchesSum;
+                        width = (int) (extra * hRemainder / hWeightSum);
+                        hWeightSum -= extra;
+                        hRemainder -= width;
+                    } else {
+                        r = mVerticalPatches.get(verticalIndex++);
+                        vExtra = r.height / data.mVerticalPatchesSum;
+                        height = (int) (vExtra * vRemainder / vWeightSum);
+                        width = r.width;
+                    }
+                }
+                layout.addArea(x, y, width, height, r);
+                x += width;
+                hStretch = !hStretch;
+            }
+            x = 0;
+            y += height;
+            if (vStretch) {
+                vWeightSum -= vExtra;
+                vRemainder -= height;
+            }
+            vStretch = !vStretch;
+        }
+
+        return layout;
     }
 
     /**
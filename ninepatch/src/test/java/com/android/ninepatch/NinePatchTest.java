@@ -16,7 +16,11 @@
 
 package com.android.ninepatch;
 
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import junit.framework.TestCase;
 
@@ -45,4 +49,122 @@ public class NinePatchTest extends TestCase {
         assertEquals(36, mPatch.getWidth());
         assertEquals(25, mPatch.getHeight());
     }
+
+    public void testRender() {
+        // the natural size of the 9-patch is 36x25, smaller sizes shrink its fixed areas.
+        int[][] sizes = { { 36, 25 }, { 37, 26 }, { 100, 60 }, { 40, 200 }, { 300, 25 },
+                { 20, 12 }, { 30, 60 }, { 100, 10 } };
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            BufferedImage rendering = mPatch.render(width, height);
+            assertEquals(width, rendering.getWidth());
+            assertEquals(height, rendering.getHeight());
+            assertSame(rendering, mPatch.render(width, height));
+
+            // the same as drawing the patches with AWT, apart from rounding. The colors are
+            // compared premultiplied, as the rendering stores them.
+            BufferedImage drawing = drawPatches(mPatch, width, height);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int expected = premultiply(drawing.getRGB(x, y));
+                    int actual = premultiply(rendering.getRGB(x, y));
+                    for (int shift = 0; shift < 32; shift += 8) {
+                        int difference =
+                                ((expected >>> shift) & 0xFF) - ((actual >>> shift) & 0xFF);
+                        assertTrue(String.format("%1$dx%2$d at %3$d,%4$d: %5$08x != %6$08x",
+                                width, height, x, y, expected, actual),
+                                Math.abs(difference) <= 1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the rendering times with drawing the patches with AWT. Not run by default, as it
+     * only prints the times.
+     */
+    public void benchmarkRender() {
+        List<NinePatch> patches = new ArrayList<NinePatch>();
+        patches.add(mPatch);
+        patches.add(NinePatch.load(createNinePatch(48, 48, 16, 16, 0xFF3366CC), true, false));
+        patches.add(NinePatch.load(createNinePatch(20, 100, 2, 50, 0x80FF8000), true, false));
+        patches.add(NinePatch.load(createNinePatch(120, 12, 60, 4, 0xFF00A000), true, false));
+
+        int[][] sizes = new int[200][];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = new int[] { 120 + (i * 37) % 400, 25 + (i * 53) % 300 };
+        }
+
+        long startTime = System.currentTimeMillis();
+        for (NinePatch patch : patches) {
+            for (int[] size : sizes) {
+                drawPatches(patch, size[0], size[1]);
+            }
+        }
+        long drawTime = System.currentTimeMillis() - startTime;
+
+        startTime = System.currentTimeMillis();
+        for (NinePatch patch : patches) {
+            for (int[] size : sizes) {
+                patch.render(size[0], size[1]);
+            }
+        }
+        long renderTime = System.currentTimeMillis() - startTime;
+
+        startTime = System.currentTimeMillis();
+        for (NinePatch patch : patches) {
+            for (int i = 0; i < sizes.length; i++) {
+                // resizing back and forth around the same sizes.
+                int[] size = sizes[i % 8];
+                patch.render(size[0], size[1]);
+            }
+        }
+        long cachedTime = System.currentTimeMillis() - startTime;
+
+        System.out.println(String.format(
+                "Rendered %1$d 9-patches at %2$d sizes: AWT: %3$d ms, rasters: %4$d ms, " +
+                "cached: %5$d ms", patches.size(), sizes.length, drawTime, renderTime,
+                cachedTime));
+    }
+
+    private static int premultiply(int color) {
+        int alpha = color >>> 24;
+        int red = (((color >> 16) & 0xFF) * alpha + 127) / 0xFF;
+        int green = (((color >> 8) & 0xFF) * alpha + 127) / 0xFF;
+        int blue = ((color & 0xFF) * alpha + 127) / 0xFF;
+        return alpha << 24 | red << 16 | green << 8 | blue;
+    }
+
+    private static BufferedImage drawPatches(NinePatch patch, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        patch.getChunk().draw(patch.getImage(), graphics, 0, 0, width, height, 0, 0);
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * Creates a 9-patch with a gradient content and a single stretchable area in each
+     * direction.
+     */
+    private static BufferedImage createNinePatch(int width, int height, int patchStart,
+            int patchLength, int color) {
+        BufferedImage image = new BufferedImage(width + 2, height + 2,
+                BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int shade = (x * 255 / width) ^ (y * 255 / height);
+                image.setRGB(x + 1, y + 1, (color & 0xFFFFFF00) | shade);
+            }
+        }
+        for (int x = patchStart; x < Math.min(patchStart + patchLength, width); x++) {
+            image.setRGB(x + 1, 0, 0xFF000000);
+        }
+        for (int y = patchStart; y < Math.min(patchStart + patchLength, height); y++) {
+            image.setRGB(0, y + 1, 0xFF000000);
+        }
+        return image;
+    }
 }
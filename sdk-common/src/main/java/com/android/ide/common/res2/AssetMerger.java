@@ -34,6 +34,12 @@ public class AssetMerger extends DataMerger<AssetItem, AssetFile, AssetSet> {
         return (AssetSet) set.createFromXml(node);
     }
 
+    @Override
+    protected AssetSet createFromBlob(@NonNull MergerBlob.Reader reader) {
+        AssetSet set = new AssetSet("");
+        return (AssetSet) set.createFromBlob(reader);
+    }
+
     @Override
     protected boolean requiresMerge(@NonNull String dataItemKey) {
         return false;
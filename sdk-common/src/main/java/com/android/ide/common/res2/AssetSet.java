@@ -64,6 +64,21 @@ public class AssetSet extends DataSet<AssetItem, AssetFile> {
         return new AssetFile(file, item);
     }
 
+    @Override
+    protected AssetFile createFileAndItems(@NonNull File file,
+            @NonNull MergerBlob.Reader reader) {
+        // assets are always single files.
+        int count = reader.readInt();
+        assert count == -1;
+
+        String name = reader.readString();
+        if (name == null) {
+            return null;
+        }
+
+        return new AssetFile(file, new AssetItem(name));
+    }
+
     @Override
     protected boolean isValidSourceFile(@NonNull File sourceFolder, @NonNull File file) {
         if (!super.isValidSourceFile(sourceFolder, file)) {
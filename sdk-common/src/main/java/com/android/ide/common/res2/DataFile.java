@@ -19,10 +19,8 @@ package com.android.ide.common.res2;
 import com.android.annotations.NonNull;
 import com.google.common.collect.Maps;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-
 import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Map;
 
@@ -134,7 +132,11 @@ public abstract class DataFile<I extends DataItem> {
         item.setSource(null);
     }
 
-    void addExtraAttributes(Document document, Node node, String namespaceUri) {
+    /**
+     * Writes the data specific to this type of file to a merger blob.
+     * @param writer the blob writer.
+     */
+    void writeExtraData(@NonNull MergerBlob.Writer writer) throws IOException {
         // nothing
     }
 
@@ -18,9 +18,10 @@ package com.android.ide.common.res2;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
-import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
+import java.io.IOException;
+
 /**
  * Base item.
  *
@@ -183,12 +184,20 @@ abstract class DataItem<F extends DataFile> {
         return mName;
     }
 
-    void addExtraAttributes(Document document, Node node, String namespaceUri) {
+    /**
+     * Writes the data specific to this type of item to a merger blob.
+     * @param writer the blob writer.
+     */
+    void writeExtraData(@NonNull MergerBlob.Writer writer) throws IOException {
         // nothing
     }
 
-    Node getAdoptedNode(Document document) {
-        return null;
+    /**
+     * Writes the value of the item to a merger blob.
+     * @param writer the blob writer.
+     */
+    void writeValue(@NonNull MergerBlob.Writer writer) throws IOException {
+        writer.writeFragment((Node) null);
     }
 
     @Override
@@ -20,12 +20,10 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.utils.XmlUtils;
-import com.google.common.base.Charsets;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
-import com.google.common.io.Files;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
@@ -36,6 +34,7 @@ import org.xml.sax.SAXParseException;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -43,7 +42,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -54,6 +52,8 @@ import javax.xml.parsers.ParserConfigurationException;
  */
 abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extends DataSet<I,F>> implements DataMap<I> {
 
+    static final String FN_MERGER_BLOB = "merger.bin";
+    /** The blob written by previous versions, which is still loaded if present. */
     static final String FN_MERGER_XML = "merger.xml";
     static final String NODE_MERGER = "merger";
     static final String NODE_DATA_SET = "dataSet";
@@ -80,6 +80,8 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
 
     protected abstract S createFromXml(Node node);
 
+    protected abstract S createFromBlob(@NonNull MergerBlob.Reader reader);
+
     protected abstract boolean requiresMerge(@NonNull String dataItemKey);
 
     /**
@@ -312,43 +314,36 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
     public void writeBlobTo(@NonNull File blobRootFolder, @NonNull MergeConsumer<I> consumer)
             throws MergingException {
         // write "compact" blob
-        DocumentBuilder builder;
+        MergerBlob.Writer writer = new MergerBlob.Writer();
 
         try {
-            builder = mFactory.newDocumentBuilder();
-            Document document = builder.newDocument();
-
-            Node rootNode = document.createElement(NODE_MERGER);
-            // add the version code.
-            NodeUtils.addAttribute(document, rootNode, null, ATTR_VERSION, MERGE_BLOB_VERSION);
-
-            document.appendChild(rootNode);
-
+            writer.writeInt(mDataSets.size());
             for (S dataSet : mDataSets) {
-                Node dataSetNode = document.createElement(NODE_DATA_SET);
-                rootNode.appendChild(dataSetNode);
-
-                dataSet.appendToXml(dataSetNode, document, consumer);
+                dataSet.writeToBlob(writer, consumer);
             }
 
             // write merged items
-            writeMergedItems(document, rootNode);
+            writeMergedItems(writer);
+        } catch (IOException e) {
+            throw new MergingException(e);
+        }
 
-            String content = XmlUtils.toXml(document, true /*preserveWhitespace*/);
+        try {
+            createDir(blobRootFolder);
+        } catch (IOException ioe) {
+            throw new MergingException(ioe).setFile(blobRootFolder);
+        }
+        File file = new File(blobRootFolder, FN_MERGER_BLOB);
+        try {
+            writer.writeTo(file);
+        } catch (IOException ioe) {
+            throw new MergingException(ioe).setFile(file);
+        }
 
-            try {
-                createDir(blobRootFolder);
-            } catch (IOException ioe) {
-                throw new MergingException(ioe).setFile(blobRootFolder);
-            }
-            File file = new File(blobRootFolder, FN_MERGER_XML);
-            try {
-                Files.write(content, file, Charsets.UTF_8);
-            } catch (IOException ioe) {
-                throw new MergingException(ioe).setFile(file);
-            }
-        } catch (ParserConfigurationException e) {
-            throw new MergingException(e);
+        // remove the blob of a previous version of the merger, which is now stale.
+        File xmlFile = new File(blobRootFolder, FN_MERGER_XML);
+        if (xmlFile.isFile()) {
+            xmlFile.delete();
         }
     }
 
@@ -365,6 +360,9 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
      * If <code>false</code>, the items are marked as touched, and this can be used to feed a new
      * {@link ResourceRepository} object.
      *
+     * The blob written by a previous version of the merger, as XML, is loaded if there is no
+     * binary blob.
+     *
      * @param blobRootFolder the folder containing the blob.
      * @param incrementalState whether to load into an incremental state or a new state.
      * @return true if the blob was loaded.
@@ -374,11 +372,87 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
      */
     public boolean loadFromBlob(@NonNull File blobRootFolder, boolean incrementalState)
             throws MergingException {
-        File file = new File(blobRootFolder, FN_MERGER_XML);
-        if (!file.isFile()) {
+        boolean loaded;
+        File file = new File(blobRootFolder, FN_MERGER_BLOB);
+        if (file.isFile()) {
+            loaded = loadFromBinaryBlob(file, incrementalState);
+        } else {
+            file = new File(blobRootFolder, FN_MERGER_XML);
+            if (!file.isFile()) {
+                return false;
+            }
+            loaded = loadFromXmlBlob(file, incrementalState);
+        }
+
+        if (!loaded) {
             return false;
         }
 
+        if (incrementalState) {
+            setPostBlobLoadStateToWritten();
+        } else {
+            setPostBlobLoadStateToTouched();
+        }
+
+        return true;
+    }
+
+    /**
+     * Loads the binary blob. A blob which is truncated or otherwise corrupted is treated
+     * like a blob of another format version: nothing is loaded, and the caller is expected to
+     * do a full merge instead.
+     */
+    private boolean loadFromBinaryBlob(@NonNull File file, boolean incrementalState)
+            throws MergingException {
+        int dataSetCount = mDataSets.size();
+        try {
+            MergerBlob.Reader reader = MergerBlob.Reader.open(file);
+            if (reader == null) {
+                return false;
+            }
+
+            for (int i = 0, n = reader.readInt(); i < n; i++) {
+                mDataSets.add(createFromBlob(reader));
+            }
+
+            if (incrementalState) {
+                // only load the merged item in incremental state.
+                // In non incremental state, they will be recreated by the touched
+                // items anyway.
+                loadMergedItems(reader);
+            }
+
+            return true;
+        } catch (IOException e) {
+            throw new MergingException(e).setFile(file);
+        } catch (BufferUnderflowException e) {
+            // truncated blob
+            return discardBinaryBlob(dataSetCount);
+        } catch (IndexOutOfBoundsException e) {
+            // bad string index
+            return discardBinaryBlob(dataSetCount);
+        } catch (IllegalArgumentException e) {
+            // bad length or position
+            return discardBinaryBlob(dataSetCount);
+        } catch (NegativeArraySizeException e) {
+            // bad count
+            return discardBinaryBlob(dataSetCount);
+        }
+    }
+
+    /**
+     * Drops whatever was loaded from an unreadable binary blob.
+     * @param dataSetCount the number of data sets before the blob was loaded.
+     * @return false, to be returned by {@link #loadFromBinaryBlob(File, boolean)}.
+     */
+    private boolean discardBinaryBlob(int dataSetCount) {
+        mDataSets.subList(dataSetCount, mDataSets.size()).clear();
+        clearMergedItems();
+        return false;
+    }
+
+    private boolean loadFromXmlBlob(@NonNull File file, boolean incrementalState)
+            throws MergingException {
         try {
             Document document = XmlUtils.parseUtfXmlFile(file, true /*namespaceAware*/);
 
@@ -420,12 +494,6 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
                 }
             }
 
-            if (incrementalState) {
-                setPostBlobLoadStateToWritten();
-            } else {
-                setPostBlobLoadStateToTouched();
-            }
-
             return true;
         } catch (SAXParseException e) {
             MergingException exception = new MergingException(e);
@@ -449,12 +517,28 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
         // do nothing by default.
     }
 
-    protected void writeMergedItems(Document document, Node rootNode) {
+    protected void loadMergedItems(@NonNull MergerBlob.Reader reader) {
+        // do nothing by default.
+    }
+
+    protected void writeMergedItems(@NonNull MergerBlob.Writer writer) throws IOException {
+        // do nothing by default.
+    }
+
+    /**
+     * Discards the merged items loaded by {@link #loadMergedItems(MergerBlob.Reader)}, when
+     * the rest of the blob turns out to be unreadable.
+     */
+    protected void clearMergedItems() {
         // do nothing by default.
     }
 
     public void cleanBlob(@NonNull File blobRootFolder) {
-        File file = new File(blobRootFolder, FN_MERGER_XML);
+        File file = new File(blobRootFolder, FN_MERGER_BLOB);
+        if (file.isFile()) {
+            file.delete();
+        }
+        file = new File(blobRootFolder, FN_MERGER_XML);
         if (file.isFile()) {
             file.delete();
         }
@@ -18,23 +18,29 @@ package com.android.ide.common.res2;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.ide.common.internal.ExecutorSingleton;
 import com.android.utils.ILogger;
 import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import org.w3c.dom.Attr;
-import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Represents a set of {@link DataItem}s.
@@ -86,6 +92,13 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
      */
     private final Map<File, F> mDataFileMap = Maps.newHashMap();
 
+    /**
+     * The files being loaded by {@link #loadFromFiles(List, ILogger)}, in the order in which
+     * they were found.
+     */
+    @Nullable
+    private List<PendingFile> mPendingFiles;
+
     /**
      * Creates a DataSet with a given configName. The name is used to identify the set
      * across sessions.
@@ -100,7 +113,7 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
 
     /**
      * Creates a DataFile and associated DataItems from an XML node from a file created with
-     * {@link DataSet#appendToXml(org.w3c.dom.Node, org.w3c.dom.Document, MergeConsumer)}
+     * a previous version of {@link DataMerger}.
      *
      * @param file the file represented by the DataFile
      * @param fileNode the XML node.
@@ -108,11 +121,26 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
      */
     protected abstract F createFileAndItems(@NonNull File file, @NonNull Node fileNode);
 
+    /**
+     * Creates a DataFile and associated DataItems from a merger blob record written by
+     * {@link DataSet#writeToBlob(MergerBlob.Writer, MergeConsumer)}
+     *
+     * The whole record must be read, even if no DataFile is created.
+     *
+     * @param file the file represented by the DataFile
+     * @param reader the blob reader, positioned after the path of the file.
+     * @return a DataFile
+     */
+    @Nullable
+    protected abstract F createFileAndItems(@NonNull File file,
+            @NonNull MergerBlob.Reader reader);
+
     /**
      * Reads the content of a data folders and loads the DataItem.
      *
      * This should generate DataFiles, and process them with
-     * {@link #processNewDataFile(java.io.File, DataFile, boolean)}.
+     * {@link #processNewDataFile(java.io.File, DataFile, boolean)}, or have them generated in
+     * parallel with {@link #loadDataFile(File, Callable)}.
      *
      * @param sourceFolder the source folder to load the resources from.
      *
@@ -228,6 +256,43 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
      * @throws MergingException if something goes wrong
      */
     public void loadFromFiles(ILogger logger) throws MergingException {
+        loadFromFiles(Collections.singletonList(this), logger);
+    }
+
+    /**
+     * Loads several DataSets from the files their source folders contain.
+     *
+     * The files of all the sets are loaded in parallel, but they are added to their set in the
+     * order in which they were found, so the result is the same as loading each set with
+     * {@link #loadFromFiles(ILogger)}.
+     *
+     * @param dataSets the sets to load.
+     * @param logger a logger object
+     *
+     * @throws MergingException if something goes wrong
+     */
+    public static void loadFromFiles(@NonNull List<? extends DataSet<?, ?>> dataSets,
+            @NonNull ILogger logger) throws MergingException {
+        try {
+            // find the files of all the sets first. Loading the files starts as soon as they
+            // are found.
+            for (DataSet<?, ?> dataSet : dataSets) {
+                dataSet.readSourceFolders(logger);
+            }
+
+            for (DataSet<?, ?> dataSet : dataSets) {
+                dataSet.processPendingFiles();
+                dataSet.checkItems();
+            }
+        } finally {
+            for (DataSet<?, ?> dataSet : dataSets) {
+                dataSet.cancelPendingFiles();
+            }
+        }
+    }
+
+    private void readSourceFolders(@NonNull ILogger logger) throws MergingException {
+        mPendingFiles = Lists.newArrayList();
         for (File file : mSourceFiles) {
             if (file.isDirectory()) {
                 readSourceFolder(file, logger);
@@ -236,69 +301,180 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
                 // TODO support resource bundle
             }
         }
-        checkItems();
     }
 
     /**
-     * Appends the DataSet to a given DOM object.
+     * Loads a data file found by {@link #readSourceFolder(File, ILogger)}. The loader may run on
+     * another thread, but the DataFile it creates is processed with
+     * {@link #processNewDataFile(File, DataFile, boolean)} after all the files the set found
+     * before it. Outside of {@link #loadFromFiles(List, ILogger)}, the file is loaded and
+     * processed right away.
      *
-     * @param setNode the root node for this set.
-     * @param document The root XML document
+     * @param sourceFolder the source folder containing the file.
+     * @param loader creates the DataFile and associated DataItems, or returns null.
+     *
+     * @throws MergingException if the file is loaded right away and loading it fails
      */
-    void appendToXml(@NonNull Node setNode, @NonNull Document document,
-            @NonNull MergeConsumer<I> consumer) {
-        // add the config name attribute
-        NodeUtils.addAttribute(document, setNode, null, ATTR_CONFIG, mConfigName);
+    protected void loadDataFile(@NonNull File sourceFolder, @NonNull Callable<F> loader)
+            throws MergingException {
+        if (mPendingFiles == null) {
+            F dataFile;
+            try {
+                dataFile = loader.call();
+            } catch (Exception e) {
+                Throwables.propagateIfPossible(e, MergingException.class);
+                throw new MergingException(e);
+            }
+            if (dataFile != null) {
+                processNewDataFile(sourceFolder, dataFile, true /*setTouched*/);
+            }
+            return;
+        }
+
+        PendingFile pendingFile = new PendingFile(sourceFolder, loader);
+        mPendingFiles.add(pendingFile);
+        ExecutorSingleton.getExecutor().execute(pendingFile);
+    }
+
+    private void processPendingFiles() throws MergingException {
+        for (PendingFile pendingFile : mPendingFiles) {
+            // load the file on this thread if no other thread has started yet.
+            pendingFile.run();
+
+            F dataFile;
+            try {
+                dataFile = pendingFile.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MergingException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                Throwables.propagateIfPossible(cause, MergingException.class);
+                throw new MergingException(cause);
+            }
+
+            if (dataFile != null) {
+                processNewDataFile(pendingFile.mSourceFolder, dataFile, true /*setTouched*/);
+            }
+        }
+        mPendingFiles = null;
+    }
+
+    private void cancelPendingFiles() {
+        if (mPendingFiles != null) {
+            for (PendingFile pendingFile : mPendingFiles) {
+                pendingFile.cancel(false /*mayInterruptIfRunning*/);
+            }
+            mPendingFiles = null;
+        }
+    }
+
+    /** A data file being loaded by {@link #loadDataFile(File, Callable)}. */
+    private final class PendingFile extends FutureTask<F> {
+        @NonNull
+        private final File mSourceFolder;
+
+        PendingFile(@NonNull File sourceFolder, @NonNull Callable<F> loader) {
+            super(loader);
+            mSourceFolder = sourceFolder;
+        }
+    }
+
+    /**
+     * Writes the DataSet to a merger blob.
+     *
+     * For each source file, this writes the path of the source and of its data files. For each
+     * data file, {@link DataFile#writeExtraData(MergerBlob.Writer)} is followed by the number of
+     * items, or -1 for a {@link DataFile.FileType#SINGLE} file, and by the items: their name,
+     * {@link DataItem#writeExtraData(MergerBlob.Writer)} and, in a multi file, their value.
+     *
+     * @param writer the blob writer.
+     * @param consumer the merge consumer that was used by the merge.
+     * @throws IOException if something goes wrong
+     *
+     * @see #createFileAndItems(File, MergerBlob.Reader)
+     */
+    void writeToBlob(@NonNull MergerBlob.Writer writer, @NonNull MergeConsumer<I> consumer)
+            throws IOException {
+        writer.writeString(mConfigName);
 
-        // add the source files.
         // we need to loop on the source files themselves and not the map to ensure we
         // write empty resourceSets
+        writer.writeInt(mSourceFiles.size());
         for (File sourceFile : mSourceFiles) {
+            writer.writeString(sourceFile.getAbsolutePath());
 
-            // the node for the source and its path attribute
-            Node sourceNode = document.createElement(NODE_SOURCE);
-            setNode.appendChild(sourceNode);
-            NodeUtils.addAttribute(document, sourceNode, null, ATTR_PATH,
-                    sourceFile.getAbsolutePath());
-
-            Collection<F> dataFiles = mSourceFileToDataFilesMap.get(sourceFile);
-
-            for (F dataFile : dataFiles) {
-                if (!dataFile.hasNotRemovedItems()) {
-                    continue;
+            List<F> dataFiles = Lists.newArrayList();
+            for (F dataFile : mSourceFileToDataFilesMap.get(sourceFile)) {
+                if (dataFile.hasNotRemovedItems()) {
+                    dataFiles.add(dataFile);
                 }
+            }
 
-                // the node for the file and its path and qualifiers attribute
-                Node fileNode = document.createElement(NODE_FILE);
-                sourceNode.appendChild(fileNode);
-                NodeUtils.addAttribute(document, fileNode, null, ATTR_PATH,
-                        dataFile.getFile().getAbsolutePath());
-                dataFile.addExtraAttributes(document, fileNode, null);
+            writer.writeInt(dataFiles.size());
+            for (F dataFile : dataFiles) {
+                writer.writeString(dataFile.getFile().getAbsolutePath());
+                dataFile.writeExtraData(writer);
 
                 if (dataFile.getType() == DataFile.FileType.MULTI) {
+                    List<I> items = Lists.newArrayList();
                     for (I item : dataFile.getItems()) {
-                        if (item.isRemoved()|| consumer.ignoreItemInMerge(item)) {
-                            continue;
-                        }
-                        Node adoptedNode = item.getAdoptedNode(document);
-                        if (adoptedNode != null) {
-                            fileNode.appendChild(adoptedNode);
+                        if (!item.isRemoved() && !consumer.ignoreItemInMerge(item)) {
+                            items.add(item);
                         }
                     }
+
+                    writer.writeInt(items.size());
+                    for (I item : items) {
+                        writer.writeString(item.getName());
+                        item.writeExtraData(writer);
+                        item.writeValue(writer);
+                    }
                 } else {
                     // no need to check for isRemoved here since it's checked
                     // at the file level and there's only one item.
                     I dataItem = dataFile.getItem();
-                    NodeUtils.addAttribute(document, fileNode, null, ATTR_NAME, dataItem.getName());
-                    dataItem.addExtraAttributes(document, fileNode, null);
+                    writer.writeInt(-1);
+                    writer.writeString(dataItem.getName());
+                    dataItem.writeExtraData(writer);
                 }
             }
         }
     }
 
     /**
-     * Creates and returns a new DataSet from an XML node that was created with
-     * {@link #appendToXml(org.w3c.dom.Node, org.w3c.dom.Document, MergeConsumer)}
+     * Creates and returns a new DataSet from a merger blob record that was written with
+     * {@link #writeToBlob(MergerBlob.Writer, MergeConsumer)}
+     *
+     * The object this method is called on is not modified. This should be static but can't be
+     * due to children classes.
+     *
+     * @param reader the blob reader, positioned at the start of the record.
+     * @return a new DataSet object.
+     */
+    @NonNull
+    DataSet<I,F> createFromBlob(@NonNull MergerBlob.Reader reader) {
+        DataSet<I, F> dataSet = createSet(reader.readString());
+
+        for (int i = 0, n = reader.readInt(); i < n; i++) {
+            File sourceFolder = new File(reader.readString());
+            dataSet.mSourceFiles.add(sourceFolder);
+
+            for (int j = 0, m = reader.readInt(); j < m; j++) {
+                F dataFile = createFileAndItems(new File(reader.readString()), reader);
+
+                if (dataFile != null) {
+                    dataSet.processNewDataFile(sourceFolder, dataFile, false /*setTouched*/);
+                }
+            }
+        }
+
+        return dataSet;
+    }
+
+    /**
+     * Creates and returns a new DataSet from an XML node that was created by a previous
+     * version of {@link DataMerger}.
      *
      * The object this method is called on is not modified. This should be static but can't be
      * due to children classes.
@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.res2;
+
+import static com.android.SdkConstants.XMLNS;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.utils.XmlUtils;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Binary file format used by {@link DataMerger} to store its state between builds.
+ *
+ * The file starts with a magic number and a format version, followed by a table of all the
+ * strings used in the file, and by the records written by the merger. Strings are written in
+ * records as indices in the string table. Resource values are stored as raw XML fragments, and
+ * are only parsed into a DOM when the merger needs them; values which are never looked at are
+ * copied as-is to the next blob.
+ *
+ * The file is memory mapped while reading, so the merger state of a large project can be loaded
+ * without reading and decoding all of its values.
+ */
+class MergerBlob {
+
+    private static final int MAGIC = 0x4D524742; // MRGB
+    static final int VERSION = 1;
+
+    private static final String NODE_FRAGMENT_ROOT = "fragment";
+
+    private MergerBlob() {
+    }
+
+    /**
+     * A resource value stored in a blob as an XML fragment, along with the namespace
+     * declarations it needs.
+     */
+    static class Fragment {
+        @NonNull private final Reader mReader;
+        @NonNull private final ByteBuffer mContent;
+        @NonNull private final String[] mNamespaces;
+
+        private Fragment(@NonNull Reader reader, @NonNull ByteBuffer content,
+                @NonNull String[] namespaces) {
+            mReader = reader;
+            mContent = content;
+            mNamespaces = namespaces;
+        }
+
+        /**
+         * Parses the fragment and returns its root element.
+         * @return a new Node, owned by its own document.
+         */
+        @NonNull
+        Node parse() {
+            StringBuilder sb = new StringBuilder(mContent.limit() + 64);
+            sb.append('<').append(NODE_FRAGMENT_ROOT);
+            for (int i = 0; i < mNamespaces.length; i += 2) {
+                sb.append(' ').append(XMLNS);
+                if (!mNamespaces[i].isEmpty()) {
+                    sb.append(':').append(mNamespaces[i]);
+                }
+                sb.append("=\"");
+                XmlUtils.appendXmlAttributeValue(sb, mNamespaces[i + 1]);
+                sb.append('"');
+            }
+            sb.append('>');
+            sb.append(Charsets.UTF_8.decode(mContent.duplicate()));
+            sb.append("</").append(NODE_FRAGMENT_ROOT).append('>');
+
+            Document document = mReader.parse(sb.toString());
+            NodeList children = document.getDocumentElement().getChildNodes();
+            for (int i = 0, n = children.getLength(); i < n; i++) {
+                Node child = children.item(i);
+                if (child.getNodeType() == Node.ELEMENT_NODE) {
+                    return child;
+                }
+            }
+
+            throw new IllegalStateException("Empty value in " + mReader.mFile);
+        }
+    }
+
+    /**
+     * Writes a blob. Records are buffered in memory, and written to the file along with the
+     * string table by {@link #writeTo(File)}.
+     */
+    static class Writer {
+        private final Map<String, Integer> mStrings = Maps.newLinkedHashMap();
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream(64 * 1024);
+        private final DataOutputStream mOut = new DataOutputStream(mBytes);
+
+        void writeInt(int value) throws IOException {
+            mOut.writeInt(value);
+        }
+
+        void writeString(@Nullable String value) throws IOException {
+            if (value == null) {
+                mOut.writeInt(-1);
+                return;
+            }
+            Integer index = mStrings.get(value);
+            if (index == null) {
+                index = mStrings.size();
+                mStrings.put(value, index);
+            }
+            mOut.writeInt(index);
+        }
+
+        /**
+         * Writes a resource value as an XML fragment.
+         * @param node the value, or null.
+         */
+        void writeFragment(@Nullable Node node) throws IOException {
+            if (node == null) {
+                mOut.writeInt(-1);
+                return;
+            }
+
+            Map<String, String> namespaces = Maps.newLinkedHashMap();
+            collectNamespaces(node, namespaces);
+            mOut.writeInt(namespaces.size() * 2);
+            for (Map.Entry<String, String> entry : namespaces.entrySet()) {
+                writeString(entry.getKey());
+                writeString(entry.getValue());
+            }
+
+            byte[] content = XmlUtils.toXml(node, true /*preserveWhitespace*/)
+                    .getBytes(Charsets.UTF_8);
+            mOut.writeInt(content.length);
+            mOut.write(content);
+        }
+
+        /**
+         * Copies a fragment read from a previous blob, without parsing it.
+         * @param fragment the fragment.
+         */
+        void writeFragment(@NonNull Fragment fragment) throws IOException {
+            mOut.writeInt(fragment.mNamespaces.length);
+            for (String namespace : fragment.mNamespaces) {
+                writeString(namespace);
+            }
+
+            ByteBuffer content = fragment.mContent.duplicate();
+            mOut.writeInt(content.remaining());
+            if (content.hasArray()) {
+                mOut.write(content.array(), content.arrayOffset() + content.position(),
+                        content.remaining());
+            } else {
+                byte[] buffer = new byte[content.remaining()];
+                content.get(buffer);
+                mOut.write(buffer);
+            }
+        }
+
+        /**
+         * Writes the blob to the given file.
+         *
+         * The blob is first written to a temporary file in the same folder, which then replaces
+         * the file, so an interrupted write never leaves a truncated blob behind. A previous
+         * version of the file may still be mapped by a {@link Reader}; replacing the file rather
+         * than writing it in place keeps the mapped content available.
+         *
+         * @param file the file to write.
+         */
+        void writeTo(@NonNull File file) throws IOException {
+            File parent = file.getAbsoluteFile().getParentFile();
+            File tmpFile = File.createTempFile(file.getName(), ".tmp", parent);
+            try {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tmpFile)));
+                boolean threw = true;
+                try {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(mStrings.size());
+                    for (String string : mStrings.keySet()) {
+                        byte[] bytes = string.getBytes(Charsets.UTF_8);
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                    mOut.flush();
+                    mBytes.writeTo(out);
+                    threw = false;
+                } finally {
+                    Closeables.close(out, threw);
+                }
+
+                // The rename fails on Windows if the file exists
+                if (!tmpFile.renameTo(file)
+                        && (!file.delete() || !tmpFile.renameTo(file))) {
+                    throw new IOException("Failed to replace " + file);
+                }
+            } finally {
+                if (tmpFile.exists()) {
+                    //noinspection ResultOfMethodCallIgnored
+                    tmpFile.delete();
+                }
+            }
+        }
+
+        private static void collectNamespaces(@NonNull Node node,
+                @NonNull Map<String, String> namespaces) {
+            addNamespace(node, namespaces);
+
+            NamedNodeMap attributes = node.getAttributes();
+            if (attributes != null) {
+                for (int i = 0, n = attributes.getLength(); i < n; i++) {
+                    addNamespace(attributes.item(i), namespaces);
+                }
+            }
+
+            NodeList children = node.getChildNodes();
+            for (int i = 0, n = children.getLength(); i < n; i++) {
+                Node child = children.item(i);
+                if (child.getNodeType() == Node.ELEMENT_NODE) {
+                    collectNamespaces(child, namespaces);
+                }
+            }
+        }
+
+        private static void addNamespace(@NonNull Node node,
+                @NonNull Map<String, String> namespaces) {
+            String uri = node.getNamespaceURI();
+            if (uri == null || SdkConstants.XMLNS_URI.equals(uri)) {
+                return;
+            }
+            String prefix = node.getPrefix();
+            if (prefix == null) {
+                prefix = "";
+            }
+            if (!namespaces.containsKey(prefix)) {
+                namespaces.put(prefix, uri);
+            }
+        }
+    }
+
+    /**
+     * Reads a blob written by a {@link Writer}.
+     */
+    static class Reader {
+        @NonNull private final File mFile;
+        @NonNull private final ByteBuffer mBuffer;
+        private final String[] mStrings;
+        private DocumentBuilder mBuilder;
+
+        private Reader(@NonNull File file, @NonNull ByteBuffer buffer, @NonNull String[] strings) {
+            mFile = file;
+            mBuffer = buffer;
+            mStrings = strings;
+        }
+
+        /**
+         * Opens a blob file.
+         *
+         * @param file the blob file.
+         * @return a reader positioned after the string table, or null if the file was written
+         *     with a different version of the format.
+         * @throws IOException if the file cannot be read.
+         * @throws java.nio.BufferUnderflowException if the file is truncated.
+         * @throws IllegalArgumentException if the file is corrupted.
+         */
+        @Nullable
+        static Reader open(@NonNull File file) throws IOException {
+            ByteBuffer buffer;
+            if (SdkConstants.currentPlatform() == SdkConstants.PLATFORM_WINDOWS) {
+                // A mapped file cannot be replaced on Windows until the mapping is garbage
+                // collected, which would prevent writing the next blob.
+                buffer = ByteBuffer.wrap(Files.toByteArray(file));
+            } else {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    FileChannel channel = raf.getChannel();
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                } finally {
+                    raf.close();
+                }
+            }
+
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+
+            String[] strings = new String[buffer.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                int length = buffer.getInt();
+                ByteBuffer bytes = buffer.slice();
+                bytes.limit(length);
+                strings[i] = Charsets.UTF_8.decode(bytes).toString();
+                buffer.position(buffer.position() + length);
+            }
+
+            return new Reader(file, buffer, strings);
+        }
+
+        @NonNull
+        File getFile() {
+            return mFile;
+        }
+
+        boolean hasRemaining() {
+            return mBuffer.hasRemaining();
+        }
+
+        int readInt() {
+            return mBuffer.getInt();
+        }
+
+        @Nullable
+        String readString() {
+            int index = mBuffer.getInt();
+            return index == -1 ? null : mStrings[index];
+        }
+
+        /**
+         * Reads a fragment written by {@link Writer#writeFragment(Node)}. The fragment is not
+         * parsed.
+         * @return the fragment or null.
+         */
+        @Nullable
+        Fragment readFragment() {
+            int namespaceCount = mBuffer.getInt();
+            if (namespaceCount == -1) {
+                return null;
+            }
+
+            String[] namespaces = new String[namespaceCount];
+            for (int i = 0; i < namespaceCount; i++) {
+                namespaces[i] = readString();
+            }
+
+            int length = mBuffer.getInt();
+            ByteBuffer content = mBuffer.slice();
+            content.limit(length);
+            mBuffer.position(mBuffer.position() + length);
+
+            return new Fragment(this, content, namespaces);
+        }
+
+        @NonNull
+        private synchronized Document parse(@NonNull String xml) {
+            try {
+                if (mBuilder == null) {
+                    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                    factory.setNamespaceAware(true);
+                    factory.setValidating(false);
+                    mBuilder = factory.newDocumentBuilder();
+                }
+                return mBuilder.parse(new InputSource(new StringReader(xml)));
+            } catch (ParserConfigurationException e) {
+                throw new IllegalStateException(e);
+            } catch (SAXException e) {
+                throw new IllegalStateException("Invalid value in " + mFile, e);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
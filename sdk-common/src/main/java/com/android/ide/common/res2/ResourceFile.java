@@ -18,10 +18,8 @@ package com.android.ide.common.res2;
 
 import com.android.annotations.NonNull;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -86,9 +84,8 @@ public class ResourceFile extends DataFile<ResourceItem> {
     }
 
     @Override
-    void addExtraAttributes(Document document, Node node, String namespaceUri) {
-        NodeUtils.addAttribute(document, node, namespaceUri, ATTR_QUALIFIER,
-                getQualifiers());
+    void writeExtraData(@NonNull MergerBlob.Writer writer) throws IOException {
+        writer.writeString(getQualifiers());
     }
 
     @Override
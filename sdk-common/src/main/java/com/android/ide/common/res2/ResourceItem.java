@@ -53,12 +53,13 @@ import com.android.utils.XmlUtils;
 import com.google.common.base.Splitter;
 
 import org.w3c.dom.Attr;
-import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import java.io.IOException;
+
 /**
  * A resource.
  *
@@ -72,6 +73,13 @@ public class ResourceItem extends DataItem<ResourceFile>
 
     private Node mValue;
 
+    /**
+     * The value as stored in a merger blob, if the item was loaded from one. It is parsed into
+     * {@link #mValue} the first time the value is needed.
+     */
+    @Nullable
+    private MergerBlob.Fragment mValueFragment;
+
     protected ResourceValue mResourceValue;
 
     /**
@@ -106,9 +114,22 @@ public class ResourceItem extends DataItem<ResourceFile>
      */
     @Nullable
     public Node getValue() {
+        if (mValue == null && mValueFragment != null) {
+            mValue = mValueFragment.parse();
+        }
         return mValue;
     }
 
+    /**
+     * Sets the value of the resource from a merger blob. The value is only parsed when needed.
+     *
+     * @param fragment the value as stored in the blob.
+     */
+    void setValueFragment(@NonNull MergerBlob.Fragment fragment) {
+        mValue = null;
+        mValueFragment = fragment;
+    }
+
     /**
      * Returns the optional string value of the resource. Can be null
      *
@@ -116,7 +137,8 @@ public class ResourceItem extends DataItem<ResourceFile>
      */
     @Nullable
     public String getValueText() {
-        return mValue != null ? mValue.getTextContent() : null;
+        Node value = getValue();
+        return value != null ? value.getTextContent() : null;
     }
 
     /**
@@ -149,7 +171,8 @@ public class ResourceItem extends DataItem<ResourceFile>
      * @param from the resource to copy the value from.
      */
     void setValue(ResourceItem from) {
-        mValue = from.mValue;
+        mValue = from.getValue();
+        mValueFragment = null;
         setTouched();
     }
 
@@ -196,7 +219,7 @@ public class ResourceItem extends DataItem<ResourceFile>
     public ResourceValue getResourceValue(boolean isFrameworks) {
         if (mResourceValue == null) {
             //noinspection VariableNotUsedInsideIf
-            if (mValue == null) {
+            if (getValue() == null) {
                 // Density based resource value?
                 Density density = mType == ResourceType.DRAWABLE ? getFolderDensity() : null;
                 if (density != null) {
@@ -254,11 +277,13 @@ public class ResourceItem extends DataItem<ResourceFile>
      * @return true if equal
      */
     public boolean compareValueWith(ResourceItem resource) {
-        if (mValue != null && resource.mValue != null) {
-            return NodeUtils.compareElementNode(mValue, resource.mValue, true);
+        Node value = getValue();
+        Node otherValue = resource.getValue();
+        if (value != null && otherValue != null) {
+            return NodeUtils.compareElementNode(value, otherValue, true);
         }
 
-        return mValue == resource.mValue;
+        return value == otherValue;
     }
 
     @Override
@@ -656,13 +681,18 @@ public class ResourceItem extends DataItem<ResourceFile>
     // TODO: move this to ResourceMerger/Set.
 
     @Override
-    void addExtraAttributes(Document document, Node node, String namespaceUri) {
-        NodeUtils.addAttribute(document, node, null, ATTR_TYPE, mType.getName());
+    void writeExtraData(@NonNull MergerBlob.Writer writer) throws IOException {
+        writer.writeString(mType.getName());
     }
 
     @Override
-    Node getAdoptedNode(Document document) {
-        return NodeUtils.adoptNode(document, mValue);
+    void writeValue(@NonNull MergerBlob.Writer writer) throws IOException {
+        if (mValueFragment != null) {
+            // the value was loaded from a blob and has not changed, copy it as is.
+            writer.writeFragment(mValueFragment);
+        } else {
+            writer.writeFragment(mValue);
+        }
     }
 
 
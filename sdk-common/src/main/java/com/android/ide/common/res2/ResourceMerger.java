@@ -34,6 +34,7 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -104,6 +105,12 @@ public class ResourceMerger extends DataMerger<ResourceItem, ResourceFile, Resou
         return (ResourceSet) set.createFromXml(node);
     }
 
+    @Override
+    protected ResourceSet createFromBlob(@NonNull MergerBlob.Reader reader) {
+        ResourceSet set = new ResourceSet("");
+        return (ResourceSet) set.createFromBlob(reader);
+    }
+
     @Override
     protected boolean requiresMerge(@NonNull String dataItemKey) {
         return dataItemKey.startsWith("declare-styleable/");
@@ -269,24 +276,48 @@ public class ResourceMerger extends DataMerger<ResourceItem, ResourceFile, Resou
     }
 
     @Override
-    protected void writeMergedItems(Document document, Node rootNode) {
-        Node mergedItemsNode = document.createElement(NODE_MERGED_ITEMS);
-        rootNode.appendChild(mergedItemsNode);
+    protected void loadMergedItems(@NonNull MergerBlob.Reader reader) {
+        // loop on the qualifiers.
+        for (int j = 0, n2 = reader.readInt(); j < n2; j++) {
+            String qualifier = reader.readString();
+
+            // get the resource items
+            for (int k = 0, n3 = reader.readInt(); k < n3; k++) {
+                String name = reader.readString();
+                String typeName = reader.readString();
+                MergerBlob.Fragment value = reader.readFragment();
+
+                ResourceType type = typeName != null ? ResourceType.getEnum(typeName) : null;
+                if (qualifier == null || name == null || type == null || value == null) {
+                    continue;
+                }
+
+                MergedResourceItem item = new MergedResourceItem(name, type, qualifier, null);
+                item.setValueFragment(value);
+                addMergedItem(qualifier, item);
+            }
+        }
+    }
+
+    @Override
+    protected void clearMergedItems() {
+        mMergedItems.clear();
+    }
+
+    @Override
+    protected void writeMergedItems(@NonNull MergerBlob.Writer writer) throws IOException {
+        writer.writeInt(mMergedItems.size());
 
         for (String qualifier : mMergedItems.keySet()) {
             Map<String, ResourceItem> itemMap = mMergedItems.get(qualifier);
 
-            Node qualifierNode = document.createElement(NODE_CONFIGURATION);
-            NodeUtils.addAttribute(document, qualifierNode, null, ATTR_QUALIFIER,
-                    qualifier);
-
-            mergedItemsNode.appendChild(qualifierNode);
+            writer.writeString(qualifier);
+            writer.writeInt(itemMap.size());
 
             for (ResourceItem item : itemMap.values()) {
-                Node adoptedNode = item.getAdoptedNode(document);
-                if (adoptedNode != null) {
-                    qualifierNode.appendChild(adoptedNode);
-                }
+                writer.writeString(item.getName());
+                item.writeExtraData(writer);
+                item.writeValue(writer);
             }
         }
     }
@@ -37,6 +37,7 @@ import org.w3c.dom.NodeList;
 import java.io.File;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * Implementation of {@link DataSet} for {@link ResourceItem} and {@link ResourceFile}.
@@ -121,6 +122,63 @@ public class ResourceSet extends DataSet<ResourceItem, ResourceFile> {
         }
     }
 
+    @Override
+    protected ResourceFile createFileAndItems(@NonNull File file,
+            @NonNull MergerBlob.Reader reader) {
+        String qualifier = reader.readString();
+        if (qualifier == null) {
+            qualifier = "";
+        }
+
+        int count = reader.readInt();
+        if (count != -1) {
+            // multi res file
+            List<ResourceItem> resourceList = Lists.newArrayListWithCapacity(count);
+
+            for (int i = 0; i < count; i++) {
+                String name = reader.readString();
+                String typeName = reader.readString();
+                MergerBlob.Fragment value = reader.readFragment();
+
+                ResourceType type = typeName != null ? ResourceType.getEnum(typeName) : null;
+                if (name == null || type == null || value == null) {
+                    continue;
+                }
+
+                // the value is only parsed if needed.
+                ResourceItem r = new ResourceItem(name, type, null);
+                r.setValueFragment(value);
+                resourceList.add(r);
+                if (type == ResourceType.DECLARE_STYLEABLE) {
+                    // Need to also create ATTR items for its children
+                    try {
+                        //noinspection ConstantConditions
+                        ValueResourceParser2.addStyleableItems(r.getValue(), resourceList, null,
+                                file);
+                    } catch (MergingException ignored) {
+                        // since we are not passing a dup map, this will never be thrown
+                        assert false : file + ": " + ignored.getMessage();
+                    }
+                }
+            }
+
+            return new ResourceFile(file, resourceList, qualifier);
+
+        } else {
+            // single res file
+            String name = reader.readString();
+            String typeName = reader.readString();
+
+            ResourceType type = typeName != null ? ResourceType.getEnum(typeName) : null;
+            if (name == null || type == null) {
+                return null;
+            }
+
+            ResourceItem item = new ResourceItem(name, type, null);
+            return new ResourceFile(file, item, qualifier);
+        }
+    }
+
     @Override
     protected void readSourceFolder(File sourceFolder, ILogger logger)
             throws MergingException {
@@ -230,27 +288,28 @@ public class ResourceSet extends DataSet<ResourceItem, ResourceFile> {
      * Reads the content of a typed resource folder (sub folder to the root of res folder), and
      * loads the resources from it.
      *
+     * The files are parsed in parallel, see {@link #loadDataFile(File, Callable)}.
      *
      * @param sourceFolder the main res folder
      * @param folder the folder to read.
      * @param folderData the folder Data
      * @param logger a logger object
-     *
-     * @throws MergingException if something goes wrong
      */
-    private void parseFolder(File sourceFolder, File folder, FolderData folderData, ILogger logger)
-            throws MergingException {
+    private void parseFolder(File sourceFolder, File folder, final FolderData folderData,
+            final ILogger logger) throws MergingException {
         File[] files = folder.listFiles();
         if (files != null && files.length > 0) {
-            for (File file : files) {
+            for (final File file : files) {
                 if (!file.isFile() || isIgnored(file)) {
                     continue;
                 }
 
-                ResourceFile resourceFile = createResourceFile(file, folderData, logger);
-                if (resourceFile != null) {
-                    processNewDataFile(sourceFolder, resourceFile, true /*setTouched*/);
-                }
+                loadDataFile(sourceFolder, new Callable<ResourceFile>() {
+                    @Override
+                    public ResourceFile call() throws MergingException {
+                        return createResourceFile(file, folderData, logger);
+                    }
+                });
             }
         }
     }
@@ -362,6 +362,26 @@ public class ResourceMergerTest extends BaseTestCase {
         compareResourceMaps(merger, loadedMerger, true /*full compare*/);
     }
 
+    public void testTruncatedBlob() throws Exception {
+        ResourceMerger merger = getResourceMerger();
+
+        File folder = Files.createTempDir();
+        merger.writeBlobTo(folder,
+                new MergedResourceWriter(Files.createTempDir(), mPngCruncher, false, false));
+        // the blob replaces the file through a temporary file, which must not be left behind.
+        assertEquals(1, folder.list().length);
+
+        File blob = new File(folder, DataMerger.FN_MERGER_BLOB);
+        byte[] content = Files.toByteArray(blob);
+        for (int length : new int[] { 6, content.length / 2, content.length - 3 }) {
+            Files.write(Arrays.copyOf(content, length), blob);
+
+            ResourceMerger loadedMerger = new ResourceMerger();
+            assertFalse(loadedMerger.loadFromBlob(folder, true /*incrementalState*/));
+            assertTrue(loadedMerger.getDataSets().isEmpty());
+        }
+    }
+
     /**
      * Tests the path replacement in the merger.xml file loaded from testData/
      * @throws Exception
@@ -1482,7 +1502,7 @@ public class ResourceMergerTest extends BaseTestCase {
         merger.writeBlobTo(folder,
                 new MergedResourceWriter(Files.createTempDir(), mPngCruncher, false, false));
         } catch (MergingException e) {
-            File file = new File(folder, "merger.xml");
+            File file = new File(folder, DataMerger.FN_MERGER_BLOB);
             assertEquals(file.getPath() + ": Error: (Permission denied)",
                     e.getMessage());
             return;
@@ -1502,6 +1522,36 @@ public class ResourceMergerTest extends BaseTestCase {
         assertTrue(loadedMerger.loadFromBlob(folder, true /*incrementalState*/));
     }
 
+    public void testRewriteLoadedBlob() throws Exception {
+        ResourceMerger merger = getResourceMerger();
+
+        File folder = Files.createTempDir();
+        merger.writeBlobTo(folder,
+                new MergedResourceWriter(Files.createTempDir(), mPngCruncher, false, false));
+        assertTrue(new File(folder, DataMerger.FN_MERGER_BLOB).isFile());
+        assertFalse(new File(folder, DataMerger.FN_MERGER_XML).exists());
+
+        // write the blob again from a loaded merger, whose values have not been parsed.
+        ResourceMerger loadedMerger = new ResourceMerger();
+        assertTrue(loadedMerger.loadFromBlob(folder, true /*incrementalState*/));
+        File folder2 = Files.createTempDir();
+        loadedMerger.writeBlobTo(folder2,
+                new MergedResourceWriter(Files.createTempDir(), mPngCruncher, false, false));
+
+        ResourceMerger loadedMerger2 = new ResourceMerger();
+        assertTrue(loadedMerger2.loadFromBlob(folder2, true /*incrementalState*/));
+        compareResourceMaps(merger, loadedMerger2, true /*full compare*/);
+
+        // values using a namespace declared on the original values file.
+        List<ResourceItem> items = loadedMerger2.getDataMap().get("string/xliff_string");
+        assertEquals(1, items.size());
+        Node value = items.get(0).getValue();
+        assertNotNull(value);
+        Node xliffNode = value.getFirstChild();
+        assertEquals("urn:oasis:names:tc:xliff:document:1.2", xliffNode.getNamespaceURI());
+        assertEquals("g", xliffNode.getLocalName());
+    }
+
     public void testInvalidFileNames() throws Exception {
         File root = TestUtils.getRoot("resources", "brokenSet5");
         ResourceSet resourceSet = new ResourceSet("brokenSet5");
@@ -22,6 +22,8 @@ import com.android.testutils.TestUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 public class ResourceSetTest extends BaseTestCase {
 
@@ -177,6 +179,74 @@ public class ResourceSetTest extends BaseTestCase {
         assertFalse(logger.getErrorMsgs().isEmpty());
     }
 
+    public void testLoadSetsTogether() throws Exception {
+        File root = TestUtils.getRoot("resources", "baseMerge");
+
+        ResourceSet baseSet = new ResourceSet("main");
+        baseSet.addSource(TestUtils.getRoot("resources", "baseSet"));
+        ResourceSet overlaySet = new ResourceSet("overlay");
+        overlaySet.addSource(new File(root, "overlay"));
+
+        RecordingLogger logger =  new RecordingLogger();
+        ResourceSet.loadFromFiles(Arrays.asList(baseSet, overlaySet), logger);
+        checkLogger(logger);
+
+        ResourceSet expectedBaseSet = getBaseResourceSet();
+        ResourceSet expectedOverlaySet = new ResourceSet("overlay");
+        expectedOverlaySet.addSource(new File(root, "overlay"));
+        expectedOverlaySet.loadFromFiles(logger);
+
+        assertEquals(expectedBaseSet.getDataMap().keySet(), baseSet.getDataMap().keySet());
+        assertEquals(expectedOverlaySet.getDataMap().keySet(), overlaySet.getDataMap().keySet());
+        for (ResourceItem item : expectedBaseSet.getDataMap().values()) {
+            List<ResourceItem> items = baseSet.getDataMap().get(item.getKey());
+            assertEquals(1, items.size());
+            assertTrue(item.getKey(), item.compareValueWith(items.get(0)));
+        }
+    }
+
+    public void testLoadSetsTogetherWithBrokenSet() throws Exception {
+        File root = TestUtils.getRoot("resources", "brokenSet");
+
+        ResourceSet baseSet = new ResourceSet("main");
+        baseSet.addSource(TestUtils.getRoot("resources", "baseSet"));
+        ResourceSet brokenSet = new ResourceSet("broken");
+        brokenSet.addSource(root);
+
+        boolean gotException = false;
+        RecordingLogger logger =  new RecordingLogger();
+        try {
+            ResourceSet.loadFromFiles(Arrays.asList(baseSet, brokenSet), logger);
+        } catch (MergingException e) {
+            gotException = true;
+            assertEquals(new File(root, "values" + separator + "dimens.xml").getAbsolutePath() +
+                    ":0:0: Error: Content is not allowed in prolog.",
+                    e.getMessage());
+        }
+
+        assertTrue("ResourceSet processing should have failed, but didn't", gotException);
+        assertFalse(logger.getErrorMsgs().isEmpty());
+    }
+
+    public void testReadSourceFolder() throws Exception {
+        File root = TestUtils.getRoot("resources", "baseSet");
+
+        // outside of loadFromFiles, the files are loaded while the folder is read.
+        ResourceSet resourceSet = new ResourceSet("main");
+        resourceSet.addSource(root);
+        RecordingLogger logger =  new RecordingLogger();
+        resourceSet.readSourceFolder(root, logger);
+        checkLogger(logger);
+
+        ResourceSet expectedSet = getBaseResourceSet();
+        assertEquals(expectedSet.getDataMap().keySet(), resourceSet.getDataMap().keySet());
+        for (ResourceItem item : expectedSet.getDataMap().values()) {
+            List<ResourceItem> items = resourceSet.getDataMap().get(item.getKey());
+            assertEquals(1, items.size());
+            assertTrue(item.getKey(), item.compareValueWith(items.get(0)));
+        }
+    }
+
     static ResourceSet getBaseResourceSet() throws MergingException, IOException {
         File root = TestUtils.getRoot("resources", "baseSet");
 
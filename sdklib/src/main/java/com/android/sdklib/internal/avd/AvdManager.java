@@ -60,10 +60,15 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -265,6 +270,23 @@ public class AvdManager {
     private static final String SDCARD_IMG = "sdcard.img"; //$NON-NLS-1$
     private static final String SNAPSHOTS_IMG = "snapshots.img"; //$NON-NLS-1$
 
+    /**
+     * Folder in the base AVD folder (normally ~/.android/avd/.sdcard-templates) where blank
+     * sdcard images are kept, so that mksdcard only needs to run once per sdcard size.
+     */
+    private static final String SDCARD_TEMPLATES_FOLDER = ".sdcard-templates"; //$NON-NLS-1$
+    /**
+     * Maximum number of blank sdcard images kept in {@link #SDCARD_TEMPLATES_FOLDER}. The least
+     * recently used ones are deleted first.
+     */
+    @VisibleForTesting
+    static final int MAX_SDCARD_TEMPLATES = 3;
+
+    /** Size of the buffer used to copy image files. */
+    private static final int COPY_BUFFER_SIZE = 1 << 20;
+    /** Size of the blocks which are not written when empty, so that copies are sparse files. */
+    private static final int SPARSE_BLOCK_SIZE = 4096;
+
     static final String INI_EXTENSION = ".ini"; //$NON-NLS-1$
     private static final Pattern INI_NAME_PATTERN = Pattern.compile("(.+)\\" + //$NON-NLS-1$
             INI_EXTENSION + "$",                                               //$NON-NLS-1$
@@ -964,8 +986,6 @@ public class AvdManager {
                     }
 
                     if (runMkSdcard) {
-                        String path = sdcardFile.getAbsolutePath();
-
                         // execute mksdcard with the proper parameters.
                         File toolsFolder = new File(myLocalSdk.getLocation(),
                                 SdkConstants.FD_TOOLS);
@@ -978,7 +998,8 @@ public class AvdManager {
                             return null;
                         }
 
-                        if (createSdCard(mkSdCard.getAbsolutePath(), sdcard, path, log) == false) {
+                        if (createSdCardFromTemplate(mkSdCard.getAbsolutePath(), sdcard,
+                                sdcardSize, sdcardFile, log) == false) {
                             log.error(null, "Failed to create sdcard in the AVD folder.");
                             needCleanup = true;
                             return null; // mksdcard output has already been displayed, no need to
@@ -1158,23 +1179,92 @@ public class AvdManager {
 
     /**
      * Copy the nominated file to the given destination.
+     * <p/>
+     * Blocks which only contain zeros are not written, so the destination is a sparse file on
+     * file systems supporting them. Emulator images are mostly empty, so this saves most of
+     * the disk space and time needed to create an AVD.
      *
      * @throws FileNotFoundException
      * @throws IOException
      */
-    private void copyImageFile(@NonNull File source, @NonNull File destination)
+    @VisibleForTesting(visibility=Visibility.PRIVATE)
+    static void copyImageFile(@NonNull File source, @NonNull File destination)
             throws FileNotFoundException, IOException {
         FileInputStream fis = new FileInputStream(source);
-        FileOutputStream fos = new FileOutputStream(destination);
+        boolean threw = true;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(destination, "rw"); //$NON-NLS-1$
+            try {
+                // remove any previous content, which would otherwise remain in the holes.
+                raf.setLength(0);
+                FileChannel in = fis.getChannel();
+                FileChannel out = raf.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+                byte[] bytes = buffer.array();
+                long position = 0;
+                int count;
+                while ((count = read(in, buffer)) > 0) {
+                    int runStart = -1;
+                    for (int start = 0; start < count; start += SPARSE_BLOCK_SIZE) {
+                        int end = Math.min(start + SPARSE_BLOCK_SIZE, count);
+                        if (!isZero(bytes, start, end)) {
+                            if (runStart == -1) {
+                                runStart = start;
+                            }
+                        } else if (runStart != -1) {
+                            write(out, buffer, runStart, start, position);
+                            runStart = -1;
+                        }
+                    }
+                    if (runStart != -1) {
+                        write(out, buffer, runStart, count, position);
+                    }
+                    position += count;
+                }
+                // set the size, in case the file ends with a hole.
+                raf.setLength(position);
+            } finally {
+                raf.close();
+            }
+            threw = false;
+        } finally {
+            Closeables.close(fis, threw);
+        }
+    }
 
-        byte[] buffer = new byte[4096];
-        int count;
-        while ((count = fis.read(buffer)) != -1) {
-            fos.write(buffer, 0, count);
+    /**
+     * Fills the buffer from the channel, unless the end of the file is reached.
+     * @return the number of bytes read.
+     */
+    private static int read(@NonNull FileChannel in, @NonNull ByteBuffer buffer)
+            throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining() && in.read(buffer) != -1) {
+            // keep reading.
         }
+        return buffer.position();
+    }
 
-        fos.close();
-        fis.close();
+    /** Writes the bytes from start to end of the buffer, at the given file position. */
+    private static void write(
+            @NonNull FileChannel out,
+            @NonNull ByteBuffer buffer,
+            int start,
+            int end,
+            long position) throws IOException {
+        buffer.limit(end).position(start);
+        while (buffer.hasRemaining()) {
+            out.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static boolean isZero(@NonNull byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] != 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -1919,6 +2009,99 @@ public class AvdManager {
         return null;
     }
 
+    /**
+     * Creates an SD card image by copying a blank image of the same size. The blank image is
+     * created with mksdcard the first time a size is used, and kept in the
+     * {@link #SDCARD_TEMPLATES_FOLDER} folder of the base AVD folder, along with the blank images
+     * of the {@link #MAX_SDCARD_TEMPLATES} sizes used most recently. Copies are sparse, so this is
+     * much faster and uses much less disk space than running mksdcard for each AVD.
+     * <p/>
+     * Falls back to running mksdcard on the destination if the blank image cannot be used.
+     *
+     * @param toolLocation The path to the mksdcard tool.
+     * @param size The size of the new SD Card, compatible with {@link #SDCARD_SIZE_PATTERN}.
+     * @param sizeInBytes The size of the new SD Card, in bytes.
+     * @param location The file of the new SD card image.
+     * @param log The logger object, to report errors.
+     * @return True if the sdcard could be created.
+     */
+    private boolean createSdCardFromTemplate(
+            String toolLocation,
+            String size,
+            long sizeInBytes,
+            File location,
+            ILogger log) {
+        try {
+            File templates = new File(getBaseAvdFolder(), SDCARD_TEMPLATES_FOLDER);
+            File template = new File(templates, "sdcard-" + sizeInBytes + ".img"); //$NON-NLS-1$
+            if (!template.isFile()) {
+                if (!templates.isDirectory() && !templates.mkdirs()) {
+                    return createSdCard(toolLocation, size, location.getAbsolutePath(), log);
+                }
+                // Use a temp file, since other AVDs may be created at the same time.
+                File tmpFile = File.createTempFile("sdcard", ".tmp", templates); //$NON-NLS-1$
+                tmpFile.delete();
+                try {
+                    if (!createSdCard(toolLocation, size, tmpFile.getAbsolutePath(), log)) {
+                        return false;
+                    }
+                    if (tmpFile.length() > 0 && !template.isFile()) {
+                        tmpFile.renameTo(template);
+                    }
+                } finally {
+                    tmpFile.delete();
+                }
+            }
+
+            if (template.isFile()) {
+                copyImageFile(template, location);
+                // mark the template as recently used, and drop the least recently used ones.
+                template.setLastModified(System.currentTimeMillis());
+                deleteUnusedSdCardTemplates(templates, template);
+                return true;
+            }
+        } catch (AndroidLocationException e) {
+            // pass, run mksdcard below
+        } catch (IOException e) {
+            // pass, run mksdcard below
+        }
+
+        return createSdCard(toolLocation, size, location.getAbsolutePath(), log);
+    }
+
+    /**
+     * Deletes the blank sdcard images which were not used recently, keeping only the
+     * {@link #MAX_SDCARD_TEMPLATES} most recently used ones.
+     *
+     * @param templates The {@link #SDCARD_TEMPLATES_FOLDER} folder.
+     * @param current The blank image which was just used, which is always kept.
+     */
+    private static void deleteUnusedSdCardTemplates(File templates, final File current) {
+        File[] files = templates.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("sdcard-")                    //$NON-NLS-1$
+                        && name.endsWith(".img")                     //$NON-NLS-1$
+                        && !name.equals(current.getName());
+            }
+        });
+        if (files == null || files.length < MAX_SDCARD_TEMPLATES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                // most recently used first.
+                long modified1 = file1.lastModified();
+                long modified2 = file2.lastModified();
+                return modified1 > modified2 ? -1 : modified1 < modified2 ? 1 : 0;
+            }
+        });
+        for (int i = MAX_SDCARD_TEMPLATES - 1; i < files.length; i++) {
+            files[i].delete();
+        }
+    }
+
     /**
      * Invokes the tool to create a new SD card image file.
      *
@@ -58,6 +58,7 @@ import java.net.URLConnection;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -79,8 +80,9 @@ class UrlOpener {
     private static final boolean DEBUG =
         System.getenv("ANDROID_DEBUG_URL_OPENER") != null; //$NON-NLS-1$
 
+    /** Credentials by realm. Synchronized since several archives can be downloaded at once. */
     private static Map<String, UserCredentials> sRealmCache =
-            new HashMap<String, UserCredentials>();
+            Collections.synchronizedMap(new HashMap<String, UserCredentials>());
 
     /** Timeout to establish a connection, in milliseconds. */
     private static int sConnectionTimeoutMs;
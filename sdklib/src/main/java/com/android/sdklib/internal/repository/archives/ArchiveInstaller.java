@@ -17,6 +17,7 @@
 package com.android.sdklib.internal.repository.archives;
 
 import com.android.SdkConstants;
+import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.annotations.VisibleForTesting.Visibility;
@@ -24,6 +25,7 @@ import com.android.sdklib.SdkManager;
 import com.android.sdklib.internal.repository.CanceledByUserException;
 import com.android.sdklib.internal.repository.DownloadCache;
 import com.android.sdklib.internal.repository.ITaskMonitor;
+import com.android.sdklib.internal.repository.UserCredentials;
 import com.android.sdklib.internal.repository.packages.Package;
 import com.android.sdklib.internal.repository.sources.SdkSource;
 import com.android.sdklib.io.FileOp;
@@ -57,9 +59,18 @@ import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
 
 /**
@@ -72,9 +83,20 @@ public class ArchiveInstaller {
 
     public static final int NUM_MONITOR_INC = 100;
 
+    /** Maximum number of archives downloaded at the same time by {@link #startDownloads}. */
+    public static final int MAX_PARALLEL_DOWNLOADS = 4;
+
     /** The current {@link FileOp} to use. Never null. */
     private final IFileOp mFileOp;
 
+    /** Downloads started by {@link #startDownloads}, by archive. */
+    private final Map<Archive, Future<Pair<File, File>>> mDownloads =
+            new ConcurrentHashMap<Archive, Future<Pair<File, File>>>();
+    /** Executor running the downloads started by {@link #startDownloads}. Lazily created. */
+    private ExecutorService mDownloadExecutor;
+    /** Set by {@link #stopDownloads()} to abort the downloads in progress. */
+    private volatile boolean mDownloadsStopped;
+
     /**
      * Generates an {@link ArchiveInstaller} that relies on the default {@link FileOp}.
      */
@@ -137,7 +159,7 @@ public class ArchiveInstaller {
             return false;
         }
 
-        Pair<File, File> files = downloadFile(newArchive, osSdkRoot, cache, monitor, forceHttp);
+        Pair<File, File> files = getDownload(newArchive, osSdkRoot, cache, monitor, forceHttp);
         File tmpFile   = files == null ? null : files.getFirst();
         File propsFile = files == null ? null : files.getSecond();
         if (tmpFile != null) {
@@ -154,6 +176,117 @@ public class ArchiveInstaller {
         return false;
     }
 
+    /**
+     * Starts downloading the given archives in the background, so that they are already
+     * downloaded or in progress when {@link #install} is called for them. This lets archives
+     * be unzipped while the next ones are still downloading.
+     * <p/>
+     * At most {@link #MAX_PARALLEL_DOWNLOADS} archives are downloaded at the same time, in the
+     * order of the list. Local and incompatible archives, which {@link #install} skips, are
+     * not downloaded. Downloads write to the same temp files as regular downloads, so
+     * interrupted downloads can be resumed later.
+     * <p/>
+     * The background downloads only report their log messages to the monitor. The progress
+     * and description are updated by {@link #install}.
+     * {@link #stopDownloads()} must be called once done installing.
+     *
+     * @param archiveInfos The archives which will be installed.
+     * @param osSdkRoot The SDK root folder.
+     * @param forceHttp True to force https URLs to be downloaded using http.
+     * @param cache The {@link DownloadCache} instance to use.
+     * @param monitor The monitor to output errors. It must be usable from any thread.
+     */
+    public void startDownloads(List<? extends ArchiveReplacement> archiveInfos,
+            final String osSdkRoot,
+            final boolean forceHttp,
+            final DownloadCache cache,
+            ITaskMonitor monitor) {
+        boolean checkIsCompatible = System.getenv(ENV_VAR_IGNORE_COMPAT) == null;
+        final ITaskMonitor downloadMonitor = new DownloadMonitor(monitor);
+
+        // Archives with the same name would be downloaded to the same temp file, so only
+        // the first one is downloaded in the background.
+        Set<String> names = new HashSet<String>();
+        for (ArchiveReplacement archiveInfo : archiveInfos) {
+            final Archive archive = archiveInfo.getNewArchive();
+            if (archive == null
+                    || archive.isLocal()
+                    || (checkIsCompatible && !archive.isCompatible())
+                    || mDownloads.containsKey(archive)) {
+                continue;
+            }
+            String url = archive.getUrl();
+            if (!names.add(url.substring(url.lastIndexOf('/') + 1))) {
+                continue;
+            }
+
+            if (mDownloadExecutor == null) {
+                mDownloadsStopped = false;
+                mDownloadExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_DOWNLOADS,
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "SDK archive download");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+            }
+            mDownloads.put(archive, mDownloadExecutor.submit(new Callable<Pair<File, File>>() {
+                @Override
+                public Pair<File, File> call() throws Exception {
+                    return downloadFile(archive, osSdkRoot, cache, downloadMonitor, forceHttp);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Stops the downloads started by {@link #startDownloads} which have not been used by
+     * {@link #install}. Partially downloaded files are kept so that they can be resumed.
+     */
+    public void stopDownloads() {
+        mDownloadsStopped = true;
+        for (Future<Pair<File, File>> download : mDownloads.values()) {
+            download.cancel(true /*mayInterruptIfRunning*/);
+        }
+        mDownloads.clear();
+        if (mDownloadExecutor != null) {
+            mDownloadExecutor.shutdownNow();
+            mDownloadExecutor = null;
+        }
+    }
+
+    /**
+     * Returns the downloaded temp file of an archive, waiting for its background download if
+     * it was started by {@link #startDownloads}, or downloading it now otherwise.
+     */
+    private Pair<File, File> getDownload(Archive archive,
+            String osSdkRoot,
+            DownloadCache cache,
+            ITaskMonitor monitor,
+            boolean forceHttp) {
+        Future<Pair<File, File>> download = mDownloads.remove(archive);
+        if (download == null) {
+            return downloadFile(archive, osSdkRoot, cache, monitor, forceHttp);
+        }
+
+        String pkgName = archive.getParentPackage().getShortDescription();
+        monitor.setDescription("Downloading %1$s", pkgName);
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (CancellationException e) {
+            // stopped, nothing to install.
+        } catch (ExecutionException e) {
+            monitor.logError("Download interrupted: %1$s", e.getCause().getMessage()); //$NON-NLS-1$
+        } finally {
+            monitor.incProgress(NUM_MONITOR_INC);
+        }
+        return null;
+    }
+
     /**
      * Downloads an archive and returns the temp file with it.
      * Caller is responsible with deleting the temp file when done.
@@ -208,7 +341,8 @@ public class ArchiveInstaller {
             if (mFileOp.isFile(tmpFolder)) {
                 mFileOp.deleteFileOrFolder(tmpFolder);
             }
-            if (!mFileOp.mkdirs(tmpFolder)) {
+            // Another download may create it at the same time.
+            if (!mFileOp.mkdirs(tmpFolder) && !mFileOp.isDirectory(tmpFolder)) {
                 monitor.logError("Failed to create directory %1$s", tmpFolder.getPath());
                 return null;
             }
@@ -1213,4 +1347,94 @@ public class ArchiveInstaller {
 
         return result;
     }
+
+    /**
+     * Monitor used by the background downloads. It forwards log messages and cancellation
+     * requests to the monitor of the installation, but leaves its progress and description
+     * to {@link #install}.
+     */
+    private class DownloadMonitor implements ITaskMonitor {
+        private final ITaskMonitor mMonitor;
+
+        DownloadMonitor(ITaskMonitor monitor) {
+            mMonitor = monitor;
+        }
+
+        @Override
+        public void setDescription(String format, Object... args) {
+        }
+
+        @Override
+        public void log(String format, Object... args) {
+            mMonitor.log(format, args);
+        }
+
+        @Override
+        public void logError(String format, Object... args) {
+            mMonitor.logError(format, args);
+        }
+
+        @Override
+        public void logVerbose(String format, Object... args) {
+            mMonitor.logVerbose(format, args);
+        }
+
+        @Override
+        public void setProgressMax(int max) {
+        }
+
+        @Override
+        public int getProgressMax() {
+            return 0;
+        }
+
+        @Override
+        public void incProgress(int delta) {
+        }
+
+        @Override
+        public int getProgress() {
+            return 0;
+        }
+
+        @Override
+        public boolean isCancelRequested() {
+            return mDownloadsStopped || mMonitor.isCancelRequested();
+        }
+
+        @Override
+        public ITaskMonitor createSubMonitor(int tickCount) {
+            return this;
+        }
+
+        @Override
+        public boolean displayPrompt(String title, String message) {
+            return mMonitor.displayPrompt(title, message);
+        }
+
+        @Override
+        public UserCredentials displayLoginCredentialsPrompt(String title, String message) {
+            return mMonitor.displayLoginCredentialsPrompt(title, message);
+        }
+
+        @Override
+        public void error(@Nullable Throwable t, @Nullable String msgFormat, Object... args) {
+            mMonitor.error(t, msgFormat, args);
+        }
+
+        @Override
+        public void warning(@NonNull String msgFormat, Object... args) {
+            mMonitor.warning(msgFormat, args);
+        }
+
+        @Override
+        public void info(@NonNull String msgFormat, Object... args) {
+            mMonitor.info(msgFormat, args);
+        }
+
+        @Override
+        public void verbose(@NonNull String msgFormat, Object... args) {
+            mMonitor.verbose(msgFormat, args);
+        }
+    }
 }
@@ -434,101 +434,117 @@ public class UpdaterData implements IUpdaterData {
                     }
                 }
 
-                int numInstalled = 0;
-                nextArchive: for (ArchiveInfo ai : archives) {
-                    Archive archive = ai.getNewArchive();
-                    if (archive == null) {
-                        // This is not supposed to happen.
-                        continue nextArchive;
-                    }
+                // Download the archives in the background, so that each archive can be
+                // installed while the next ones are still downloading.
+                ArchiveInstaller installer = createArchiveInstaler();
+                installer.startDownloads(archives, mOsSdkRoot, forceHttp, getDownloadCache(),
+                        monitor);
 
-                    int nextProgress = monitor.getProgress() + progressPerArchive;
-                    try {
-                        if (monitor.isCancelRequested()) {
-                            break;
+                int numInstalled = 0;
+                try {
+                    nextArchive: for (ArchiveInfo ai : archives) {
+                        Archive archive = ai.getNewArchive();
+                        if (archive == null) {
+                            // This is not supposed to happen.
+                            continue nextArchive;
                         }
 
-                        ArchiveInfo[] adeps = ai.getDependsOn();
-                        if (adeps != null) {
-                            for (ArchiveInfo adep : adeps) {
-                                Archive na = adep.getNewArchive();
-                                if (na == null) {
-                                    // This archive depends on a missing archive.
-                                    // We shouldn't get here.
-                                    // Skip it.
-                                    monitor.log("Skipping '%1$s'; it depends on a missing package.",
-                                            archive.getParentPackage().getShortDescription());
-                                    continue nextArchive;
-                                } else if (!installedArchives.contains(na)) {
-                                    // This archive depends on another one that was not installed.
-                                    // We shouldn't get here.
-                                    // Skip it.
-                                    monitor.logError("Skipping '%1$s'; it depends on '%2$s' which was not installed.",
-                                            archive.getParentPackage().getShortDescription(),
-                                            adep.getShortDescription());
-                                    continue nextArchive;
+                        int nextProgress = monitor.getProgress() + progressPerArchive;
+                        try {
+                            if (monitor.isCancelRequested()) {
+                                break;
+                            }
+
+                            ArchiveInfo[] adeps = ai.getDependsOn();
+                            if (adeps != null) {
+                                for (ArchiveInfo adep : adeps) {
+                                    Archive na = adep.getNewArchive();
+                                    if (na == null) {
+                                        // This archive depends on a missing archive.
+                                        // We shouldn't get here.
+                                        // Skip it.
+                                        monitor.log(
+                                                "Skipping '%1$s'; it depends on a missing package.",
+                                                archive.getParentPackage().getShortDescription());
+                                        continue nextArchive;
+                                    } else if (!installedArchives.contains(na)) {
+                                        // This archive depends on another one that was not
+                                        // installed.
+                                        // We shouldn't get here.
+                                        // Skip it.
+                                        monitor.logError("Skipping '%1$s'; it depends on '%2$s' which was not installed.",
+                                                archive.getParentPackage().getShortDescription(),
+                                                adep.getShortDescription());
+                                        continue nextArchive;
+                                    }
                                 }
                             }
-                        }
 
-                        if (!preInstallHookInvoked) {
-                            preInstallHookInvoked = true;
-                            broadcastPreInstallHook();
-                        }
+                            if (!preInstallHookInvoked) {
+                                preInstallHookInvoked = true;
+                                broadcastPreInstallHook();
+                            }
 
-                        ArchiveInstaller installer = createArchiveInstaler();
-                        if (installer.install(ai,
-                                              mOsSdkRoot,
-                                              forceHttp,
-                                              mSdkManager,
-                                              getDownloadCache(),
-                                              monitor)) {
-                            // We installed this archive.
-                            newlyInstalledArchives.add(archive);
-                            installedArchives.add(archive);
-                            numInstalled++;
-
-                            // If this package was replacing an existing one, the old one
-                            // is no longer installed.
-                            installedArchives.remove(ai.getReplaced());
-
-                            // Check if we successfully installed a platform-tool or add-on package.
-                            if (archive.getParentPackage() instanceof AddonPackage) {
-                                installedAddon = true;
-                            } else if (archive.getParentPackage() instanceof ToolPackage) {
-                                installedTools = true;
-                            } else if (archive.getParentPackage() instanceof PlatformToolPackage) {
-                                installedPlatformTools = true;
+                            if (installer.install(ai,
+                                                  mOsSdkRoot,
+                                                  forceHttp,
+                                                  mSdkManager,
+                                                  getDownloadCache(),
+                                                  monitor)) {
+                                // We installed this archive.
+                                newlyInstalledArchives.add(archive);
+                                installedArchives.add(archive);
+                                numInstalled++;
+
+                                // If this package was replacing an existing one, the old one
+                                // is no longer installed.
+                                installedArchives.remove(ai.getReplaced());
+
+                                // Check if we successfully installed a platform-tool or add-on
+                                // package.
+                                if (archive.getParentPackage() instanceof AddonPackage) {
+                                    installedAddon = true;
+                                } else if (archive.getParentPackage() instanceof ToolPackage) {
+                                    installedTools = true;
+                                } else if (archive.getParentPackage()
+                                        instanceof PlatformToolPackage) {
+                                    installedPlatformTools = true;
+                                }
                             }
-                        }
 
-                    } catch (Throwable t) {
-                        // Display anything unexpected in the monitor.
-                        String msg = t.getMessage();
-                        if (msg != null) {
-                            msg = String.format("Unexpected Error installing '%1$s': %2$s: %3$s",
-                                    archive.getParentPackage().getShortDescription(),
-                                    t.getClass().getCanonicalName(), msg);
-                        } else {
-                            // no error info? get the stack call to display it
-                            // At least that'll give us a better bug report.
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            t.printStackTrace(new PrintStream(baos));
-
-                            msg = String.format("Unexpected Error installing '%1$s'\n%2$s",
-                                    archive.getParentPackage().getShortDescription(),
-                                    baos.toString());
-                        }
+                        } catch (Throwable t) {
+                            // Display anything unexpected in the monitor.
+                            String msg = t.getMessage();
+                            if (msg != null) {
+                                msg = String.format(
+                                        "Unexpected Error installing '%1$s': %2$s: %3$s",
+                                        archive.getParentPackage().getShortDescription(),
+                                        t.getClass().getCanonicalName(), msg);
+                            } else {
+                                // no error info? get the stack call to display it
+                                // At least that'll give us a better bug report.
+                                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                                t.printStackTrace(new PrintStream(baos));
+
+                                msg = String.format("Unexpected Error installing '%1$s'\n%2$s",
+                                        archive.getParentPackage().getShortDescription(),
+                                        baos.toString());
+                            }
 
-                        monitor.log(     "%1$s", msg);      //$NON-NLS-1$
-                        mSdkLog.error(t, "%1$s", msg);      //$NON-NLS-1$
-                    } finally {
+                            monitor.log(     "%1$s", msg);      //$NON-NLS-1$
+                            mSdkLog.error(t, "%1$s", msg);      //$NON-NLS-1$
+                        } finally {
 
-                        // Always move the progress bar to the desired position.
-                        // This allows internal methods to not have to care in case
-                        // they abort early
-                        monitor.incProgress(nextProgress - monitor.getProgress());
+                            // Always move the progress bar to the desired position.
+                            // This allows internal methods to not have to care in case
+                            // they abort early
+                            monitor.incProgress(nextProgress - monitor.getProgress());
+                        }
                     }
+                } finally {
+                    // Stop the downloads of the archives which were not installed,
+                    // even if the loop is left unexpectedly.
+                    installer.stopDownloads();
                 }
 
                 if (installedAddon) {
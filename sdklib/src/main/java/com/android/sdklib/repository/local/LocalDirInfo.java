@@ -81,6 +81,46 @@ class LocalDirInfo {
         mDirChecksum = getDirChecksum(mDir);
     }
 
+    /**
+     * Creates a {@link LocalDirInfo} from attributes computed earlier, e.g. by a previous
+     * session and stored in a {@link LocalSdkIndex}.
+     */
+    LocalDirInfo(@NonNull IFileOp fileOp,
+                 @NonNull File dir,
+                 long dirModifiedTS,
+                 long dirChecksum,
+                 long propsModifiedTS,
+                 long propsChecksum) {
+        mFileOp = fileOp;
+        mDir = dir;
+        mDirModifiedTS = dirModifiedTS;
+        mDirChecksum = dirChecksum;
+        mPropsModifiedTS = propsModifiedTS;
+        mPropsChecksum = propsChecksum;
+    }
+
+    @NonNull
+    File getDir() {
+        return mDir;
+    }
+
+    long getDirModifiedTS() {
+        return mDirModifiedTS;
+    }
+
+    long getDirChecksum() {
+        return mDirChecksum;
+    }
+
+    /** Returns the source.properties modified timestamp, or 0 if there is no such file. */
+    long getPropsModifiedTS() {
+        return mPropsModifiedTS;
+    }
+
+    long getPropsChecksum() {
+        return mPropsChecksum;
+    }
+
     /**
      * Checks whether the directory/source.properties attributes have changed.
      *
@@ -39,10 +39,14 @@ import com.android.sdklib.repository.descriptors.IdDisplay;
 import com.android.sdklib.repository.descriptors.PkgDescExtra;
 import com.android.sdklib.repository.descriptors.PkgType;
 import com.android.sdklib.repository.remote.RemoteSdk;
+import com.google.common.base.Throwables;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.TreeMultimap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import java.io.File;
 import java.io.IOException;
@@ -53,7 +57,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class keeps information on the current locally installed SDK.
@@ -151,7 +163,9 @@ import java.util.Properties;
  * it's safe to call them from any thread, even concurrently. <br/>
  * A method like {@code getPkgsInfos} returns a copy of its data array, which objects are
  * not altered after creation, so its value is not influenced by the internal state after
- * it returns.
+ * it returns. <br/>
+ * When several package types need to be loaded, each type is scanned on its own thread.
+ * Scanning can also be made cheaper across instances with {@link #setIndexFile(File)}.
  * <p/>
  *
  * Implementation Background:
@@ -189,6 +203,45 @@ public class LocalSdk {
     @GuardedBy(value="mLocalPackages")
     private final List<IAndroidTarget> mCachedTargets = new ArrayList<IAndroidTarget>();
     private boolean mReloadTargets = true;
+    /**
+     * Executor shared by all instances to scan package types in parallel. Its threads are
+     * daemon threads, and they stop when idle.
+     */
+    private static final ExecutorService sScanExecutor = createScanExecutor();
+    /** Optional persistent index of the visited directories. See {@link #setIndexFile}. */
+    @Nullable
+    private volatile LocalSdkIndex mIndex;
+
+    /**
+     * Packages and directories found by scanning a package type. See {@link #scan(PkgType)}.
+     */
+    private static class ScanResult {
+        @NonNull
+        final PkgType mType;
+        final List<LocalPkgInfo> mPackages = Lists.newArrayList();
+        final Map<File, LocalDirInfo> mVisitedDirs = Maps.newHashMap();
+
+        ScanResult(@NonNull PkgType type) {
+            mType = type;
+        }
+    }
+
+    @NonNull
+    private static ExecutorService createScanExecutor() {
+        int threadCount = Math.min(PkgType.values().length,
+                Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable r) {
+                        Thread thread = new Thread(r, "LocalSdk scanner");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
     /**
      * Creates an initial LocalSdk instance with an unknown location.
@@ -237,6 +290,24 @@ public class LocalSdk {
         clearLocalPkg(PkgType.PKG_ALL);
     }
 
+    /**
+     * Sets the file where the information on the visited directories is persisted, so that
+     * other instances of {@link LocalSdk}, e.g. in later invocations of a tool, only need to
+     * rescan the directories which changed in the meantime. A directory is considered
+     * unchanged if it and its source.properties file have the same timestamps, and its
+     * recorded content is reused as long as its timestamp does not change.
+     * <p/>
+     * The index is read and written with regular file operations, not with the
+     * {@link IFileOp} of this instance.
+     *
+     * @param indexFile The index location, or null to not use an index.
+     */
+    public void setIndexFile(@Nullable File indexFile) {
+        synchronized (mLocalPackages) {
+            mIndex = indexFile != null ? new LocalSdkIndex(mFileOp, indexFile) : null;
+        }
+    }
+
     /**
      * Location of the SDK. Maybe null. Can be changed.
      *
@@ -466,41 +537,9 @@ public class LocalSdk {
             return null;
         }
 
-        LocalPkgInfo info = null;
-        synchronized (mLocalPackages) {
-            Collection<LocalPkgInfo> existing = mLocalPackages.get(filter);
-            assert existing.size() <= 1;
-            if (existing.size() > 0) {
-                return existing.iterator().next();
-            }
-
-            File uniqueDir = new File(mSdkRoot, filter.getFolderName());
-
-            if (!mVisitedDirs.containsEntry(filter, new LocalDirInfo.MapComparator(uniqueDir))) {
-                switch(filter) {
-                case PKG_TOOLS:
-                    info = scanTools(uniqueDir);
-                    break;
-                case PKG_PLATFORM_TOOLS:
-                    info = scanPlatformTools(uniqueDir);
-                    break;
-                case PKG_DOC:
-                    info = scanDoc(uniqueDir);
-                    break;
-                default:
-                    break;
-                }
-            }
-
-            // Whether we have found a valid pkg or not, this directory has been visited.
-            mVisitedDirs.put(filter, new LocalDirInfo(mFileOp, uniqueDir));
-
-            if (info != null) {
-                mLocalPackages.put(filter, info);
-            }
-        }
-
-        return info;
+        LocalPkgInfo[] infos = getPkgsInfos(EnumSet.of(filter));
+        assert infos.length <= 1;
+        return infos.length > 0 ? infos[0] : null;
     }
 
     /**
@@ -543,79 +582,152 @@ public class LocalSdk {
     public LocalPkgInfo[] getPkgsInfos(@NonNull EnumSet<PkgType> filters) {
         List<LocalPkgInfo> list = Lists.newArrayList();
 
-        for (PkgType filter : filters) {
-            if (filter == PkgType.PKG_TOOLS ||
-                    filter == PkgType.PKG_PLATFORM_TOOLS ||
-                    filter == PkgType.PKG_DOC) {
-                LocalPkgInfo info = getPkgInfo(filter);
-                if (info != null) {
-                    list.add(info);
+        synchronized (mLocalPackages) {
+            List<PkgType> toScan = Lists.newArrayList();
+            for (PkgType filter : filters) {
+                Collection<LocalPkgInfo> existing = mLocalPackages.get(filter);
+                assert existing != null; // Multimap returns an empty set if not found
+
+                if (!existing.isEmpty()) {
+                    list.addAll(existing);
+                    continue;
                 }
-            } else {
-                synchronized (mLocalPackages) {
-                    Collection<LocalPkgInfo> existing = mLocalPackages.get(filter);
-                    assert existing != null; // Multimap returns an empty set if not found
-
-                    if (!existing.isEmpty()) {
-                        list.addAll(existing);
-                        continue;
-                    }
 
-                    File subDir = new File(mSdkRoot, filter.getFolderName());
-
-                    if (!mVisitedDirs.containsEntry(filter, new LocalDirInfo.MapComparator(subDir))) {
-                        switch(filter) {
-                        case PKG_BUILD_TOOLS:
-                            scanBuildTools(subDir, existing);
-                            break;
-
-                        case PKG_PLATFORM:
-                            scanPlatforms(subDir, existing);
-                            break;
-
-                        case PKG_SYS_IMAGE:
-                            scanSysImages(subDir, existing, false);
-                            break;
-
-                        case PKG_ADDON_SYS_IMAGE:
-                            scanSysImages(subDir, existing, true);
-                            break;
-
-                        case PKG_ADDON:
-                            scanAddons(subDir, existing);
-                            break;
-
-                        case PKG_SAMPLE:
-                            scanSamples(subDir, existing);
-                            break;
-
-                        case PKG_SOURCE:
-                            scanSources(subDir, existing);
-                            break;
-
-                        case PKG_EXTRA:
-                            scanExtras(subDir, existing);
-                            break;
-
-                        case PKG_TOOLS:
-                        case PKG_PLATFORM_TOOLS:
-                        case PKG_DOC:
-                            break;
-                        default:
-                            throw new IllegalArgumentException(
-                                    "Unsupported pkg type " + filter.toString());
-                        }
-                        mVisitedDirs.put(filter, new LocalDirInfo(mFileOp, subDir));
-                        list.addAll(existing);
-                    }
+                File subDir = new File(mSdkRoot, filter.getFolderName());
+                if (!mVisitedDirs.containsEntry(filter, new LocalDirInfo.MapComparator(subDir))) {
+                    toScan.add(filter);
                 }
             }
+
+            for (ScanResult result : scan(toScan)) {
+                mLocalPackages.putAll(result.mType, result.mPackages);
+                mVisitedDirs.putAll(result.mType, result.mVisitedDirs.values());
+                list.addAll(result.mPackages);
+            }
+
+            if (mIndex != null && !toScan.isEmpty()) {
+                mIndex.save();
+            }
         }
 
         Collections.sort(list);
         return list.toArray(new LocalPkgInfo[list.size()]);
     }
 
+    /**
+     * Scans the given package types. Each type is scanned by {@link #sScanExecutor} when there is
+     * more than one.
+     * <p/>
+     * The caller must hold the {@link #mLocalPackages} lock, and the scans do not modify any
+     * field: the caller merges the results once they are all available.
+     */
+    @NonNull
+    private List<ScanResult> scan(@NonNull List<PkgType> types) {
+        List<ScanResult> results = Lists.newArrayListWithCapacity(types.size());
+        if (types.size() <= 1) {
+            for (PkgType type : types) {
+                results.add(scan(type));
+            }
+            return results;
+        }
+
+        List<Future<ScanResult>> futures = Lists.newArrayListWithCapacity(types.size());
+        try {
+            for (final PkgType type : types) {
+                futures.add(sScanExecutor.submit(new Callable<ScanResult>() {
+                    @Override
+                    public ScanResult call() throws Exception {
+                        return scan(type);
+                    }
+                }));
+            }
+            for (Future<ScanResult> future : futures) {
+                try {
+                    results.add(Futures.getUnchecked(future));
+                } catch (UncheckedExecutionException e) {
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+        } finally {
+            // Only has an effect on the scans left when one of them failed.
+            for (Future<ScanResult> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Scans the packages of the given type.
+     */
+    @NonNull
+    private ScanResult scan(@NonNull PkgType type) {
+        ScanResult result = new ScanResult(type);
+        File subDir = new File(mSdkRoot, type.getFolderName());
+        // Whether we find a valid pkg or not, this directory is visited.
+        LocalDirInfo subDirInfo = newDirInfo(subDir);
+
+        switch(type) {
+        case PKG_TOOLS:
+            addIfNotNull(result.mPackages, scanTools(subDir));
+            break;
+
+        case PKG_PLATFORM_TOOLS:
+            addIfNotNull(result.mPackages, scanPlatformTools(subDir));
+            break;
+
+        case PKG_DOC:
+            addIfNotNull(result.mPackages, scanDoc(subDir));
+            break;
+
+        case PKG_BUILD_TOOLS:
+            scanBuildTools(subDir, result);
+            break;
+
+        case PKG_PLATFORM:
+            scanPlatforms(subDir, result);
+            break;
+
+        case PKG_SYS_IMAGE:
+            scanSysImages(subDir, result, false);
+            break;
+
+        case PKG_ADDON_SYS_IMAGE:
+            scanSysImages(subDir, result, true);
+            break;
+
+        case PKG_ADDON:
+            scanAddons(subDir, result);
+            break;
+
+        case PKG_SAMPLE:
+            scanSamples(subDir, result);
+            break;
+
+        case PKG_SOURCE:
+            scanSources(subDir, result);
+            break;
+
+        case PKG_EXTRA:
+            scanExtras(subDir, result);
+            break;
+
+        default:
+            throw new IllegalArgumentException(
+                    "Unsupported pkg type " + type.toString());
+        }
+
+        result.mVisitedDirs.put(subDir, subDirInfo);
+        return result;
+    }
+
+    private static void addIfNotNull(@NonNull Collection<LocalPkgInfo> packages,
+                                     @Nullable LocalPkgInfo info) {
+        if (info != null) {
+            packages.add(info);
+        }
+    }
+
     //---------- Package-specific querying --------
 
     /**
@@ -780,7 +892,7 @@ public class LocalSdk {
         boolean hasAndroid = false;
         String android1 = SdkConstants.androidCmdName().replace(".bat", ".exe");
         String android2 = android1.indexOf('.') == -1 ? null : android1.replace(".exe", ".bat");
-        File[] files = mFileOp.listFiles(toolFolder);
+        File[] files = listFiles(toolFolder);
         for (File file : files) {
             String name = file.getName();
             if (SdkConstants.FN_EMULATOR.equals(name)) {
@@ -847,31 +959,51 @@ public class LocalSdk {
     /**
      * Helper used by scanXyz methods below to check whether a directory should be visited.
      * It can be skipped if it's not a directory or if it's already marked as visited in
-     * mVisitedDirs for the given package type -- in which case the directory is added to
-     * the visited map.
+     * mVisitedDirs or in the current scan for the scanned package type -- otherwise the
+     * directory is added to the visited directories of the scan.
      *
-     * @param pkgType The package type being scanned.
+     * @param result The result of the current scan.
      * @param directory The file or directory to check.
      * @return False if directory can/should be skipped.
-     *         True if directory should be visited, in which case it's registered in mVisitedDirs.
+     *         True if directory should be visited, in which case it's registered in the result.
      */
-    private boolean shouldVisitDir(@NonNull PkgType pkgType, @NonNull File directory) {
+    private boolean shouldVisitDir(@NonNull ScanResult result, @NonNull File directory) {
         if (!mFileOp.isDirectory(directory)) {
             return false;
         }
-        synchronized (mLocalPackages) {
-            if (mVisitedDirs.containsEntry(pkgType, new LocalDirInfo.MapComparator(directory))) {
-                return false;
-            }
-            mVisitedDirs.put(pkgType, new LocalDirInfo(mFileOp, directory));
+        // Only read here: mVisitedDirs is not modified while scans are running.
+        if (mVisitedDirs.containsEntry(result.mType, new LocalDirInfo.MapComparator(directory))) {
+            return false;
+        }
+        if (result.mVisitedDirs.containsKey(directory)) {
+            return false;
         }
+        result.mVisitedDirs.put(directory, newDirInfo(directory));
         return true;
     }
 
-    private void scanBuildTools(File collectionDir, Collection<LocalPkgInfo> outCollection) {
+    /**
+     * Creates the {@link LocalDirInfo} of a visited directory, using the index if there is one.
+     */
+    @NonNull
+    private LocalDirInfo newDirInfo(@NonNull File directory) {
+        LocalSdkIndex index = mIndex;
+        return index != null ? index.getDirInfo(directory) : new LocalDirInfo(mFileOp, directory);
+    }
+
+    /**
+     * Lists a directory, using the index if there is one.
+     */
+    @NonNull
+    private File[] listFiles(@NonNull File directory) {
+        LocalSdkIndex index = mIndex;
+        return index != null ? index.listFiles(directory) : mFileOp.listFiles(directory);
+    }
+
+    private void scanBuildTools(File collectionDir, ScanResult result) {
         // The build-tool root folder contains a list of per-revision folders.
-        for (File buildToolDir : mFileOp.listFiles(collectionDir)) {
-            if (!shouldVisitDir(PkgType.PKG_BUILD_TOOLS, buildToolDir)) {
+        for (File buildToolDir : listFiles(collectionDir)) {
+            if (!shouldVisitDir(result, buildToolDir)) {
                 continue;
             }
 
@@ -884,13 +1016,13 @@ public class LocalSdk {
             BuildToolInfo btInfo = new BuildToolInfo(rev, buildToolDir);
             LocalBuildToolPkgInfo pkgInfo =
                 new LocalBuildToolPkgInfo(this, buildToolDir, props, rev, btInfo);
-            outCollection.add(pkgInfo);
+            result.mPackages.add(pkgInfo);
         }
     }
 
-    private void scanPlatforms(File collectionDir, Collection<LocalPkgInfo> outCollection) {
-        for (File platformDir : mFileOp.listFiles(collectionDir)) {
-            if (!shouldVisitDir(PkgType.PKG_PLATFORM, platformDir)) {
+    private void scanPlatforms(File collectionDir, ScanResult result) {
+        for (File platformDir : listFiles(collectionDir)) {
+            if (!shouldVisitDir(result, platformDir)) {
                 continue;
             }
 
@@ -911,7 +1043,7 @@ public class LocalSdk {
 
                 LocalPlatformPkgInfo pkgInfo =
                     new LocalPlatformPkgInfo(this, platformDir, props, vers, rev, minToolsRev);
-                outCollection.add(pkgInfo);
+                result.mPackages.add(pkgInfo);
 
             } catch (AndroidVersionException e) {
                 continue; // skip invalid or missing android version.
@@ -919,9 +1051,9 @@ public class LocalSdk {
         }
     }
 
-    private void scanAddons(File collectionDir, Collection<LocalPkgInfo> outCollection) {
-        for (File addonDir : mFileOp.listFiles(collectionDir)) {
-            if (!shouldVisitDir(PkgType.PKG_ADDON, addonDir)) {
+    private void scanAddons(File collectionDir, ScanResult result) {
+        for (File addonDir : listFiles(collectionDir)) {
+            if (!shouldVisitDir(result, addonDir)) {
                 continue;
             }
 
@@ -966,7 +1098,7 @@ public class LocalSdk {
                         this, addonDir, props, vers, rev,
                         new IdDisplay(vendorId, vendorDisp),
                         new IdDisplay(nameId, nameDisp));
-                outCollection.add(pkgInfo);
+                result.mPackages.add(pkgInfo);
 
             } catch (AndroidVersionException e) {
                 continue; // skip invalid or missing android version.
@@ -976,24 +1108,23 @@ public class LocalSdk {
 
     private void scanSysImages(
             File collectionDir,
-            Collection<LocalPkgInfo> outCollection,
+            ScanResult result,
             boolean scanAddons) {
         List<File> propFiles = Lists.newArrayList();
-        PkgType type = scanAddons ? PkgType.PKG_ADDON_SYS_IMAGE : PkgType.PKG_SYS_IMAGE;
 
         // Create a list of folders that contains a source.properties file matching these patterns:
         // sys-img/target/tag/abi
         // sys-img/target/abis
         // sys-img/add-on-target/abi
         // sys-img/target/add-on/abi
-        for (File platformDir : mFileOp.listFiles(collectionDir)) {
-            if (!shouldVisitDir(type, platformDir)) {
+        for (File platformDir : listFiles(collectionDir)) {
+            if (!shouldVisitDir(result, platformDir)) {
                 continue;
             }
 
-            for (File dir1 : mFileOp.listFiles(platformDir)) {
+            for (File dir1 : listFiles(platformDir)) {
                 // dir1 might be either a tag or an abi folder.
-                if (!shouldVisitDir(type, dir1)) {
+                if (!shouldVisitDir(result, dir1)) {
                     continue;
                 }
 
@@ -1004,10 +1135,10 @@ public class LocalSdk {
                         propFiles.add(prop1);
                     }
                 } else {
-                    File[] dir1Files = mFileOp.listFiles(dir1);
+                    File[] dir1Files = listFiles(dir1);
                     for (File dir2 : dir1Files) {
                         // dir2 should be an abi folder in a tag folder.
-                        if (!shouldVisitDir(type, dir2)) {
+                        if (!shouldVisitDir(result, dir2)) {
                             continue;
                         }
 
@@ -1039,7 +1170,7 @@ public class LocalSdk {
                 if (vendorId == null && !scanAddons) {
                     LocalSysImgPkgInfo pkgInfo =
                       new LocalSysImgPkgInfo(this, abiDir, props, vers, tag, abiDir.getName(), rev);
-                    outCollection.add(pkgInfo);
+                    result.mPackages.add(pkgInfo);
 
                 } else if (vendorId != null && scanAddons) {
                     String vendorDisp = props.getProperty(PkgProps.ADDON_VENDOR_DISPLAY, vendorId);
@@ -1048,7 +1179,7 @@ public class LocalSdk {
                     LocalAddonSysImgPkgInfo pkgInfo =
                             new LocalAddonSysImgPkgInfo(
                                     this, abiDir, props, vers, vendor, tag, abiDir.getName(), rev);
-                    outCollection.add(pkgInfo);
+                    result.mPackages.add(pkgInfo);
                 }
 
             } catch (AndroidVersionException e) {
@@ -1057,9 +1188,9 @@ public class LocalSdk {
         }
     }
 
-    private void scanSamples(File collectionDir, Collection<LocalPkgInfo> outCollection) {
-        for (File platformDir : mFileOp.listFiles(collectionDir)) {
-            if (!shouldVisitDir(PkgType.PKG_SAMPLE, platformDir)) {
+    private void scanSamples(File collectionDir, ScanResult result) {
+        for (File platformDir : listFiles(collectionDir)) {
+            if (!shouldVisitDir(result, platformDir)) {
                 continue;
             }
 
@@ -1080,17 +1211,17 @@ public class LocalSdk {
 
                 LocalSamplePkgInfo pkgInfo =
                     new LocalSamplePkgInfo(this, platformDir, props, vers, rev, minToolsRev);
-                outCollection.add(pkgInfo);
+                result.mPackages.add(pkgInfo);
             } catch (AndroidVersionException e) {
                 continue; // skip invalid or missing android version.
             }
         }
     }
 
-    private void scanSources(File collectionDir, Collection<LocalPkgInfo> outCollection) {
+    private void scanSources(File collectionDir, ScanResult result) {
         // The build-tool root folder contains a list of per-revision folders.
-        for (File platformDir : mFileOp.listFiles(collectionDir)) {
-            if (!shouldVisitDir(PkgType.PKG_SOURCE, platformDir)) {
+        for (File platformDir : listFiles(collectionDir)) {
+            if (!shouldVisitDir(result, platformDir)) {
                 continue;
             }
 
@@ -1105,21 +1236,21 @@ public class LocalSdk {
 
                 LocalSourcePkgInfo pkgInfo =
                     new LocalSourcePkgInfo(this, platformDir, props, vers, rev);
-                outCollection.add(pkgInfo);
+                result.mPackages.add(pkgInfo);
             } catch (AndroidVersionException e) {
                 continue; // skip invalid or missing android version.
             }
         }
     }
 
-    private void scanExtras(File collectionDir, Collection<LocalPkgInfo> outCollection) {
-        for (File vendorDir : mFileOp.listFiles(collectionDir)) {
-            if (!shouldVisitDir(PkgType.PKG_EXTRA, vendorDir)) {
+    private void scanExtras(File collectionDir, ScanResult result) {
+        for (File vendorDir : listFiles(collectionDir)) {
+            if (!shouldVisitDir(result, vendorDir)) {
                 continue;
             }
 
-            for (File extraDir : mFileOp.listFiles(vendorDir)) {
-                if (!shouldVisitDir(PkgType.PKG_EXTRA, extraDir)) {
+            for (File extraDir : listFiles(vendorDir)) {
+                if (!shouldVisitDir(result, extraDir)) {
                     continue;
                 }
 
@@ -1150,7 +1281,7 @@ public class LocalSdk {
                         displayName,
                         PkgDescExtra.convertOldPaths(oldPaths),
                         rev);
-                outCollection.add(pkgInfo);
+                result.mPackages.add(pkgInfo);
             }
         }
     }
@@ -1160,6 +1291,22 @@ public class LocalSdk {
      * Returns null if the file does not exist, cannot be parsed or has no properties.
      */
     private Properties parseProperties(File propsFile) {
+        LocalSdkIndex index = mIndex;
+        LocalSdkIndex.Entry entry =
+                index != null ? index.getEntry(propsFile.getParentFile()) : null;
+        if (entry != null && entry.isPropsLoaded()) {
+            return entry.getProps();
+        }
+
+        Properties props = loadProperties(propsFile);
+        if (entry != null) {
+            index.setProps(entry, props);
+        }
+        return props;
+    }
+
+    @Nullable
+    private Properties loadProperties(File propsFile) {
         InputStream fis = null;
         try {
             if (mFileOp.exists(propsFile)) {
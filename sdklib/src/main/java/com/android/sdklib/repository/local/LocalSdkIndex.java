@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdklib.repository.local;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.sdklib.io.IFileOp;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent index of the directories visited by a {@link LocalSdk}, with their
+ * {@link LocalDirInfo} attributes and parsed source.properties, and of the content of the
+ * directories it lists.
+ * <p/>
+ * When a directory and its source.properties file still have the timestamps recorded in
+ * the index, the recorded attributes and properties are reused instead of listing the
+ * directory and reading the properties again. Likewise, the recorded content of a listed
+ * directory is reused as long as the directory has the same timestamp, since adding,
+ * removing or renaming a child changes it. This makes loading a large, unchanged SDK
+ * much cheaper for tools creating a new {@link LocalSdk} every time they start.
+ * <p/>
+ * The index is only a cache: it is stored with plain {@link File} operations outside of
+ * the SDK, and any error reading or writing it is ignored.
+ * <p/>
+ * Threading: this class is thread-safe. Each directory is expected to be visited by a
+ * single thread at a time.
+ */
+class LocalSdkIndex {
+
+    private static final int VERSION = 2;
+
+    /** Information recorded on a visited directory. */
+    static class Entry {
+        final long mDirModifiedTS;
+        final long mDirChecksum;
+        final long mPropsModifiedTS;
+        final long mPropsChecksum;
+        /** Whether {@link #mProps} has been set, as properties can legitimately be null. */
+        private volatile boolean mPropsLoaded;
+        @Nullable
+        private volatile Properties mProps;
+
+        Entry(long dirModifiedTS, long dirChecksum, long propsModifiedTS, long propsChecksum) {
+            mDirModifiedTS = dirModifiedTS;
+            mDirChecksum = dirChecksum;
+            mPropsModifiedTS = propsModifiedTS;
+            mPropsChecksum = propsChecksum;
+        }
+
+        boolean isPropsLoaded() {
+            return mPropsLoaded;
+        }
+
+        /** Returns a copy of the recorded properties, or null if there were none. */
+        @Nullable
+        Properties getProps() {
+            Properties props = mProps;
+            if (props == null) {
+                return null;
+            }
+            Properties copy = new Properties();
+            copy.putAll(props);
+            return copy;
+        }
+
+        void setProps(@Nullable Properties props) {
+            mProps = props;
+            mPropsLoaded = true;
+        }
+    }
+
+    /** The content of a listed directory. */
+    private static class Listing {
+        final long mModifiedTS;
+        @NonNull
+        final File[] mFiles;
+
+        Listing(long modifiedTS, @NonNull File[] files) {
+            mModifiedTS = modifiedTS;
+            mFiles = files;
+        }
+    }
+
+    @NonNull
+    private final IFileOp mFileOp;
+    @NonNull
+    private final File mIndexFile;
+    /** Entries read from the index file. */
+    @NonNull
+    private final Map<File, Entry> mStoredEntries = Maps.newHashMap();
+    /** Entries of the directories visited since the index was loaded. */
+    private final Map<File, Entry> mEntries = new ConcurrentHashMap<File, Entry>();
+    /** Listings read from the index file. */
+    @NonNull
+    private final Map<File, Listing> mStoredListings = Maps.newHashMap();
+    /** Listings of the directories listed since the index was loaded. */
+    private final Map<File, Listing> mListings = new ConcurrentHashMap<File, Listing>();
+    /** Whether a visited directory did not match its stored entry. */
+    private volatile boolean mDirty;
+
+    /**
+     * Creates an index and loads its stored content, if any.
+     *
+     * @param fileOp The {@link IFileOp} used to check the SDK directories.
+     * @param indexFile The file where the index is stored.
+     */
+    LocalSdkIndex(@NonNull IFileOp fileOp, @NonNull File indexFile) {
+        mFileOp = fileOp;
+        mIndexFile = indexFile;
+        load();
+    }
+
+    /**
+     * Lists a directory like {@link IFileOp#listFiles(File)}. The content recorded in the
+     * index is returned if the directory timestamp did not change.
+     */
+    @NonNull
+    File[] listFiles(@NonNull File dir) {
+        long modifiedTS = mFileOp.lastModified(dir);
+        Listing listing = mStoredListings.get(dir);
+        if (listing == null || listing.mModifiedTS != modifiedTS || modifiedTS == 0) {
+            listing = new Listing(modifiedTS, mFileOp.listFiles(dir));
+            mDirty = true;
+        }
+        mListings.put(dir, listing);
+        return listing.mFiles.clone();
+    }
+
+    /**
+     * Returns the {@link LocalDirInfo} for a directory being visited. It is restored from the
+     * index if the directory and its source.properties timestamps did not change, and
+     * computed otherwise.
+     */
+    @NonNull
+    LocalDirInfo getDirInfo(@NonNull File dir) {
+        long dirModifiedTS = mFileOp.lastModified(dir);
+        File props = new File(dir, SdkConstants.FN_SOURCE_PROP);
+        long propsModifiedTS = mFileOp.isFile(props) ? mFileOp.lastModified(props) : 0;
+
+        Entry entry = mStoredEntries.get(dir);
+        if (entry != null
+                && entry.mDirModifiedTS == dirModifiedTS
+                && entry.mPropsModifiedTS == propsModifiedTS) {
+            mEntries.put(dir, entry);
+            return new LocalDirInfo(mFileOp, dir, entry.mDirModifiedTS, entry.mDirChecksum,
+                    entry.mPropsModifiedTS, entry.mPropsChecksum);
+        }
+
+        LocalDirInfo dirInfo = new LocalDirInfo(mFileOp, dir);
+        mEntries.put(dir, new Entry(dirInfo.getDirModifiedTS(), dirInfo.getDirChecksum(),
+                dirInfo.getPropsModifiedTS(), dirInfo.getPropsChecksum()));
+        mDirty = true;
+        return dirInfo;
+    }
+
+    /**
+     * Returns the entry of a directory visited with {@link #getDirInfo(File)}, or null if it
+     * was not visited.
+     */
+    @Nullable
+    Entry getEntry(@NonNull File dir) {
+        return mEntries.get(dir);
+    }
+
+    /**
+     * Records the properties parsed for a visited directory.
+     */
+    void setProps(@NonNull Entry entry, @Nullable Properties props) {
+        Properties copy = null;
+        if (props != null) {
+            copy = new Properties();
+            copy.putAll(props);
+        }
+        entry.setProps(copy);
+        mDirty = true;
+    }
+
+    /**
+     * Writes the index if it changed. Stored entries and listings which were not visited are
+     * kept as long as their directory exists, since only some package types may have been
+     * loaded.
+     */
+    void save() {
+        if (!mDirty) {
+            return;
+        }
+        mDirty = false;
+
+        Map<File, Entry> entries = Maps.newHashMap();
+        for (Map.Entry<File, Entry> stored : mStoredEntries.entrySet()) {
+            if (mFileOp.isDirectory(stored.getKey())) {
+                entries.put(stored.getKey(), stored.getValue());
+            }
+        }
+        entries.putAll(mEntries);
+        Map<File, Listing> listings = Maps.newHashMap();
+        for (Map.Entry<File, Listing> stored : mStoredListings.entrySet()) {
+            if (mFileOp.isDirectory(stored.getKey())) {
+                listings.put(stored.getKey(), stored.getValue());
+            }
+        }
+        listings.putAll(mListings);
+
+        File parent = mIndexFile.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            return;
+        }
+        File tmpFile = null;
+        DataOutputStream out = null;
+        try {
+            // A unique file in the same directory, so concurrent saves never write to the
+            // same file and the rename does not cross file systems.
+            tmpFile = File.createTempFile(mIndexFile.getName(), ".tmp", parent);
+            out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<File, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey().getPath());
+                out.writeLong(entry.mDirModifiedTS);
+                out.writeLong(entry.mDirChecksum);
+                out.writeLong(entry.mPropsModifiedTS);
+                out.writeLong(entry.mPropsChecksum);
+                Properties props = entry.isPropsLoaded() ? entry.mProps : null;
+                out.writeBoolean(entry.isPropsLoaded());
+                out.writeInt(props != null ? props.size() : -1);
+                if (props != null) {
+                    for (String name : props.stringPropertyNames()) {
+                        out.writeUTF(name);
+                        out.writeUTF(props.getProperty(name));
+                    }
+                }
+            }
+            out.writeInt(listings.size());
+            for (Map.Entry<File, Listing> e : listings.entrySet()) {
+                Listing listing = e.getValue();
+                out.writeUTF(e.getKey().getPath());
+                out.writeLong(listing.mModifiedTS);
+                out.writeInt(listing.mFiles.length);
+                for (File file : listing.mFiles) {
+                    out.writeUTF(file.getPath());
+                }
+            }
+            out.close();
+            out = null;
+
+            if (!mIndexFile.delete() && mIndexFile.exists()) {
+                return;
+            }
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.renameTo(mIndexFile);
+        } catch (IOException ignore) {
+            // The index will be rebuilt next time.
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {}
+            }
+            if (tmpFile != null) {
+                //noinspection ResultOfMethodCallIgnored
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads the stored entries and listings. Nothing is read if the file does not exist, is
+     * invalid or was written by another version.
+     */
+    private void load() {
+        if (!mIndexFile.isFile()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                File dir = new File(in.readUTF());
+                Entry entry = new Entry(in.readLong(), in.readLong(), in.readLong(),
+                        in.readLong());
+                boolean propsLoaded = in.readBoolean();
+                int propsCount = in.readInt();
+                Properties props = null;
+                if (propsCount >= 0) {
+                    props = new Properties();
+                    for (int j = 0; j < propsCount; j++) {
+                        props.setProperty(in.readUTF(), in.readUTF());
+                    }
+                }
+                if (propsLoaded) {
+                    entry.setProps(props);
+                }
+                mStoredEntries.put(dir, entry);
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                File dir = new File(in.readUTF());
+                long modifiedTS = in.readLong();
+                File[] files = new File[in.readInt()];
+                for (int j = 0; j < files.length; j++) {
+                    files[j] = new File(in.readUTF());
+                }
+                mStoredListings.put(dir, new Listing(modifiedTS, files));
+            }
+        } catch (Exception e) {
+            // Invalid or truncated index.
+            mStoredEntries.clear();
+            mStoredListings.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {}
+            }
+        }
+    }
+}
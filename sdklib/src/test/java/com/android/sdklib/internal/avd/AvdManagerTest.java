@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.sdklib.internal.avd;
+
+import com.android.SdkConstants;
+import com.android.sdklib.IAndroidTarget;
+import com.android.sdklib.SdkManagerTestCase;
+import com.android.sdklib.SystemImage;
+import com.android.utils.ILogger;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Unit tests for the creation of the AVD image files by {@link AvdManager}.
+ */
+public class AvdManagerTest extends SdkManagerTestCase {
+
+    private File mTempDir;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mTempDir = Files.createTempDir();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        deleteDir(mTempDir);
+        super.tearDown();
+    }
+
+    public void testCopyImageFile() throws Exception {
+        // data with holes of various sizes, including at the start and the end.
+        byte[] data = new byte[3 * (1 << 20) + 1234];
+        data[5000] = 1;
+        data[5001] = 2;
+        Arrays.fill(data, 1 << 20, (1 << 20) + 10000, (byte) 3);
+        data[2 * (1 << 20) + 4095] = 4;
+        File source = new File(mTempDir, "source.img");
+        Files.write(data, source);
+
+        // the previous content of the destination must not remain in the holes.
+        File destination = new File(mTempDir, "destination.img");
+        byte[] previous = new byte[4 * (1 << 20)];
+        Arrays.fill(previous, (byte) 5);
+        Files.write(previous, destination);
+
+        AvdManager.copyImageFile(source, destination);
+        assertTrue(Arrays.equals(data, Files.toByteArray(destination)));
+
+        // an empty file, and a file ending with a non empty partial block.
+        data = new byte[0];
+        Files.write(data, source);
+        AvdManager.copyImageFile(source, destination);
+        assertEquals(0, destination.length());
+
+        data = new byte[10];
+        data[9] = 1;
+        Files.write(data, source);
+        AvdManager.copyImageFile(source, destination);
+        assertTrue(Arrays.equals(data, Files.toByteArray(destination)));
+    }
+
+    public void testCreateAvd_sdcardTemplate() throws Exception {
+        final int[] mkSdCardCount = new int[1];
+        AvdManager avdManager = new AvdManager(getSdkManager().getLocalSdk(), getLog()) {
+            @Override
+            protected boolean createSdCard(
+                    String toolLocation,
+                    String size,
+                    String location,
+                    ILogger log) {
+                mkSdCardCount[0]++;
+                try {
+                    // a fake FAT image: only the start of the file has content.
+                    RandomAccessFile file = new RandomAccessFile(location, "rw");
+                    try {
+                        file.write("FAT".getBytes(SdkConstants.INI_CHARSET));
+                        file.setLength(parseSdcardSize(size, null));
+                    } finally {
+                        file.close();
+                    }
+                    return true;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+        };
+
+        IAndroidTarget target = getSdkManager().getTargets()[0];
+        File sdcard1 = createAvd(avdManager, target, "avd1", "16M");
+        File sdcard2 = createAvd(avdManager, target, "avd2", "16M");
+
+        // mksdcard only ran once, for the template.
+        assertEquals(1, mkSdCardCount[0]);
+        assertEquals(16 << 20, sdcard1.length());
+        assertTrue(Files.equal(sdcard1, sdcard2));
+        assertEquals("FAT", new String(Files.toByteArray(sdcard2), 0, 3,
+                SdkConstants.INI_CHARSET));
+
+        // only the templates of the sizes used most recently are kept.
+        File templates = new File(avdManager.getBaseAvdFolder(), ".sdcard-templates");
+        for (int i = 1; i <= AvdManager.MAX_SDCARD_TEMPLATES + 2; i++) {
+            File sdcard = createAvd(avdManager, target, "avd" + (i + 2), (16 + i) + "M");
+            assertEquals((16 + i) << 20, sdcard.length());
+            String[] names = templates.list();
+            assertNotNull(names);
+            assertTrue(Arrays.toString(names), names.length <= AvdManager.MAX_SDCARD_TEMPLATES);
+            assertTrue(new File(templates, "sdcard-" + ((16 + i) << 20) + ".img").isFile());
+        }
+    }
+
+    private File createAvd(AvdManager avdManager, IAndroidTarget target, String name,
+            String sdcard) throws Exception {
+        File avdFolder = new File(avdManager.getBaseAvdFolder(),
+                name + AvdManager.AVD_FOLDER_EXTENSION);
+        AvdInfo info = avdManager.createAvd(
+                avdFolder,
+                name,
+                target,
+                SystemImage.DEFAULT_TAG,
+                SdkConstants.ABI_ARMEABI,
+                null,   // skinFolder
+                null,   // skinName
+                sdcard,
+                null,   // hardwareConfig
+                null,   // bootProps
+                false,  // createSnapshot
+                false,  // removePrevious
+                false,  // editExisting
+                getLog());
+        assertNotNull(getLog().toString(), info);
+        return new File(avdFolder, "sdcard.img");
+    }
+}
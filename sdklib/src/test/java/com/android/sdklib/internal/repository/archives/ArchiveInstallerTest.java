@@ -25,16 +25,35 @@ import com.android.sdklib.internal.repository.packages.MockEmptyPackage;
 import com.android.sdklib.internal.repository.packages.MockExtraPackage;
 import com.android.sdklib.internal.repository.sources.SdkRepoSource;
 import com.android.sdklib.internal.repository.sources.SdkSource;
+import com.android.sdklib.io.FileOp;
 import com.android.sdklib.io.IFileOp;
 import com.android.sdklib.io.MockFileOp;
 import com.android.sdklib.repository.PkgProps;
 import com.android.utils.Pair;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import junit.framework.TestCase;
@@ -53,6 +72,8 @@ public class ArchiveInstallerTest extends TestCase {
     private class MockArchiveInstaller extends ArchiveInstaller {
 
         private Map<Archive, File> mDownloadMap = new HashMap<Archive, File>();
+        private List<String> mDownloadThreads =
+                Collections.synchronizedList(new ArrayList<String>());
 
         public MockArchiveInstaller(IFileOp fileUtils) {
             super(fileUtils);
@@ -62,6 +83,10 @@ public class ArchiveInstallerTest extends TestCase {
             mDownloadMap.put(archive, response);
         }
 
+        public List<String> getDownloadThreads() {
+            return mDownloadThreads;
+        }
+
         @Override
         protected Pair<File, File> downloadFile(
                 Archive archive,
@@ -69,9 +94,12 @@ public class ArchiveInstallerTest extends TestCase {
                 DownloadCache cache,
                 ITaskMonitor monitor,
                 boolean forceHttp) {
+            mDownloadThreads.add(Thread.currentThread().getName());
             File file = mDownloadMap.get(archive);
             // register the file as "created"
-            ArchiveInstallerTest.this.mFile.recordExistingFile(file);
+            synchronized (ArchiveInstallerTest.this.mFile) {
+                ArchiveInstallerTest.this.mFile.recordExistingFile(file);
+            }
             return Pair.of(file, null);
         }
 
@@ -94,6 +122,167 @@ public class ArchiveInstallerTest extends TestCase {
 
     }
 
+    /**
+     * An installer downloading from a real HTTP server, which records the result of each
+     * download once it is finished.
+     */
+    private static class ServedArchiveInstaller extends ArchiveInstaller {
+        private final Map<Archive, File> mDownloads =
+                Collections.synchronizedMap(new HashMap<Archive, File>());
+        private final Semaphore mFinished = new Semaphore(0);
+
+        public ServedArchiveInstaller() {
+            super(new FileOp());
+        }
+
+        /** Waits for the given number of downloads to finish. */
+        public void waitForDownloads(int count) throws InterruptedException {
+            assertTrue(mFinished.tryAcquire(count, 30, TimeUnit.SECONDS));
+        }
+
+        /** Returns the downloaded file of a finished download, or null if it failed. */
+        public File getDownload(Archive archive) {
+            assertTrue(mDownloads.containsKey(archive));
+            return mDownloads.get(archive);
+        }
+
+        @Override
+        protected Pair<File, File> downloadFile(
+                Archive archive,
+                String osSdkRoot,
+                DownloadCache cache,
+                ITaskMonitor monitor,
+                boolean forceHttp) {
+            Pair<File, File> result = null;
+            try {
+                result = super.downloadFile(archive, osSdkRoot, cache, monitor, forceHttp);
+                return result;
+            } finally {
+                mDownloads.put(archive, result != null ? result.getFirst() : null);
+                mFinished.release();
+            }
+        }
+    }
+
+    /**
+     * A loopback HTTP server serving archives. It supports resuming downloads with a range
+     * request, and can hold its responses until enough requests are being served at the same
+     * time, or send its responses slowly.
+     */
+    private static class ArchiveServer implements HttpHandler {
+        private static final String ETAG = "\"v1\"";
+
+        private final HttpServer mServer;
+        private final Map<String, byte[]> mContents =
+                Collections.synchronizedMap(new HashMap<String, byte[]>());
+        private final List<String> mRanges = Collections.synchronizedList(new ArrayList<String>());
+        private volatile CountDownLatch mConcurrentRequests;
+        private volatile boolean mAllConcurrent = true;
+        private volatile boolean mSlow;
+        private final CountDownLatch mFirstChunkSent = new CountDownLatch(1);
+
+        public ArchiveServer() throws IOException {
+            mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                    0);
+            mServer.createContext("/", this);
+            mServer.setExecutor(Executors.newCachedThreadPool());
+            mServer.start();
+        }
+
+        public void stop() {
+            mServer.stop(0);
+            ((ExecutorService) mServer.getExecutor()).shutdownNow();
+        }
+
+        /** Creates a remote package whose archive has the given content on this server. */
+        public MockEmptyPackage createPackage(SdkSource source, String name, byte[] content)
+                throws Exception {
+            mContents.put("/" + name + ".zip", content);
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder sha1 = new StringBuilder();
+            for (byte b : digest.digest(content)) {
+                sha1.append(String.format("%02x", b));
+            }
+            String url = String.format("http://127.0.0.1:%1$d/%2$s.zip",
+                    mServer.getAddress().getPort(), name);
+            return createRemoteEmptyPackage(source, name, url, content.length,
+                    sha1.toString());
+        }
+
+        /** Holds the responses until the given number of requests are being served. */
+        public void expectConcurrentRequests(int count) {
+            mConcurrentRequests = new CountDownLatch(count);
+        }
+
+        /** Whether all the requests were served while the expected other ones were. */
+        public boolean allConcurrent() {
+            return mAllConcurrent;
+        }
+
+        /** Sends the responses in small chunks, with a delay between them. */
+        public void setSlow(boolean slow) {
+            mSlow = slow;
+        }
+
+        /** Waits until the first chunk of a slow response was sent. */
+        public void waitForFirstChunk() throws InterruptedException {
+            assertTrue(mFirstChunkSent.await(30, TimeUnit.SECONDS));
+        }
+
+        /** Returns the Range headers of the requests, in order. */
+        public List<String> getRanges() {
+            return mRanges;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                CountDownLatch concurrentRequests = mConcurrentRequests;
+                if (concurrentRequests != null) {
+                    concurrentRequests.countDown();
+                    if (!concurrentRequests.await(30, TimeUnit.SECONDS)) {
+                        mAllConcurrent = false;
+                    }
+                }
+
+                byte[] content = mContents.get(exchange.getRequestURI().getPath());
+                if (content == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+
+                int start = 0;
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if (range != null) {
+                    mRanges.add(range);
+                    if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-Match"))) {
+                        start = Integer.parseInt(range.substring("bytes=".length(),
+                                range.indexOf('-')));
+                    }
+                }
+
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                exchange.sendResponseHeaders(start > 0 ? 206 : 200, content.length - start);
+                OutputStream out = exchange.getResponseBody();
+                int chunk = mSlow ? 1024 : content.length;
+                for (int offset = start; offset < content.length; offset += chunk) {
+                    out.write(content, offset, Math.min(chunk, content.length - offset));
+                    out.flush();
+                    if (mSlow) {
+                        mFirstChunkSent.countDown();
+                        Thread.sleep(10);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // the client went away.
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
     @Override
     protected void setUp() throws Exception {
         super.setUp();
@@ -116,6 +305,121 @@ public class ArchiveInstallerTest extends TestCase {
         assertTrue(mMon.getCapturedLog().indexOf("Skipping already installed archive") != -1);
     }
 
+    /** Test archives downloaded in the background are installed without downloading again. */
+    public void testInstall_StartDownloads() throws Exception {
+        SdkSource src1 = new SdkRepoSource("http://repo.example.com/url", "repo1");
+        MockEmptyPackage p1 = createRemoteEmptyPackage(src1, "testPkg1");
+        MockEmptyPackage p2 = createRemoteEmptyPackage(src1, "testPkg2");
+        MockEmptyPackage local = new MockEmptyPackage("localPkg");
+        List<ArchiveReplacement> archives = Arrays.asList(
+                new ArchiveReplacement(p1.getArchives()[0], null /*replaced*/),
+                new ArchiveReplacement(p2.getArchives()[0], null /*replaced*/),
+                new ArchiveReplacement(local.getArchives()[0], null /*replaced*/));
+
+        mArchInst.setDownloadResponse(
+                p1.getArchives()[0], createFile("/sdk", "tmp", "download1.zip"));
+        mArchInst.setDownloadResponse(
+                p2.getArchives()[0], createFile("/sdk", "tmp", "download2.zip"));
+
+        mArchInst.startDownloads(archives, mSdkRoot, false /*forceHttp*/,
+                null /*UrlCache*/, mMon);
+        try {
+            for (ArchiveReplacement ar : archives) {
+                mArchInst.install(ar, mSdkRoot, false /*forceHttp*/, mSdkMan,
+                        null /*UrlCache*/, mMon);
+            }
+        } finally {
+            mArchInst.stopDownloads();
+        }
+
+        // each remote archive is downloaded once, in the background.
+        assertEquals(
+                "[SDK archive download, SDK archive download]",
+                mArchInst.getDownloadThreads().toString());
+        assertEquals(
+                "[/sdk/mock/testPkg1/source.properties, /sdk/mock/testPkg2/source.properties]",
+                Arrays.toString(mFile.getExistingFiles()));
+    }
+
+    /** Test archives are downloaded in parallel from an HTTP server. */
+    public void testStartDownloads_Parallel() throws Exception {
+        ArchiveServer server = new ArchiveServer();
+        File sdkRoot = Files.createTempDir();
+        ServedArchiveInstaller installer = new ServedArchiveInstaller();
+        try {
+            SdkSource src1 = new SdkRepoSource("http://repo.example.com/url", "repo1");
+            byte[] content1 = createContent(100000, 1);
+            byte[] content2 = createContent(200000, 2);
+            Archive archive1 = server.createPackage(src1, "testPkg1", content1).getArchives()[0];
+            Archive archive2 = server.createPackage(src1, "testPkg2", content2).getArchives()[0];
+
+            // each response is held until both archives are being downloaded.
+            server.expectConcurrentRequests(2);
+            installer.startDownloads(Arrays.asList(
+                        new ArchiveReplacement(archive1, null /*replaced*/),
+                        new ArchiveReplacement(archive2, null /*replaced*/)),
+                    sdkRoot.getPath(), false /*forceHttp*/,
+                    new DownloadCache(DownloadCache.Strategy.DIRECT), mMon);
+            installer.waitForDownloads(2);
+
+            assertTrue(server.allConcurrent());
+            assertTrue(Arrays.equals(content1, Files.toByteArray(installer.getDownload(archive1))));
+            assertTrue(Arrays.equals(content2, Files.toByteArray(installer.getDownload(archive2))));
+            assertEquals("", mMon.getCapturedErrorLog());
+        } finally {
+            installer.stopDownloads();
+            server.stop();
+            new FileOp().deleteFileOrFolder(sdkRoot);
+        }
+    }
+
+    /**
+     * Test stopping a background download in the middle of the transfer keeps the partial
+     * file, and that the next download resumes it.
+     */
+    public void testStopDownloads_Resume() throws Exception {
+        ArchiveServer server = new ArchiveServer();
+        File sdkRoot = Files.createTempDir();
+        ServedArchiveInstaller installer = new ServedArchiveInstaller();
+        try {
+            SdkSource src1 = new SdkRepoSource("http://repo.example.com/url", "repo1");
+            byte[] content = createContent(1000000, 3);
+            Archive archive = server.createPackage(src1, "testPkg", content).getArchives()[0];
+
+            server.setSlow(true);
+            installer.startDownloads(Collections.singletonList(
+                        new ArchiveReplacement(archive, null /*replaced*/)),
+                    sdkRoot.getPath(), false /*forceHttp*/,
+                    new DownloadCache(DownloadCache.Strategy.DIRECT), mMon);
+            server.waitForFirstChunk();
+            installer.stopDownloads();
+            installer.waitForDownloads(1);
+
+            assertNull(installer.getDownload(archive));
+            assertTrue(mMon.getCapturedLog(),
+                    mMon.getCapturedLog().contains("Download aborted by user"));
+            File tmpFile = new File(new File(sdkRoot, "temp"), "testPkg.zip");
+            long partialLength = tmpFile.length();
+            assertTrue(partialLength > 0 && partialLength < content.length);
+            assertTrue(new File(tmpFile.getPath() + ".inf").isFile());
+
+            // the next download only fetches the rest of the archive.
+            server.setSlow(false);
+            Pair<File, File> download = installer.downloadFile(archive, sdkRoot.getPath(),
+                    new DownloadCache(DownloadCache.Strategy.DIRECT), new MockMonitor(),
+                    false /*forceHttp*/);
+            assertNotNull(download);
+            assertEquals(tmpFile, download.getFirst());
+            assertTrue(Arrays.equals(content, Files.toByteArray(tmpFile)));
+            assertEquals(Collections.singletonList("bytes=" + partialLength + "-"),
+                    server.getRanges());
+        } finally {
+            installer.stopDownloads();
+            server.stop();
+            new FileOp().deleteFileOrFolder(sdkRoot);
+        }
+    }
+
     /** Test we can install a simple new archive. */
     public void testInstall_NewArchive() throws Exception {
         SdkSource src1 = new SdkRepoSource("http://repo.example.com/url", "repo1");
@@ -288,6 +592,20 @@ public class ArchiveInstallerTest extends TestCase {
      * archive associated.
      */
     private static MockEmptyPackage createRemoteEmptyPackage(SdkSource source, String testHandle) {
+        return createRemoteEmptyPackage(source, testHandle,
+                "http://some.source/" + testHandle + ".zip", 1234, "abcdef");
+    }
+
+    /**
+     * Helper creator method to create a {@link MockEmptyPackage} with one remote archive
+     * at the given URL.
+     */
+    private static MockEmptyPackage createRemoteEmptyPackage(
+            SdkSource source,
+            String testHandle,
+            final String url,
+            final long size,
+            final String sha1) {
         return new MockEmptyPackage(source, testHandle, 0 /*revision*/) {
             @Override
             protected Archive[] initializeArchives(
@@ -298,9 +616,9 @@ public class ArchiveInstallerTest extends TestCase {
                         new Archive(
                             this,
                             null,       // arch
-                            "http://some.source/some_url",
-                            1234,       // size
-                            "abcdef")   // sha1
+                            url,
+                            size,
+                            sha1)
                         };
             }
         };
@@ -367,6 +685,13 @@ public class ArchiveInstallerTest extends TestCase {
         };
     }
 
+    /** Creates some archive content which is different for each seed. */
+    private static byte[] createContent(int length, int seed) {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
     private File createFile(String...segments) {
         File f = null;
         for (String segment : segments) {
@@ -23,10 +23,13 @@ import com.android.sdklib.BuildToolInfo.PathId;
 import com.android.sdklib.IAndroidTarget;
 import com.android.sdklib.internal.repository.archives.Archive;
 import com.android.sdklib.internal.repository.packages.Package;
+import com.android.sdklib.io.FileOp;
 import com.android.sdklib.io.MockFileOp;
 import com.android.sdklib.repository.FullRevision;
 import com.android.sdklib.repository.MajorRevision;
 import com.android.sdklib.repository.descriptors.PkgType;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
 
 import java.io.File;
 import java.util.Arrays;
@@ -1185,4 +1188,85 @@ public class LocalSdkTest extends TestCase {
                 "ro.product.device=generic\n" +
                 "ro.build.product=generic\n");
     }
+
+    public final void testLocalSdkTest_indexFile() throws Exception {
+        File indexFile = File.createTempFile("localSdkIndex", ".bin");
+        try {
+            assertTrue(indexFile.delete());
+
+            mFOp.recordExistingFolder("/sdk/build-tools");
+            mFOp.recordExistingFolder("/sdk/build-tools/18.1.2");
+            mFOp.recordExistingFile("/sdk/build-tools/18.1.2/source.properties", 1000,
+                    "Pkg.Revision=18.1.2\n");
+            mFOp.recordExistingFolder("/sdk/tools");
+            mFOp.recordExistingFile("/sdk/tools/source.properties", 1000,
+                    "Pkg.Revision=22.3.4\n");
+
+            mLS.setIndexFile(indexFile);
+            assertEquals(2, mLS.getPkgsInfos(PkgType.PKG_ALL).length);
+            assertTrue(indexFile.isFile());
+
+            // same timestamps: the properties are read from the index.
+            mFOp.recordExistingFile("/sdk/build-tools/18.1.2/source.properties", 1000,
+                    "Pkg.Revision=19\n");
+            LocalSdk ls = new LocalSdk(mFOp);
+            ls.setLocation(new File("/sdk"));
+            ls.setIndexFile(indexFile);
+            LocalPkgInfo[] infos = ls.getPkgsInfos(PkgType.PKG_BUILD_TOOLS);
+            assertEquals(1, infos.length);
+            assertEquals(new FullRevision(18, 1, 2), infos[0].getDesc().getFullRevision());
+            assertEquals(new FullRevision(22, 3, 4),
+                    ls.getPkgInfo(PkgType.PKG_TOOLS).getDesc().getFullRevision());
+
+            // the changed properties are detected, and read again.
+            assertTrue(ls.hasChanged(EnumSet.of(PkgType.PKG_BUILD_TOOLS)));
+            mFOp.recordExistingFile("/sdk/build-tools/18.1.2/source.properties", 2000,
+                    "Pkg.Revision=19\n");
+            ls = new LocalSdk(mFOp);
+            ls.setLocation(new File("/sdk"));
+            ls.setIndexFile(indexFile);
+            infos = ls.getPkgsInfos(PkgType.PKG_BUILD_TOOLS);
+            assertEquals(1, infos.length);
+            assertEquals(new FullRevision(19), infos[0].getDesc().getFullRevision());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            indexFile.delete();
+        }
+    }
+
+    public final void testLocalSdkTest_indexFileListings() throws Exception {
+        // the mock file op has no folder timestamps, so use real files.
+        File sdkRoot = Files.createTempDir();
+        File indexFile = new File(sdkRoot, "index.bin");
+        try {
+            File buildTools = new File(sdkRoot, "build-tools");
+            createBuildTools(buildTools, "18.1.2");
+            LocalSdk ls = new LocalSdk(sdkRoot);
+            ls.setIndexFile(indexFile);
+            assertEquals(1, ls.getPkgsInfos(PkgType.PKG_BUILD_TOOLS).length);
+
+            // build-tools has the same timestamp: its recorded content is used.
+            long modifiedTS = buildTools.lastModified();
+            createBuildTools(buildTools, "19.0.0");
+            assertTrue(buildTools.setLastModified(modifiedTS));
+            ls = new LocalSdk(sdkRoot);
+            ls.setIndexFile(indexFile);
+            assertEquals(1, ls.getPkgsInfos(PkgType.PKG_BUILD_TOOLS).length);
+
+            // build-tools changed: it is listed again.
+            assertTrue(buildTools.setLastModified(modifiedTS + 2000));
+            ls = new LocalSdk(sdkRoot);
+            ls.setIndexFile(indexFile);
+            assertEquals(2, ls.getPkgsInfos(PkgType.PKG_BUILD_TOOLS).length);
+        } finally {
+            new FileOp().deleteFileOrFolder(sdkRoot);
+        }
+    }
+
+    private static void createBuildTools(File buildTools, String revision) throws Exception {
+        File dir = new File(buildTools, revision);
+        assertTrue(dir.mkdirs());
+        Files.write("Pkg.Revision=" + revision + "\n",
+                new File(dir, SdkConstants.FN_SOURCE_PROP), Charsets.UTF_8);
+    }
 }